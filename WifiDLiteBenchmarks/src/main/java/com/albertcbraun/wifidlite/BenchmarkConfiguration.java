@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.content.Context;
+
+import com.albertcbraun.wifidlite.impl.DefaultConfiguration;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs everything synchronously on the calling thread, disables coalescing and keeps
+ * the heartbeat out of the way, so that a benchmark measures only the work it triggers.
+ */
+class BenchmarkConfiguration extends DefaultConfiguration {
+
+    private static final int HEARTBEAT_DELAY_SEC = 3600;
+
+    private final P2pBackend p2pBackend;
+
+    BenchmarkConfiguration(P2pBackend p2pBackend) {
+        this.p2pBackend = p2pBackend;
+    }
+
+    @Override
+    public P2pBackend createP2pBackend(Context context) {
+        return p2pBackend;
+    }
+
+    @Override
+    public Executor getDispatchExecutor() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        };
+    }
+
+    @Override
+    public long getPeerListCoalescingWindow() {
+        return 0;
+    }
+
+    @Override
+    public int getHeartbeatDelay() {
+        return HEARTBEAT_DELAY_SEC;
+    }
+
+    @Override
+    public int getMinHeartbeatDelay() {
+        return HEARTBEAT_DELAY_SEC;
+    }
+
+    @Override
+    public int getMaxHeartbeatDelay() {
+        return HEARTBEAT_DELAY_SEC;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of delivering one {@link PeerListDelta} to every registered listener, and of a
+ * short-lived listener subscribing and unsubscribing, with the {@link ListenerRegistry}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ListenerFanOutBenchmark {
+
+    @Param({"1", "10", "100"})
+    int listenerCount;
+
+    private ListenerRegistry<PeerListDeltaListener> registry;
+    private PeerListDelta delta;
+    private PeerListDeltaListener shortLived;
+    private long sink = 0;
+
+    @Setup
+    public void setUp() {
+        registry = new ListenerRegistry<PeerListDeltaListener>(new PeerListDeltaListener[0]);
+        for (int i = 0; i < listenerCount; i++) {
+            registry.add(new PeerListDeltaListener() {
+                @Override
+                public void onPeerListDelta(PeerListDelta delta) {
+                    sink += delta.getAdded().size();
+                }
+            });
+        }
+        PeerListTracker peerListTracker = new PeerListTracker(new PeerRegistry(new StubP2pBackend(), null));
+        delta = peerListTracker.update(PeerLists.devices(10, 0));
+        shortLived = new PeerListDeltaListener() {
+            @Override
+            public void onPeerListDelta(PeerListDelta delta) {
+            }
+        };
+    }
+
+    @Benchmark
+    public long dispatch() {
+        for (PeerListDeltaListener listener : registry.snapshot()) {
+            listener.onPeerListDelta(delta);
+        }
+        return sink;
+    }
+
+    @Benchmark
+    public boolean subscribeAndUnsubscribe() {
+        registry.add(shortLived);
+        return registry.remove(shortLived);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import com.albertcbraun.wifidlite.transport.BufferPool;
+import com.albertcbraun.wifidlite.transport.Connection;
+import com.albertcbraun.wifidlite.transport.ConnectionListener;
+import com.albertcbraun.wifidlite.transport.Server;
+import com.albertcbraun.wifidlite.transport.Transport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a message round trip over a loopback data channel connection, whose frames come
+ * from a shared {@link BufferPool}, and of taking and returning a pooled buffer. The GC
+ * profiler measures the sending thread; the pool's counters show that the selector
+ * threads take no new buffers once warmed up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessagingBenchmark {
+
+    @Param({"64", "4096"})
+    int messageSize;
+
+    private BufferPool bufferPool;
+    private Transport serverTransport;
+    private Transport clientTransport;
+    private Connection connection;
+    private ByteBuffer message;
+    private volatile long received = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        bufferPool = new BufferPool();
+        serverTransport = new Transport(Transport.DEFAULT_MAX_MESSAGE_SIZE, bufferPool);
+        clientTransport = new Transport(Transport.DEFAULT_MAX_MESSAGE_SIZE, bufferPool);
+        Server server = serverTransport.listen(new InetSocketAddress("127.0.0.1", 0), new ConnectionListener() {
+            @Override
+            public void onConnected(Connection connection) {
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer message) {
+                connection.send(message);
+            }
+
+            @Override
+            public void onClosed(Connection connection, IOException cause) {
+            }
+        });
+        connection = clientTransport.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()),
+                new ConnectionListener() {
+                    @Override
+                    public void onConnected(Connection connection) {
+                    }
+
+                    @Override
+                    public void onMessage(Connection connection, ByteBuffer message) {
+                        received++;
+                    }
+
+                    @Override
+                    public void onClosed(Connection connection, IOException cause) {
+                    }
+                });
+        message = ByteBuffer.allocateDirect(messageSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        clientTransport.close();
+        serverTransport.close();
+    }
+
+    @Benchmark
+    public long roundTrip() {
+        long expected = received + 1;
+        message.clear();
+        connection.send(message);
+        while (received < expected) {
+            // spin; the reply arrives on the client's selector thread
+        }
+        return expected;
+    }
+
+    @Benchmark
+    public int acquireAndRelease() {
+        ByteBuffer buffer = bufferPool.acquire(messageSize);
+        int capacity = buffer.capacity();
+        bufferPool.release(buffer);
+        return capacity;
+    }
+}
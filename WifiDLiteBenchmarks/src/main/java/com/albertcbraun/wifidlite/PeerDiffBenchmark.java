@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of diffing a new device list against the previous one in the
+ * {@link PeerListTracker}, including canonical peer lookup in the {@link PeerRegistry},
+ * and of building the full list handed to {@link PeerListAcquisitionListener}s.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PeerDiffBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    int peerCount;
+
+    @Param({PeerLists.STABLE, PeerLists.CHURN})
+    String mode;
+
+    private PeerListTracker peerListTracker;
+    private List<WifiP2pDevice> first;
+    private List<WifiP2pDevice> second;
+    private boolean flip = false;
+
+    @Setup
+    public void setUp() {
+        peerListTracker = new PeerListTracker(new PeerRegistry(new StubP2pBackend(), null));
+        first = PeerLists.devices(peerCount, 0);
+        second = PeerLists.alternate(peerCount, mode);
+        peerListTracker.update(first);
+    }
+
+    @Benchmark
+    public PeerListDelta diff() {
+        flip = !flip;
+        return peerListTracker.update(flip ? second : first);
+    }
+
+    @Benchmark
+    public List<Peer> fullList() {
+        return peerListTracker.getPeers();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the device lists which the benchmarks feed to the library.
+ */
+final class PeerLists {
+
+    static final String STABLE = "stable";
+    static final String CHURN = "churn";
+
+    private static final long ADDRESS_PREFIX = 0x020000000000L;
+
+    private PeerLists() {
+    }
+
+    /**
+     * @param count  number of devices
+     * @param offset index of the first device
+     * @return new device objects, as the platform creates for every broadcast
+     */
+    static List<WifiP2pDevice> devices(int count, int offset) {
+        List<WifiP2pDevice> devices = new ArrayList<WifiP2pDevice>(count);
+        for (int i = offset; i < offset + count; i++) {
+            WifiP2pDevice device = new WifiP2pDevice();
+            device.deviceName = "Benchmark Peer " + i;
+            device.deviceAddress = MacAddress.format(ADDRESS_PREFIX | i);
+            device.status = WifiP2pDevice.AVAILABLE;
+            devices.add(device);
+        }
+        return devices;
+    }
+
+    /**
+     * The list which alternates with {@link #devices devices(count, 0)} in a benchmark.
+     * In the stable mode it holds the same devices; in the churn mode a tenth of them are
+     * replaced by new devices and another tenth have changed their status.
+     */
+    static List<WifiP2pDevice> alternate(int count, String mode) {
+        List<WifiP2pDevice> devices = devices(count, 0);
+        if (CHURN.equals(mode)) {
+            int tenth = Math.max(1, count / 10);
+            for (int i = 0; i < tenth && i < count; i++) {
+                devices.set(i, devices(1, count + i).get(0));
+            }
+            for (int i = tenth; i < 2 * tenth && i < count; i++) {
+                devices.get(i).status = WifiP2pDevice.INVITED;
+            }
+        }
+        return devices;
+    }
+}
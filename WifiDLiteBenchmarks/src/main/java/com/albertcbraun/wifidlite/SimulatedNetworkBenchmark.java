@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import com.albertcbraun.wifidlite.impl.SimulatedP2pBackend;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of the whole library against a {@link SimulatedP2pBackend} with hundreds of
+ * virtual peers coming and going, and the radio refusing a share of the operations as
+ * busy. Each invocation asks {@link WifiDLite} for a fresh peer list and waits for it,
+ * so the time includes the operation queue, discovery retries, the simulated radio
+ * latency and peer list processing with an ongoing delta listener subscribed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimulatedNetworkBenchmark {
+
+    private static final long LATENCY_MILLIS = 2;
+    private static final double CHURN_PROBABILITY = 0.01;
+    private static final long CHURN_PERIOD_MILLIS = 20;
+    private static final long SEED = 1;
+    private static final long TIMEOUT_SEC = 10;
+
+    @Param({"100", "500"})
+    int deviceCount;
+
+    @Param({"0.0", "0.2"})
+    double busyProbability;
+
+    private WifiDLite wifiDLite;
+    private final AtomicInteger deltas = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        SimulatedP2pBackend p2pBackend = new SimulatedP2pBackend(deviceCount, LATENCY_MILLIS, busyProbability,
+                CHURN_PROBABILITY, CHURN_PERIOD_MILLIS, SEED);
+        wifiDLite = WifiDLite.getInstance();
+        wifiDLite.initialize(null, new BenchmarkConfiguration(p2pBackend));
+        wifiDLite.subscribeToDeltas(new PeerListDeltaListener() {
+            @Override
+            public void onPeerListDelta(PeerListDelta delta) {
+                deltas.incrementAndGet();
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        wifiDLite.dispose();
+    }
+
+    @Benchmark
+    public int acquirePeerList() throws InterruptedException {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final int[] size = new int[1];
+        wifiDLite.acquireCurrentPeerList(new PeerListAcquisitionListener() {
+            @Override
+            public void onPeerListAcquisitionSuccess(List<Peer> peers) {
+                size[0] = peers.size();
+                acquired.countDown();
+            }
+        });
+        if (!acquired.await(TIMEOUT_SEC, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("No peer list within " + TIMEOUT_SEC + " seconds");
+        }
+        return size[0] + deltas.get();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the status and address formatting done for logging and by listeners:
+ * {@link Util#getP2pStatus}, {@link Util#getDeviceStatus} and {@link MacAddress}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatusFormattingBenchmark {
+
+    private static final int[] P2P_CODES = {WifiP2pManager.ERROR, WifiP2pManager.P2P_UNSUPPORTED,
+            WifiP2pManager.BUSY, WifiP2pManager.NO_SERVICE_REQUESTS, 42};
+    private static final int[] DEVICE_STATUSES = {WifiP2pDevice.CONNECTED, WifiP2pDevice.INVITED,
+            WifiP2pDevice.FAILED, WifiP2pDevice.AVAILABLE, WifiP2pDevice.UNAVAILABLE};
+
+    private int index = 0;
+    private final String address = "02:00:00:00:12:ab";
+    private final long addressValue = MacAddress.parseToLong(address);
+
+    @Benchmark
+    public String p2pStatus() {
+        index = (index + 1) % P2P_CODES.length;
+        return Util.getP2pStatus(P2P_CODES[index]);
+    }
+
+    @Benchmark
+    public String deviceStatus() {
+        index = (index + 1) % DEVICE_STATUSES.length;
+        return Util.getDeviceStatus(DEVICE_STATUSES[index]);
+    }
+
+    @Benchmark
+    public long parseMacAddress() {
+        return MacAddress.parseToLong(address);
+    }
+
+    @Benchmark
+    public String formatMacAddress() {
+        return MacAddress.format(addressValue);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pConfig;
+import android.net.wifi.p2p.WifiP2pInfo;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+
+/**
+ * A {@link P2pBackend} which completes every operation immediately and successfully,
+ * on the calling thread, and lets benchmarks inject events directly.
+ */
+class StubP2pBackend implements P2pBackend {
+
+    private Events events = null;
+
+    /**
+     * @return the events object registered by {@link WifiDLite#initialize}
+     */
+    Events getEvents() {
+        return events;
+    }
+
+    @Override
+    public void initialize(Events events) {
+        this.events = events;
+    }
+
+    @Override
+    public void dispose() {
+        this.events = null;
+    }
+
+    @Override
+    public void discoverPeers(WifiP2pManager.ActionListener listener) {
+        listener.onSuccess();
+    }
+
+    @Override
+    public void stopPeerDiscovery(WifiP2pManager.ActionListener listener) {
+        listener.onSuccess();
+    }
+
+    @Override
+    public void connect(WifiP2pConfig config, WifiP2pManager.ActionListener listener) {
+        listener.onSuccess();
+    }
+
+    @Override
+    public void createGroup(WifiP2pManager.ActionListener listener) {
+        listener.onSuccess();
+    }
+
+    @Override
+    public void removeGroup(WifiP2pManager.ActionListener listener) {
+        listener.onSuccess();
+    }
+
+    @Override
+    public void requestGroupInfo(WifiP2pManager.GroupInfoListener listener) {
+        listener.onGroupInfoAvailable(null);
+    }
+
+    @Override
+    public void requestConnectionInfo(WifiP2pManager.ConnectionInfoListener listener) {
+        listener.onConnectionInfoAvailable(new WifiP2pInfo());
+    }
+
+    @Override
+    public void addLocalService(WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        listener.onSuccess();
+    }
+
+    @Override
+    public void removeLocalService(WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        listener.onSuccess();
+    }
+
+    @Override
+    public void addServiceRequest(WifiP2pServiceRequest serviceRequest, WifiP2pManager.ActionListener listener) {
+        listener.onSuccess();
+    }
+
+    @Override
+    public void removeServiceRequest(WifiP2pServiceRequest serviceRequest, WifiP2pManager.ActionListener listener) {
+        listener.onSuccess();
+    }
+
+    @Override
+    public void discoverServices(WifiP2pManager.ActionListener listener) {
+        listener.onSuccess();
+    }
+}
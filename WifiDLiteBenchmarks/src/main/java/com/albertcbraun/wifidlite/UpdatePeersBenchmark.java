@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end cost of one peers changed event: peer list ingestion in {@link WifiDLite},
+ * diffing, and fan-out to both full list and delta listeners. Each invocation delivers
+ * the other of two alternating device lists.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UpdatePeersBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    int peerCount;
+
+    @Param({"1", "10", "100"})
+    int listenerCount;
+
+    @Param({PeerLists.STABLE, PeerLists.CHURN})
+    String mode;
+
+    private WifiDLite wifiDLite;
+    private P2pBackend.Events events;
+    private List<WifiP2pDevice> first;
+    private List<WifiP2pDevice> second;
+    private boolean flip = false;
+    private long sink = 0;
+
+    @Setup
+    public void setUp() {
+        StubP2pBackend p2pBackend = new StubP2pBackend();
+        wifiDLite = WifiDLite.getInstance();
+        wifiDLite.initialize(null, new BenchmarkConfiguration(p2pBackend));
+        events = p2pBackend.getEvents();
+        for (int i = 0; i < listenerCount; i++) {
+            wifiDLite.subscribe(new PeerListAcquisitionListener() {
+                @Override
+                public void onPeerListAcquisitionSuccess(List<Peer> peers) {
+                    sink += peers.size();
+                }
+            });
+            wifiDLite.subscribeToDeltas(new PeerListDeltaListener() {
+                @Override
+                public void onPeerListDelta(PeerListDelta delta) {
+                    sink += delta.getAdded().size() + delta.getChanged().size();
+                }
+            });
+        }
+        first = PeerLists.devices(peerCount, 0);
+        second = PeerLists.alternate(peerCount, mode);
+        events.onPeersChanged(first);
+    }
+
+    @TearDown
+    public void tearDown() {
+        wifiDLite.dispose();
+    }
+
+    @Benchmark
+    public long updatePeers() {
+        flip = !flip;
+        events.onPeersChanged(flip ? second : first);
+        return sink;
+    }
+}
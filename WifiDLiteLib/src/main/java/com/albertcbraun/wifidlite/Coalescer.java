@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Collapses bursts of tasks into one. A task offered while another is pending
+ * replaces it, and the pending task is handed to the target executor once no new
+ * task has arrived for the length of the window. So that a steady stream of tasks
+ * cannot postpone processing forever, a pending task is never held for longer than
+ * the maximum latency after the first task of the burst arrived.
+ * <p/>
+ * Used to handle only the latest of several peers changed broadcasts which the
+ * framework sends within milliseconds of each other.
+ */
+class Coalescer {
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor target;
+    private final long windowNanos;
+    private final long maxLatencyNanos;
+
+    // guarded by this
+    private Runnable pendingTask = null;
+    private long burstStart = 0;
+    private long deadline = 0;
+    private ScheduledFuture<?> scheduledFlush = null;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (Coalescer.this) {
+                task = pendingTask;
+                pendingTask = null;
+                scheduledFlush = null;
+            }
+            if (task != null) {
+                target.execute(task);
+            }
+        }
+    };
+
+    /**
+     * @param scheduler  runs the delayed hand-off
+     * @param target     the executor which eventually runs the latest task
+     * @param window     quiet period in milliseconds; zero or less disables coalescing
+     * @param maxLatency longest time in milliseconds a task may be held back
+     */
+    Coalescer(ScheduledExecutorService scheduler, Executor target, long window, long maxLatency) {
+        this.scheduler = scheduler;
+        this.target = target;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, window));
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(window, maxLatency));
+    }
+
+    /**
+     * Makes the given task the pending one, replacing any task not yet handed off.
+     */
+    void offer(Runnable task) {
+        if (windowNanos == 0) {
+            target.execute(task);
+            return;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (pendingTask == null) {
+                burstStart = now;
+            }
+            pendingTask = task;
+            long nextDeadline = Math.min(now + windowNanos, burstStart + maxLatencyNanos);
+            if (scheduledFlush != null) {
+                if (nextDeadline == deadline || !scheduledFlush.cancel(false)) {
+                    // already due, or the flush is running and will pick up this task
+                    return;
+                }
+            }
+            deadline = nextDeadline;
+            try {
+                scheduledFlush = scheduler.schedule(flush, Math.max(0, deadline - now), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // shut down: drop the task, as the scheduler's other work is dropped
+                pendingTask = null;
+                scheduledFlush = null;
+            }
+        }
+    }
+}
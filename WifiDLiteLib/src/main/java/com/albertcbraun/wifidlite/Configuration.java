@@ -16,20 +16,178 @@
 
 package com.albertcbraun.wifidlite;
 
+import android.content.Context;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+
 /**
  * Defines configuration settings for the {@link WifiDLite} object.
  */
 public interface Configuration {
 
     /**
-     * The number of seconds between the last time the
+     * The initial number of seconds between the last time the
      * {@link com.albertcbraun.wifidlite.Heartbeat}
      * completed a run and the next time a run is started.
      * <p/>
+     * The heartbeat adapts this delay over time. It backs off towards
+     * {@link #getMaxHeartbeatDelay} while the list of peers is stable and
+     * returns to {@link #getMinHeartbeatDelay} when peers come and go or
+     * a new subscription is added.
+     * <p/>
      * Note: this has not been tested with delay times below
      * five seconds. Alter at your own risk.
      *
      * @return delay in seconds
      */
     public int getHeartbeatDelay();
+
+    /**
+     * The shortest number of seconds the heartbeat will wait between runs.
+     * This delay is used right after the list of peers changes.
+     *
+     * @return minimum delay in seconds
+     */
+    public int getMinHeartbeatDelay();
+
+    /**
+     * The longest number of seconds the heartbeat will wait between runs
+     * once the list of peers has been stable for a while.
+     *
+     * @return maximum delay in seconds
+     */
+    public int getMaxHeartbeatDelay();
+
+    /**
+     * The number of times a failed call to discover peers is retried
+     * when the Android framework reports it as busy or as an error.
+     *
+     * @return number of retries, or zero to disable retrying
+     */
+    public int getDiscoveryRetryLimit();
+
+    /**
+     * The delay before the first retry of a failed call to discover peers.
+     * The delay doubles with each further retry and a random jitter of up
+     * to half of it is applied.
+     *
+     * @return delay in milliseconds
+     */
+    public long getDiscoveryRetryBaseDelay();
+
+    /**
+     * The upper bound on the delay between retries of a failed call to
+     * discover peers.
+     *
+     * @return delay in milliseconds
+     */
+    public long getDiscoveryRetryMaxDelay();
+
+    /**
+     * The executor on which Wifi P2P broadcasts are processed and on which the
+     * {@link PeerListAcquisitionListener}, {@link PeerListDeltaListener} and
+     * {@link CreateGroupListener} callbacks are made.
+     * <p/>
+     * Supplying an executor (for example a single thread executor, or a
+     * {@link com.albertcbraun.wifidlite.impl.HandlerExecutor} for a
+     * {@link android.os.HandlerThread}) keeps peer list processing and listener
+     * fan-out off the main (UI) thread. Listeners must then post any UI work
+     * back to the main thread themselves. Tasks are always run one at a time
+     * and in order, even on a multi-threaded executor.
+     *
+     * @return an executor, or null to process broadcasts and call listeners on the main (UI) thread
+     */
+    public Executor getDispatchExecutor();
+
+    /**
+     * The quiet period used to coalesce bursts of "peers changed" broadcasts.
+     * When several arrive within this window of each other, only the latest
+     * peer list is processed and listeners are called back once.
+     *
+     * @return window in milliseconds, or zero to process every broadcast
+     */
+    public long getPeerListCoalescingWindow();
+
+    /**
+     * The longest time a peer list may be held back while coalescing, measured
+     * from the first broadcast of a burst. Guarantees that a continuous stream of
+     * broadcasts still produces regular updates.
+     *
+     * @return latency bound in milliseconds
+     */
+    public long getPeerListMaxLatency();
+
+    /**
+     * Creates the {@link P2pBackend} through which the {@link WifiDLite} object
+     * carries out Wifi P2P operations and learns of Wifi P2P events. Called once
+     * by each call to {@link WifiDLite#initialize}.
+     *
+     * @param context the context passed to {@link WifiDLite#initialize}
+     * @return a new backend, normally a {@link com.albertcbraun.wifidlite.impl.AndroidP2pBackend}
+     */
+    public P2pBackend createP2pBackend(Context context);
+
+    /**
+     * The object to which the {@link WifiDLite} object reports the latency and outcome
+     * of Wifi P2P operations, broadcast counts, listener callback durations and gauges
+     * such as the number of peers. Useful for tuning the heartbeat and retry settings.
+     *
+     * @return a {@link Metrics} implementation, or
+     * {@link com.albertcbraun.wifidlite.impl.NoOpMetrics#INSTANCE} to take no measurements
+     */
+    public Metrics getMetrics();
+
+    /**
+     * Discovering peers, connecting and creating or removing a group are passed to the
+     * framework one at a time, because it fails concurrent operations with
+     * {@link android.net.wifi.p2p.WifiP2pManager#BUSY}. An operation which has not reported
+     * its result within this time is failed with
+     * {@link android.net.wifi.p2p.WifiP2pManager#ERROR}, so that those queued behind it can run.
+     *
+     * @return timeout in milliseconds
+     */
+    public long getOperationTimeout();
+
+    /**
+     * How long a group may take to form after the framework has been asked to connect to a
+     * peer, before the attempt counts as timed out in the peer's connection history (see
+     * {@link KnownPeer#getConnectSuccessRatio}). The user of the peer device has to accept
+     * the invitation first, which often takes tens of seconds. A group which forms within
+     * half as long again still counts as a success.
+     *
+     * @return timeout in milliseconds
+     */
+    public long getConnectTimeout();
+
+    /**
+     * The file in which peers and groups are remembered across sessions, so that peers
+     * this device has met before can be listed first at startup. See
+     * {@link WifiDLite#getKnownPeers} and {@link WifiDLite#getKnownGroups}.
+     * <p/>
+     * The file holds group pass phrases, so it should be private to the app.
+     *
+     * @param context the context passed to {@link WifiDLite#initialize}
+     * @return a file in the app's private storage, or null to remember peers and groups
+     * for the current session only
+     */
+    public File getHistoryFile(Context context);
+
+    /**
+     * The most direct memory which the data channel's buffer pool allocates for frames and
+     * read buffers, shared by every connection. Beyond it, buffers come from the heap.
+     * In debuggable builds of the app the pool also tracks buffers to report leaks.
+     *
+     * @return capacity in bytes
+     */
+    public long getBufferPoolCapacity();
+
+    /**
+     * How long a peer's DNS-SD service is remembered after it was last reported. While
+     * services of a type are remembered, {@link WifiDLite#discoverServices} answers from
+     * memory instead of running another service discovery.
+     *
+     * @return time to live in milliseconds
+     */
+    public long getServiceCacheTtl();
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Times connection attempts, from the time the framework is asked to connect (once a
+ * {@link Peer#connect} request has made its way through the {@link OperationQueue}) until
+ * the framework reports a formed group to which the peer belongs, as its owner or as a
+ * client, and records their outcome in the {@link PeerHistory}. The framework's connect
+ * call only reports whether the invitation was sent, so its result ends an attempt only
+ * when it is a failure.
+ * <p/>
+ * An attempt which forms no group within the connect timeout is recorded as
+ * {@link KnownPeer#CONNECT_TIMED_OUT}, unless its group still forms within half the
+ * timeout again, when the remote user accepted the invitation at the last moment; then it
+ * is recorded as a success, with the time it took.
+ * <p/>
+ * A peer has at most one attempt at a time; connecting to it again while its attempt is
+ * pending keeps timing from the first call. All methods are safe to call from any thread.
+ */
+class ConnectTracker {
+
+    private final PeerHistory peerHistory;
+    private final ScheduledExecutorService scheduler;
+    private final long timeout;
+    // how long after its timeout an attempt still succeeds if its group forms
+    private final long lateGrace;
+
+    // guarded by this
+    private final LongMap<Attempt> pending = new LongMap<Attempt>();
+    private boolean closed = false;
+
+    /**
+     * @param peerHistory where the outcome of each attempt is recorded
+     * @param scheduler   runs the timeouts
+     * @param timeout     how long a group may take to form, in milliseconds, before the
+     *                    attempt is late
+     */
+    ConnectTracker(PeerHistory peerHistory, ScheduledExecutorService scheduler, long timeout) {
+        this.peerHistory = peerHistory;
+        this.scheduler = scheduler;
+        this.timeout = timeout;
+        this.lateGrace = timeout / 2;
+    }
+
+    /**
+     * Starts timing an attempt to connect to a peer, unless one is pending already, or the
+     * peer has no valid address, or this tracker is closed.
+     *
+     * @param peer the peer the framework is being asked to connect to
+     */
+    synchronized void start(Peer peer) {
+        long address = peer.getAddress();
+        if (closed || address == MacAddress.INVALID || pending.get(address) != null) {
+            return;
+        }
+        Attempt attempt = new Attempt(peer);
+        pending.put(address, attempt);
+        attempt.scheduleTimeout(timeout);
+    }
+
+    /**
+     * Ends the peer's pending attempt as failed, because the framework could not send the
+     * invitation.
+     *
+     * @param peer   the peer
+     * @param reason the framework's failure reason
+     */
+    void fail(Peer peer, int reason) {
+        Attempt attempt;
+        synchronized (this) {
+            attempt = peer.getAddress() == MacAddress.INVALID ? null : pending.remove(peer.getAddress());
+            if (attempt == null) {
+                return;
+            }
+            attempt.cancelTimeout();
+        }
+        attempt.record(reason, System.nanoTime());
+    }
+
+    /**
+     * @return true if an attempt is waiting for its group to form
+     */
+    synchronized boolean hasPendingAttempts() {
+        return pending.size() > 0;
+    }
+
+    /**
+     * Ends the attempts to connect to the owner or to any client of a group successfully.
+     *
+     * @param group a formed group, as reported by
+     *              {@link android.net.wifi.p2p.WifiP2pManager#requestGroupInfo}
+     */
+    void onGroupFormed(WifiP2pGroup group) {
+        List<Attempt> succeeded = new ArrayList<Attempt>(1);
+        synchronized (this) {
+            if (group.getOwner() != null) {
+                take(group.getOwner(), succeeded);
+            }
+            for (WifiP2pDevice client : group.getClientList()) {
+                take(client, succeeded);
+            }
+        }
+        long now = System.nanoTime();
+        for (Attempt attempt : succeeded) {
+            attempt.record(KnownPeer.CONNECT_SUCCEEDED, now);
+        }
+    }
+
+    /**
+     * Drops the pending attempts without recording them. Later attempts are not timed.
+     */
+    synchronized void close() {
+        closed = true;
+        Object[] attempts = new Object[pending.size()];
+        pending.copyValues(attempts);
+        for (Object attempt : attempts) {
+            ((Attempt) attempt).cancelTimeout();
+        }
+        pending.clear();
+    }
+
+    // caller must hold the lock
+    private void take(WifiP2pDevice device, List<Attempt> taken) {
+        long address = MacAddress.parseToLong(device.deviceAddress);
+        Attempt attempt = address == MacAddress.INVALID ? null : pending.remove(address);
+        if (attempt != null) {
+            attempt.cancelTimeout();
+            taken.add(attempt);
+        }
+    }
+
+    /**
+     * An attempt to connect to a peer, waiting for its group to form. Runs when it has
+     * timed out, and again when its grace period has passed.
+     */
+    private final class Attempt implements Runnable {
+        private final Peer peer;
+        private final long startTime = System.nanoTime();
+        // guarded by ConnectTracker.this
+        private ScheduledFuture<?> timeoutFuture = null;
+        private boolean late = false;
+
+        private Attempt(Peer peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ConnectTracker.this) {
+                if (pending.get(peer.getAddress()) != this) {
+                    return;
+                }
+                if (!late) {
+                    late = true;
+                    scheduleTimeout(lateGrace);
+                    return;
+                }
+                pending.remove(peer.getAddress());
+                timeoutFuture = null;
+            }
+            record(KnownPeer.CONNECT_TIMED_OUT, System.nanoTime());
+        }
+
+        // caller must hold the tracker's lock
+        private void scheduleTimeout(long delay) {
+            try {
+                timeoutFuture = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down; close drops the attempt
+                timeoutFuture = null;
+            }
+        }
+
+        // caller must hold the tracker's lock
+        private void cancelTimeout() {
+            if (timeoutFuture != null) {
+                timeoutFuture.cancel(false);
+                timeoutFuture = null;
+            }
+        }
+
+        private void record(int result, long now) {
+            peerHistory.recordConnect(peer, result, (int) ((now - startTime) / 1000000));
+        }
+    }
+}
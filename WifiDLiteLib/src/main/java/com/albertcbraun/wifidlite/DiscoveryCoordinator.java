@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Funnels every peer discovery request through a single in-flight call to
+ * {@link OperationQueue#discoverPeers}. Requests which arrive while a call is
+ * already in flight (or waiting to be retried) simply join it, and every
+ * waiting {@link WifiP2pManager.ActionListener} is told the final outcome.
+ * <p/>
+ * Calls which fail with {@link WifiP2pManager#BUSY} or {@link WifiP2pManager#ERROR}
+ * are retried after an exponentially increasing, jittered delay, bounded by
+ * {@link Configuration#getDiscoveryRetryMaxDelay}, until
+ * {@link Configuration#getDiscoveryRetryLimit} retries have been made.
+ * <p/>
+ * The call is queued with {@link OperationQueue.Priority#BACKGROUND background} priority
+ * unless a {@link OperationQueue.Priority#USER user} request is waiting for it, in which
+ * case a call still queued is promoted.
+ */
+class DiscoveryCoordinator {
+
+    private static final String TAG = DiscoveryCoordinator.class.getCanonicalName();
+
+    private final OperationQueue operationQueue;
+    private final ScheduledExecutorService scheduler;
+    private final Metrics metrics;
+    private final int retryLimit;
+    private final long retryBaseDelay;
+    private final long retryMaxDelay;
+    private final Random random = new Random();
+
+    // guarded by this
+    private List<WifiP2pManager.ActionListener> waiters = new ArrayList<WifiP2pManager.ActionListener>();
+    private boolean inFlight = false;
+    private int attempt = 0;
+    private long unansweredDiscoveryStart = 0;
+    private boolean userWaiting = false;
+    private OperationQueue.Operation queuedCall = null;
+    private long flight = 0;
+
+    /**
+     * Main constructor.
+     *
+     * @param operationQueue the queue through which discovery is carried out
+     * @param scheduler      the executor on which retries are scheduled
+     * @param configuration  supplies the retry limit and delays
+     * @param metrics        counts retries
+     */
+    DiscoveryCoordinator(OperationQueue operationQueue, ScheduledExecutorService scheduler,
+                         Configuration configuration, Metrics metrics) {
+        this.operationQueue = operationQueue;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.retryLimit = Math.max(0, configuration.getDiscoveryRetryLimit());
+        this.retryBaseDelay = Math.max(1, configuration.getDiscoveryRetryBaseDelay());
+        this.retryMaxDelay = Math.max(this.retryBaseDelay, configuration.getDiscoveryRetryMaxDelay());
+    }
+
+    /**
+     * Requests peer discovery. If a discovery call is already outstanding, the
+     * request joins it instead of causing another call to the framework.
+     *
+     * @param listener told whether the discovery this request joined eventually
+     *                 succeeded or failed
+     * @param priority {@link OperationQueue.Priority#USER} if the app is waiting for the
+     *                 result, {@link OperationQueue.Priority#BACKGROUND} otherwise
+     */
+    void discoverPeers(WifiP2pManager.ActionListener listener, OperationQueue.Priority priority) {
+        synchronized (this) {
+            waiters.add(listener);
+            if (priority == OperationQueue.Priority.USER) {
+                userWaiting = true;
+            }
+            if (inFlight) {
+                if (userWaiting && queuedCall != null) {
+                    queuedCall.promote();
+                }
+                return;
+            }
+            inFlight = true;
+            flight++;
+            attempt = 0;
+            if (unansweredDiscoveryStart == 0) {
+                unansweredDiscoveryStart = System.nanoTime();
+            }
+        }
+        callDiscoverPeers();
+    }
+
+    /**
+     * Queues a call to stop peer discovery, with
+     * {@link OperationQueue.Priority#BACKGROUND background} priority, so that it runs after
+     * any discovery call already queued.
+     *
+     * @param listener told whether the call succeeded
+     */
+    void stopPeerDiscovery(WifiP2pManager.ActionListener listener) {
+        operationQueue.stopPeerDiscovery(listener, OperationQueue.Priority.BACKGROUND);
+    }
+
+    /**
+     * Returns the time at which the earliest discovery not yet answered by a peer list
+     * was started, and marks it answered. Used to measure discovery-to-first-peer latency.
+     *
+     * @return a {@link System#nanoTime} value, or zero if every discovery has been answered
+     */
+    synchronized long takeUnansweredDiscoveryStart() {
+        long start = unansweredDiscoveryStart;
+        unansweredDiscoveryStart = 0;
+        return start;
+    }
+
+    private void callDiscoverPeers() {
+        OperationQueue.Priority priority;
+        long thisFlight;
+        synchronized (this) {
+            thisFlight = flight;
+            priority = userWaiting ? OperationQueue.Priority.USER : OperationQueue.Priority.BACKGROUND;
+        }
+        OperationQueue.Operation call = operationQueue.discoverPeers(new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                for (WifiP2pManager.ActionListener waiter : takeWaiters()) {
+                    waiter.onSuccess();
+                }
+            }
+
+            @Override
+            public void onFailure(int reason) {
+                if (!scheduleRetry(reason)) {
+                    for (WifiP2pManager.ActionListener waiter : takeWaiters()) {
+                        waiter.onFailure(reason);
+                    }
+                }
+            }
+        }, priority);
+        synchronized (this) {
+            // unless the call has already completed
+            if (inFlight && flight == thisFlight) {
+                queuedCall = call;
+            }
+        }
+    }
+
+    private synchronized boolean scheduleRetry(int reason) {
+        Util.logP2pStatus(TAG, "discoverPeers attempt " + (attempt + 1) + " failed.", reason);
+        if ((reason != WifiP2pManager.BUSY && reason != WifiP2pManager.ERROR) || attempt >= retryLimit) {
+            return false;
+        }
+        metrics.incrementCounter(Metrics.Counter.DISCOVERY_RETRY);
+        long delay = retryDelay(attempt++);
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    callDiscoverPeers();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        Log.v(TAG, "Retrying discoverPeers in " + delay + " ms");
+        return true;
+    }
+
+    /**
+     * Half of the capped exponential delay is fixed, the other half is random,
+     * so that retries from several devices (or several channels) spread out.
+     */
+    private long retryDelay(int retry) {
+        long delay = retryBaseDelay << Math.min(retry, 30);
+        if (delay <= 0 || delay > retryMaxDelay) {
+            delay = retryMaxDelay;
+        }
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    private synchronized List<WifiP2pManager.ActionListener> takeWaiters() {
+        List<WifiP2pManager.ActionListener> taken = waiters;
+        waiters = new ArrayList<WifiP2pManager.ActionListener>();
+        inFlight = false;
+        userWaiting = false;
+        queuedCall = null;
+        return taken;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A Bonjour/DNS-SD service offered by a peer, as found by
+ * {@link WifiDLite#discoverServices}.
+ */
+public final class DnsSdService {
+
+    private final String deviceAddress;
+    private final String instanceName;
+    private final String serviceType;
+    private final Map<String, String> txtRecord;
+
+    DnsSdService(String deviceAddress, String instanceName, String serviceType, Map<String, String> txtRecord) {
+        this.deviceAddress = deviceAddress;
+        this.instanceName = instanceName;
+        this.serviceType = serviceType;
+        this.txtRecord = txtRecord;
+    }
+
+    /**
+     * @return the MAC address of the peer device offering the service, as in
+     * {@link android.net.wifi.p2p.WifiP2pDevice#deviceAddress}
+     */
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    /**
+     * @return the instance name of the service, e.g. "printer"
+     */
+    public String getInstanceName() {
+        return instanceName;
+    }
+
+    /**
+     * @return the service type, without the domain, e.g. "_ipp._tcp"
+     */
+    public String getServiceType() {
+        return serviceType;
+    }
+
+    /**
+     * @return the TXT record of the service, which is empty until it has arrived
+     */
+    public Map<String, String> getTxtRecord() {
+        return Collections.unmodifiableMap(txtRecord);
+    }
+
+    @Override
+    public String toString() {
+        return instanceName + "." + serviceType + " on " + deviceAddress + " " + txtRecord;
+    }
+}
@@ -16,19 +16,35 @@
 
 package com.albertcbraun.wifidlite;
 
-import android.annotation.TargetApi;
-import android.net.wifi.p2p.WifiP2pManager;
-import android.os.Build;
+import android.util.Log;
 
 import com.albertcbraun.wifidlite.impl.SimpleWifiP2pActionListener;
 
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Intended only for internal use.
  * <p/>
- * Periodically invokes peer discovery related methods on {@link WifiP2pManager} instance
+ * Periodically requests peer discovery through the {@link DiscoveryCoordinator}
  * owned by the {@link WifiDLite} instance. This is the mechanism for updating the
  * ongoing subscription methods.
  * <p/>
+ * The interval between runs is adaptive. Each run which completes without any change
+ * to the peer list having been reported (see {@link #onPeerListChanged}) doubles the
+ * delay before the next run, up to {@link Configuration#getMaxHeartbeatDelay}. A change
+ * to the peer list or a new subscription (see {@link #tighten}) drops the delay back to
+ * {@link Configuration#getMinHeartbeatDelay}.
+ * <p/>
+ * While {@link #setIdle idle}, because no one is asking for peer updates, no runs are
+ * scheduled at all, and going idle stops the discovery the last run started, so that the
+ * radio does not keep scanning. The heartbeat only goes idle once no one has asked for
+ * updates for a whole interval, so that a subscriber which requests one update at a time
+ * does not stop and restart discovery with every update. Leaving the idle state runs a
+ * discovery straight away, and carries on from the delay reached before.
+ * <p/>
  * Other tasks might be completed here as well, in future versions.
  * <p/>
  * This is experimental. It may be removed in a future version.
@@ -36,24 +52,179 @@ import com.albertcbraun.wifidlite.impl.SimpleWifiP2pActionListener;
 class Heartbeat implements Runnable {
 
     private static final String TAG = Heartbeat.class.getCanonicalName();
+    private static final int BACKOFF_MULTIPLIER = 2;
+
+    private DiscoveryCoordinator discoveryCoordinator = null;
+    private ScheduledExecutorService scheduler = null;
+    private Metrics metrics = null;
+    private final int minDelay;
+    private final int maxDelay;
 
-    private WifiP2pManager wifiP2pManager = null;
-    private WifiP2pManager.Channel wifiP2pChannel = null;
+    // guarded by this
+    private int currentDelay;
+    private boolean peerListChanged = false;
+    private ScheduledFuture<?> nextRun = null;
+    private boolean idle = false;
+    private boolean running = false;
+    // goes idle when it runs, unless demand has come back in the meantime
+    private Runnable idleTimer = null;
+    private ScheduledFuture<?> idleTimerFuture = null;
 
     /**
      * Main constructor.
      *
-     * @param wifiP2pManager current, initialized instance of the Android SDK's {@link WifiP2pManager}
-     * @param wifiP2pChannel instance of the {@link WifiP2pManager.Channel} object associated with the manager
+     * @param discoveryCoordinator the coordinator through which peer discovery is requested
+     * @param scheduler            the executor on which each run is scheduled
+     * @param configuration        supplies the initial, minimum and maximum delays
+     * @param metrics              receives the current delay
+     */
+    Heartbeat(DiscoveryCoordinator discoveryCoordinator, ScheduledExecutorService scheduler,
+              Configuration configuration, Metrics metrics) {
+        this.discoveryCoordinator = discoveryCoordinator;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.minDelay = Math.max(1, configuration.getMinHeartbeatDelay());
+        this.maxDelay = Math.max(this.minDelay, configuration.getMaxHeartbeatDelay());
+        this.currentDelay = Math.min(this.maxDelay, Math.max(this.minDelay, configuration.getHeartbeatDelay()));
+    }
+
+    /**
+     * Runs the first discovery immediately and schedules the following ones.
      */
-    Heartbeat(WifiP2pManager wifiP2pManager, WifiP2pManager.Channel wifiP2pChannel) {
-        this.wifiP2pManager = wifiP2pManager;
-        this.wifiP2pChannel = wifiP2pChannel;
+    synchronized void start() {
+        nextRun = scheduler.schedule(this, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records that the peer list changed since the last run, so that the
+     * next run is scheduled after the minimum delay rather than backing off.
+     * If the pending run is further away than the minimum delay, it is pulled in.
+     */
+    synchronized void onPeerListChanged() {
+        peerListChanged = true;
+        tighten();
+    }
+
+    /**
+     * Drops the interval back to the minimum delay, for instance because a new
+     * subscriber has just been added. If the pending run is further away than the
+     * minimum delay, it is rescheduled.
+     */
+    synchronized void tighten() {
+        currentDelay = minDelay;
+        if (nextRun != null && nextRun.getDelay(TimeUnit.SECONDS) > minDelay && nextRun.cancel(false)) {
+            scheduleNextRun();
+        }
+    }
+
+    /**
+     * Stops or restarts the runs. Stopping happens once the current delay has passed
+     * without a call to restart; it cancels the pending run and stops peer discovery.
+     * Restarting, if the runs had stopped, runs a discovery immediately and continues from
+     * the current delay.
+     *
+     * @param idle true if no one currently wants peer updates
+     */
+    synchronized void setIdle(boolean idle) {
+        if (idle) {
+            if (!this.idle && idleTimer == null) {
+                startIdleTimer();
+            }
+            return;
+        }
+        cancelIdleTimer();
+        if (!this.idle) {
+            return;
+        }
+        this.idle = false;
+        // a run in progress schedules the next one itself
+        if (!running) {
+            try {
+                nextRun = scheduler.schedule(this, 0, TimeUnit.SECONDS);
+            } catch (RejectedExecutionException e) {
+                Log.v(TAG, "Heartbeat stopped");
+            }
+        }
     }
 
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     @Override
     public void run() {
-        wifiP2pManager.discoverPeers(wifiP2pChannel, new SimpleWifiP2pActionListener("Heartbeat - Discover Peers"));
+        synchronized (this) {
+            if (idle) {
+                return;
+            }
+            running = true;
+        }
+        discoveryCoordinator.discoverPeers(new SimpleWifiP2pActionListener("Heartbeat - Discover Peers"),
+                OperationQueue.Priority.BACKGROUND);
+        synchronized (this) {
+            running = false;
+            if (idle) {
+                nextRun = null;
+                return;
+            }
+            if (peerListChanged) {
+                currentDelay = minDelay;
+                peerListChanged = false;
+            } else {
+                currentDelay = Math.min(maxDelay, currentDelay * BACKOFF_MULTIPLIER);
+            }
+            scheduleNextRun();
+        }
+    }
+
+    // caller must hold the lock
+    private void startIdleTimer() {
+        idleTimer = new Runnable() {
+            @Override
+            public void run() {
+                goIdle(this);
+            }
+        };
+        try {
+            idleTimerFuture = scheduler.schedule(idleTimer, currentDelay, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            idleTimer = null;
+            Log.v(TAG, "Heartbeat stopped");
+        }
+    }
+
+    // caller must hold the lock
+    private void cancelIdleTimer() {
+        if (idleTimerFuture != null) {
+            idleTimerFuture.cancel(false);
+            idleTimerFuture = null;
+        }
+        idleTimer = null;
+    }
+
+    private void goIdle(Runnable timer) {
+        synchronized (this) {
+            // demand came back, perhaps to go away again, since the timer was started
+            if (idleTimer != timer) {
+                return;
+            }
+            idleTimer = null;
+            idleTimerFuture = null;
+            idle = true;
+            if (nextRun != null) {
+                nextRun.cancel(false);
+                nextRun = null;
+            }
+            Log.v(TAG, "Heartbeat idle");
+        }
+        discoveryCoordinator.stopPeerDiscovery(
+                new SimpleWifiP2pActionListener("Heartbeat - Stop Peer Discovery"));
+    }
+
+    // caller must hold the lock
+    private void scheduleNextRun() {
+        try {
+            nextRun = scheduler.schedule(this, currentDelay, TimeUnit.SECONDS);
+            metrics.setGauge(Metrics.Gauge.HEARTBEAT_DELAY, currentDelay);
+            Log.v(TAG, "Next heartbeat in " + currentDelay + " seconds");
+        } catch (RejectedExecutionException e) {
+            Log.v(TAG, "Heartbeat stopped");
+        }
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pConfig;
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pGroup;
+import android.net.wifi.p2p.WifiP2pInfo;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Wraps the configured {@link P2pBackend} so that the result and latency of every
+ * framework call, and every event, are reported to a {@link Metrics} object. Only used
+ * when metrics other than {@link com.albertcbraun.wifidlite.impl.NoOpMetrics} are
+ * configured, because timing a call allocates a listener.
+ */
+class InstrumentedP2pBackend implements P2pBackend {
+
+    private final P2pBackend delegate;
+    private final Metrics metrics;
+
+    InstrumentedP2pBackend(P2pBackend delegate, Metrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void initialize(final Events events) {
+        delegate.initialize(new Events() {
+            @Override
+            public void onP2pStateChanged(boolean enabled) {
+                metrics.incrementCounter(Metrics.Counter.P2P_STATE_CHANGED_BROADCAST);
+                events.onP2pStateChanged(enabled);
+            }
+
+            @Override
+            public void onPeersChanged(Collection<WifiP2pDevice> devices) {
+                metrics.incrementCounter(Metrics.Counter.PEERS_CHANGED_BROADCAST);
+                events.onPeersChanged(devices);
+            }
+
+            @Override
+            public void onConnectionChanged(WifiP2pInfo wifiP2pInfo, WifiP2pGroup wifiP2pGroup) {
+                metrics.incrementCounter(Metrics.Counter.CONNECTION_CHANGED_BROADCAST);
+                events.onConnectionChanged(wifiP2pInfo, wifiP2pGroup);
+            }
+
+            @Override
+            public void onThisDeviceChanged(WifiP2pDevice device) {
+                metrics.incrementCounter(Metrics.Counter.THIS_DEVICE_CHANGED_BROADCAST);
+                events.onThisDeviceChanged(device);
+            }
+
+            @Override
+            public void onDnsSdServiceAvailable(String instanceName, String registrationType,
+                                                WifiP2pDevice srcDevice) {
+                metrics.incrementCounter(Metrics.Counter.DNS_SD_RESPONSE);
+                events.onDnsSdServiceAvailable(instanceName, registrationType, srcDevice);
+            }
+
+            @Override
+            public void onDnsSdTxtRecordAvailable(String fullDomainName, Map<String, String> txtRecordMap,
+                                                  WifiP2pDevice srcDevice) {
+                metrics.incrementCounter(Metrics.Counter.DNS_SD_RESPONSE);
+                events.onDnsSdTxtRecordAvailable(fullDomainName, txtRecordMap, srcDevice);
+            }
+        });
+    }
+
+    @Override
+    public void dispose() {
+        delegate.dispose();
+    }
+
+    @Override
+    public void discoverPeers(WifiP2pManager.ActionListener listener) {
+        delegate.discoverPeers(timed(Metrics.Operation.DISCOVER_PEERS, listener));
+    }
+
+    @Override
+    public void stopPeerDiscovery(WifiP2pManager.ActionListener listener) {
+        delegate.stopPeerDiscovery(timed(Metrics.Operation.STOP_PEER_DISCOVERY, listener));
+    }
+
+    @Override
+    public void connect(WifiP2pConfig config, WifiP2pManager.ActionListener listener) {
+        delegate.connect(config, timed(Metrics.Operation.CONNECT, listener));
+    }
+
+    @Override
+    public void createGroup(WifiP2pManager.ActionListener listener) {
+        delegate.createGroup(timed(Metrics.Operation.CREATE_GROUP, listener));
+    }
+
+    @Override
+    public void removeGroup(WifiP2pManager.ActionListener listener) {
+        delegate.removeGroup(timed(Metrics.Operation.REMOVE_GROUP, listener));
+    }
+
+    @Override
+    public void requestGroupInfo(final WifiP2pManager.GroupInfoListener listener) {
+        final long start = System.nanoTime();
+        delegate.requestGroupInfo(new WifiP2pManager.GroupInfoListener() {
+            @Override
+            public void onGroupInfoAvailable(WifiP2pGroup group) {
+                metrics.onOperationCompleted(Metrics.Operation.REQUEST_GROUP_INFO, Metrics.SUCCESS,
+                        System.nanoTime() - start);
+                listener.onGroupInfoAvailable(group);
+            }
+        });
+    }
+
+    @Override
+    public void requestConnectionInfo(final WifiP2pManager.ConnectionInfoListener listener) {
+        final long start = System.nanoTime();
+        delegate.requestConnectionInfo(new WifiP2pManager.ConnectionInfoListener() {
+            @Override
+            public void onConnectionInfoAvailable(WifiP2pInfo info) {
+                metrics.onOperationCompleted(Metrics.Operation.REQUEST_CONNECTION_INFO, Metrics.SUCCESS,
+                        System.nanoTime() - start);
+                listener.onConnectionInfoAvailable(info);
+            }
+        });
+    }
+
+    @Override
+    public void addLocalService(WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        delegate.addLocalService(serviceInfo, timed(Metrics.Operation.ADD_LOCAL_SERVICE, listener));
+    }
+
+    @Override
+    public void removeLocalService(WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        delegate.removeLocalService(serviceInfo, timed(Metrics.Operation.REMOVE_LOCAL_SERVICE, listener));
+    }
+
+    @Override
+    public void addServiceRequest(WifiP2pServiceRequest serviceRequest, WifiP2pManager.ActionListener listener) {
+        delegate.addServiceRequest(serviceRequest, timed(Metrics.Operation.ADD_SERVICE_REQUEST, listener));
+    }
+
+    @Override
+    public void removeServiceRequest(WifiP2pServiceRequest serviceRequest, WifiP2pManager.ActionListener listener) {
+        delegate.removeServiceRequest(serviceRequest, timed(Metrics.Operation.REMOVE_SERVICE_REQUEST, listener));
+    }
+
+    @Override
+    public void discoverServices(WifiP2pManager.ActionListener listener) {
+        delegate.discoverServices(timed(Metrics.Operation.DISCOVER_SERVICES, listener));
+    }
+
+    private WifiP2pManager.ActionListener timed(final Metrics.Operation operation,
+                                                final WifiP2pManager.ActionListener listener) {
+        final long start = System.nanoTime();
+        return new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                metrics.onOperationCompleted(operation, Metrics.SUCCESS, System.nanoTime() - start);
+                listener.onSuccess();
+            }
+
+            @Override
+            public void onFailure(int reason) {
+                metrics.onOperationCompleted(operation, reason, System.nanoTime() - start);
+                listener.onFailure(reason);
+            }
+        };
+    }
+}
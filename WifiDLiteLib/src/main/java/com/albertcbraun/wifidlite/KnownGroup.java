@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+/**
+ * What the device remembers about a Wifi P2P group from earlier sessions: its network
+ * name, pass phrase and owner, and when it was last reported. See
+ * {@link WifiDLite#getKnownGroups}.
+ * <p/>
+ * Times are wall clock times, as returned by {@link System#currentTimeMillis}.
+ */
+public final class KnownGroup {
+
+    private final long ownerAddress;
+    private final String networkName;
+    private final String passphrase;
+    private final long lastSeen;
+
+    KnownGroup(long ownerAddress, String networkName, String passphrase, long lastSeen) {
+        this.ownerAddress = ownerAddress;
+        this.networkName = networkName;
+        this.passphrase = passphrase;
+        this.lastSeen = lastSeen;
+    }
+
+    /**
+     * @return the address of the group owner
+     */
+    public MacAddress getOwnerAddress() {
+        return MacAddress.fromLong(ownerAddress);
+    }
+
+    long getAddress() {
+        return ownerAddress;
+    }
+
+    public String getNetworkName() {
+        return networkName;
+    }
+
+    /**
+     * @return the pass phrase, or null if the framework did not report it (it is only
+     * reported to the group owner)
+     */
+    public String getPassphrase() {
+        return passphrase;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s owner:%s lastSeen:%d", networkName, MacAddress.format(ownerAddress), lastSeen);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+/**
+ * What the device remembers about a peer from earlier sessions: when it was last
+ * seen, how the last attempt to connect to it turned out, and how quickly and how often
+ * attempts to connect to it have succeeded. See {@link WifiDLite#getKnownPeers} and
+ * {@link WifiDLite#getPeerRanking}.
+ * <p/>
+ * Times are wall clock times, as returned by {@link System#currentTimeMillis}.
+ */
+public final class KnownPeer {
+
+    /**
+     * The {@link #getLastConnectResult} of a successful connection attempt.
+     * Failed attempts report the {@link android.net.wifi.p2p.WifiP2pManager} reason code.
+     */
+    public static final int CONNECT_SUCCEEDED = -1;
+
+    /**
+     * The {@link #getLastConnectResult} of a connection attempt which did not form a group
+     * within the connect timeout (see {@link Configuration#getConnectTimeout}).
+     */
+    public static final int CONNECT_TIMED_OUT = -2;
+
+    // the number of attempts behind the success ratio is halved once it reaches this,
+    // so that old attempts count for less and less
+    static final int MAX_CONNECT_ATTEMPTS = 32;
+
+    // assumed for peers never connected to successfully
+    private static final int DEFAULT_CONNECT_LATENCY_MS = 3000;
+
+    private final long address;
+    private final String deviceName;
+    private final long lastSeen;
+    private final long lastConnectTime;
+    private final int lastConnectResult;
+    private final int connectLatency;
+    private final int connectAttempts;
+    private final int connectSuccesses;
+
+    KnownPeer(long address, String deviceName, long lastSeen, long lastConnectTime, int lastConnectResult,
+              int connectLatency, int connectAttempts, int connectSuccesses) {
+        this.address = address;
+        this.deviceName = deviceName;
+        this.lastSeen = lastSeen;
+        this.lastConnectTime = lastConnectTime;
+        this.lastConnectResult = lastConnectResult;
+        this.connectLatency = connectLatency;
+        this.connectAttempts = connectAttempts;
+        this.connectSuccesses = connectSuccesses;
+    }
+
+    /**
+     * @return this peer, with a connection attempt added which had the given result and
+     * took the given time
+     */
+    KnownPeer withConnect(String deviceName, long now, int result, int latencyMillis) {
+        int attempts = connectAttempts;
+        int successes = connectSuccesses;
+        if (attempts >= MAX_CONNECT_ATTEMPTS) {
+            attempts /= 2;
+            successes = (successes + 1) / 2;
+        }
+        attempts++;
+        int latency = connectLatency;
+        if (result == CONNECT_SUCCEEDED) {
+            successes++;
+            // exponentially weighted moving average, giving the newest attempt a weight of 1/4
+            latencyMillis = Math.max(1, latencyMillis);
+            latency = latency == 0 ? latencyMillis : latency + (latencyMillis - latency) / 4;
+        }
+        return new KnownPeer(address, deviceName, now, now, result, latency, attempts, successes);
+    }
+
+    public MacAddress getMacAddress() {
+        return MacAddress.fromLong(address);
+    }
+
+    long getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the device name last reported, or null if none was
+     */
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    /**
+     * @return the last time the peer was in the peer list, or zero if it has not been seen
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return the time of the last connection attempt, or zero if none was made
+     */
+    public long getLastConnectTime() {
+        return lastConnectTime;
+    }
+
+    /**
+     * @return {@link #CONNECT_SUCCEEDED}, {@link #CONNECT_TIMED_OUT} or the failure reason
+     * of the last connection attempt; meaningless if {@link #getLastConnectTime} is zero
+     */
+    public int getLastConnectResult() {
+        return lastConnectResult;
+    }
+
+    /**
+     * @return true if the last connection attempt succeeded
+     */
+    public boolean isLastConnectSuccessful() {
+        return lastConnectTime != 0 && lastConnectResult == CONNECT_SUCCEEDED;
+    }
+
+    /**
+     * @return the moving average of the time successful connection attempts took, from the
+     * time the framework was asked to connect (see {@link Peer#connect}) until a group with
+     * the peer in it had formed, in milliseconds; zero if none succeeded
+     */
+    public int getConnectLatency() {
+        return connectLatency;
+    }
+
+    /**
+     * @return the number of connection attempts behind {@link #getConnectSuccessRatio}.
+     * Older attempts count for less, so this stays below {@value #MAX_CONNECT_ATTEMPTS}.
+     */
+    public int getConnectAttempts() {
+        return connectAttempts;
+    }
+
+    /**
+     * @return the share of recent connection attempts which succeeded, from 0 to 1; zero if
+     * there have been none
+     */
+    public double getConnectSuccessRatio() {
+        return connectAttempts == 0 ? 0 : (double) connectSuccesses / connectAttempts;
+    }
+
+    int getConnectSuccesses() {
+        return connectSuccesses;
+    }
+
+    /**
+     * Estimates how long it takes to get connected to this peer: the average latency of a
+     * successful attempt, divided by the likelihood that an attempt succeeds. Peers without
+     * history, or which have never been connected to, are assumed to take a few seconds
+     * and to succeed half of the time. Peers are ranked by this estimate, lowest first.
+     *
+     * @return the estimate in milliseconds
+     */
+    public double getExpectedConnectTime() {
+        return expectedConnectTime(this);
+    }
+
+    /**
+     * @param known a peer's history, or null if it has none
+     * @return see {@link #getExpectedConnectTime}
+     */
+    static double expectedConnectTime(KnownPeer known) {
+        int attempts = known == null ? 0 : known.connectAttempts;
+        int successes = known == null ? 0 : known.connectSuccesses;
+        int latency = known == null || known.connectLatency == 0 ? DEFAULT_CONNECT_LATENCY_MS : known.connectLatency;
+        // the success likelihood with one imagined success and one imagined failure added,
+        // so that a single attempt does not decide it
+        double likelihood = (successes + 1.0) / (attempts + 2.0);
+        return latency / likelihood;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s) lastSeen:%d lastConnect:%d %s latency:%dms successes:%d/%d",
+                deviceName, MacAddress.format(address), lastSeen, lastConnectTime,
+                lastConnectTime == 0 ? "" : isLastConnectSuccessful() ? "succeeded"
+                        : lastConnectResult == CONNECT_TIMED_OUT ? "timed out" : Util.getP2pStatus(lastConnectResult),
+                connectLatency, connectSuccesses, connectAttempts);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import java.util.Arrays;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * A copy-on-write set of listeners. Every change replaces the backing array, so the
+ * array returned by {@link #snapshot} never changes afterwards. Dispatch code iterates
+ * that array directly: no iterator is allocated, and listeners may subscribe or
+ * unsubscribe (from any thread, or from within their own callbacks) while a dispatch
+ * is in progress without causing a {@link java.util.ConcurrentModificationException}.
+ * <p/>
+ * As with the sets used previously, a listener instance is only added once.
+ *
+ * @param <T> the listener type
+ */
+class ListenerRegistry<T> {
+
+    private final T[] empty;
+    private volatile T[] listeners;
+
+    /**
+     * @param empty a zero length array of the listener type, used as the empty snapshot
+     */
+    ListenerRegistry(T[] empty) {
+        this.empty = empty;
+        this.listeners = empty;
+    }
+
+    /**
+     * @return true if the listener was added, false if it was already present
+     */
+    synchronized boolean add(T listener) {
+        T[] current = listeners;
+        if (indexOf(current, listener) >= 0) {
+            return false;
+        }
+        T[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = listener;
+        listeners = next;
+        return true;
+    }
+
+    /**
+     * @return true if the listener was removed, false if it was not present
+     */
+    synchronized boolean remove(T listener) {
+        T[] current = listeners;
+        int index = indexOf(current, listener);
+        if (index < 0) {
+            return false;
+        }
+        if (current.length == 1) {
+            listeners = empty;
+            return true;
+        }
+        T[] next = Arrays.copyOf(current, current.length - 1);
+        System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        listeners = next;
+        return true;
+    }
+
+    boolean contains(T listener) {
+        return indexOf(listeners, listener) >= 0;
+    }
+
+    boolean isEmpty() {
+        return listeners.length == 0;
+    }
+
+    /**
+     * @return the current listeners. The caller must not modify the array.
+     */
+    T[] snapshot() {
+        return listeners;
+    }
+
+    /**
+     * Removes every listener, for one-time listeners which expire after being called.
+     *
+     * @return the listeners which were present. The caller must not modify the array.
+     */
+    synchronized T[] drain() {
+        T[] current = listeners;
+        listeners = empty;
+        return current;
+    }
+
+    private static <T> int indexOf(T[] array, T listener) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == listener || (listener != null && listener.equals(array[i]))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
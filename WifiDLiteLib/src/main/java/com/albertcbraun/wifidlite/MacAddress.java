@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+/**
+ * A 48 bit MAC address held in the low bits of a single long.
+ * <p/>
+ * Comparing and hashing a MacAddress is much cheaper than doing the same with the
+ * 17 character strings found in {@link android.net.wifi.p2p.WifiP2pDevice#deviceAddress}.
+ * The static {@link #parseToLong} and {@link #format} methods convert between the two
+ * representations without creating a MacAddress object at all.
+ */
+public final class MacAddress {
+
+    /**
+     * Returned by {@link #parseToLong} for input which is not a MAC address.
+     * Never the value of a real address, which fits in 48 bits.
+     */
+    public static final long INVALID = -1L;
+
+    private static final int STRING_LENGTH = 17;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final long value;
+
+    private MacAddress(long value) {
+        this.value = value;
+    }
+
+    /**
+     * @param value a 48 bit address in the low bits of a long
+     * @return the corresponding MacAddress
+     * @throws IllegalArgumentException if the value does not fit in 48 bits
+     */
+    public static MacAddress fromLong(long value) {
+        if ((value & 0xFFFF000000000000L) != 0) {
+            throw new IllegalArgumentException("Not a 48 bit MAC address: " + value);
+        }
+        return new MacAddress(value);
+    }
+
+    /**
+     * @param address a MAC address in the form "aa:bb:cc:dd:ee:ff" (either case)
+     * @return the corresponding MacAddress
+     * @throws IllegalArgumentException if the string is not a MAC address
+     */
+    public static MacAddress parse(String address) {
+        long value = parseToLong(address);
+        if (value == INVALID) {
+            throw new IllegalArgumentException("Not a MAC address: " + address);
+        }
+        return new MacAddress(value);
+    }
+
+    /**
+     * Parses a MAC address without allocating.
+     *
+     * @param address a MAC address in the form "aa:bb:cc:dd:ee:ff" (either case)
+     * @return the address as a long, or {@link #INVALID} if the string is null
+     * or not a MAC address
+     */
+    public static long parseToLong(String address) {
+        if (address == null || address.length() != STRING_LENGTH) {
+            return INVALID;
+        }
+        long value = 0;
+        for (int i = 0; i < STRING_LENGTH; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return INVALID;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return INVALID;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * @param value a 48 bit address in the low bits of a long
+     * @return the address in the form "aa:bb:cc:dd:ee:ff"
+     */
+    public static String format(long value) {
+        char[] chars = new char[STRING_LENGTH];
+        for (int i = 0, shift = 44; i < STRING_LENGTH; i += 3, shift -= 8) {
+            chars[i] = HEX_DIGITS[(int) (value >>> shift) & 0xF];
+            chars[i + 1] = HEX_DIGITS[(int) (value >>> (shift - 4)) & 0xF];
+            if (i + 2 < STRING_LENGTH) {
+                chars[i + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the address in the low 48 bits of a long
+     */
+    public long toLong() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MacAddress && ((MacAddress) o).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return format(value);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+/**
+ * Receives measurements from the {@link WifiDLite} object: the outcome and latency of
+ * every Wifi P2P framework call, a count of every broadcast, the time spent in listener
+ * callbacks and the current values of a few gauges.
+ * <p/>
+ * Supply an implementation through {@link Configuration#getMetrics}. The default,
+ * {@link com.albertcbraun.wifidlite.impl.NoOpMetrics}, discards everything, and while it
+ * is in use the library does not time framework calls.
+ * {@link com.albertcbraun.wifidlite.impl.HistogramMetrics} keeps counts and latency
+ * histograms in memory.
+ * <p/>
+ * Methods may be called on any thread, including the main (UI) thread, so implementations
+ * must be thread safe and should return quickly.
+ */
+public interface Metrics {
+
+    /**
+     * The result reported by {@link #onOperationCompleted} for a successful operation.
+     * Failures are reported with the {@link android.net.wifi.p2p.WifiP2pManager} reason code.
+     */
+    public static final int SUCCESS = -1;
+
+    /**
+     * Called when a Wifi P2P framework call reports its result.
+     *
+     * @param operation    the framework call
+     * @param result       {@link #SUCCESS}, or the failure reason, such as
+     *                     {@link android.net.wifi.p2p.WifiP2pManager#BUSY}
+     * @param latencyNanos time from the call until the result was reported, in nanoseconds
+     */
+    public void onOperationCompleted(Operation operation, int result, long latencyNanos);
+
+    /**
+     * Adds one to the given counter.
+     *
+     * @param counter the counter
+     */
+    public void incrementCounter(Counter counter);
+
+    /**
+     * Records one sample of the given latency.
+     *
+     * @param latency      the latency
+     * @param latencyNanos the sample, in nanoseconds
+     */
+    public void recordLatency(Latency latency, long latencyNanos);
+
+    /**
+     * Sets the current value of the given gauge.
+     *
+     * @param gauge the gauge
+     * @param value the current value
+     */
+    public void setGauge(Gauge gauge, long value);
+
+    /**
+     * Wifi P2P framework calls, see the {@link P2pBackend} methods of the same names.
+     */
+    public enum Operation {
+        DISCOVER_PEERS, STOP_PEER_DISCOVERY, CONNECT, CREATE_GROUP, REMOVE_GROUP, REQUEST_GROUP_INFO,
+        REQUEST_CONNECTION_INFO, ADD_LOCAL_SERVICE, REMOVE_LOCAL_SERVICE, ADD_SERVICE_REQUEST,
+        REMOVE_SERVICE_REQUEST, DISCOVER_SERVICES
+    }
+
+    /**
+     * Events counted by the library.
+     */
+    public enum Counter {
+        /** A "Wifi P2P state changed" broadcast was received. */
+        P2P_STATE_CHANGED_BROADCAST,
+        /** A "peers changed" broadcast was received. */
+        PEERS_CHANGED_BROADCAST,
+        /** A "connection changed" broadcast was received. */
+        CONNECTION_CHANGED_BROADCAST,
+        /** A "this device changed" broadcast was received. */
+        THIS_DEVICE_CHANGED_BROADCAST,
+        /** A peer list was processed, after coalescing. */
+        PEER_LIST_UPDATE,
+        /** A failed peer discovery call was retried. */
+        DISCOVERY_RETRY,
+        /** A DNS-SD service response or TXT record was received. */
+        DNS_SD_RESPONSE,
+        /** A service lookup was answered from the service cache, without a discovery. */
+        SERVICE_CACHE_HIT
+    }
+
+    /**
+     * Latencies measured by the library, other than those of framework calls.
+     */
+    public enum Latency {
+        /** From the start of a peer discovery until a non-empty peer list is processed. */
+        DISCOVERY_TO_FIRST_PEER,
+        /** Time taken to process one peer list, including all listener callbacks. */
+        PEER_LIST_UPDATE,
+        /** Time spent in a single listener callback. */
+        LISTENER_CALLBACK
+    }
+
+    /**
+     * Values sampled by the library.
+     */
+    public enum Gauge {
+        /** Number of peers in the current peer list. */
+        PEERS,
+        /** Seconds until the next heartbeat discovery. */
+        HEARTBEAT_DELAY
+    }
+}
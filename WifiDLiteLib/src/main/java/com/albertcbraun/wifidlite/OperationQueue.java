@@ -0,0 +1,610 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pConfig;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+import android.util.Log;
+
+import com.albertcbraun.wifidlite.impl.SimpleWifiP2pActionListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Passes the {@link P2pBackend} operations which the framework can only carry out one
+ * at a time (discovering peers or services, stopping peer discovery, connecting,
+ * creating or removing a group, and adding or removing local services and service
+ * requests) to the backend one at a time, instead of letting concurrent callers fail each other with
+ * {@link WifiP2pManager#BUSY}. The next operation is started once the previous one has
+ * reported its result.
+ * <p/>
+ * Operations of {@link Priority#USER} priority, such as a connect requested by the app,
+ * run ahead of {@link Priority#BACKGROUND} ones, such as heartbeat discoveries. Within a
+ * priority, operations run in the order submitted. An operation which has not reported
+ * a result within the timeout is failed with {@link WifiP2pManager#ERROR} so that the
+ * queue keeps moving, and an operation which has not started yet can be cancelled.
+ * The listener of an operation which timed out is called back on the callback executor,
+ * like the app's other listeners, and the next operation is started from there.
+ * <p/>
+ * Several operations can be queued as one {@link #submitTransaction transaction}, which
+ * runs its steps back to back and undoes those already carried out if one fails.
+ * <p/>
+ * Requests for group and connection info are answered without any framework state change,
+ * so they are passed straight through.
+ */
+class OperationQueue implements P2pBackend {
+
+    private static final String TAG = OperationQueue.class.getCanonicalName();
+
+    // a transaction step refused as busy is retried this often, after 100, 200, 400 ms;
+    // undoing a step matters more, so it is retried for longer, at most a second apart
+    private static final int STEP_RETRY_LIMIT = 3;
+    private static final int UNDO_RETRY_LIMIT = 10;
+    private static final long STEP_RETRY_BASE_DELAY_MS = 100;
+    private static final long STEP_RETRY_MAX_DELAY_MS = 1000;
+
+    private final P2pBackend p2pBackend;
+    private final ScheduledExecutorService scheduler;
+    private final Executor callbackExecutor;
+    private final long timeout;
+
+    // guarded by this
+    private final ArrayDeque<Operation> userOperations = new ArrayDeque<Operation>();
+    private final ArrayDeque<Operation> backgroundOperations = new ArrayDeque<Operation>();
+    private Operation running = null;
+    private boolean disposed = false;
+
+    /**
+     * @param p2pBackend the backend which carries out the operations
+     * @param scheduler        runs the timeouts
+     * @param callbackExecutor calls back the listeners of operations which time out
+     * @param timeout          longest time in milliseconds an operation may take to report
+     *                         its result
+     */
+    OperationQueue(P2pBackend p2pBackend, ScheduledExecutorService scheduler, Executor callbackExecutor,
+                   long timeout) {
+        this.p2pBackend = p2pBackend;
+        this.scheduler = scheduler;
+        this.callbackExecutor = callbackExecutor;
+        this.timeout = Math.max(1, timeout);
+    }
+
+    @Override
+    public void initialize(Events events) {
+        p2pBackend.initialize(events);
+    }
+
+    /**
+     * Drops every operation which has not started yet, without calling its listener,
+     * and disposes of the backend.
+     */
+    @Override
+    public void dispose() {
+        synchronized (this) {
+            disposed = true;
+            userOperations.clear();
+            backgroundOperations.clear();
+            if (running != null) {
+                running.finish();
+                running = null;
+            }
+        }
+        p2pBackend.dispose();
+    }
+
+    @Override
+    public void discoverPeers(WifiP2pManager.ActionListener listener) {
+        discoverPeers(listener, Priority.USER);
+    }
+
+    /**
+     * Queues a peer discovery with the given priority.
+     *
+     * @return the queued operation
+     */
+    Operation discoverPeers(WifiP2pManager.ActionListener listener, Priority priority) {
+        return submit(new Operation("discoverPeers", priority, listener) {
+            @Override
+            void start(WifiP2pManager.ActionListener callback) {
+                p2pBackend.discoverPeers(callback);
+            }
+        });
+    }
+
+    @Override
+    public void stopPeerDiscovery(WifiP2pManager.ActionListener listener) {
+        stopPeerDiscovery(listener, Priority.USER);
+    }
+
+    /**
+     * Queues stopping peer discovery with the given priority.
+     *
+     * @return the queued operation
+     */
+    Operation stopPeerDiscovery(WifiP2pManager.ActionListener listener, Priority priority) {
+        return submit(new Operation("stopPeerDiscovery", priority, listener) {
+            @Override
+            void start(WifiP2pManager.ActionListener callback) {
+                p2pBackend.stopPeerDiscovery(callback);
+            }
+        });
+    }
+
+    @Override
+    public void connect(WifiP2pConfig config, WifiP2pManager.ActionListener listener) {
+        connect(config, listener, Priority.USER, null);
+    }
+
+    /**
+     * Queues a connection attempt with the given priority.
+     *
+     * @param onStart run just before the attempt is passed to the backend, or null
+     * @return the queued operation
+     */
+    Operation connect(final WifiP2pConfig config, WifiP2pManager.ActionListener listener, Priority priority,
+                      final Runnable onStart) {
+        return submit(new Operation("connect", priority, listener) {
+            @Override
+            void start(WifiP2pManager.ActionListener callback) {
+                if (onStart != null) {
+                    onStart.run();
+                }
+                p2pBackend.connect(config, callback);
+            }
+        });
+    }
+
+    @Override
+    public void createGroup(WifiP2pManager.ActionListener listener) {
+        submit(new Operation("createGroup", Priority.USER, listener) {
+            @Override
+            void start(WifiP2pManager.ActionListener callback) {
+                p2pBackend.createGroup(callback);
+            }
+        });
+    }
+
+    @Override
+    public void removeGroup(WifiP2pManager.ActionListener listener) {
+        submit(new Operation("removeGroup", Priority.USER, listener) {
+            @Override
+            void start(WifiP2pManager.ActionListener callback) {
+                p2pBackend.removeGroup(callback);
+            }
+        });
+    }
+
+    @Override
+    public void addLocalService(final WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        submit(new Operation("addLocalService", Priority.USER, listener) {
+            @Override
+            void start(WifiP2pManager.ActionListener callback) {
+                p2pBackend.addLocalService(serviceInfo, callback);
+            }
+        });
+    }
+
+    @Override
+    public void removeLocalService(final WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        submit(new Operation("removeLocalService", Priority.USER, listener) {
+            @Override
+            void start(WifiP2pManager.ActionListener callback) {
+                p2pBackend.removeLocalService(serviceInfo, callback);
+            }
+        });
+    }
+
+    @Override
+    public void addServiceRequest(final WifiP2pServiceRequest serviceRequest,
+                                  WifiP2pManager.ActionListener listener) {
+        submit(new Operation("addServiceRequest", Priority.USER, listener) {
+            @Override
+            void start(WifiP2pManager.ActionListener callback) {
+                p2pBackend.addServiceRequest(serviceRequest, callback);
+            }
+        });
+    }
+
+    @Override
+    public void removeServiceRequest(final WifiP2pServiceRequest serviceRequest,
+                                     WifiP2pManager.ActionListener listener) {
+        submit(new Operation("removeServiceRequest", Priority.USER, listener) {
+            @Override
+            void start(WifiP2pManager.ActionListener callback) {
+                p2pBackend.removeServiceRequest(serviceRequest, callback);
+            }
+        });
+    }
+
+    @Override
+    public void discoverServices(WifiP2pManager.ActionListener listener) {
+        submit(new Operation("discoverServices", Priority.USER, listener) {
+            @Override
+            void start(WifiP2pManager.ActionListener callback) {
+                p2pBackend.discoverServices(callback);
+            }
+        });
+    }
+
+    /**
+     * Queues a sequence of operations which run back to back, with no other operation
+     * between them, and report a single result. A step refused with
+     * {@link WifiP2pManager#BUSY} is retried a few times, an undo step more often. If a step fails, the steps
+     * already carried out are undone in reverse order before the listener is told the
+     * failure reason. Each step has the full timeout to report its result; if one does
+     * not, the listener is failed with {@link WifiP2pManager#ERROR} straight away and the
+     * undo steps are queued as separate operations.
+     *
+     * @param name     describes the transaction in the log
+     * @param steps    the steps, in order
+     * @param listener told the outcome once the transaction has finished
+     * @return the queued operation
+     */
+    Operation submitTransaction(String name, List<Step> steps, WifiP2pManager.ActionListener listener) {
+        return submit(new Transaction(name, new ArrayList<Step>(steps), listener));
+    }
+
+    @Override
+    public void requestGroupInfo(WifiP2pManager.GroupInfoListener listener) {
+        p2pBackend.requestGroupInfo(listener);
+    }
+
+    @Override
+    public void requestConnectionInfo(WifiP2pManager.ConnectionInfoListener listener) {
+        p2pBackend.requestConnectionInfo(listener);
+    }
+
+    private Operation submit(Operation operation) {
+        synchronized (this) {
+            if (disposed) {
+                return operation;
+            }
+            queueFor(operation.priority).add(operation);
+        }
+        startNext();
+        return operation;
+    }
+
+    private ArrayDeque<Operation> queueFor(Priority priority) {
+        return priority == Priority.USER ? userOperations : backgroundOperations;
+    }
+
+    private void startNext() {
+        Operation next;
+        synchronized (this) {
+            if (running != null || disposed) {
+                return;
+            }
+            next = userOperations.poll();
+            if (next == null) {
+                next = backgroundOperations.poll();
+            }
+            if (next == null) {
+                return;
+            }
+            running = next;
+            next.scheduleTimeout();
+        }
+        next.start(next);
+    }
+
+    /**
+     * Marks the operation finished if it is the running one.
+     *
+     * @return true if the operation was running, false if it had already finished
+     * (for instance because it timed out)
+     */
+    private synchronized boolean complete(Operation operation) {
+        if (running != operation) {
+            return false;
+        }
+        running = null;
+        operation.finish();
+        return true;
+    }
+
+    /**
+     * Order in which queued operations are started.
+     */
+    enum Priority {
+        USER, BACKGROUND
+    }
+
+    /**
+     * A queued framework operation. Serves as the listener passed to the backend,
+     * so that its result can be matched to the operation.
+     */
+    abstract class Operation implements WifiP2pManager.ActionListener, Runnable {
+
+        private final String name;
+        private final WifiP2pManager.ActionListener listener;
+
+        // guarded by OperationQueue.this
+        private Priority priority;
+        private ScheduledFuture<?> timeoutFuture = null;
+
+        Operation(String name, Priority priority, WifiP2pManager.ActionListener listener) {
+            this.name = name;
+            this.priority = priority;
+            this.listener = listener;
+        }
+
+        /**
+         * Passes this operation to the backend.
+         *
+         * @param callback must be told the result
+         */
+        abstract void start(WifiP2pManager.ActionListener callback);
+
+        /**
+         * Removes this operation from the queue if it has not been started yet.
+         * Its listener will not be called.
+         *
+         * @return true if the operation was cancelled, false if it has already started
+         */
+        boolean cancel() {
+            synchronized (OperationQueue.this) {
+                return queueFor(priority).remove(this);
+            }
+        }
+
+        /**
+         * Moves this operation to {@link Priority#USER} priority, if it has not started yet.
+         */
+        void promote() {
+            synchronized (OperationQueue.this) {
+                if (priority != Priority.USER && backgroundOperations.remove(this)) {
+                    priority = Priority.USER;
+                    userOperations.add(this);
+                }
+            }
+        }
+
+        // caller must hold the queue's lock
+        private void scheduleTimeout() {
+            try {
+                timeoutFuture = scheduler.schedule(this, timeout, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                timeoutFuture = null;
+            }
+        }
+
+        // caller must hold the queue's lock
+        private void finish() {
+            if (timeoutFuture != null) {
+                timeoutFuture.cancel(false);
+                timeoutFuture = null;
+            }
+        }
+
+        @Override
+        public void onSuccess() {
+            if (complete(this)) {
+                listener.onSuccess();
+                startNext();
+            }
+        }
+
+        @Override
+        public void onFailure(int reason) {
+            if (complete(this)) {
+                listener.onFailure(reason);
+                startNext();
+            }
+        }
+
+        /**
+         * Runs on the scheduler when the operation times out.
+         */
+        @Override
+        public void run() {
+            if (complete(this)) {
+                Log.w(TAG, name + " reported no result within " + timeout + " ms");
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimedOut();
+                        listener.onFailure(WifiP2pManager.ERROR);
+                        startNext();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Called on the callback executor when the operation has timed out, before its
+         * listener is told.
+         */
+        void onTimedOut() {
+        }
+
+        // caller must hold the queue's lock
+        boolean isRunning() {
+            return running == this;
+        }
+
+        // caller must hold the queue's lock
+        void restartTimeout() {
+            finish();
+            scheduleTimeout();
+        }
+    }
+
+    /**
+     * One operation of a {@link #submitTransaction transaction}.
+     */
+    abstract static class Step {
+
+        /**
+         * Carries out the operation.
+         *
+         * @param callback must be told the result
+         */
+        abstract void apply(P2pBackend backend, WifiP2pManager.ActionListener callback);
+
+        /**
+         * Undoes the operation after it succeeded. There is nothing to undo by default.
+         *
+         * @param callback must be told the result
+         */
+        void undo(P2pBackend backend, WifiP2pManager.ActionListener callback) {
+            callback.onSuccess();
+        }
+    }
+
+    private class Transaction extends Operation {
+
+        private final String name;
+        private final List<Step> steps;
+
+        // guarded by OperationQueue.this
+        private WifiP2pManager.ActionListener callback = null;
+        // steps [0, applied) have been carried out and not undone
+        private int applied = 0;
+        private int retries = 0;
+        private int failure = 0;
+        private boolean rollingBack = false;
+
+        Transaction(String name, List<Step> steps, WifiP2pManager.ActionListener listener) {
+            super(name, Priority.USER, listener);
+            this.name = name;
+            this.steps = steps;
+        }
+
+        @Override
+        void start(WifiP2pManager.ActionListener callback) {
+            synchronized (OperationQueue.this) {
+                this.callback = callback;
+            }
+            proceed();
+        }
+
+        private void proceed() {
+            final Step step;
+            final boolean undo;
+            synchronized (OperationQueue.this) {
+                if (!isRunning()) {
+                    return;
+                }
+                undo = rollingBack;
+                if (undo ? applied == 0 : applied == steps.size()) {
+                    step = null;
+                } else {
+                    step = steps.get(undo ? applied - 1 : applied);
+                }
+            }
+            if (step == null) {
+                if (undo) {
+                    callback.onFailure(failure);
+                } else {
+                    callback.onSuccess();
+                }
+                return;
+            }
+            WifiP2pManager.ActionListener stepListener = new WifiP2pManager.ActionListener() {
+                @Override
+                public void onSuccess() {
+                    finishStep(undo, true, 0);
+                }
+
+                @Override
+                public void onFailure(int reason) {
+                    finishStep(undo, false, reason);
+                }
+            };
+            if (undo) {
+                step.undo(p2pBackend, stepListener);
+            } else {
+                step.apply(p2pBackend, stepListener);
+            }
+        }
+
+        private void finishStep(boolean undo, boolean succeeded, int reason) {
+            long retryDelay = 0;
+            synchronized (OperationQueue.this) {
+                if (!isRunning() || undo != rollingBack) {
+                    return;
+                }
+                if (!succeeded && reason == WifiP2pManager.BUSY
+                        && retries < (undo ? UNDO_RETRY_LIMIT : STEP_RETRY_LIMIT)) {
+                    retryDelay = Math.min(STEP_RETRY_BASE_DELAY_MS << retries, STEP_RETRY_MAX_DELAY_MS);
+                    retries++;
+                } else if (undo) {
+                    if (!succeeded) {
+                        Util.logP2pStatus(TAG, name + " could not undo a step", reason);
+                    }
+                    applied--;
+                    retries = 0;
+                } else if (succeeded) {
+                    applied++;
+                    retries = 0;
+                } else {
+                    Util.logP2pStatus(TAG, name + " failed at step " + applied + ", rolling back", reason);
+                    failure = reason;
+                    rollingBack = true;
+                    retries = 0;
+                }
+                restartTimeout();
+            }
+            if (retryDelay == 0) {
+                proceed();
+                return;
+            }
+            try {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        proceed();
+                    }
+                }, retryDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        }
+
+        @Override
+        void onTimedOut() {
+            // no longer running, so step results which still arrive are ignored
+            List<Step> toUndo;
+            synchronized (OperationQueue.this) {
+                toUndo = new ArrayList<Step>(steps.subList(0, applied));
+                applied = 0;
+            }
+            Collections.reverse(toUndo);
+            for (final Step step : toUndo) {
+                submit(new Operation(name + " undo", Priority.USER,
+                        new SimpleWifiP2pActionListener(name + " undo")) {
+                    @Override
+                    void start(WifiP2pManager.ActionListener callback) {
+                        step.undo(p2pBackend, callback);
+                    }
+                });
+            }
+        }
+    }
+}
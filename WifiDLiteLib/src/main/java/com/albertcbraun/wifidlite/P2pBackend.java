@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pConfig;
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pGroup;
+import android.net.wifi.p2p.WifiP2pInfo;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The Wifi P2P operations and events which {@link WifiDLite}, {@link Peer} and the
+ * heartbeat rely on.
+ * <p/>
+ * The default implementation, {@link com.albertcbraun.wifidlite.impl.AndroidP2pBackend},
+ * forwards to the platform's {@link WifiP2pManager} and listens for its broadcasts.
+ * {@link com.albertcbraun.wifidlite.impl.SimulatedP2pBackend} instead models a set of
+ * virtual devices in process, so the library can be exercised without WiFi Direct
+ * hardware. Supply a backend through {@link Configuration#createP2pBackend}.
+ * <p/>
+ * The operations mirror the {@link WifiP2pManager} methods of the same names and report
+ * their results through the same listener interfaces. Results and events may be
+ * delivered on any thread.
+ */
+public interface P2pBackend {
+
+    /**
+     * Starts the backend. From now until {@link #dispose} is called, the backend
+     * reports Wifi P2P events to the given object.
+     *
+     * @param events receives the backend's events
+     */
+    public void initialize(Events events);
+
+    /**
+     * Stops reporting events and releases any resources held by the backend.
+     */
+    public void dispose();
+
+    public void discoverPeers(WifiP2pManager.ActionListener listener);
+
+    /**
+     * Stops an ongoing peer discovery, which would otherwise keep scanning, at the cost of
+     * battery, until the framework ends it.
+     */
+    public void stopPeerDiscovery(WifiP2pManager.ActionListener listener);
+
+    public void connect(WifiP2pConfig config, WifiP2pManager.ActionListener listener);
+
+    public void createGroup(WifiP2pManager.ActionListener listener);
+
+    public void removeGroup(WifiP2pManager.ActionListener listener);
+
+    public void requestGroupInfo(WifiP2pManager.GroupInfoListener listener);
+
+    public void requestConnectionInfo(WifiP2pManager.ConnectionInfoListener listener);
+
+    public void addLocalService(WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener);
+
+    public void removeLocalService(WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener);
+
+    public void addServiceRequest(WifiP2pServiceRequest serviceRequest, WifiP2pManager.ActionListener listener);
+
+    public void removeServiceRequest(WifiP2pServiceRequest serviceRequest, WifiP2pManager.ActionListener listener);
+
+    /**
+     * Discovers the services matching the service requests added so far. The responses
+     * are reported through {@link Events#onDnsSdServiceAvailable} and
+     * {@link Events#onDnsSdTxtRecordAvailable}.
+     */
+    public void discoverServices(WifiP2pManager.ActionListener listener);
+
+    /**
+     * Wifi P2P events, corresponding to the broadcasts sent by the Android platform.
+     */
+    public interface Events {
+
+        /**
+         * See {@link WifiP2pManager#WIFI_P2P_STATE_CHANGED_ACTION}.
+         */
+        public void onP2pStateChanged(boolean enabled);
+
+        /**
+         * See {@link WifiP2pManager#WIFI_P2P_PEERS_CHANGED_ACTION}.
+         *
+         * @param devices the complete, current list of peer devices
+         */
+        public void onPeersChanged(Collection<WifiP2pDevice> devices);
+
+        /**
+         * See {@link WifiP2pManager#WIFI_P2P_CONNECTION_CHANGED_ACTION}.
+         *
+         * @param wifiP2pInfo  the current connection info, or null if not reported
+         * @param wifiP2pGroup the current group, or null if not reported
+         */
+        public void onConnectionChanged(WifiP2pInfo wifiP2pInfo, WifiP2pGroup wifiP2pGroup);
+
+        /**
+         * See {@link WifiP2pManager#WIFI_P2P_THIS_DEVICE_CHANGED_ACTION}.
+         */
+        public void onThisDeviceChanged(WifiP2pDevice device);
+
+        /**
+         * See {@link WifiP2pManager.DnsSdServiceResponseListener}.
+         *
+         * @param instanceName     the instance name of the service, e.g. "printer"
+         * @param registrationType the service type and domain, e.g. "_ipp._tcp.local."
+         * @param srcDevice        the device offering the service
+         */
+        public void onDnsSdServiceAvailable(String instanceName, String registrationType,
+                                            WifiP2pDevice srcDevice);
+
+        /**
+         * See {@link WifiP2pManager.DnsSdTxtRecordListener}.
+         *
+         * @param fullDomainName the full name of the service, e.g. "printer._ipp._tcp.local."
+         * @param txtRecordMap   the TXT record of the service
+         * @param srcDevice      the device offering the service
+         */
+        public void onDnsSdTxtRecordAvailable(String fullDomainName, Map<String, String> txtRecordMap,
+                                              WifiP2pDevice srcDevice);
+    }
+}
@@ -18,22 +18,45 @@ package com.albertcbraun.wifidlite;
 
 import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pDevice;
-import android.net.wifi.p2p.WifiP2pInfo;
 import android.net.wifi.p2p.WifiP2pManager;
 import android.util.Log;
 
+import com.albertcbraun.wifidlite.impl.AndroidP2pBackend;
+import com.albertcbraun.wifidlite.transport.Connection;
+import com.albertcbraun.wifidlite.transport.ConnectionListener;
+import com.albertcbraun.wifidlite.transport.FileTransfer;
+import com.albertcbraun.wifidlite.transport.FileTransferListener;
+import com.albertcbraun.wifidlite.transport.Multiplexer;
+import com.albertcbraun.wifidlite.transport.StreamAcceptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * A convenience wrapper around the {@link WifiP2pDevice} object.
  * Provides a more useful toString method and a {@link #connect} method
  * to actually connect to the device.
+ * <p/>
+ * Peers handed out by {@link WifiDLite} are canonical: there is one instance
+ * per device address, and it is updated in place whenever the device is reported
+ * again. Two peers are equal when their device addresses are equal, so peers
+ * can be used as keys for per-peer application state.
  */
 public class Peer {
 
     private static final String TAG = Peer.class.getCanonicalName();
 
-    private WifiP2pDevice wifiP2pDevice = null;
-    private WifiP2pManager wifiP2pManager = null;
-    private WifiP2pManager.Channel channel = null;
+    private volatile WifiP2pDevice wifiP2pDevice = null;
+    private P2pBackend p2pBackend = null;
+    private ConnectTracker connectTracker = null;
+    private final long address;
+    private volatile OperationQueue.Operation queuedConnect = null;
+
+    // bookkeeping for PeerListTracker: the last update which included this peer, and whether
+    // it is in the current list
+    long generation = 0;
+    boolean present = false;
 
     /**
      * Main Constructor.
@@ -42,11 +65,50 @@ public class Peer {
      * @param wifiP2pManager the main instance of the {@link android.net.wifi.p2p.WifiP2pManager}
      * @param channel        the {@link android.net.wifi.p2p.WifiP2pManager.Channel} associated with
      *                       the wifiP2pManager
+     * @deprecated peers are created by {@link WifiDLite}; use the instances it hands out
      */
+    @Deprecated
     public Peer(WifiP2pDevice wifiP2pDevice, WifiP2pManager wifiP2pManager, WifiP2pManager.Channel channel) {
+        this(wifiP2pDevice, new AndroidP2pBackend(wifiP2pManager, channel), null);
+    }
+
+    /**
+     * Constructor used by the {@link PeerRegistry}.
+     *
+     * @param wifiP2pDevice  the peer device
+     * @param p2pBackend     the backend which carries out connections
+     * @param connectTracker times connection attempts, or null
+     */
+    Peer(WifiP2pDevice wifiP2pDevice, P2pBackend p2pBackend, ConnectTracker connectTracker) {
         this.wifiP2pDevice = wifiP2pDevice;
-        this.wifiP2pManager = wifiP2pManager;
-        this.channel = channel;
+        this.p2pBackend = p2pBackend;
+        this.connectTracker = connectTracker;
+        this.address = MacAddress.parseToLong(wifiP2pDevice.deviceAddress);
+    }
+
+    /**
+     * Replaces the device state with the latest report for the same device address.
+     *
+     * @param wifiP2pDevice the latest {@link WifiP2pDevice} for this peer's address
+     */
+    void update(WifiP2pDevice wifiP2pDevice) {
+        this.wifiP2pDevice = wifiP2pDevice;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Peer)) {
+            return false;
+        }
+        return address != MacAddress.INVALID && address == ((Peer) o).address;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (address ^ (address >>> 32));
     }
 
     @Override
@@ -64,13 +126,32 @@ public class Peer {
         return this.wifiP2pDevice;
     }
 
+    /**
+     * Provides the peer device's address in compact form.
+     *
+     * @return the {@link MacAddress}, or null if the device did not report a valid address
+     */
+    public MacAddress getMacAddress() {
+        return address == MacAddress.INVALID ? null : MacAddress.fromLong(address);
+    }
+
+    /**
+     * @return the peer device's address as returned by {@link MacAddress#toLong}, or
+     * {@link MacAddress#INVALID} if the device did not report a valid address
+     */
+    long getAddress() {
+        return address;
+    }
+
     /**
      * Invites the peer device to form a connection with the current device.
      * The user of the peer device must accept the invitation in order to create a
      * connection.
      * <p/>
      * The caller of this method will receive information about the peer device
-     * connection in the {@link PeerConnectionListener}.
+     * connection in the {@link PeerConnectionListener}. The resulting connection
+     * info can be read from {@link WifiDLite#getConnectionInfo} once the connection
+     * has been established.
      *
      * @param peerConnectionListener callback to receive info about the peer device
      */
@@ -78,35 +159,148 @@ public class Peer {
         final String deviceName = wifiP2pDevice.deviceName;
         final String deviceAddress = wifiP2pDevice.deviceAddress;
         if (deviceName != null && deviceAddress != null) {
-            wifiP2pManager.requestConnectionInfo(channel, new WifiP2pManager.ConnectionInfoListener() {
+            WifiP2pConfig config = new WifiP2pConfig();
+            config.deviceAddress = deviceAddress;
+            // timing starts once the framework is asked to connect, and the attempt succeeds
+            // once the framework reports a group with this peer in it
+            Runnable startTiming = connectTracker == null ? null : new Runnable() {
+                @Override
+                public void run() {
+                    connectTracker.start(Peer.this);
+                }
+            };
+            WifiP2pManager.ActionListener listener = new WifiP2pManager.ActionListener() {
                 @Override
-                public void onConnectionInfoAvailable(final WifiP2pInfo infoAboutCallingDevice) {
-                    WifiP2pConfig config = new WifiP2pConfig();
-                    config.deviceAddress = deviceAddress;
-                    wifiP2pManager.connect(channel, config, new WifiP2pManager.ActionListener() {
-                        @Override
-                        public void onSuccess() {
-                            Log.v(TAG, getMessage(true));
-                            peerConnectionListener.onPeerConnectionSuccess(Peer.this);
-                        }
-
-                        @Override
-                        public void onFailure(int reason) {
-                            Log.w(TAG, getMessage(false));
-                            peerConnectionListener.onPeerConnectionFailure(reason);
-                        }
-
-                        private String getMessage(boolean succeeded) {
-                            return String.format("connect to device %s. deviceName:%s deviceAddress:%s",
-                                    (succeeded ? "successful" : "unsuccessful"), deviceName, deviceAddress);
-                        }
-                    });
+                public void onSuccess() {
+                    Log.v(TAG, getMessage(true));
+                    peerConnectionListener.onPeerConnectionSuccess(Peer.this);
                 }
-            });
+
+                @Override
+                public void onFailure(int reason) {
+                    Log.w(TAG, getMessage(false));
+                    if (connectTracker != null) {
+                        connectTracker.fail(Peer.this, reason);
+                    }
+                    peerConnectionListener.onPeerConnectionFailure(reason);
+                }
+
+                private String getMessage(boolean succeeded) {
+                    return String.format("connect to device %s. deviceName:%s deviceAddress:%s",
+                            (succeeded ? "successful" : "unsuccessful"), deviceName, deviceAddress);
+                }
+            };
+            if (p2pBackend instanceof OperationQueue) {
+                queuedConnect = ((OperationQueue) p2pBackend).connect(config, listener,
+                        OperationQueue.Priority.USER, startTiming);
+            } else {
+                if (startTiming != null) {
+                    startTiming.run();
+                }
+                p2pBackend.connect(config, listener);
+            }
         } else {
             Log.w(TAG, String.format("Cannot attempt connection to peer. Device name (%s) and/or address (%s) not available.",
                     deviceName, deviceAddress));
         }
     }
 
+    /**
+     * Opens a data channel connection to this peer, once this device has joined the group
+     * which the peer owns (for example after {@link #connect} succeeded and the group has
+     * formed). The peer must be listening on the port, see {@link WifiDLite#listen}.
+     * <p/>
+     * Returns straight away. The listener is told when the connection is established, and
+     * about each message which arrives, on the data channel's selector thread.
+     *
+     * @param port     the port the peer listens on
+     * @param listener told about the connection and its messages
+     * @return the connection, which can already be used to queue messages
+     * @throws IOException           if a socket cannot be opened
+     * @throws IllegalStateException if this device is not a member of a group owned by this peer
+     */
+    public Connection openConnection(int port, ConnectionListener listener) throws IOException {
+        return WifiDLite.getInstance().connectToGroupOwner(this, port, listener);
+    }
+
+    /**
+     * Opens a data channel connection to this peer which carries any number of independent,
+     * flow-controlled streams, so that, for example, control messages and bulk data can
+     * share one connection without stalling each other. As with {@link #openConnection},
+     * the peer must be the owner of the group this device has joined and must be listening
+     * on the port; it attaches a {@link Multiplexer} to each connection it accepts.
+     * <p/>
+     * Streams are opened and closed with {@link Multiplexer#openStream} and
+     * {@link com.albertcbraun.wifidlite.transport.Stream#close}, and may be opened straight
+     * away.
+     *
+     * @param port     the port the peer listens on
+     * @param listener told about the connection
+     * @param acceptor decides about streams which the peer opens, or null to refuse them
+     * @return the multiplexer
+     * @throws IOException           if a socket cannot be opened
+     * @throws IllegalStateException if this device is not a member of a group owned by this peer
+     */
+    public Multiplexer openStreams(int port, ConnectionListener listener, StreamAcceptor acceptor)
+            throws IOException {
+        return WifiDLite.getInstance().connectStreamsToGroupOwner(this, port, listener, acceptor);
+    }
+
+    /**
+     * Sends a file to this peer over a data channel connection of its own, which is closed
+     * once the file has been sent. As with {@link #openConnection}, the peer must be the
+     * owner of the group this device has joined and must be listening on the port; it
+     * receives the file through a {@link com.albertcbraun.wifidlite.transport.FileReceiver}
+     * set on the accepted connection.
+     * <p/>
+     * The file goes from disk to socket with {@link java.nio.channels.FileChannel#transferTo},
+     * without being copied through heap buffers.
+     *
+     * @param port     the port the peer listens on
+     * @param file     the file to send
+     * @param listener told about progress, completion and throughput, on the data
+     *                 channel's selector thread
+     * @return the transfer
+     * @throws IOException           if the file cannot be opened or a socket cannot be opened
+     * @throws IllegalStateException if this device is not a member of a group owned by this peer
+     */
+    public FileTransfer sendFile(int port, File file, FileTransferListener listener) throws IOException {
+        Connection connection = openConnection(port, new ConnectionListener() {
+            @Override
+            public void onConnected(Connection connection) {
+                Log.v(TAG, "Sending file over " + connection);
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer message) {
+                // this connection only carries the file
+            }
+
+            @Override
+            public void onClosed(Connection connection, IOException cause) {
+                if (cause != null) {
+                    Log.w(TAG, connection + " closed: " + cause);
+                }
+            }
+        });
+        try {
+            return connection.sendFile(file, listener);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Withdraws the most recent {@link #connect} request, provided it is still waiting
+     * behind other Wifi P2P operations and has not been passed to the framework yet.
+     * The {@link PeerConnectionListener} of a withdrawn request is not called, and the
+     * request does not count as an attempt in the peer's connection history.
+     *
+     * @return true if the request was withdrawn, false if it had already been started
+     */
+    public boolean cancelConnect() {
+        OperationQueue.Operation operation = queuedConnect;
+        return operation != null && operation.cancel();
+    }
+
 }
@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pGroup;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Remembers peers and groups across sessions, keyed by device address, so that the
+ * library can put the peers this device has met (and connected to) before ahead of
+ * unknown ones at startup. See {@link KnownPeer} and {@link KnownGroup}.
+ * <p/>
+ * Peers are ranked by {@link KnownPeer#getExpectedConnectTime}, which follows from the
+ * latency and success ratio of the connection attempts recorded for them.
+ * <p/>
+ * The history is kept in a small append-only file. Each record holds the complete
+ * latest state of one peer or group, so the last record for an address wins. Once the
+ * file holds many more records than there are entries, it is compacted: rewritten with
+ * one record per entry, keeping only the most recently seen peers and groups. A record
+ * cut short by a crash is simply ignored.
+ * <p/>
+ * All file access happens on a private background thread. The file is read there the
+ * first time the history is used, and updates are applied in order behind that read.
+ * Queries wait for the read to complete, but not for writes: an update changes the
+ * entries with the lock held, then appends the new record, or rewrites the file from a
+ * copy of the entries, after releasing it. With a null file the history lives in memory
+ * only.
+ * <p/>
+ * Only the most recently seen peers and groups are kept. The others are evicted in
+ * batches, once the limit is exceeded by some margin, so that the entries are not
+ * sorted again for every new peer.
+ */
+class PeerHistory {
+
+    private static final String TAG = PeerHistory.class.getCanonicalName();
+
+    private static final int MAGIC = 0x57444c48; // "WDLH"
+    private static final int VERSION = 2;
+    // peer records without connection statistics
+    private static final int VERSION_1 = 1;
+    private static final byte PEER_RECORD = 1;
+    private static final byte GROUP_RECORD = 2;
+
+    // a peer which stays around is written at most this often
+    private static final long SEEN_RESOLUTION_MS = 10 * 60 * 1000;
+    private static final int MAX_PEERS = 256;
+    private static final int MAX_GROUPS = 16;
+    private static final int COMPACTION_RATIO = 4;
+    private static final int COMPACTION_SLACK = 64;
+
+    private static final Comparator<KnownPeer> KNOWN_PEER_RECENCY = new Comparator<KnownPeer>() {
+        @Override
+        public int compare(KnownPeer a, KnownPeer b) {
+            return compareDescending(a.getLastSeen(), b.getLastSeen());
+        }
+    };
+
+    private static final Comparator<KnownGroup> KNOWN_GROUP_RECENCY = new Comparator<KnownGroup>() {
+        @Override
+        public int compare(KnownGroup a, KnownGroup b) {
+            return compareDescending(a.getLastSeen(), b.getLastSeen());
+        }
+    };
+
+    private final File file;
+    private final ExecutorService io;
+
+    // guarded by this
+    private final LongMap<KnownPeer> peers = new LongMap<KnownPeer>();
+    private final LongMap<KnownGroup> groups = new LongMap<KnownGroup>();
+    private boolean loaded = false;
+    private int recordsInFile = 0;
+    private boolean needsRewrite = false;
+
+    /**
+     * @param file where the history is kept, or null to keep it in memory only
+     */
+    PeerHistory(File file) {
+        this.file = file;
+        this.io = file == null ? null : Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WifiDLite history");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts reading the file in the background, so the history is ready by the time
+     * the first peer list arrives. Does not wait for the read.
+     */
+    void preload() {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+            }
+        });
+    }
+
+    /**
+     * Writes any updates still queued and stops the background thread.
+     */
+    void close() {
+        if (io != null) {
+            io.shutdown();
+        }
+    }
+
+    /**
+     * Records that the peer is, or was until just now, in the peer list.
+     */
+    void recordSeen(Peer peer) {
+        final long address = peer.getAddress();
+        final String deviceName = peer.getWifiP2pDevice().deviceName;
+        final long now = System.currentTimeMillis();
+        if (address == MacAddress.INVALID) {
+            return;
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                Object[] records;
+                synchronized (PeerHistory.this) {
+                    ensureLoaded();
+                    KnownPeer known = peers.get(address);
+                    if (known != null && now - known.getLastSeen() < SEEN_RESOLUTION_MS
+                            && equal(deviceName, known.getDeviceName())) {
+                        return;
+                    }
+                    KnownPeer updated = known == null ? new KnownPeer(address, deviceName, now, 0, 0, 0, 0, 0)
+                            : new KnownPeer(address, deviceName, now, known.getLastConnectTime(),
+                            known.getLastConnectResult(), known.getConnectLatency(),
+                            known.getConnectAttempts(), known.getConnectSuccesses());
+                    peers.put(address, updated);
+                    records = update(updated);
+                }
+                write(records);
+            }
+        });
+    }
+
+    /**
+     * Records the outcome of a connection attempt.
+     *
+     * @param result        {@link KnownPeer#CONNECT_SUCCEEDED}, {@link KnownPeer#CONNECT_TIMED_OUT}
+     *                      or the failure reason
+     * @param latencyMillis how long the attempt took to form a group, or to fail
+     */
+    void recordConnect(Peer peer, final int result, final int latencyMillis) {
+        final long address = peer.getAddress();
+        final String deviceName = peer.getWifiP2pDevice().deviceName;
+        final long now = System.currentTimeMillis();
+        if (address == MacAddress.INVALID) {
+            return;
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                Object[] records;
+                synchronized (PeerHistory.this) {
+                    ensureLoaded();
+                    KnownPeer known = peers.get(address);
+                    if (known == null) {
+                        known = new KnownPeer(address, deviceName, now, 0, 0, 0, 0, 0);
+                    }
+                    KnownPeer updated = known.withConnect(deviceName, now, result, latencyMillis);
+                    peers.put(address, updated);
+                    records = update(updated);
+                }
+                write(records);
+            }
+        });
+    }
+
+    /**
+     * Records a group reported by the framework.
+     */
+    void recordGroup(WifiP2pGroup group) {
+        if (group.getOwner() == null || group.getNetworkName() == null) {
+            return;
+        }
+        final long ownerAddress = MacAddress.parseToLong(group.getOwner().deviceAddress);
+        final String networkName = group.getNetworkName();
+        final String passphrase = group.getPassphrase();
+        final long now = System.currentTimeMillis();
+        if (ownerAddress == MacAddress.INVALID) {
+            return;
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                Object[] records;
+                synchronized (PeerHistory.this) {
+                    ensureLoaded();
+                    KnownGroup known = groups.get(ownerAddress);
+                    if (known != null && now - known.getLastSeen() < SEEN_RESOLUTION_MS
+                            && networkName.equals(known.getNetworkName())
+                            && equal(passphrase, known.getPassphrase())) {
+                        return;
+                    }
+                    KnownGroup updated = new KnownGroup(ownerAddress, networkName, passphrase, now);
+                    groups.put(ownerAddress, updated);
+                    records = update(updated);
+                }
+                write(records);
+            }
+        });
+    }
+
+    /**
+     * @return the known peers, most recently seen first
+     */
+    synchronized List<KnownPeer> getKnownPeers() {
+        ensureLoaded();
+        KnownPeer[] known = new KnownPeer[peers.size()];
+        peers.copyValues(known);
+        Arrays.sort(known, KNOWN_PEER_RECENCY);
+        return Collections.unmodifiableList(Arrays.asList(known));
+    }
+
+    /**
+     * @return the known groups, most recently seen first
+     */
+    synchronized List<KnownGroup> getKnownGroups() {
+        ensureLoaded();
+        KnownGroup[] known = new KnownGroup[groups.size()];
+        groups.copyValues(known);
+        Arrays.sort(known, KNOWN_GROUP_RECENCY);
+        return Collections.unmodifiableList(Arrays.asList(known));
+    }
+
+    /**
+     * Reorders the given peers by rank, see {@link #getRanking}.
+     */
+    void rank(List<Peer> list) {
+        if (list.size() < 2) {
+            return;
+        }
+        synchronized (this) {
+            ensureLoaded();
+            if (peers.size() == 0) {
+                return;
+            }
+        }
+        Collections.sort(list, getRanking());
+    }
+
+    /**
+     * Returns a comparator which puts the peers most likely to be connected to quickly
+     * first: those with the lowest {@link KnownPeer#getExpectedConnectTime}. Peers with the
+     * same estimate, such as peers without history, are ordered by when they were last
+     * seen, most recent first, and otherwise keep their order. The comparator works on a
+     * copy of the history taken now, so it stays consistent while a list is sorted.
+     */
+    synchronized Comparator<Peer> getRanking() {
+        ensureLoaded();
+        final LongMap<KnownPeer> snapshot = new LongMap<KnownPeer>();
+        KnownPeer[] known = new KnownPeer[peers.size()];
+        int count = peers.copyValues(known);
+        for (int i = 0; i < count; i++) {
+            snapshot.put(known[i].getAddress(), known[i]);
+        }
+        return new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                KnownPeer knownA = snapshot.get(a.getAddress());
+                KnownPeer knownB = snapshot.get(b.getAddress());
+                int rank = Double.compare(KnownPeer.expectedConnectTime(knownA),
+                        KnownPeer.expectedConnectTime(knownB));
+                if (rank != 0) {
+                    return rank;
+                }
+                return compareDescending(knownA == null ? 0 : knownA.getLastSeen(),
+                        knownB == null ? 0 : knownB.getLastSeen());
+            }
+        };
+    }
+
+    private static int compareDescending(long a, long b) {
+        return a > b ? -1 : (a < b ? 1 : 0);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void submit(Runnable task) {
+        if (io == null) {
+            task.run();
+            return;
+        }
+        try {
+            io.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.v(TAG, "History closed. Update dropped.");
+        }
+    }
+
+    private synchronized void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (file == null || !file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        boolean complete = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int version = in.readInt() == MAGIC ? in.readInt() : 0;
+            if (version != VERSION && version != VERSION_1) {
+                Log.w(TAG, "Ignoring unrecognized history file " + file);
+            } else {
+                while (readRecord(in, version)) {
+                    recordsInFile++;
+                }
+                // records are appended in the current format, so an older file is rewritten
+                complete = version == VERSION;
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "History file " + file + " ends with a partial record");
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read history file " + file, e);
+        } finally {
+            closeQuietly(in);
+        }
+        if (!complete) {
+            // drop whatever could not be read with the next write, so appended records are readable again
+            needsRewrite = true;
+        }
+    }
+
+    // returns false at the end of the file
+    private boolean readRecord(DataInputStream in, int version) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return false;
+        }
+        long address = in.readLong();
+        long lastSeen = in.readLong();
+        if (type == PEER_RECORD) {
+            long lastConnectTime = in.readLong();
+            int lastConnectResult = in.readInt();
+            int connectLatency = 0;
+            int connectAttempts = 0;
+            int connectSuccesses = 0;
+            if (version != VERSION_1) {
+                connectLatency = in.readInt();
+                connectAttempts = in.readUnsignedByte();
+                connectSuccesses = in.readUnsignedByte();
+            }
+            String deviceName = readNullableString(in);
+            peers.put(address, new KnownPeer(address, deviceName, lastSeen, lastConnectTime, lastConnectResult,
+                    connectLatency, connectAttempts, connectSuccesses));
+        } else if (type == GROUP_RECORD) {
+            String networkName = in.readUTF();
+            String passphrase = readNullableString(in);
+            groups.put(address, new KnownGroup(address, networkName, passphrase, lastSeen));
+        } else {
+            throw new IOException("Unknown record type " + type);
+        }
+        return true;
+    }
+
+    /**
+     * Decides how an updated entry reaches the file. Caller must hold the lock.
+     *
+     * @return the record to append, or every entry, starting with null, if the file is to
+     * be rewritten. Null if there is no file.
+     */
+    private Object[] update(Object record) {
+        if (file == null) {
+            evictIfFull(COMPACTION_SLACK);
+            return null;
+        }
+        if (needsRewrite || peers.size() > MAX_PEERS + COMPACTION_SLACK || groups.size() > MAX_GROUPS + COMPACTION_SLACK
+                || recordsInFile > COMPACTION_RATIO * (peers.size() + groups.size()) + COMPACTION_SLACK) {
+            evictIfFull(0);
+            Object[] records = new Object[1 + peers.size() + groups.size()];
+            Object[] values = new Object[Math.max(peers.size(), groups.size())];
+            int count = peers.copyValues(values);
+            System.arraycopy(values, 0, records, 1, count);
+            int groupCount = groups.copyValues(values);
+            System.arraycopy(values, 0, records, 1 + count, groupCount);
+            needsRewrite = false;
+            recordsInFile = count + groupCount;
+            return records;
+        }
+        recordsInFile++;
+        return new Object[]{record};
+    }
+
+    // runs on the io thread, without the lock
+    private void write(Object[] records) {
+        if (records == null) {
+            return;
+        }
+        if (records[0] == null) {
+            rewrite(records);
+        } else {
+            append(records[0]);
+        }
+    }
+
+    private void append(Object record) {
+        boolean isNew = !file.exists() || file.length() == 0;
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            if (isNew) {
+                writeHeader(out);
+            }
+            writeRecord(out, record);
+            out.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot append to history file " + file, e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void rewrite(Object[] records) {
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            writeHeader(out);
+            for (int i = 1; i < records.length; i++) {
+                writeRecord(out, records[i]);
+            }
+            out.flush();
+            written = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot compact history file " + file, e);
+        } finally {
+            closeQuietly(out);
+        }
+        if (!written || !temporary.renameTo(file)) {
+            temporary.delete();
+        }
+    }
+
+    // caller must hold the lock
+    private void evictIfFull(int slack) {
+        if (peers.size() > MAX_PEERS + slack) {
+            KnownPeer[] known = new KnownPeer[peers.size()];
+            peers.copyValues(known);
+            Arrays.sort(known, KNOWN_PEER_RECENCY);
+            for (int i = MAX_PEERS; i < known.length; i++) {
+                peers.remove(known[i].getAddress());
+            }
+        }
+        if (groups.size() > MAX_GROUPS + slack) {
+            KnownGroup[] known = new KnownGroup[groups.size()];
+            groups.copyValues(known);
+            Arrays.sort(known, KNOWN_GROUP_RECENCY);
+            for (int i = MAX_GROUPS; i < known.length; i++) {
+                groups.remove(known[i].getAddress());
+            }
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    private static void writeRecord(DataOutputStream out, Object record) throws IOException {
+        if (record instanceof KnownPeer) {
+            KnownPeer peer = (KnownPeer) record;
+            out.writeByte(PEER_RECORD);
+            out.writeLong(peer.getAddress());
+            out.writeLong(peer.getLastSeen());
+            out.writeLong(peer.getLastConnectTime());
+            out.writeInt(peer.getLastConnectResult());
+            out.writeInt(peer.getConnectLatency());
+            out.writeByte(peer.getConnectAttempts());
+            out.writeByte(peer.getConnectSuccesses());
+            writeNullableString(out, peer.getDeviceName());
+        } else {
+            KnownGroup group = (KnownGroup) record;
+            out.writeByte(GROUP_RECORD);
+            out.writeLong(group.getAddress());
+            out.writeLong(group.getLastSeen());
+            out.writeUTF(group.getNetworkName());
+            writeNullableString(out, group.getPassphrase());
+        }
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The difference between two consecutive lists of peers, as delivered to a
+ * {@link PeerListDeltaListener}.
+ * <p/>
+ * Peers are matched by {@link android.net.wifi.p2p.WifiP2pDevice#deviceAddress}.
+ * A peer counts as changed when its device name or its status differs from the
+ * previous list. The lists returned by this object are unmodifiable.
+ */
+public final class PeerListDelta {
+
+    static final PeerListDelta EMPTY = new PeerListDelta(Collections.<Peer>emptyList(),
+            Collections.<Peer>emptyList(), Collections.<Peer>emptyList());
+
+    private final List<Peer> added;
+    private final List<Peer> removed;
+    private final List<Peer> changed;
+
+    PeerListDelta(List<Peer> added, List<Peer> removed, List<Peer> changed) {
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+        this.changed = Collections.unmodifiableList(changed);
+    }
+
+    /**
+     * @return the peers which were not in the previous list
+     */
+    public List<Peer> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the peers from the previous list which are no longer present
+     */
+    public List<Peer> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return the peers whose device name or status changed
+     */
+    public List<Peer> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return true if nothing was added, removed or changed
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("added:%s removed:%s changed:%s", added, removed, changed);
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+/**
+ * Incremental peer list callbacks for clients of the {@link WifiDLite} object.
+ * <p/>
+ * Rather than the full list of peers, each callback carries only the peers
+ * which were added, removed or changed since the previous callback. See
+ * {@link PeerListDelta}.
+ */
+public interface PeerListDeltaListener {
+    public void onPeerListDelta(PeerListDelta delta);
+}
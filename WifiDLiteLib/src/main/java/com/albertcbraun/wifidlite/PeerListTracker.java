@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Keeps the most recent list of peers and computes a {@link PeerListDelta} each
+ * time a new device list arrives. Peers come from the {@link PeerRegistry}, keyed by
+ * {@link MacAddress}, so a device which is reported again is represented by the same
+ * {@link Peer} object, updated in place. In the steady state an update allocates no
+ * new {@link Peer} objects, map entries or address keys.
+ */
+class PeerListTracker {
+
+    private final PeerRegistry peerRegistry;
+    private final ArrayList<Peer> currentPeers = new ArrayList<Peer>();
+    private long generation = 0;
+
+    PeerListTracker(PeerRegistry peerRegistry) {
+        this.peerRegistry = peerRegistry;
+    }
+
+    /**
+     * Replaces the current list of peers with one built from the given devices.
+     *
+     * @param devices the devices most recently reported by the framework
+     * @return the difference between the previous list and the new one
+     */
+    PeerListDelta update(Collection<WifiP2pDevice> devices) {
+        long thisGeneration = ++generation;
+        List<Peer> added = null;
+        List<Peer> changed = null;
+        for (WifiP2pDevice device : devices) {
+            long address = MacAddress.parseToLong(device.deviceAddress);
+            if (address == MacAddress.INVALID) {
+                continue;
+            }
+            Peer peer = peerRegistry.get(address);
+            if (peer == null) {
+                peer = peerRegistry.add(device);
+                added = append(added, peer);
+            } else if (!peer.present) {
+                peer.update(device);
+                added = append(added, peer);
+            } else if (peer.generation != thisGeneration && hasChanged(peer.getWifiP2pDevice(), device)) {
+                peer.update(device);
+                changed = append(changed, peer);
+            } else {
+                peer.update(device);
+            }
+            peer.generation = thisGeneration;
+            if (!peer.present) {
+                peer.present = true;
+                currentPeers.add(peer);
+            }
+        }
+        List<Peer> removed = null;
+        int kept = 0;
+        for (int i = 0; i < currentPeers.size(); i++) {
+            Peer peer = currentPeers.get(i);
+            if (peer.generation == thisGeneration) {
+                currentPeers.set(kept++, peer);
+            } else {
+                peer.present = false;
+                removed = append(removed, peer);
+            }
+        }
+        for (int i = currentPeers.size() - 1; i >= kept; i--) {
+            currentPeers.remove(i);
+        }
+        if (added == null && removed == null && changed == null) {
+            return PeerListDelta.EMPTY;
+        }
+        return new PeerListDelta(orEmpty(added), orEmpty(removed), orEmpty(changed));
+    }
+
+    /**
+     * @return a new list containing the current peers
+     */
+    List<Peer> getPeers() {
+        return new ArrayList<Peer>(currentPeers);
+    }
+
+    /**
+     * @return the number of current peers
+     */
+    int size() {
+        return currentPeers.size();
+    }
+
+    /**
+     * @return a delta which adds every current peer, for a listener which has
+     * not seen any list yet
+     */
+    PeerListDelta getPeersAsDelta() {
+        if (currentPeers.isEmpty()) {
+            return PeerListDelta.EMPTY;
+        }
+        return new PeerListDelta(getPeers(), Collections.<Peer>emptyList(), Collections.<Peer>emptyList());
+    }
+
+    private static boolean hasChanged(WifiP2pDevice previous, WifiP2pDevice current) {
+        if (previous.status != current.status) {
+            return true;
+        }
+        return previous.deviceName == null ? current.deviceName != null : !previous.deviceName.equals(current.deviceName);
+    }
+
+    private static List<Peer> append(List<Peer> list, Peer peer) {
+        if (list == null) {
+            list = new ArrayList<Peer>();
+        }
+        list.add(peer);
+        return list;
+    }
+
+    private static List<Peer> orEmpty(List<Peer> list) {
+        return list == null ? Collections.<Peer>emptyList() : list;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import com.albertcbraun.wifidlite.reactive.Publisher;
+import com.albertcbraun.wifidlite.reactive.Subscriber;
+import com.albertcbraun.wifidlite.reactive.Subscription;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Publishes peer list updates to {@link Subscriber}s as {@link PeerUpdate}s, honoring
+ * their requests. Updates are only passed on to a subscriber when it has asked for
+ * one. Until then they are conflated into a single pending update: the latest list of
+ * peers, and the deltas merged into one. A subscriber which lags therefore holds one
+ * list and at most one entry per peer, however far behind it falls.
+ * <p/>
+ * Subscribers are called back on the dispatch executor, which must run tasks one at a
+ * time, in order. Peer lists are {@link #publish published} on it as well, so the
+ * pending update is only touched from there. Only the demand is shared with the
+ * threads calling {@link Subscription#request} and {@link Subscription#cancel}.
+ * <p/>
+ * The demand listener is run on the dispatch executor whenever {@link #hasDemand}
+ * may have changed, so that {@link WifiDLite} can stop discovering peers while no one
+ * is asking for them.
+ */
+class PeerPublisher implements Publisher<PeerUpdate> {
+
+    private final Executor executor;
+    private final PeerListTracker peerListTracker;
+    private final PeerHistory peerHistory;
+    private final Runnable demandListener;
+    private final ListenerRegistry<PeerSubscription> subscriptions =
+            new ListenerRegistry<PeerSubscription>(new PeerSubscription[0]);
+    private volatile boolean closed = false;
+
+    PeerPublisher(Executor executor, PeerListTracker peerListTracker, PeerHistory peerHistory,
+                  Runnable demandListener) {
+        this.executor = executor;
+        this.peerListTracker = peerListTracker;
+        this.peerHistory = peerHistory;
+        this.demandListener = demandListener;
+    }
+
+    @Override
+    public void subscribe(final Subscriber<? super PeerUpdate> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber is null");
+        }
+        final PeerSubscription subscription = new PeerSubscription(subscriber);
+        // register on the dispatch executor, so the first update is the current list
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (closed) {
+                    subscriber.onSubscribe(subscription);
+                    subscription.complete();
+                    return;
+                }
+                subscriptions.add(subscription);
+                List<Peer> peers = peerListTracker.getPeers();
+                peerHistory.rank(peers);
+                subscription.offer(peers, peerListTracker.getPeersAsDelta());
+                subscriber.onSubscribe(subscription);
+                demandListener.run();
+            }
+        });
+    }
+
+    /**
+     * Passes a new list of peers to every subscriber. Must be called on the dispatch executor.
+     *
+     * @param peers the current peers, ranked. The list must not be modified afterwards.
+     * @param delta the difference from the previous list
+     */
+    void publish(List<Peer> peers, PeerListDelta delta) {
+        for (PeerSubscription subscription : subscriptions.snapshot()) {
+            subscription.offer(peers, delta);
+            subscription.drain();
+        }
+    }
+
+    boolean hasSubscriptions() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * @return true if any subscriber has asked for an update it has not received
+     */
+    boolean hasDemand() {
+        for (PeerSubscription subscription : subscriptions.snapshot()) {
+            if (subscription.hasDemand()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Completes every subscription, and those made later straight away.
+     */
+    void close() {
+        closed = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (PeerSubscription subscription : subscriptions.drain()) {
+                    subscription.complete();
+                }
+            }
+        });
+    }
+
+    private final class PeerSubscription implements Subscription {
+
+        // guarded by this
+        private long demand = 0;
+        private boolean cancelled = false;
+
+        // only used on the dispatch executor; the subscriber is dropped once it is done
+        private Subscriber<? super PeerUpdate> subscriber;
+        private List<Peer> latest = null;
+        private boolean first = true;
+        private final LinkedHashSet<Peer> added = new LinkedHashSet<Peer>();
+        private final LinkedHashSet<Peer> removed = new LinkedHashSet<Peer>();
+        private final LinkedHashSet<Peer> changed = new LinkedHashSet<Peer>();
+
+        private final Runnable drainer = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        PeerSubscription(Subscriber<? super PeerUpdate> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                final IllegalArgumentException e =
+                        new IllegalArgumentException("Requested " + n + " updates. Requests must be positive.");
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        fail(e);
+                    }
+                });
+                return;
+            }
+            boolean demandStarted;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                demandStarted = demand == 0;
+                demand += n;
+                if (demand < 0) {
+                    demand = Long.MAX_VALUE;
+                }
+            }
+            executor.execute(drainer);
+            if (demandStarted) {
+                executor.execute(demandListener);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!stop()) {
+                return;
+            }
+            subscriptions.remove(this);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    release();
+                    demandListener.run();
+                }
+            });
+        }
+
+        synchronized boolean hasDemand() {
+            return demand > 0;
+        }
+
+        // merges the delta into whatever the subscriber has not received yet
+        void offer(List<Peer> peers, PeerListDelta delta) {
+            if (subscriber == null) {
+                return;
+            }
+            latest = peers;
+            for (Peer peer : delta.getAdded()) {
+                if (removed.remove(peer)) {
+                    changed.add(peer);
+                } else {
+                    added.add(peer);
+                }
+            }
+            for (Peer peer : delta.getRemoved()) {
+                if (!added.remove(peer)) {
+                    changed.remove(peer);
+                    removed.add(peer);
+                }
+            }
+            for (Peer peer : delta.getChanged()) {
+                if (!added.contains(peer)) {
+                    changed.add(peer);
+                }
+            }
+        }
+
+        void drain() {
+            if (latest == null || subscriber == null) {
+                return;
+            }
+            if (!first && added.isEmpty() && removed.isEmpty() && changed.isEmpty()) {
+                // the changes cancelled out
+                latest = null;
+                return;
+            }
+            boolean demandExhausted;
+            synchronized (this) {
+                if (cancelled || demand == 0) {
+                    return;
+                }
+                if (demand != Long.MAX_VALUE) {
+                    demand--;
+                }
+                demandExhausted = demand == 0;
+            }
+            PeerUpdate update = new PeerUpdate(latest, new PeerListDelta(new ArrayList<Peer>(added),
+                    new ArrayList<Peer>(removed), new ArrayList<Peer>(changed)));
+            latest = null;
+            first = false;
+            added.clear();
+            removed.clear();
+            changed.clear();
+            subscriber.onNext(update);
+            if (demandExhausted) {
+                demandListener.run();
+            }
+        }
+
+        void complete() {
+            Subscriber<? super PeerUpdate> subscriber = this.subscriber;
+            if (!stop()) {
+                return;
+            }
+            release();
+            if (subscriber != null) {
+                subscriber.onComplete();
+            }
+            demandListener.run();
+        }
+
+        private void fail(Throwable throwable) {
+            Subscriber<? super PeerUpdate> subscriber = this.subscriber;
+            if (!stop()) {
+                return;
+            }
+            subscriptions.remove(this);
+            release();
+            if (subscriber != null) {
+                subscriber.onError(throwable);
+            }
+            demandListener.run();
+        }
+
+        // returns false if already stopped
+        private synchronized boolean stop() {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            demand = 0;
+            return true;
+        }
+
+        private void release() {
+            subscriber = null;
+            latest = null;
+            added.clear();
+            removed.clear();
+            changed.clear();
+        }
+    }
+}
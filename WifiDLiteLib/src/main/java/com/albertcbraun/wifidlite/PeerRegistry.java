@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Holds exactly one canonical {@link Peer} for every device address seen since
+ * the {@link WifiDLite} instance was initialized. When a device is reported again,
+ * its existing {@link Peer} is reused and updated in place, so a {@link Peer} keeps
+ * its identity across peer list updates (and across periods out of range).
+ * <p/>
+ * Nothing is ever evicted, since that would break this identity for an app still
+ * holding an evicted {@link Peer}: the registry grows by one entry for every device
+ * reported during the session, and is dropped by {@link WifiDLite#dispose}. Only devices
+ * within Wifi P2P range are reported, so it stays small in practice.
+ * <p/>
+ * Peers are keyed by the long form of their {@link MacAddress}. All methods are
+ * safe to call from any thread.
+ */
+class PeerRegistry {
+
+    private final P2pBackend p2pBackend;
+    private final ConnectTracker connectTracker;
+    private final LongMap<Peer> peers = new LongMap<Peer>();
+
+    /**
+     * @param p2pBackend     the backend through which peers connect
+     * @param connectTracker times each peer's connection attempts, or null
+     */
+    PeerRegistry(P2pBackend p2pBackend, ConnectTracker connectTracker) {
+        this.p2pBackend = p2pBackend;
+        this.connectTracker = connectTracker;
+    }
+
+    /**
+     * @param address the address of the peer device, as returned by {@link MacAddress#toLong}
+     * @return the canonical {@link Peer} for the address, or null if no device with
+     * this address has been seen
+     */
+    synchronized Peer get(long address) {
+        return peers.get(address);
+    }
+
+    /**
+     * Creates and registers the canonical {@link Peer} for a device which is not
+     * yet known. Callers should check {@link #get} first.
+     *
+     * @param wifiP2pDevice a device with a valid address
+     * @return the new canonical {@link Peer}
+     */
+    synchronized Peer add(WifiP2pDevice wifiP2pDevice) {
+        Peer peer = new Peer(wifiP2pDevice, p2pBackend, connectTracker);
+        peers.put(peer.getAddress(), peer);
+        return peer;
+    }
+}
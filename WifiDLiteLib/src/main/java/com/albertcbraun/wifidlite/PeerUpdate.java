@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One item published by {@link WifiDLite#getPeerUpdates}: the current list of peers,
+ * together with how it differs from the list in the previous item received by the
+ * same subscriber.
+ * <p/>
+ * When the subscriber falls behind, the updates it has not yet received are conflated
+ * into one, so the delta may span several peer list changes. A peer which came and went
+ * in between does not appear in it at all, and a peer which went and came back is
+ * reported as changed.
+ */
+public final class PeerUpdate {
+
+    private final List<Peer> peers;
+    private final PeerListDelta delta;
+
+    PeerUpdate(List<Peer> peers, PeerListDelta delta) {
+        this.peers = Collections.unmodifiableList(peers);
+        this.delta = delta;
+    }
+
+    /**
+     * @return the current peers, ranked as by {@link WifiDLite#getPeerRanking}. The list
+     * is unmodifiable.
+     */
+    public List<Peer> getPeers() {
+        return peers;
+    }
+
+    /**
+     * @return the difference from the peers in the previous update. In the first update
+     * received by a subscriber, every peer is reported as added.
+     */
+    public PeerListDelta getDelta() {
+        return delta;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("peers:%s %s", peers, delta);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Runs tasks one at a time, in submission order, on an underlying {@link Executor}
+ * which may itself be multi-threaded. Used for event dispatch so that peer list
+ * updates are processed and delivered in the order the broadcasts arrived, whatever
+ * executor the client supplies.
+ * <p/>
+ * No lock is held while a task runs. A task submitted from within another task
+ * runs after it.
+ */
+class SerialExecutor implements Executor {
+
+    private final Executor executor;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    private boolean running = false;
+
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (SerialExecutor.this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                boolean completed = false;
+                try {
+                    task.run();
+                    completed = true;
+                } finally {
+                    if (!completed) {
+                        restart();
+                    }
+                }
+            }
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            tasks.offer(task);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        executor.execute(drainer);
+    }
+
+    // a task threw: hand the remaining tasks to a fresh run of the drainer
+    private void restart() {
+        synchronized (this) {
+            if (tasks.isEmpty()) {
+                running = false;
+                return;
+            }
+        }
+        executor.execute(drainer);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registers any number of local DNS-SD services and looks up any number of service types
+ * as one unit. Obtain one from {@link WifiDLite#newServiceBatch}, add to it, then
+ * {@link #commit} it.
+ * <p/>
+ * The framework calls run back to back, with calls refused as busy retried, and a
+ * single service discovery covers every service type which is not already cached. If a
+ * call fails, the services and service requests the batch added so far are removed again,
+ * so that either the whole batch takes effect or none of it does.
+ */
+public final class ServiceBatch {
+
+    private final ServiceDiscovery serviceDiscovery;
+    private final List<ServiceDiscovery.LocalService> services = new ArrayList<ServiceDiscovery.LocalService>();
+    private final List<ServiceDiscovery.Lookup> lookups = new ArrayList<ServiceDiscovery.Lookup>();
+    private boolean committed = false;
+
+    ServiceBatch(ServiceDiscovery serviceDiscovery) {
+        this.serviceDiscovery = serviceDiscovery;
+    }
+
+    /**
+     * Adds a service to advertise. See {@link WifiDLite#registerService}.
+     *
+     * @param instanceName the instance name of the service, e.g. "printer"
+     * @param serviceType  the service type, e.g. "_ipp._tcp"
+     * @param txtRecord    the TXT record of the service
+     * @return this batch
+     */
+    public synchronized ServiceBatch registerService(String instanceName, String serviceType,
+                                                    Map<String, String> txtRecord) {
+        checkNotCommitted();
+        services.add(new ServiceDiscovery.LocalService(instanceName, serviceType, txtRecord));
+        return this;
+    }
+
+    /**
+     * Adds a service type to look up. See {@link WifiDLite#discoverServices}.
+     *
+     * @param serviceType the service type, e.g. "_ipp._tcp"
+     * @param listener    told about each service found, or that the batch failed
+     * @return this batch
+     */
+    public synchronized ServiceBatch discoverServices(String serviceType, ServiceDiscoveryListener listener) {
+        checkNotCommitted();
+        lookups.add(new ServiceDiscovery.Lookup(serviceType, listener));
+        return this;
+    }
+
+    /**
+     * Carries out the batch. A batch can only be committed once.
+     *
+     * @param listener told whether the batch took effect
+     */
+    public void commit(WifiP2pManager.ActionListener listener) {
+        synchronized (this) {
+            checkNotCommitted();
+            committed = true;
+        }
+        serviceDiscovery.commit(services, lookups, listener);
+    }
+
+    // caller must hold the lock
+    private void checkNotCommitted() {
+        if (committed) {
+            throw new IllegalStateException("The batch has already been committed");
+        }
+    }
+}
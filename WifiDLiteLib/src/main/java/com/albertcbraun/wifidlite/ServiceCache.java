@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Remembers the DNS-SD services which peers have reported, keyed by peer and full service
+ * name, so that a lookup can be answered without another service discovery. DNS-SD
+ * responses over WiFi Direct carry no TTL of their own, so every record expires a fixed
+ * time after it was last reported.
+ * <p/>
+ * The platform reports a service and its TXT record separately; whichever comes first
+ * creates the record, and the other fills it in.
+ */
+class ServiceCache {
+
+    private static final String LOCAL_DOMAIN = ".local.";
+
+    private final long ttlNanos;
+
+    // guarded by this
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * @param ttl how long a record is kept after it was last reported, in milliseconds
+     */
+    ServiceCache(long ttl) {
+        this.ttlNanos = Math.max(1, ttl) * 1000000L;
+    }
+
+    /**
+     * Records a service response.
+     *
+     * @param registrationType the service type and domain, e.g. "_ipp._tcp.local."
+     * @return the record if it is new, otherwise null
+     */
+    synchronized DnsSdService putService(String deviceAddress, String instanceName, String registrationType) {
+        String key = key(deviceAddress, instanceName + "." + registrationType);
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isExpired(now)) {
+            entry.expires = now + ttlNanos;
+            return null;
+        }
+        DnsSdService service = new DnsSdService(deviceAddress, instanceName, toServiceType(registrationType),
+                new HashMap<String, String>());
+        entries.put(key, new Entry(service, now + ttlNanos));
+        return service;
+    }
+
+    /**
+     * Records a TXT record response.
+     *
+     * @param fullDomainName the full name of the service, e.g. "printer._ipp._tcp.local."
+     * @return the record if it is new or its TXT record has changed, otherwise null
+     */
+    synchronized DnsSdService putTxtRecord(String deviceAddress, String fullDomainName, Map<String, String> txtRecord) {
+        // the instance name may contain dots, but the service type starts with an underscore
+        int separator = fullDomainName.indexOf("._");
+        if (separator <= 0) {
+            return null;
+        }
+        Map<String, String> record = txtRecord != null
+                ? new HashMap<String, String>(txtRecord) : new HashMap<String, String>();
+        String key = key(deviceAddress, fullDomainName);
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isExpired(now) && entry.service.getTxtRecord().equals(record)) {
+            entry.expires = now + ttlNanos;
+            return null;
+        }
+        String instanceName = entry != null ? entry.service.getInstanceName()
+                : fullDomainName.substring(0, separator);
+        DnsSdService service = new DnsSdService(deviceAddress, instanceName,
+                toServiceType(fullDomainName.substring(separator + 1)), record);
+        entries.put(key, new Entry(service, now + ttlNanos));
+        return service;
+    }
+
+    /**
+     * Returns the records which have not expired, and forgets the others.
+     *
+     * @param serviceType the service type, e.g. "_ipp._tcp", or null for every type
+     * @return the records, possibly none
+     */
+    synchronized List<DnsSdService> get(String serviceType) {
+        List<DnsSdService> services = new ArrayList<DnsSdService>();
+        long now = System.nanoTime();
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (entry.isExpired(now)) {
+                iterator.remove();
+            } else if (serviceType == null || matches(entry.service, serviceType)) {
+                services.add(entry.service);
+            }
+        }
+        return services;
+    }
+
+    static boolean matches(DnsSdService service, String serviceType) {
+        return service.getServiceType().equalsIgnoreCase(toServiceType(serviceType));
+    }
+
+    /**
+     * @return the service type without the domain, e.g. "_ipp._tcp" for "_ipp._tcp.local."
+     */
+    static String toServiceType(String registrationType) {
+        if (registrationType.endsWith(LOCAL_DOMAIN)) {
+            return registrationType.substring(0, registrationType.length() - LOCAL_DOMAIN.length());
+        }
+        if (registrationType.endsWith(".")) {
+            return registrationType.substring(0, registrationType.length() - 1);
+        }
+        return registrationType;
+    }
+
+    private static String key(String deviceAddress, String fullDomainName) {
+        return (deviceAddress + " " + fullDomainName).toLowerCase(Locale.US);
+    }
+
+    private static class Entry {
+        final DnsSdService service;
+        long expires;
+
+        Entry(DnsSdService service, long expires) {
+            this.service = service;
+            this.expires = expires;
+        }
+
+        boolean isExpired(long now) {
+            return now - expires >= 0;
+        }
+    }
+}
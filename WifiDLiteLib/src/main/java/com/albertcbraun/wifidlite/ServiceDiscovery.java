@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceRequest;
+import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+
+import com.albertcbraun.wifidlite.impl.SimpleWifiP2pActionListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Registers this device's DNS-SD services and looks up those of its peers for
+ * {@link WifiDLite}. Lookups are answered from a {@link ServiceCache} while it holds
+ * records of the type wanted; otherwise a service request for the type is added, once,
+ * and a service discovery is run. Responses go into the cache and are reported to the
+ * listeners looking up their type, on the dispatch executor.
+ * <p/>
+ * The framework calls of a registration or lookup, or of a whole {@link ServiceBatch},
+ * go through the {@link OperationQueue} as one transaction, so they do not fail each other,
+ * or peer discovery, with {@link WifiP2pManager#BUSY}, and are undone together on failure.
+ */
+class ServiceDiscovery {
+
+    private static final String TAG = ServiceDiscovery.class.getCanonicalName();
+
+    private final OperationQueue operationQueue;
+    private final Executor dispatchExecutor;
+    private final Metrics metrics;
+    private final ServiceCache cache;
+
+    // guarded by this; keyed by lower case service type, or full service name
+    private final Map<String, WifiP2pServiceRequest> serviceRequests = new HashMap<String, WifiP2pServiceRequest>();
+    private final Map<String, WifiP2pServiceInfo> localServices = new HashMap<String, WifiP2pServiceInfo>();
+    private final Map<String, List<ServiceDiscoveryListener>> listeners =
+            new HashMap<String, List<ServiceDiscoveryListener>>();
+
+    /**
+     * @param operationQueue   the queue through which the framework is called
+     * @param dispatchExecutor runs the listener callbacks
+     * @param metrics          counts cache hits
+     * @param ttl              how long a service is cached after it was last reported, in milliseconds
+     */
+    ServiceDiscovery(OperationQueue operationQueue, Executor dispatchExecutor, Metrics metrics, long ttl) {
+        this.operationQueue = operationQueue;
+        this.dispatchExecutor = dispatchExecutor;
+        this.metrics = metrics;
+        this.cache = new ServiceCache(ttl);
+    }
+
+    void registerService(String instanceName, String serviceType, Map<String, String> txtRecord,
+                         WifiP2pManager.ActionListener listener) {
+        new ServiceBatch(this).registerService(instanceName, serviceType, txtRecord).commit(listener);
+    }
+
+    void unregisterService(String instanceName, String serviceType, WifiP2pManager.ActionListener listener) {
+        WifiP2pServiceInfo serviceInfo;
+        synchronized (this) {
+            serviceInfo = localServices.remove(toKey(instanceName + "." + serviceType));
+        }
+        if (serviceInfo == null) {
+            // never registered, or already unregistered
+            listener.onSuccess();
+            return;
+        }
+        operationQueue.removeLocalService(serviceInfo, listener);
+    }
+
+    /**
+     * Reports the cached services of the given type to the listener if there are any,
+     * otherwise runs a service discovery. Either way the listener goes on hearing of new
+     * services of the type until it is removed.
+     */
+    void discoverServices(String serviceType, ServiceDiscoveryListener listener) {
+        new ServiceBatch(this).discoverServices(serviceType, listener)
+                .commit(new SimpleWifiP2pActionListener("discoverServices call"));
+    }
+
+    /**
+     * Registers the services and starts the lookups of a {@link ServiceBatch} in one
+     * {@link OperationQueue#submitTransaction transaction}: the local services are added,
+     * then a service request for each type which is neither cached nor requested yet, then,
+     * if any type is not cached, a single service discovery is run. Cached types are
+     * reported to their listeners straight away. If the transaction fails, whatever it
+     * added is removed again, and the listeners of the types not cached are told.
+     */
+    void commit(final List<LocalService> services, List<Lookup> lookups,
+                final WifiP2pManager.ActionListener listener) {
+        List<OperationQueue.Step> steps = new ArrayList<OperationQueue.Step>();
+        for (LocalService service : services) {
+            steps.add(new AddLocalService(service.serviceInfo));
+        }
+        final Map<String, WifiP2pServiceRequest> newRequests = new HashMap<String, WifiP2pServiceRequest>();
+        final List<Lookup> newListeners = new ArrayList<Lookup>();
+        final List<Lookup> uncached = new ArrayList<Lookup>();
+        final List<Lookup> cachedLookups = new ArrayList<Lookup>();
+        final List<List<DnsSdService>> cachedServices = new ArrayList<List<DnsSdService>>();
+        synchronized (this) {
+            for (Lookup lookup : lookups) {
+                if (addListener(lookup.type, lookup.listener)) {
+                    newListeners.add(lookup);
+                }
+                List<DnsSdService> cached = cache.get(lookup.type);
+                if (!cached.isEmpty()) {
+                    cachedLookups.add(lookup);
+                    cachedServices.add(cached);
+                    continue;
+                }
+                uncached.add(lookup);
+                if (!serviceRequests.containsKey(lookup.type)) {
+                    WifiP2pServiceRequest request = WifiP2pDnsSdServiceRequest.newInstance(lookup.serviceType);
+                    serviceRequests.put(lookup.type, request);
+                    newRequests.put(lookup.type, request);
+                    steps.add(new AddServiceRequest(request));
+                }
+            }
+        }
+        if (!cachedLookups.isEmpty()) {
+            metrics.incrementCounter(Metrics.Counter.SERVICE_CACHE_HIT);
+            dispatchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < cachedLookups.size(); i++) {
+                        for (DnsSdService service : cachedServices.get(i)) {
+                            cachedLookups.get(i).listener.onServiceFound(service);
+                        }
+                    }
+                }
+            });
+        }
+        if (!uncached.isEmpty()) {
+            steps.add(new DiscoverServices());
+        }
+        if (steps.isEmpty()) {
+            listener.onSuccess();
+            return;
+        }
+        operationQueue.submitTransaction("service batch", steps, new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                synchronized (ServiceDiscovery.this) {
+                    for (LocalService service : services) {
+                        localServices.put(service.key, service.serviceInfo);
+                    }
+                }
+                listener.onSuccess();
+            }
+
+            @Override
+            public void onFailure(final int reason) {
+                synchronized (ServiceDiscovery.this) {
+                    for (Map.Entry<String, WifiP2pServiceRequest> entry : newRequests.entrySet()) {
+                        if (serviceRequests.get(entry.getKey()) == entry.getValue()) {
+                            serviceRequests.remove(entry.getKey());
+                        }
+                    }
+                    for (Lookup lookup : newListeners) {
+                        removeListener(lookup.type, lookup.listener);
+                    }
+                }
+                dispatchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Lookup lookup : uncached) {
+                            lookup.listener.onServiceDiscoveryFailure(reason);
+                        }
+                    }
+                });
+                listener.onFailure(reason);
+            }
+        });
+    }
+
+    /**
+     * Stops reporting services to the listener. Service requests no listener needs any
+     * longer are removed, so the framework stops asking peers for them.
+     */
+    void removeListener(ServiceDiscoveryListener listener) {
+        List<WifiP2pServiceRequest> unneeded = new ArrayList<WifiP2pServiceRequest>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, List<ServiceDiscoveryListener>>> iterator =
+                         listeners.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, List<ServiceDiscoveryListener>> entry = iterator.next();
+                if (entry.getValue().remove(listener) && entry.getValue().isEmpty()) {
+                    iterator.remove();
+                    WifiP2pServiceRequest request = serviceRequests.remove(entry.getKey());
+                    if (request != null) {
+                        unneeded.add(request);
+                    }
+                }
+            }
+        }
+        for (WifiP2pServiceRequest request : unneeded) {
+            operationQueue.removeServiceRequest(request, new SimpleWifiP2pActionListener("removeServiceRequest call"));
+        }
+    }
+
+    // caller must hold the lock
+    private boolean addListener(String type, ServiceDiscoveryListener listener) {
+        List<ServiceDiscoveryListener> typeListeners = listeners.get(type);
+        if (typeListeners == null) {
+            typeListeners = new ArrayList<ServiceDiscoveryListener>();
+            listeners.put(type, typeListeners);
+        }
+        if (typeListeners.contains(listener)) {
+            return false;
+        }
+        typeListeners.add(listener);
+        return true;
+    }
+
+    // caller must hold the lock
+    private void removeListener(String type, ServiceDiscoveryListener listener) {
+        List<ServiceDiscoveryListener> typeListeners = listeners.get(type);
+        if (typeListeners != null && typeListeners.remove(listener) && typeListeners.isEmpty()) {
+            listeners.remove(type);
+        }
+    }
+
+    List<DnsSdService> getCachedServices(String serviceType) {
+        return cache.get(serviceType);
+    }
+
+    void onDnsSdServiceAvailable(String instanceName, String registrationType, WifiP2pDevice srcDevice) {
+        if (srcDevice == null || instanceName == null || registrationType == null) {
+            return;
+        }
+        report(cache.putService(srcDevice.deviceAddress, instanceName, registrationType));
+    }
+
+    void onDnsSdTxtRecordAvailable(String fullDomainName, Map<String, String> txtRecordMap, WifiP2pDevice srcDevice) {
+        if (srcDevice == null || fullDomainName == null) {
+            return;
+        }
+        report(cache.putTxtRecord(srcDevice.deviceAddress, fullDomainName, txtRecordMap));
+    }
+
+    private void report(final DnsSdService service) {
+        if (service == null) {
+            return;
+        }
+        final List<ServiceDiscoveryListener> interested;
+        synchronized (this) {
+            List<ServiceDiscoveryListener> typeListeners = listeners.get(toKey(service.getServiceType()));
+            if (typeListeners == null) {
+                return;
+            }
+            interested = new ArrayList<ServiceDiscoveryListener>(typeListeners);
+        }
+        dispatchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ServiceDiscoveryListener listener : interested) {
+                    listener.onServiceFound(service);
+                }
+            }
+        });
+    }
+
+    private static String toKey(String name) {
+        return name.toLowerCase(Locale.US);
+    }
+
+    /**
+     * A local service of a {@link ServiceBatch}.
+     */
+    static class LocalService {
+        final String key;
+        final WifiP2pServiceInfo serviceInfo;
+
+        LocalService(String instanceName, String serviceType, Map<String, String> txtRecord) {
+            this.key = toKey(instanceName + "." + serviceType);
+            this.serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(instanceName, serviceType, txtRecord);
+        }
+    }
+
+    /**
+     * A service lookup of a {@link ServiceBatch}.
+     */
+    static class Lookup {
+        final String serviceType;
+        final String type;
+        final ServiceDiscoveryListener listener;
+
+        Lookup(String serviceType, ServiceDiscoveryListener listener) {
+            this.serviceType = serviceType;
+            this.type = toKey(ServiceCache.toServiceType(serviceType));
+            this.listener = listener;
+        }
+    }
+
+    private static class DiscoverServices extends OperationQueue.Step {
+        @Override
+        void apply(P2pBackend backend, WifiP2pManager.ActionListener callback) {
+            backend.discoverServices(callback);
+        }
+    }
+
+    private static class AddLocalService extends OperationQueue.Step {
+        private final WifiP2pServiceInfo serviceInfo;
+
+        AddLocalService(WifiP2pServiceInfo serviceInfo) {
+            this.serviceInfo = serviceInfo;
+        }
+
+        @Override
+        void apply(P2pBackend backend, WifiP2pManager.ActionListener callback) {
+            backend.addLocalService(serviceInfo, callback);
+        }
+
+        @Override
+        void undo(P2pBackend backend, WifiP2pManager.ActionListener callback) {
+            backend.removeLocalService(serviceInfo, callback);
+        }
+    }
+
+    private static class AddServiceRequest extends OperationQueue.Step {
+        private final WifiP2pServiceRequest serviceRequest;
+
+        AddServiceRequest(WifiP2pServiceRequest serviceRequest) {
+            this.serviceRequest = serviceRequest;
+        }
+
+        @Override
+        void apply(P2pBackend backend, WifiP2pManager.ActionListener callback) {
+            backend.addServiceRequest(serviceRequest, callback);
+        }
+
+        @Override
+        void undo(P2pBackend backend, WifiP2pManager.ActionListener callback) {
+            backend.removeServiceRequest(serviceRequest, callback);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+/**
+ * Service discovery callbacks for clients of the {@link WifiDLite} object.
+ * See {@link WifiDLite#discoverServices}.
+ */
+public interface ServiceDiscoveryListener {
+
+    /**
+     * A service of the type looked up has been found, or its TXT record has arrived.
+     * Services already in the cache are reported straight away.
+     *
+     * @param service the service
+     */
+    public void onServiceFound(DnsSdService service);
+
+    /**
+     * The service discovery could not be started.
+     *
+     * @param reason the {@link android.net.wifi.p2p.WifiP2pManager} failure reason
+     */
+    public void onServiceDiscoveryFailure(int reason);
+}
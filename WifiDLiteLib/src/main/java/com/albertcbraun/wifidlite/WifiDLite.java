@@ -16,28 +16,41 @@
 
 package com.albertcbraun.wifidlite;
 
-import android.annotation.TargetApi;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
 import android.net.wifi.p2p.WifiP2pDevice;
-import android.net.wifi.p2p.WifiP2pDeviceList;
 import android.net.wifi.p2p.WifiP2pGroup;
+import android.net.wifi.p2p.WifiP2pInfo;
 import android.net.wifi.p2p.WifiP2pManager;
-import android.os.Build;
 import android.provider.Settings;
 import android.util.Log;
 
+import com.albertcbraun.wifidlite.impl.HandlerExecutor;
+import com.albertcbraun.wifidlite.impl.NoOpMetrics;
 import com.albertcbraun.wifidlite.impl.SimpleWifiP2pActionListener;
-
+import com.albertcbraun.wifidlite.reactive.Publisher;
+import com.albertcbraun.wifidlite.transport.Broadcaster;
+import com.albertcbraun.wifidlite.transport.BufferPool;
+import com.albertcbraun.wifidlite.transport.Connection;
+import com.albertcbraun.wifidlite.transport.ConnectionListener;
+import com.albertcbraun.wifidlite.transport.Multiplexer;
+import com.albertcbraun.wifidlite.transport.Server;
+import com.albertcbraun.wifidlite.transport.StreamAcceptor;
+import com.albertcbraun.wifidlite.transport.Transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Singleton which tries to simplify various WiFi Direct tasks on Android devices which
@@ -49,6 +62,10 @@ import java.util.concurrent.TimeUnit;
  * Also, please note: this class and its methods are intended only for use on the UI thread.
  * There is no guarantee of thread safety.
  * <p/>
+ * By default listeners are called back on the UI thread as well. A
+ * {@link Configuration#getDispatchExecutor dispatch executor} moves broadcast processing
+ * and listener callbacks onto another thread.
+ * <p/>
  */
 public final class WifiDLite {
 
@@ -59,14 +76,38 @@ public final class WifiDLite {
 
     private Configuration configuration = null;
     private Context context = null;
-    private WiFiDLiteBroadcastReceiver wiFiDLiteBroadcastReceiver = null;
-    private WifiP2pManager wifiP2pManager = null;
-    private WifiP2pManager.Channel wifiP2pManagerChannel = null;
-    private final Set<PeerListAcquisitionListener> oneTimePeerListAcquisitionListeners = new HashSet<PeerListAcquisitionListener>();
-    private final Set<PeerListAcquisitionListener> ongoingPeerListAcquisitionListeners = new HashSet<PeerListAcquisitionListener>();
-    private final Set<CreateGroupListener> oneTimeCreateGroupListeners = new HashSet<CreateGroupListener>();
+    private P2pBackend p2pBackend = null;
+    private OperationQueue operationQueue = null;
+    private final ListenerRegistry<PeerListAcquisitionListener> oneTimePeerListAcquisitionListeners =
+            new ListenerRegistry<PeerListAcquisitionListener>(new PeerListAcquisitionListener[0]);
+    private final ListenerRegistry<PeerListAcquisitionListener> ongoingPeerListAcquisitionListeners =
+            new ListenerRegistry<PeerListAcquisitionListener>(new PeerListAcquisitionListener[0]);
+    private final ListenerRegistry<PeerListDeltaListener> peerListDeltaListeners =
+            new ListenerRegistry<PeerListDeltaListener>(new PeerListDeltaListener[0]);
+    private final ListenerRegistry<CreateGroupListener> oneTimeCreateGroupListeners =
+            new ListenerRegistry<CreateGroupListener>(new CreateGroupListener[0]);
     private ScheduledExecutorService scheduler = null;
-    private boolean isWifiP2pEnabled = false;
+    private DiscoveryCoordinator discoveryCoordinator = null;
+    private volatile Heartbeat heartbeat = null;
+    private PeerRegistry peerRegistry = null;
+    private volatile PeerHistory peerHistory = null;
+    private volatile ConnectTracker connectTracker = null;
+    private volatile PeerListTracker peerListTracker = null;
+    private volatile ServiceDiscovery serviceDiscovery = null;
+    private volatile PeerPublisher peerPublisher = null;
+    private final Runnable discoveryDemandUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateDiscoveryDemand();
+        }
+    };
+    private Executor dispatchExecutor = null;
+    private Coalescer peerListCoalescer = null;
+    private volatile Metrics metrics = NoOpMetrics.INSTANCE;
+    private volatile boolean isWifiP2pEnabled = false;
+    private final AtomicReference<WifiP2pInfo> connectionInfo = new AtomicReference<WifiP2pInfo>();
+    private final AtomicReference<WifiP2pGroup> currentGroup = new AtomicReference<WifiP2pGroup>();
+    private Transport transport = null;
 
     /**
      * WifiDLite object is a singleton which should be used on the
@@ -93,18 +134,38 @@ public final class WifiDLite {
      */
     public void initialize(Context context, Configuration configuration) {
         if (this.configuration == null) {
-            wifiP2pManager = (WifiP2pManager) context.getSystemService(Context.WIFI_P2P_SERVICE);
-            wifiP2pManagerChannel = wifiP2pManager.initialize(context, context.getMainLooper(),
-                    new WifiP2pManager.ChannelListener() {
-                        @Override
-                        public void onChannelDisconnected() {
-                            Log.v(TAG, "Channel Disconnected");
-                        }
-                    });
             this.context = context;
             this.configuration = configuration;
-            wiFiDLiteBroadcastReceiver = new WiFiDLiteBroadcastReceiver();
-            this.context.registerReceiver(wiFiDLiteBroadcastReceiver, intentFilter);
+            Metrics metrics = configuration.getMetrics();
+            this.metrics = metrics != null ? metrics : NoOpMetrics.INSTANCE;
+            P2pBackend backend = configuration.createP2pBackend(context);
+            // timing every call costs a listener allocation, so only do it if someone is listening
+            if (this.metrics != NoOpMetrics.INSTANCE) {
+                backend = new InstrumentedP2pBackend(backend, this.metrics);
+            }
+            this.scheduler = Executors.newScheduledThreadPool(1);
+            Executor executor = configuration.getDispatchExecutor();
+            this.dispatchExecutor = new SerialExecutor(executor != null ? executor
+                    : new HandlerExecutor(context.getMainLooper()));
+            this.operationQueue = new OperationQueue(backend, scheduler, dispatchExecutor,
+                    configuration.getOperationTimeout());
+            this.p2pBackend = operationQueue;
+            this.peerListCoalescer = new Coalescer(scheduler, dispatchExecutor,
+                    configuration.getPeerListCoalescingWindow(), configuration.getPeerListMaxLatency());
+            this.discoveryCoordinator = new DiscoveryCoordinator(operationQueue, scheduler, configuration, this.metrics);
+            this.serviceDiscovery = new ServiceDiscovery(operationQueue, dispatchExecutor, this.metrics,
+                    configuration.getServiceCacheTtl());
+            this.peerHistory = new PeerHistory(configuration.getHistoryFile(context));
+            this.peerHistory.preload();
+            this.connectTracker = new ConnectTracker(peerHistory, scheduler, configuration.getConnectTimeout());
+            this.peerRegistry = new PeerRegistry(p2pBackend, connectTracker);
+            this.peerListTracker = new PeerListTracker(peerRegistry);
+            this.peerPublisher = new PeerPublisher(dispatchExecutor, peerListTracker, peerHistory,
+                    discoveryDemandUpdater);
+            this.connectionInfo.set(null);
+            this.currentGroup.set(null);
+            this.p2pBackend.initialize(new BackendEvents());
+            this.primeConnectionInfo();
             this.startHeartbeat();
         } else {
             Log.w(TAG, REINITIALIZATION_ERROR_MESSAGE + "This WifiDLite singleton is already initialized " +
@@ -114,8 +175,8 @@ public final class WifiDLite {
     }
 
     /**
-     * Frees the internal resources, including the internal BroadcastReceiver
-     * instance. Nulls out the configuration object.
+     * Frees the internal resources, including the {@link P2pBackend} and its
+     * internal BroadcastReceiver instance. Nulls out the configuration object.
      * <p/>
      * Calling from within onDestroy is convenient because it allows the
      * BroadcastReceiver to remain registered while the user switches to
@@ -127,9 +188,57 @@ public final class WifiDLite {
     public void dispose() {
         Log.v(TAG, "WifiDLite object being disposed");
         this.stopHeartbeat();
-        if (wiFiDLiteBroadcastReceiver != null) {
-            this.context.unregisterReceiver(wiFiDLiteBroadcastReceiver);
-            wiFiDLiteBroadcastReceiver = null;
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+            this.discoveryCoordinator = null;
+            this.peerListCoalescer = null;
+        }
+        ConnectTracker connectTracker = this.connectTracker;
+        if (connectTracker != null) {
+            connectTracker.close();
+        }
+        final PeerListTracker peerListTracker = this.peerListTracker;
+        final PeerHistory peerHistory = this.peerHistory;
+        if (peerHistory != null) {
+            // the peer list is only touched on the dispatch executor, behind any update
+            // still queued there, so the history is closed from there too
+            Runnable closeHistory = new Runnable() {
+                @Override
+                public void run() {
+                    if (peerListTracker != null) {
+                        // remember when the peers still in range were last seen
+                        for (Peer peer : peerListTracker.getPeers()) {
+                            peerHistory.recordSeen(peer);
+                        }
+                    }
+                    peerHistory.close();
+                }
+            };
+            try {
+                dispatchExecutor.execute(closeHistory);
+            } catch (RejectedExecutionException e) {
+                // the app's executor has shut down, so no update can be running either
+                closeHistory.run();
+            }
+        }
+        PeerPublisher peerPublisher = this.peerPublisher;
+        if (peerPublisher != null) {
+            peerPublisher.close();
+        }
+        this.peerPublisher = null;
+        this.peerListTracker = null;
+        this.serviceDiscovery = null;
+        this.peerRegistry = null;
+        this.peerHistory = null;
+        this.connectTracker = null;
+        this.connectionInfo.set(null);
+        this.currentGroup.set(null);
+        this.closeTransport();
+        if (p2pBackend != null) {
+            p2pBackend.dispose();
+            p2pBackend = null;
+            operationQueue = null;
         }
         this.configuration = null;
     }
@@ -161,6 +270,40 @@ public final class WifiDLite {
         acquirePeerList(peerListAcquisitionListener, AcquisitionFrequency.ONGOING);
     }
 
+    /**
+     * Subscribes to incremental changes in the list of peers. Each callback reports only
+     * the peers which were added, removed or changed (status or name) since the previous
+     * peer list. If peers are already known, the listener is first called back immediately
+     * with all of them reported as added (on the dispatch executor, if one is configured).
+     * <p/>
+     * A given instance of a listener can be added only one time. Additional attempts to add
+     * the same listener object instance will be ignored.
+     *
+     * @param peerListDeltaListener a PeerListDeltaListener which will be called back one or more times.
+     */
+    public void subscribeToDeltas(final PeerListDeltaListener peerListDeltaListener) {
+        sanityCheck();
+        if (!peerListDeltaListeners.contains(peerListDeltaListener) && heartbeat != null) {
+            heartbeat.tighten();
+        }
+        // register on the dispatch executor, so the listener sees the current peers before any later delta
+        dispatchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PeerListTracker tracker = peerListTracker;
+                if (tracker != null && peerListDeltaListeners.add(peerListDeltaListener)) {
+                    updateDiscoveryDemand();
+                    PeerListDelta currentPeers = tracker.getPeersAsDelta();
+                    if (!currentPeers.isEmpty()) {
+                        peerListDeltaListener.onPeerListDelta(currentPeers);
+                    }
+                }
+            }
+        });
+        discoveryCoordinator.discoverPeers(new SimpleWifiP2pActionListener("discoverPeers call"),
+                OperationQueue.Priority.USER);
+    }
+
     /**
      * Unsubscribe the given {@link com.albertcbraun.wifidlite.PeerListAcquisitionListener} from the internal
      * list of listeners to be notified when peer devices are detected.
@@ -171,6 +314,19 @@ public final class WifiDLite {
     public void unsubscribe(PeerListAcquisitionListener peerListAcquisitionListener) {
         this.ongoingPeerListAcquisitionListeners.remove(peerListAcquisitionListener);
         this.oneTimePeerListAcquisitionListeners.remove(peerListAcquisitionListener);
+        this.reviewDiscoveryDemand();
+    }
+
+    /**
+     * Unsubscribe the given {@link com.albertcbraun.wifidlite.PeerListDeltaListener} from the internal
+     * list of listeners to be notified when the list of peers changes.
+     *
+     * @param peerListDeltaListener the PeerListDeltaListener instance which you want
+     *                              {@link WifiDLite} to stop calling.
+     */
+    public void unsubscribeFromDeltas(PeerListDeltaListener peerListDeltaListener) {
+        this.peerListDeltaListeners.remove(peerListDeltaListener);
+        this.reviewDiscoveryDemand();
     }
 
     /**
@@ -184,6 +340,296 @@ public final class WifiDLite {
         this.oneTimeCreateGroupListeners.remove(createGroupListener);
     }
 
+    /**
+     * Looks up the canonical {@link Peer} for a device address. The same {@link Peer}
+     * instance is handed to every listener for as long as this object stays initialized,
+     * including after the device has gone out of range and come back.
+     *
+     * @param deviceAddress the MAC address of the peer device, as in
+     *                      {@link android.net.wifi.p2p.WifiP2pDevice#deviceAddress}
+     * @return the {@link Peer}, or null if no device with this address has been seen
+     */
+    public Peer getPeer(String deviceAddress) {
+        sanityCheck();
+        long address = MacAddress.parseToLong(deviceAddress);
+        return address == MacAddress.INVALID ? null : peerRegistry.get(address);
+    }
+
+    /**
+     * Looks up the canonical {@link Peer} for a device address. See {@link #getPeer(String)}.
+     *
+     * @param macAddress the address of the peer device
+     * @return the {@link Peer}, or null if no device with this address has been seen
+     */
+    public Peer getPeer(MacAddress macAddress) {
+        sanityCheck();
+        return peerRegistry.get(macAddress.toLong());
+    }
+
+    /**
+     * Provides the current Wifi P2P connection info without a round-trip to the framework.
+     * It is kept current from the "connection changed" broadcasts, so it reflects
+     * connections made through {@link Peer#connect} and groups made through
+     * {@link #createGroup} once the framework has reported them.
+     * <p/>
+     * This method may be called on any thread.
+     *
+     * @return a copy of the most recently reported {@link WifiP2pInfo}, or null if none
+     * has been reported since {@link #initialize}
+     */
+    public WifiP2pInfo getConnectionInfo() {
+        WifiP2pInfo info = connectionInfo.get();
+        return info == null ? null : new WifiP2pInfo(info);
+    }
+
+    /**
+     * Lists the peers remembered from this and earlier sessions, with when each was last
+     * seen and how the last attempt to connect to it turned out. Peers are kept in the
+     * {@link Configuration#getHistoryFile history file}, if one is configured.
+     * <p/>
+     * Full peer lists passed to a {@link PeerListAcquisitionListener} are ranked using
+     * this history, see {@link #getPeerRanking}.
+     *
+     * @return the known peers, most recently seen first
+     */
+    public List<KnownPeer> getKnownPeers() {
+        sanityCheck();
+        return peerHistory.getKnownPeers();
+    }
+
+    /**
+     * Returns a publisher of peer list updates for clients which process them at their
+     * own pace, for instance in a Reactive Streams pipeline (see
+     * {@link com.albertcbraun.wifidlite.reactive.Publisher}). Unlike the listeners passed
+     * to {@link #subscribe} or {@link #subscribeToDeltas}, a subscriber only receives an update after requesting one.
+     * <p/>
+     * The first update carries the current peers. Each later one carries the peers at
+     * the time it is delivered and the changes since the previous update, so a
+     * subscriber which falls behind gets a single conflated update rather than a
+     * backlog. Subscribers are called back on the dispatch executor, like listeners.
+     * <p/>
+     * Periodic peer discovery follows the demand: while there are subscriptions but none
+     * has an outstanding request, and no listeners are subscribed, the heartbeat stops
+     * requesting discoveries. The next request restarts it with an immediate discovery.
+     * Once every subscription is cancelled the heartbeat runs as usual.
+     * <p/>
+     * Disposing of this object completes every subscription.
+     *
+     * @return the publisher, which may be subscribed to any number of times
+     */
+    public Publisher<PeerUpdate> getPeerUpdates() {
+        sanityCheck();
+        return peerPublisher;
+    }
+
+    /**
+     * Returns a comparator which ranks peers by how quickly a connection to them is likely
+     * to be established, judging by the latency and success ratio of earlier attempts to
+     * connect to them (see {@link KnownPeer#getExpectedConnectTime}). Sorting peers with it
+     * puts those worth trying first at the start. Peers without history are ranked as
+     * average peers, ahead of peers which have mostly failed.
+     * <p/>
+     * The comparator reflects the history at the time it was obtained.
+     *
+     * @return the comparator
+     */
+    public Comparator<Peer> getPeerRanking() {
+        sanityCheck();
+        return peerHistory.getRanking();
+    }
+
+    /**
+     * Lists the groups remembered from this and earlier sessions, for instance groups
+     * created with {@link #createGroup}, with their network names and pass phrases.
+     *
+     * @return the known groups, most recently seen first
+     */
+    public List<KnownGroup> getKnownGroups() {
+        sanityCheck();
+        return peerHistory.getKnownGroups();
+    }
+
+    /**
+     * Advertises a Bonjour/DNS-SD service of this device to peers which discover services.
+     * The service stays registered until {@link #unregisterService} or {@link #dispose}.
+     *
+     * @param instanceName the instance name of the service, e.g. "printer"
+     * @param serviceType  the service type, e.g. "_ipp._tcp"
+     * @param txtRecord    the TXT record of the service
+     * @param listener     told whether the service was registered
+     */
+    public void registerService(String instanceName, String serviceType, Map<String, String> txtRecord,
+                                WifiP2pManager.ActionListener listener) {
+        sanityCheck();
+        serviceDiscovery.registerService(instanceName, serviceType, txtRecord, listener);
+    }
+
+    /**
+     * Stops advertising a service registered with {@link #registerService}.
+     *
+     * @param instanceName the instance name of the service
+     * @param serviceType  the service type
+     * @param listener     told whether the service was removed
+     */
+    public void unregisterService(String instanceName, String serviceType, WifiP2pManager.ActionListener listener) {
+        sanityCheck();
+        serviceDiscovery.unregisterService(instanceName, serviceType, listener);
+    }
+
+    /**
+     * Looks up the Bonjour/DNS-SD services of a type which peers offer. Services found by
+     * earlier lookups are remembered for {@link Configuration#getServiceCacheTtl}; while any
+     * of the type are remembered, they are reported straight away and no service discovery
+     * is run. Otherwise a service discovery is started. Either way the listener goes on
+     * hearing of services of the type until it is unsubscribed.
+     * <p/>
+     * The listener is called back on the dispatch executor.
+     *
+     * @param serviceType the service type, e.g. "_ipp._tcp"
+     * @param listener    told about each service found
+     */
+    public void discoverServices(String serviceType, ServiceDiscoveryListener listener) {
+        sanityCheck();
+        serviceDiscovery.discoverServices(serviceType, listener);
+    }
+
+    /**
+     * Starts a batch which registers several services and looks up several service types
+     * in one go: one run of framework calls, a single service discovery for every type not
+     * cached, and, if a call fails, none of the batch taking effect. Much quicker than
+     * registering services one at a time when an app advertises many.
+     *
+     * @return an empty batch; add to it, then call {@link ServiceBatch#commit}
+     */
+    public ServiceBatch newServiceBatch() {
+        sanityCheck();
+        return new ServiceBatch(serviceDiscovery);
+    }
+
+    /**
+     * Unsubscribe the given {@link com.albertcbraun.wifidlite.ServiceDiscoveryListener} from the
+     * service types it was looking up. Service types nobody looks up any longer are no longer
+     * requested from peers.
+     *
+     * @param serviceDiscoveryListener the ServiceDiscoveryListener instance which you want
+     *                                 {@link WifiDLite} to stop calling.
+     */
+    public void unsubscribe(ServiceDiscoveryListener serviceDiscoveryListener) {
+        ServiceDiscovery serviceDiscovery = this.serviceDiscovery;
+        if (serviceDiscovery != null) {
+            serviceDiscovery.removeListener(serviceDiscoveryListener);
+        }
+    }
+
+    /**
+     * @param serviceType the service type, e.g. "_ipp._tcp", or null for every type
+     * @return the services of the type which peers have reported and which have not
+     * expired from the cache
+     */
+    public List<DnsSdService> getCachedServices(String serviceType) {
+        ServiceDiscovery serviceDiscovery = this.serviceDiscovery;
+        return serviceDiscovery == null ? new ArrayList<DnsSdService>() : serviceDiscovery.getCachedServices(serviceType);
+    }
+
+    /**
+     * Starts a data channel server on this device, normally once it has become a group
+     * owner through {@link #createGroup}. Group members reach it with
+     * {@link Peer#openConnection} and the same port. Every accepted connection reports to
+     * the listener, on the data channel's selector thread.
+     * <p/>
+     * The server is closed by {@link Server#close} or by {@link #dispose}.
+     *
+     * @param port     the port to listen on, or zero for any free port
+     * @param listener told about each accepted connection and its messages
+     * @return the server
+     * @throws IOException if the port cannot be bound
+     */
+    public Server listen(int port, ConnectionListener listener) throws IOException {
+        sanityCheck();
+        return getTransport().listen(port, listener);
+    }
+
+    /**
+     * Creates a broadcaster which sends the same messages to many data channel connections,
+     * typically to every member connected to this group owner's {@link Server}. Add each
+     * connection to it in {@link ConnectionListener#onConnected}.
+     *
+     * @param maxQueuedMessages the number of broadcast messages each connection may have
+     *                          queued before the policy applies
+     * @param policy            what to do about a member which falls behind
+     * @return the broadcaster
+     * @throws IOException if the data channel cannot be started
+     */
+    public Broadcaster createBroadcaster(int maxQueuedMessages, Broadcaster.SlowConsumerPolicy policy)
+            throws IOException {
+        sanityCheck();
+        return new Broadcaster(getTransport(), maxQueuedMessages, policy);
+    }
+
+    /**
+     * Opens a data channel connection to the given peer, which must own the group this
+     * device belongs to.
+     *
+     * @throws IllegalStateException if this device is not a member of a group owned by the peer
+     */
+    Connection connectToGroupOwner(Peer owner, int port, ConnectionListener listener) throws IOException {
+        return getTransport().connect(getGroupOwnerAddress(owner, port), listener);
+    }
+
+    /**
+     * Opens a data channel connection which carries multiplexed streams to the given peer,
+     * which must own the group this device belongs to.
+     *
+     * @throws IllegalStateException if this device is not a member of a group owned by the peer
+     */
+    Multiplexer connectStreamsToGroupOwner(Peer owner, int port, ConnectionListener listener,
+                                           StreamAcceptor acceptor) throws IOException {
+        return Multiplexer.connect(getTransport(), getGroupOwnerAddress(owner, port), listener, acceptor);
+    }
+
+    // the connection info only has the owner's IP address, so the owner's identity is checked against the group
+    private InetSocketAddress getGroupOwnerAddress(Peer owner, int port) {
+        WifiP2pInfo info = connectionInfo.get();
+        if (configuration == null || info == null || !info.groupFormed || info.groupOwnerAddress == null) {
+            throw new IllegalStateException("This device is not a member of a Wifi P2P group.");
+        }
+        if (info.isGroupOwner) {
+            throw new IllegalStateException("This device is the group owner. Group members connect to it.");
+        }
+        WifiP2pGroup group = currentGroup.get();
+        if (group == null || group.getOwner() == null) {
+            throw new IllegalStateException("The owner of this device's Wifi P2P group is not known yet.");
+        }
+        if (MacAddress.parseToLong(group.getOwner().deviceAddress) != owner.getAddress()) {
+            throw new IllegalStateException(owner + " is not the owner of this device's Wifi P2P group. The owner is "
+                    + group.getOwner().deviceAddress + ".");
+        }
+        return new InetSocketAddress(info.groupOwnerAddress, port);
+    }
+
+    private synchronized Transport getTransport() throws IOException {
+        if (transport == null) {
+            boolean debuggable = context != null
+                    && (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+            BufferPool bufferPool = new BufferPool(configuration.getBufferPoolCapacity(), debuggable);
+            bufferPool.setLeakListener(new BufferPool.LeakListener() {
+                @Override
+                public void onLeak(int capacity, Throwable acquiredAt) {
+                    Log.e(TAG, "A pooled buffer was never released", acquiredAt);
+                }
+            });
+            transport = new Transport(Transport.DEFAULT_MAX_MESSAGE_SIZE, bufferPool);
+        }
+        return transport;
+    }
+
+    private synchronized void closeTransport() {
+        if (transport != null) {
+            transport.close();
+            transport = null;
+        }
+    }
+
     /**
      * Opens the system Settings dialog for adjusting WiFi settings
      * by starting a new Activity.
@@ -200,23 +646,107 @@ public final class WifiDLite {
      * pass phrase, will be passed back to the {@link CreateGroupListener}
      * callback supplied by the createGroup caller.
      * <p/>
+     * If the current device already owns a formed group, that group is reused and
+     * the listener is called back right away, without disturbing any connected
+     * clients. Use {@link #createGroup(CreateGroupListener, boolean)} to replace it.
+     * <p/>
      * A given instance of a listener can be added only one time. Additional attempts to add
      * the same listener object instance will be ignored.
-     * <p/>
-     * Please note that this method first tries to remove any existing group.
-     * It does this in order to avoid a "busy" status which can be returned
-     * from {@link WifiP2pManager#createGroup}
      *
      * @param listener a {@link com.albertcbraun.wifidlite.CreateGroupListener} instance to be
      *                 notified after the Wifi Direct Group is created.
      */
     public void createGroup(final CreateGroupListener listener) {
-        if (!oneTimeCreateGroupListeners.contains(listener)) {
-            oneTimeCreateGroupListeners.add(listener);
+        createGroup(listener, false);
+    }
+
+    /**
+     * Create a Wifi Direct P2P Group, as {@link #createGroup(CreateGroupListener)} does,
+     * optionally replacing a group which the current device already owns.
+     * <p/>
+     * Please note that recreating first tries to remove any existing group.
+     * It does this in order to avoid a "busy" status which can be returned
+     * from {@link WifiP2pManager#createGroup}
+     *
+     * @param listener      a {@link com.albertcbraun.wifidlite.CreateGroupListener} instance to be
+     *                      notified after the Wifi Direct Group is created.
+     * @param forceRecreate true to always remove the current group and create a new one,
+     *                      which disconnects any clients of the current group
+     */
+    public void createGroup(final CreateGroupListener listener, boolean forceRecreate) {
+        sanityCheck();
+        if (forceRecreate) {
+            recreateGroup(listener);
+            return;
+        }
+        final Executor dispatchExecutor = this.dispatchExecutor;
+        p2pBackend.requestGroupInfo(new WifiP2pManager.GroupInfoListener() {
+            @Override
+            public void onGroupInfoAvailable(final WifiP2pGroup group) {
+                if (isReusable(group)) {
+                    Log.v(TAG, "reusing current group " + group.getNetworkName());
+                    dispatchExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onCreateGroupSuccess(group);
+                        }
+                    });
+                } else {
+                    recreateGroup(listener);
+                }
+            }
+        });
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private void startHeartbeat() {
+        if (this.heartbeat == null) {
+            this.heartbeat = new Heartbeat(this.discoveryCoordinator, this.scheduler, this.configuration,
+                    this.metrics);
+            this.heartbeat.start();
         }
-        wifiP2pManager.removeGroup(wifiP2pManagerChannel, new WifiP2pManager.ActionListener() {
+    }
+
+    private void stopHeartbeat() {
+        this.heartbeat = null;
+    }
+
+    private void reviewDiscoveryDemand() {
+        Executor dispatchExecutor = this.dispatchExecutor;
+        if (dispatchExecutor != null) {
+            dispatchExecutor.execute(discoveryDemandUpdater);
+        }
+    }
+
+    // runs on the dispatch executor, so that the latest answer is the one applied
+    private void updateDiscoveryDemand() {
+        Heartbeat heartbeat = this.heartbeat;
+        PeerPublisher peerPublisher = this.peerPublisher;
+        if (heartbeat == null || peerPublisher == null) {
+            return;
+        }
+        heartbeat.setIdle(peerPublisher.hasSubscriptions() && !peerPublisher.hasDemand()
+                && ongoingPeerListAcquisitionListeners.isEmpty() && peerListDeltaListeners.isEmpty());
+    }
+
+    private static boolean isReusable(WifiP2pGroup group) {
+        return group != null && group.isGroupOwner()
+                && group.getNetworkName() != null && group.getInterface() != null;
+    }
+
+    private void recreateGroup(final CreateGroupListener listener) {
+        final P2pBackend p2pBackend = this.p2pBackend;
+        if (p2pBackend == null) {
+            // disposed while the group info was being requested
+            return;
+        }
+        oneTimeCreateGroupListeners.add(listener);
+        p2pBackend.removeGroup(new WifiP2pManager.ActionListener() {
             private void createGroup() {
-                wifiP2pManager.createGroup(wifiP2pManagerChannel, new WifiP2pManager.ActionListener() {
+                p2pBackend.createGroup(new WifiP2pManager.ActionListener() {
                     @Override
                     public void onSuccess() {
                         Log.v(TAG, "createGroup succeeded");
@@ -225,7 +755,9 @@ public final class WifiDLite {
                     @Override
                     public void onFailure(int reason) {
                         Util.logP2pStatus(TAG, "createGroup", reason);
-                        listener.onCreateGroupFailure(reason);
+                        if (oneTimeCreateGroupListeners.remove(listener)) {
+                            listener.onCreateGroupFailure(reason);
+                        }
                     }
                 });
             }
@@ -244,24 +776,50 @@ public final class WifiDLite {
         });
     }
 
-
-    /**
-     * Private Methods
-     */
-
-    private void startHeartbeat() {
-        if (this.scheduler == null) {
-            this.scheduler = Executors.newScheduledThreadPool(1);
-            this.scheduler.scheduleAtFixedRate(new Heartbeat(this.wifiP2pManager, this.wifiP2pManagerChannel),
-                    0, configuration.getHeartbeatDelay(), TimeUnit.SECONDS);
-        }
+    // the platform normally delivers a "connection changed" broadcast on registration;
+    // this covers backends which do not, without overwriting anything reported since
+    private void primeConnectionInfo() {
+        this.p2pBackend.requestConnectionInfo(new WifiP2pManager.ConnectionInfoListener() {
+            @Override
+            public void onConnectionInfoAvailable(WifiP2pInfo wifiP2pInfo) {
+                if (wifiP2pInfo != null && connectionInfo.compareAndSet(null, wifiP2pInfo)) {
+                    updateCurrentGroup(wifiP2pInfo, null);
+                }
+            }
+        });
     }
 
-    private void stopHeartbeat() {
-        if (this.scheduler != null) {
-            this.scheduler.shutdownNow();
-            this.scheduler = null;
+    // keeps the group this device belongs to, requesting it if the broadcast did not carry it (before API 18),
+    // or if a connection attempt is waiting for its group, so that the attempt ends on the framework's word
+    private void updateCurrentGroup(WifiP2pInfo wifiP2pInfo, WifiP2pGroup group) {
+        if (!wifiP2pInfo.groupFormed) {
+            currentGroup.set(null);
+            return;
+        }
+        final ConnectTracker connectTracker = this.connectTracker;
+        boolean connecting = connectTracker != null && connectTracker.hasPendingAttempts();
+        if (group != null) {
+            currentGroup.set(group);
+            if (!connecting) {
+                return;
+            }
+        }
+        P2pBackend p2pBackend = this.p2pBackend;
+        if (p2pBackend == null) {
+            return;
         }
+        p2pBackend.requestGroupInfo(new WifiP2pManager.GroupInfoListener() {
+            @Override
+            public void onGroupInfoAvailable(WifiP2pGroup group) {
+                WifiP2pInfo info = connectionInfo.get();
+                if (group != null && info != null && info.groupFormed) {
+                    currentGroup.set(group);
+                    if (connectTracker != null) {
+                        connectTracker.onGroupFormed(group);
+                    }
+                }
+            }
+        });
     }
 
     private void acquirePeerList(final PeerListAcquisitionListener peerListAcquisitionListener,
@@ -269,17 +827,19 @@ public final class WifiDLite {
         sanityCheck();
         switch (acquisitionFrequency) {
             case ONE_TIME_ONLY:
-                if (!oneTimePeerListAcquisitionListeners.contains(peerListAcquisitionListener)) {
-                    oneTimePeerListAcquisitionListeners.add(peerListAcquisitionListener);
-                }
+                oneTimePeerListAcquisitionListeners.add(peerListAcquisitionListener);
                 break;
             case ONGOING:
-                if (!ongoingPeerListAcquisitionListeners.contains(peerListAcquisitionListener)) {
-                    ongoingPeerListAcquisitionListeners.add(peerListAcquisitionListener);
+                if (ongoingPeerListAcquisitionListeners.add(peerListAcquisitionListener)) {
+                    if (heartbeat != null) {
+                        heartbeat.tighten();
+                    }
+                    reviewDiscoveryDemand();
                 }
                 break;
         }
-        wifiP2pManager.discoverPeers(wifiP2pManagerChannel, new SimpleWifiP2pActionListener("discoverPeers call"));
+        discoveryCoordinator.discoverPeers(new SimpleWifiP2pActionListener("discoverPeers call"),
+                OperationQueue.Priority.USER);
     }
 
     private void sanityCheck() {
@@ -292,93 +852,163 @@ public final class WifiDLite {
         }
     }
 
-    private void updatePeers(WifiP2pDeviceList wifiP2pDeviceList) {
-        Collection<WifiP2pDevice> deviceList = wifiP2pDeviceList.getDeviceList();
-        ArrayList<Peer> peers = new ArrayList<Peer>();
-        for (WifiP2pDevice wifiP2pDevice : deviceList) {
-            peers.add(new Peer(wifiP2pDevice, wifiP2pManager, wifiP2pManagerChannel));
+    private void updatePeers(Collection<WifiP2pDevice> devices) {
+        PeerListTracker peerListTracker = this.peerListTracker;
+        DiscoveryCoordinator discoveryCoordinator = this.discoveryCoordinator;
+        if (peerListTracker == null || discoveryCoordinator == null) {
+            // disposed while this update was waiting on the dispatch executor
+            return;
+        }
+        Metrics metrics = this.metrics;
+        long start = System.nanoTime();
+        PeerListDelta delta = peerListTracker.update(devices);
+        metrics.incrementCounter(Metrics.Counter.PEER_LIST_UPDATE);
+        metrics.setGauge(Metrics.Gauge.PEERS, peerListTracker.size());
+        if (peerListTracker.size() > 0) {
+            long discoveryStart = discoveryCoordinator.takeUnansweredDiscoveryStart();
+            if (discoveryStart != 0) {
+                metrics.recordLatency(Metrics.Latency.DISCOVERY_TO_FIRST_PEER, start - discoveryStart);
+            }
+        }
+        if (!delta.isEmpty()) {
+            if (heartbeat != null) {
+                heartbeat.onPeerListChanged();
+            }
+            recordSeen(delta);
         }
         // call existing listeners
-        if (oneTimePeerListAcquisitionListeners.size() > 0) {
-            for (PeerListAcquisitionListener listener : oneTimePeerListAcquisitionListeners) {
+        PeerListAcquisitionListener[] oneTimeListeners = oneTimePeerListAcquisitionListeners.drain();
+        PeerListAcquisitionListener[] ongoingListeners = ongoingPeerListAcquisitionListeners.snapshot();
+        if (oneTimeListeners.length > 0 || ongoingListeners.length > 0) {
+            List<Peer> peers = peerListTracker.getPeers();
+            PeerHistory peerHistory = this.peerHistory;
+            if (peerHistory != null) {
+                peerHistory.rank(peers);
+            }
+            for (PeerListAcquisitionListener listener : oneTimeListeners) {
+                long callbackStart = System.nanoTime();
                 listener.onPeerListAcquisitionSuccess(peers);
+                metrics.recordLatency(Metrics.Latency.LISTENER_CALLBACK, System.nanoTime() - callbackStart);
             }
-            oneTimePeerListAcquisitionListeners.clear();
-        }
-        if (ongoingPeerListAcquisitionListeners.size() > 0) {
-            for (PeerListAcquisitionListener listener : ongoingPeerListAcquisitionListeners) {
+            for (PeerListAcquisitionListener listener : ongoingListeners) {
+                long callbackStart = System.nanoTime();
                 listener.onPeerListAcquisitionSuccess(peers);
+                metrics.recordLatency(Metrics.Latency.LISTENER_CALLBACK, System.nanoTime() - callbackStart);
+            }
+        }
+        if (!delta.isEmpty()) {
+            for (PeerListDeltaListener listener : peerListDeltaListeners.snapshot()) {
+                long callbackStart = System.nanoTime();
+                listener.onPeerListDelta(delta);
+                metrics.recordLatency(Metrics.Latency.LISTENER_CALLBACK, System.nanoTime() - callbackStart);
+            }
+            PeerPublisher peerPublisher = this.peerPublisher;
+            if (peerPublisher != null && peerPublisher.hasSubscriptions()) {
+                List<Peer> peers = peerListTracker.getPeers();
+                PeerHistory peerHistory = this.peerHistory;
+                if (peerHistory != null) {
+                    peerHistory.rank(peers);
+                }
+                peerPublisher.publish(peers, delta);
             }
         }
+        metrics.recordLatency(Metrics.Latency.PEER_LIST_UPDATE, System.nanoTime() - start);
+    }
+
+    private void recordSeen(PeerListDelta delta) {
+        PeerHistory peerHistory = this.peerHistory;
+        if (peerHistory == null) {
+            return;
+        }
+        for (Peer peer : delta.getAdded()) {
+            peerHistory.recordSeen(peer);
+        }
+        for (Peer peer : delta.getRemoved()) {
+            peerHistory.recordSeen(peer);
+        }
+        for (Peer peer : delta.getChanged()) {
+            peerHistory.recordSeen(peer);
+        }
     }
 
     private void updateGroup(WifiP2pGroup group) {
         if (group.getNetworkName() != null && group.getInterface() != null) {
-            for (CreateGroupListener listener : oneTimeCreateGroupListeners) {
+            PeerHistory peerHistory = this.peerHistory;
+            if (peerHistory != null) {
+                peerHistory.recordGroup(group);
+            }
+            Metrics metrics = this.metrics;
+            for (CreateGroupListener listener : oneTimeCreateGroupListeners.drain()) {
+                long callbackStart = System.nanoTime();
                 listener.onCreateGroupSuccess(group);
+                metrics.recordLatency(Metrics.Latency.LISTENER_CALLBACK, System.nanoTime() - callbackStart);
             }
-            oneTimeCreateGroupListeners.clear();
         }
     }
 
-    /**
-     * BroadcastReceiver and related declarations.
-     */
-    private static final IntentFilter intentFilter = new IntentFilter();
-
-    static {
-        intentFilter.addAction(WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION);
-        intentFilter.addAction(WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION);
-        intentFilter.addAction(WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION);
-        intentFilter.addAction(WifiP2pManager.WIFI_P2P_THIS_DEVICE_CHANGED_ACTION);
-    }
-
     public boolean isWifiP2pEnabled() {
         return isWifiP2pEnabled;
     }
 
-    private class WiFiDLiteBroadcastReceiver extends BroadcastReceiver {
+    /**
+     * Receives the {@link P2pBackend}'s events and hands the work they trigger to the
+     * dispatch executor.
+     */
+    private class BackendEvents implements P2pBackend.Events {
 
-        private final String TAG = WiFiDLiteBroadcastReceiver.class.getCanonicalName();
+        @Override
+        public void onP2pStateChanged(boolean enabled) {
+            Log.v(TAG, "WIFI P2P is " + (enabled ? "enabled" : "NOT enabled"));
+            isWifiP2pEnabled = enabled;
+        }
 
-        @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            Log.v(TAG, "WiFi Direct broadcast received. action:" + action);
-
-            if (WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION.equals(action)) {
-                Log.v(TAG, "P2P State Changed.");
-
-                // Get and record the current Wifi P2P state
-                int state = intent.getIntExtra(WifiP2pManager.EXTRA_WIFI_STATE, -1);
-                if (state == WifiP2pManager.WIFI_P2P_STATE_ENABLED) {
-                    Log.v(TAG, "WIFI P2P is enabled");
-                    isWifiP2pEnabled = true;
-                } else {
-                    Log.v(TAG, "WIFI P2P is NOT enabled");
-                    isWifiP2pEnabled = false;
+        public void onPeersChanged(final Collection<WifiP2pDevice> devices) {
+            // only the latest of a burst of peer lists needs processing
+            peerListCoalescer.offer(new Runnable() {
+                @Override
+                public void run() {
+                    updatePeers(devices);
                 }
+            });
+        }
 
-            } else if (WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION.equals(action)) {
-                Log.v(TAG, "P2P Peers changed.");
+        @Override
+        public void onConnectionChanged(WifiP2pInfo wifiP2pInfo, final WifiP2pGroup wifiP2pGroup) {
+            if (wifiP2pInfo != null) {
+                connectionInfo.set(wifiP2pInfo);
+                updateCurrentGroup(wifiP2pInfo, wifiP2pGroup);
+            }
+            // call the group creation listeners
+            if (wifiP2pGroup != null) {
+                dispatchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateGroup(wifiP2pGroup);
+                    }
+                });
+            }
+        }
 
-                // call the peer list acquisition listeners
-                WifiP2pDeviceList wifiP2pDeviceList = (WifiP2pDeviceList) intent.getExtras().get(WifiP2pManager.EXTRA_P2P_DEVICE_LIST);
-                if (wifiP2pDeviceList != null) {
-                    updatePeers(wifiP2pDeviceList);
-                }
-            } else if (WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION.equals(action)) {
-                Log.v(TAG, "P2P Connection changed");
+        @Override
+        public void onThisDeviceChanged(WifiP2pDevice device) {
+            Log.v(TAG, "This P2P Device changed");
+        }
 
-                // call the group creation listeners
-                WifiP2pGroup group = (WifiP2pGroup) intent.getExtras().get(WifiP2pManager.EXTRA_WIFI_P2P_GROUP);
-                if (group != null) {
-                    updateGroup(group);
-                }
+        @Override
+        public void onDnsSdServiceAvailable(String instanceName, String registrationType, WifiP2pDevice srcDevice) {
+            ServiceDiscovery serviceDiscovery = WifiDLite.this.serviceDiscovery;
+            if (serviceDiscovery != null) {
+                serviceDiscovery.onDnsSdServiceAvailable(instanceName, registrationType, srcDevice);
+            }
+        }
 
-            } else if (WifiP2pManager.WIFI_P2P_THIS_DEVICE_CHANGED_ACTION.equals(action)) {
-                Log.v(TAG, "This P2P Device changed");
+        @Override
+        public void onDnsSdTxtRecordAvailable(String fullDomainName, Map<String, String> txtRecordMap,
+                                              WifiP2pDevice srcDevice) {
+            ServiceDiscovery serviceDiscovery = WifiDLite.this.serviceDiscovery;
+            if (serviceDiscovery != null) {
+                serviceDiscovery.onDnsSdTxtRecordAvailable(fullDomainName, txtRecordMap, srcDevice);
             }
         }
     }
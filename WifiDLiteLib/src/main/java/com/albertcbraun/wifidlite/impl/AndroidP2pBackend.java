@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite.impl;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.p2p.WifiP2pConfig;
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pDeviceList;
+import android.net.wifi.p2p.WifiP2pGroup;
+import android.net.wifi.p2p.WifiP2pInfo;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+import android.os.Build;
+import android.util.Log;
+
+import com.albertcbraun.wifidlite.P2pBackend;
+
+import java.util.Map;
+
+/**
+ * The default {@link P2pBackend}, backed by the Android platform's {@link WifiP2pManager}.
+ * <p/>
+ * Owns the {@link WifiP2pManager.Channel} and the BroadcastReceiver which turns the
+ * platform's Wifi P2P broadcasts into {@link P2pBackend.Events}, and passes the channel's
+ * DNS-SD responses on as events too. Operation results and
+ * events are delivered on the main (UI) thread.
+ */
+public class AndroidP2pBackend implements P2pBackend {
+
+    private static final String TAG = AndroidP2pBackend.class.getCanonicalName();
+
+    private static final IntentFilter intentFilter = new IntentFilter();
+
+    static {
+        intentFilter.addAction(WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION);
+        intentFilter.addAction(WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION);
+        intentFilter.addAction(WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION);
+        intentFilter.addAction(WifiP2pManager.WIFI_P2P_THIS_DEVICE_CHANGED_ACTION);
+    }
+
+    private Context context = null;
+    private WifiP2pManager wifiP2pManager = null;
+    private WifiP2pManager.Channel channel = null;
+    private WiFiDLiteBroadcastReceiver wiFiDLiteBroadcastReceiver = null;
+
+    /**
+     * Creates a backend which initializes its own channel and registers its own
+     * BroadcastReceiver when {@link #initialize} is called.
+     *
+     * @param context the Android application context
+     */
+    public AndroidP2pBackend(Context context) {
+        this.context = context;
+        this.wifiP2pManager = (WifiP2pManager) context.getSystemService(Context.WIFI_P2P_SERVICE);
+    }
+
+    /**
+     * Creates a backend around an existing manager and channel. Such a backend
+     * carries out operations but has no BroadcastReceiver, so it reports no events, and
+     * when disposed of it leaves the channel's local services and service requests to the
+     * channel's owner.
+     *
+     * @param wifiP2pManager the main instance of the {@link WifiP2pManager}
+     * @param channel        the {@link WifiP2pManager.Channel} associated with the wifiP2pManager
+     */
+    public AndroidP2pBackend(WifiP2pManager wifiP2pManager, WifiP2pManager.Channel channel) {
+        this.wifiP2pManager = wifiP2pManager;
+        this.channel = channel;
+    }
+
+    @Override
+    public void initialize(Events events) {
+        if (context == null) {
+            return;
+        }
+        if (channel == null) {
+            channel = wifiP2pManager.initialize(context, context.getMainLooper(),
+                    new WifiP2pManager.ChannelListener() {
+                        @Override
+                        public void onChannelDisconnected() {
+                            Log.v(TAG, "Channel Disconnected");
+                        }
+                    });
+        }
+        if (wiFiDLiteBroadcastReceiver == null) {
+            wiFiDLiteBroadcastReceiver = new WiFiDLiteBroadcastReceiver(events);
+            context.registerReceiver(wiFiDLiteBroadcastReceiver, intentFilter);
+            setDnsSdResponseListeners(events);
+        }
+    }
+
+    private void setDnsSdResponseListeners(final Events events) {
+        wifiP2pManager.setDnsSdResponseListeners(channel,
+                new WifiP2pManager.DnsSdServiceResponseListener() {
+                    @Override
+                    public void onDnsSdServiceAvailable(String instanceName, String registrationType,
+                                                        WifiP2pDevice srcDevice) {
+                        events.onDnsSdServiceAvailable(instanceName, registrationType, srcDevice);
+                    }
+                },
+                new WifiP2pManager.DnsSdTxtRecordListener() {
+                    @Override
+                    public void onDnsSdTxtRecordAvailable(String fullDomainName, Map<String, String> txtRecordMap,
+                                                          WifiP2pDevice srcDevice) {
+                        events.onDnsSdTxtRecordAvailable(fullDomainName, txtRecordMap, srcDevice);
+                    }
+                });
+    }
+
+    /**
+     * Removes the local services and service requests of the channel this backend
+     * initialized, so that the device stops advertising its services, and unregisters
+     * the BroadcastReceiver.
+     */
+    @Override
+    public void dispose() {
+        if (wiFiDLiteBroadcastReceiver != null) {
+            wifiP2pManager.clearLocalServices(channel, new SimpleWifiP2pActionListener("clearLocalServices call"));
+            wifiP2pManager.clearServiceRequests(channel,
+                    new SimpleWifiP2pActionListener("clearServiceRequests call"));
+            context.unregisterReceiver(wiFiDLiteBroadcastReceiver);
+            wiFiDLiteBroadcastReceiver = null;
+            wifiP2pManager.setDnsSdResponseListeners(channel, null, null);
+        }
+    }
+
+    @Override
+    public void discoverPeers(WifiP2pManager.ActionListener listener) {
+        wifiP2pManager.discoverPeers(channel, listener);
+    }
+
+    @Override
+    public void stopPeerDiscovery(WifiP2pManager.ActionListener listener) {
+        wifiP2pManager.stopPeerDiscovery(channel, listener);
+    }
+
+    @Override
+    public void connect(WifiP2pConfig config, WifiP2pManager.ActionListener listener) {
+        wifiP2pManager.connect(channel, config, listener);
+    }
+
+    @Override
+    public void createGroup(WifiP2pManager.ActionListener listener) {
+        wifiP2pManager.createGroup(channel, listener);
+    }
+
+    @Override
+    public void removeGroup(WifiP2pManager.ActionListener listener) {
+        wifiP2pManager.removeGroup(channel, listener);
+    }
+
+    @Override
+    public void requestGroupInfo(WifiP2pManager.GroupInfoListener listener) {
+        wifiP2pManager.requestGroupInfo(channel, listener);
+    }
+
+    @Override
+    public void requestConnectionInfo(WifiP2pManager.ConnectionInfoListener listener) {
+        wifiP2pManager.requestConnectionInfo(channel, listener);
+    }
+
+    @Override
+    public void addLocalService(WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        wifiP2pManager.addLocalService(channel, serviceInfo, listener);
+    }
+
+    @Override
+    public void removeLocalService(WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        wifiP2pManager.removeLocalService(channel, serviceInfo, listener);
+    }
+
+    @Override
+    public void addServiceRequest(WifiP2pServiceRequest serviceRequest, WifiP2pManager.ActionListener listener) {
+        wifiP2pManager.addServiceRequest(channel, serviceRequest, listener);
+    }
+
+    @Override
+    public void removeServiceRequest(WifiP2pServiceRequest serviceRequest, WifiP2pManager.ActionListener listener) {
+        wifiP2pManager.removeServiceRequest(channel, serviceRequest, listener);
+    }
+
+    @Override
+    public void discoverServices(WifiP2pManager.ActionListener listener) {
+        wifiP2pManager.discoverServices(channel, listener);
+    }
+
+    private static class WiFiDLiteBroadcastReceiver extends BroadcastReceiver {
+
+        private final String TAG = WiFiDLiteBroadcastReceiver.class.getCanonicalName();
+
+        private final Events events;
+
+        WiFiDLiteBroadcastReceiver(Events events) {
+            this.events = events;
+        }
+
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            Log.v(TAG, "WiFi Direct broadcast received. action:" + action);
+
+            if (WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION.equals(action)) {
+                Log.v(TAG, "P2P State Changed.");
+
+                // Get and report the current Wifi P2P state
+                int state = intent.getIntExtra(WifiP2pManager.EXTRA_WIFI_STATE, -1);
+                events.onP2pStateChanged(state == WifiP2pManager.WIFI_P2P_STATE_ENABLED);
+
+            } else if (WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION.equals(action)) {
+                Log.v(TAG, "P2P Peers changed.");
+
+                WifiP2pDeviceList wifiP2pDeviceList = (WifiP2pDeviceList) intent.getExtras().get(WifiP2pManager.EXTRA_P2P_DEVICE_LIST);
+                if (wifiP2pDeviceList != null) {
+                    events.onPeersChanged(wifiP2pDeviceList.getDeviceList());
+                }
+            } else if (WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION.equals(action)) {
+                Log.v(TAG, "P2P Connection changed");
+
+                WifiP2pInfo wifiP2pInfo = (WifiP2pInfo) intent.getExtras().get(WifiP2pManager.EXTRA_WIFI_P2P_INFO);
+                WifiP2pGroup group = (WifiP2pGroup) intent.getExtras().get(WifiP2pManager.EXTRA_WIFI_P2P_GROUP);
+                events.onConnectionChanged(wifiP2pInfo, group);
+
+            } else if (WifiP2pManager.WIFI_P2P_THIS_DEVICE_CHANGED_ACTION.equals(action)) {
+                Log.v(TAG, "This P2P Device changed");
+
+                WifiP2pDevice device = (WifiP2pDevice) intent.getExtras().get(WifiP2pManager.EXTRA_WIFI_P2P_DEVICE);
+                events.onThisDeviceChanged(device);
+            }
+        }
+    }
+}
@@ -16,7 +16,15 @@
 
 package com.albertcbraun.wifidlite.impl;
 
+import android.content.Context;
+
 import com.albertcbraun.wifidlite.Configuration;
+import com.albertcbraun.wifidlite.Metrics;
+import com.albertcbraun.wifidlite.P2pBackend;
+import com.albertcbraun.wifidlite.transport.BufferPool;
+
+import java.io.File;
+import java.util.concurrent.Executor;
 
 /**
  * A {@link com.albertcbraun.wifidlite.Configuration} object with sensible defaults.
@@ -24,10 +32,105 @@ import com.albertcbraun.wifidlite.Configuration;
 public class DefaultConfiguration implements Configuration {
 
     private static final int HEARTBEAT_DELAY_SEC = 10;
+    private static final int MIN_HEARTBEAT_DELAY_SEC = 5;
+    private static final int MAX_HEARTBEAT_DELAY_SEC = 120;
+    private static final int DISCOVERY_RETRY_LIMIT = 4;
+    private static final long DISCOVERY_RETRY_BASE_DELAY_MS = 250;
+    private static final long DISCOVERY_RETRY_MAX_DELAY_MS = 4000;
+    private static final long PEER_LIST_COALESCING_WINDOW_MS = 250;
+    private static final long PEER_LIST_MAX_LATENCY_MS = 1000;
+    private static final long OPERATION_TIMEOUT_MS = 5000;
+    private static final long CONNECT_TIMEOUT_MS = 30000;
+    private static final String HISTORY_FILE_NAME = "wifidlite-history";
+    private static final long BUFFER_POOL_CAPACITY = BufferPool.DEFAULT_CAPACITY;
+    private static final long SERVICE_CACHE_TTL_MS = 120000;
 
     @Override
     public int getHeartbeatDelay() {
         return HEARTBEAT_DELAY_SEC;
     }
 
+    @Override
+    public int getMinHeartbeatDelay() {
+        return MIN_HEARTBEAT_DELAY_SEC;
+    }
+
+    @Override
+    public int getMaxHeartbeatDelay() {
+        return MAX_HEARTBEAT_DELAY_SEC;
+    }
+
+    @Override
+    public int getDiscoveryRetryLimit() {
+        return DISCOVERY_RETRY_LIMIT;
+    }
+
+    @Override
+    public long getDiscoveryRetryBaseDelay() {
+        return DISCOVERY_RETRY_BASE_DELAY_MS;
+    }
+
+    @Override
+    public long getDiscoveryRetryMaxDelay() {
+        return DISCOVERY_RETRY_MAX_DELAY_MS;
+    }
+
+    /**
+     * @return null, so listeners are called on the main (UI) thread
+     */
+    @Override
+    public Executor getDispatchExecutor() {
+        return null;
+    }
+
+    @Override
+    public long getPeerListCoalescingWindow() {
+        return PEER_LIST_COALESCING_WINDOW_MS;
+    }
+
+    @Override
+    public long getPeerListMaxLatency() {
+        return PEER_LIST_MAX_LATENCY_MS;
+    }
+
+    @Override
+    public P2pBackend createP2pBackend(Context context) {
+        return new AndroidP2pBackend(context);
+    }
+
+    /**
+     * @return {@link NoOpMetrics#INSTANCE}, so no measurements are taken
+     */
+    @Override
+    public Metrics getMetrics() {
+        return NoOpMetrics.INSTANCE;
+    }
+
+    @Override
+    public long getOperationTimeout() {
+        return OPERATION_TIMEOUT_MS;
+    }
+
+    @Override
+    public long getConnectTimeout() {
+        return CONNECT_TIMEOUT_MS;
+    }
+
+    /**
+     * @return a file in the app's private files directory, or null if there is no context
+     */
+    @Override
+    public File getHistoryFile(Context context) {
+        return context == null ? null : new File(context.getFilesDir(), HISTORY_FILE_NAME);
+    }
+
+    @Override
+    public long getBufferPoolCapacity() {
+        return BUFFER_POOL_CAPACITY;
+    }
+
+    @Override
+    public long getServiceCacheTtl() {
+        return SERVICE_CACHE_TTL_MS;
+    }
 }
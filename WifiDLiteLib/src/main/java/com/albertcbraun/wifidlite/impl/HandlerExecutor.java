@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite.impl;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An {@link Executor} which runs tasks on the {@link Looper} of a {@link Handler}.
+ * <p/>
+ * Return one of these from {@link com.albertcbraun.wifidlite.Configuration#getDispatchExecutor}
+ * to have events processed and delivered on a particular thread, for example the
+ * thread of an {@link android.os.HandlerThread}. A task submitted from the Handler's
+ * own thread runs immediately rather than being posted.
+ */
+public class HandlerExecutor implements Executor {
+
+    private final Handler handler;
+
+    public HandlerExecutor(Handler handler) {
+        this.handler = handler;
+    }
+
+    public HandlerExecutor(Looper looper) {
+        this(new Handler(looper));
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (Looper.myLooper() == handler.getLooper()) {
+            task.run();
+        } else if (!handler.post(task)) {
+            throw new RejectedExecutionException("Looper is exiting: " + handler.getLooper());
+        }
+    }
+}
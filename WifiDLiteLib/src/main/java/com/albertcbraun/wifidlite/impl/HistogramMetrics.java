@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.impl;
+
+import android.net.wifi.p2p.WifiP2pManager;
+
+import com.albertcbraun.wifidlite.Metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link com.albertcbraun.wifidlite.Metrics} object which keeps everything in memory:
+ * a count of each framework call by result, a latency histogram for each framework call
+ * and each {@link Metrics.Latency}, a count for each {@link Metrics.Counter} and the
+ * latest value of each {@link Metrics.Gauge}.
+ * <p/>
+ * Recording never allocates or blocks. Read the values back with the getters (for
+ * instance, to upload them periodically), or log {@link #toString} for a summary.
+ */
+public class HistogramMetrics implements Metrics {
+
+    // results are counted as success, one of the four WifiP2pManager reasons, or other
+    private static final int RESULT_SLOTS = 6;
+
+    private final AtomicLongArray operationResults =
+            new AtomicLongArray(Operation.values().length * RESULT_SLOTS);
+    private final Histogram[] operationLatencies = newHistograms(Operation.values().length);
+    private final Histogram[] latencies = newHistograms(Latency.values().length);
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final AtomicLongArray gauges = new AtomicLongArray(Gauge.values().length);
+
+    @Override
+    public void onOperationCompleted(Operation operation, int result, long latencyNanos) {
+        operationResults.incrementAndGet(operation.ordinal() * RESULT_SLOTS + resultSlot(result));
+        operationLatencies[operation.ordinal()].record(latencyNanos);
+    }
+
+    @Override
+    public void incrementCounter(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    @Override
+    public void recordLatency(Latency latency, long latencyNanos) {
+        latencies[latency.ordinal()].record(latencyNanos);
+    }
+
+    @Override
+    public void setGauge(Gauge gauge, long value) {
+        gauges.set(gauge.ordinal(), value);
+    }
+
+    /**
+     * @param operation the framework call
+     * @param result    {@link Metrics#SUCCESS} or a {@link WifiP2pManager} failure reason
+     * @return the number of times the call completed with the given result
+     */
+    public long getOperationCount(Operation operation, int result) {
+        return operationResults.get(operation.ordinal() * RESULT_SLOTS + resultSlot(result));
+    }
+
+    /**
+     * @param operation the framework call
+     * @return the latencies of all completed calls, successful or not
+     */
+    public Histogram getOperationLatency(Operation operation) {
+        return operationLatencies[operation.ordinal()];
+    }
+
+    public Histogram getLatency(Latency latency) {
+        return latencies[latency.ordinal()];
+    }
+
+    public long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    public long getGauge(Gauge gauge) {
+        return gauges.get(gauge.ordinal());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("HistogramMetrics{");
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = getOperationLatency(operation);
+            if (histogram.getCount() > 0) {
+                sb.append(String.format(" %s: ok=%d busy=%d error=%d %s;", operation,
+                        getOperationCount(operation, SUCCESS),
+                        getOperationCount(operation, WifiP2pManager.BUSY),
+                        getOperationCount(operation, WifiP2pManager.ERROR), histogram));
+            }
+        }
+        for (Latency latency : Latency.values()) {
+            Histogram histogram = getLatency(latency);
+            if (histogram.getCount() > 0) {
+                sb.append(String.format(" %s: %s;", latency, histogram));
+            }
+        }
+        for (Counter counter : Counter.values()) {
+            sb.append(String.format(" %s=%d", counter, getCount(counter)));
+        }
+        for (Gauge gauge : Gauge.values()) {
+            sb.append(String.format(" %s=%d", gauge, getGauge(gauge)));
+        }
+        return sb.append(" }").toString();
+    }
+
+    private static int resultSlot(int result) {
+        if (result == SUCCESS) {
+            return 0;
+        }
+        return result >= WifiP2pManager.ERROR && result <= WifiP2pManager.NO_SERVICE_REQUESTS
+                ? result + 1 : RESULT_SLOTS - 1;
+    }
+
+    private static Histogram[] newHistograms(int count) {
+        Histogram[] histograms = new Histogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new Histogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * A latency histogram with power of two buckets, from one microsecond up.
+     * Percentiles are reported as the upper bound of the bucket they fall in,
+     * so they are accurate to within a factor of two.
+     */
+    public static final class Histogram {
+
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Histogram() {
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            long micros = nanos / 1000;
+            int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // retry
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return the mean latency in nanoseconds, or zero if nothing was recorded
+         */
+        public long getMeanNanos() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / n;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return an upper bound, in nanoseconds, on the given percentile of the recorded
+         * latencies, or zero if nothing was recorded
+         */
+        public long getPercentileNanos(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(maxNanos.get(), (1L << i) * 1000);
+                }
+            }
+            return maxNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.1fms p50<=%.1fms p99<=%.1fms max=%.1fms", getCount(),
+                    getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6, getPercentileNanos(99) / 1e6,
+                    getMaxNanos() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.impl;
+
+import com.albertcbraun.wifidlite.Metrics;
+
+/**
+ * A {@link com.albertcbraun.wifidlite.Metrics} object which discards every measurement.
+ * <p/>
+ * This is the default. While it is configured, the {@link com.albertcbraun.wifidlite.WifiDLite}
+ * object does not wrap framework calls to time them, so metrics add no allocation
+ * unless they are used.
+ */
+public final class NoOpMetrics implements Metrics {
+
+    /**
+     * The only instance.
+     */
+    public static final NoOpMetrics INSTANCE = new NoOpMetrics();
+
+    private NoOpMetrics() {
+    }
+
+    @Override
+    public void onOperationCompleted(Operation operation, int result, long latencyNanos) {
+    }
+
+    @Override
+    public void incrementCounter(Counter counter) {
+    }
+
+    @Override
+    public void recordLatency(Latency latency, long latencyNanos) {
+    }
+
+    @Override
+    public void setGauge(Gauge gauge, long value) {
+    }
+
+}
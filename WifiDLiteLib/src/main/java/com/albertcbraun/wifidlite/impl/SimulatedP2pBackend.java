@@ -0,0 +1,605 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.albertcbraun.wifidlite.impl;
+
+import android.net.wifi.p2p.WifiP2pConfig;
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pGroup;
+import android.net.wifi.p2p.WifiP2pInfo;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+import android.util.Log;
+
+import com.albertcbraun.wifidlite.MacAddress;
+import com.albertcbraun.wifidlite.P2pBackend;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link P2pBackend} which simulates a WiFi Direct radio and a neighbourhood of
+ * virtual peer devices, entirely in process. It needs no WiFi Direct hardware and
+ * no Android system services, so it can drive the library on a plain JVM (with the
+ * Android framework classes on the class path) for load tests and benchmarks.
+ * <p/>
+ * The simulation models:
+ * <ul>
+ * <li>latency: every operation completes, and every event arrives, after a fixed delay</li>
+ * <li>BUSY responses: like the platform, the simulated channel handles one operation at a
+ * time and fails the others with {@link WifiP2pManager#BUSY}. Operations may also be
+ * refused at random with a configurable probability.</li>
+ * <li>churn: at a fixed period, each virtual device goes out of or comes back into range
+ * with a configurable probability. Once discovery has been started, every change produces
+ * a peers changed event.</li>
+ * <li>DNS-SD services: virtual devices {@link #advertiseService advertise} services, which
+ * a service discovery reports for every device in range, whatever services were requested.
+ * As on the platform, a service discovery fails with
+ * {@link WifiP2pManager#NO_SERVICE_REQUESTS} unless a service request has been added.</li>
+ * </ul>
+ * All results and events are delivered on a single daemon thread owned by this object.
+ * The virtual devices have addresses of the form 02:00:xx:xx:xx:xx.
+ */
+public class SimulatedP2pBackend implements P2pBackend {
+
+    private static final String TAG = SimulatedP2pBackend.class.getCanonicalName();
+    private static final int SUCCESS = -1;
+    private static final long ADDRESS_PREFIX = 0x020000000000L;
+    private static final long THIS_DEVICE_ADDRESS = 0x02FFFFFFFFFFL;
+    private static final AtomicBoolean HIDDEN_SETTER_FAILURE_LOGGED = new AtomicBoolean(false);
+
+    private final long latencyMillis;
+    private final double busyProbability;
+    private final double churnProbability;
+    private final long churnPeriodMillis;
+    private final Random random;
+    private final WifiP2pDevice thisDevice = new WifiP2pDevice();
+    private final WifiP2pDevice[] devices;
+    private final boolean[] inRange;
+
+    // guarded by this
+    private ScheduledExecutorService radio = null;
+    private Events events = null;
+    private boolean operationInFlight = false;
+    private boolean discovering = false;
+    private WifiP2pGroup group = null;
+    private WifiP2pInfo info = new WifiP2pInfo();
+    private final List<AdvertisedService> advertisedServices = new ArrayList<AdvertisedService>();
+    private final List<WifiP2pServiceInfo> localServices = new ArrayList<WifiP2pServiceInfo>();
+    private final List<WifiP2pServiceRequest> serviceRequests = new ArrayList<WifiP2pServiceRequest>();
+
+    /**
+     * Creates a simulation of the given number of devices, all in range, with 50 ms
+     * latency, no random BUSY responses and no churn.
+     *
+     * @param deviceCount the number of virtual peer devices
+     */
+    public SimulatedP2pBackend(int deviceCount) {
+        this(deviceCount, 50, 0.0, 0.0, 1000, 0);
+    }
+
+    /**
+     * Main constructor.
+     *
+     * @param deviceCount       the number of virtual peer devices, all initially in range
+     * @param latencyMillis     delay before each operation completes and each event arrives
+     * @param busyProbability   probability (0 to 1) that an operation is refused as busy even
+     *                          though no other operation is in progress
+     * @param churnProbability  probability (0 to 1) that a given device goes out of, or
+     *                          comes back into, range at each churn period
+     * @param churnPeriodMillis interval between churn steps
+     * @param seed              seed for the random decisions, so runs can be repeated
+     */
+    public SimulatedP2pBackend(int deviceCount, long latencyMillis, double busyProbability,
+                               double churnProbability, long churnPeriodMillis, long seed) {
+        this.latencyMillis = Math.max(0, latencyMillis);
+        this.busyProbability = busyProbability;
+        this.churnProbability = churnProbability;
+        this.churnPeriodMillis = Math.max(1, churnPeriodMillis);
+        this.random = new Random(seed);
+        this.thisDevice.deviceName = "Simulated This Device";
+        this.thisDevice.deviceAddress = MacAddress.format(THIS_DEVICE_ADDRESS);
+        this.thisDevice.status = WifiP2pDevice.AVAILABLE;
+        this.devices = new WifiP2pDevice[deviceCount];
+        this.inRange = new boolean[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            WifiP2pDevice device = new WifiP2pDevice();
+            device.deviceName = "Simulated Peer " + i;
+            device.deviceAddress = MacAddress.format(ADDRESS_PREFIX | i);
+            device.primaryDeviceType = "10-0050F204-5";
+            device.status = WifiP2pDevice.AVAILABLE;
+            devices[i] = device;
+            inRange[i] = true;
+        }
+    }
+
+    @Override
+    public synchronized void initialize(Events events) {
+        if (radio != null) {
+            return;
+        }
+        this.events = events;
+        this.radio = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SimulatedP2pBackend");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Events events = events();
+                if (events != null) {
+                    events.onP2pStateChanged(true);
+                    events.onThisDeviceChanged(new WifiP2pDevice(thisDevice));
+                }
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+        if (churnProbability > 0) {
+            radio.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    churn();
+                }
+            }, churnPeriodMillis, churnPeriodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void dispose() {
+        if (radio != null) {
+            radio.shutdownNow();
+            radio = null;
+        }
+        events = null;
+        operationInFlight = false;
+        discovering = false;
+        // as the platform forgets them with the channel
+        localServices.clear();
+        serviceRequests.clear();
+    }
+
+    /**
+     * Reports the devices currently in range as a peers changed event right away,
+     * as the platform does when it notices a change. Useful for driving peer list
+     * processing at a controlled rate.
+     */
+    public void publishPeers() {
+        Events events;
+        List<WifiP2pDevice> peers;
+        synchronized (this) {
+            events = this.events;
+            peers = copyDevicesInRange();
+        }
+        if (events != null) {
+            events.onPeersChanged(peers);
+        }
+    }
+
+    /**
+     * Makes a virtual device offer a DNS-SD service, which later service discoveries report.
+     *
+     * @param deviceIndex  the index of the virtual device, from zero
+     * @param instanceName the instance name of the service, e.g. "printer"
+     * @param serviceType  the service type, e.g. "_ipp._tcp"
+     * @param txtRecord    the TXT record of the service
+     */
+    public synchronized void advertiseService(int deviceIndex, String instanceName, String serviceType,
+                                              Map<String, String> txtRecord) {
+        advertisedServices.add(new AdvertisedService(deviceIndex, instanceName, serviceType,
+                new HashMap<String, String>(txtRecord)));
+    }
+
+    /**
+     * @return the number of local services added and not removed
+     */
+    public synchronized int getLocalServiceCount() {
+        return localServices.size();
+    }
+
+    /**
+     * @return the number of service requests added and not removed
+     */
+    public synchronized int getServiceRequestCount() {
+        return serviceRequests.size();
+    }
+
+    @Override
+    public void discoverPeers(WifiP2pManager.ActionListener listener) {
+        perform(new Operation() {
+            @Override
+            public int apply() {
+                discovering = true;
+                publishPeersLater();
+                return SUCCESS;
+            }
+        }, listener);
+    }
+
+    @Override
+    public void stopPeerDiscovery(WifiP2pManager.ActionListener listener) {
+        perform(new Operation() {
+            @Override
+            public int apply() {
+                discovering = false;
+                return SUCCESS;
+            }
+        }, listener);
+    }
+
+    @Override
+    public void connect(final WifiP2pConfig config, WifiP2pManager.ActionListener listener) {
+        perform(new Operation() {
+            @Override
+            public int apply() {
+                int index = indexOf(config.deviceAddress);
+                if (index < 0 || !inRange[index] || group != null) {
+                    return WifiP2pManager.ERROR;
+                }
+                devices[index].status = WifiP2pDevice.CONNECTED;
+                group = newGroup(devices[index], false);
+                info = newInfo(false);
+                publishConnectionLater();
+                publishPeersLater();
+                return SUCCESS;
+            }
+        }, listener);
+    }
+
+    @Override
+    public void createGroup(WifiP2pManager.ActionListener listener) {
+        perform(new Operation() {
+            @Override
+            public int apply() {
+                if (group != null) {
+                    return WifiP2pManager.ERROR;
+                }
+                group = newGroup(thisDevice, true);
+                info = newInfo(true);
+                publishConnectionLater();
+                return SUCCESS;
+            }
+        }, listener);
+    }
+
+    @Override
+    public void removeGroup(WifiP2pManager.ActionListener listener) {
+        perform(new Operation() {
+            @Override
+            public int apply() {
+                if (group == null) {
+                    return WifiP2pManager.ERROR;
+                }
+                group = null;
+                info = new WifiP2pInfo();
+                for (WifiP2pDevice device : devices) {
+                    if (device.status == WifiP2pDevice.CONNECTED) {
+                        device.status = WifiP2pDevice.AVAILABLE;
+                    }
+                }
+                publishConnectionLater();
+                publishPeersLater();
+                return SUCCESS;
+            }
+        }, listener);
+    }
+
+    @Override
+    public void requestGroupInfo(final WifiP2pManager.GroupInfoListener listener) {
+        later(new Runnable() {
+            @Override
+            public void run() {
+                WifiP2pGroup current;
+                synchronized (SimulatedP2pBackend.this) {
+                    current = group == null ? null : new WifiP2pGroup(group);
+                }
+                listener.onGroupInfoAvailable(current);
+            }
+        });
+    }
+
+    @Override
+    public void requestConnectionInfo(final WifiP2pManager.ConnectionInfoListener listener) {
+        later(new Runnable() {
+            @Override
+            public void run() {
+                WifiP2pInfo current;
+                synchronized (SimulatedP2pBackend.this) {
+                    current = new WifiP2pInfo(info);
+                }
+                listener.onConnectionInfoAvailable(current);
+            }
+        });
+    }
+
+    @Override
+    public void addLocalService(final WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        perform(new Operation() {
+            @Override
+            public int apply() {
+                localServices.add(serviceInfo);
+                return SUCCESS;
+            }
+        }, listener);
+    }
+
+    @Override
+    public void removeLocalService(final WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        perform(new Operation() {
+            @Override
+            public int apply() {
+                localServices.remove(serviceInfo);
+                return SUCCESS;
+            }
+        }, listener);
+    }
+
+    @Override
+    public void addServiceRequest(final WifiP2pServiceRequest serviceRequest,
+                                  WifiP2pManager.ActionListener listener) {
+        perform(new Operation() {
+            @Override
+            public int apply() {
+                serviceRequests.add(serviceRequest);
+                return SUCCESS;
+            }
+        }, listener);
+    }
+
+    @Override
+    public void removeServiceRequest(final WifiP2pServiceRequest serviceRequest,
+                                     WifiP2pManager.ActionListener listener) {
+        perform(new Operation() {
+            @Override
+            public int apply() {
+                serviceRequests.remove(serviceRequest);
+                return SUCCESS;
+            }
+        }, listener);
+    }
+
+    @Override
+    public void discoverServices(WifiP2pManager.ActionListener listener) {
+        perform(new Operation() {
+            @Override
+            public int apply() {
+                if (serviceRequests.isEmpty()) {
+                    return WifiP2pManager.NO_SERVICE_REQUESTS;
+                }
+                publishServicesLater();
+                return SUCCESS;
+            }
+        }, listener);
+    }
+
+    /**
+     * A simulated operation. Runs with the lock held.
+     */
+    private interface Operation {
+        /**
+         * @return SUCCESS, or a {@link WifiP2pManager} failure reason
+         */
+        int apply();
+    }
+
+    private void perform(final Operation operation, final WifiP2pManager.ActionListener listener) {
+        final boolean busy;
+        synchronized (this) {
+            if (radio == null) {
+                throw new IllegalStateException("SimulatedP2pBackend not initialized");
+            }
+            busy = operationInFlight || random.nextDouble() < busyProbability;
+            if (!busy) {
+                operationInFlight = true;
+            }
+        }
+        later(new Runnable() {
+            @Override
+            public void run() {
+                if (busy) {
+                    listener.onFailure(WifiP2pManager.BUSY);
+                    return;
+                }
+                int result;
+                synchronized (SimulatedP2pBackend.this) {
+                    if (radio == null) {
+                        // disposed while the operation was pending
+                        return;
+                    }
+                    operationInFlight = false;
+                    result = operation.apply();
+                }
+                if (result == SUCCESS) {
+                    listener.onSuccess();
+                } else {
+                    listener.onFailure(result);
+                }
+            }
+        });
+    }
+
+    private void later(Runnable runnable) {
+        ScheduledExecutorService radio;
+        synchronized (this) {
+            radio = this.radio;
+        }
+        if (radio == null) {
+            throw new IllegalStateException("SimulatedP2pBackend not initialized");
+        }
+        radio.schedule(runnable, latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized Events events() {
+        return events;
+    }
+
+    // caller must hold the lock
+    private void publishPeersLater() {
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                publishPeers();
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // caller must hold the lock
+    private void publishConnectionLater() {
+        final WifiP2pInfo currentInfo = new WifiP2pInfo(info);
+        final WifiP2pGroup currentGroup = group == null ? null : new WifiP2pGroup(group);
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Events events = events();
+                if (events != null) {
+                    events.onConnectionChanged(currentInfo, currentGroup);
+                }
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // caller must hold the lock
+    private void publishServicesLater() {
+        final List<AdvertisedService> services = new ArrayList<AdvertisedService>();
+        final List<WifiP2pDevice> sources = new ArrayList<WifiP2pDevice>();
+        for (AdvertisedService service : advertisedServices) {
+            if (service.deviceIndex < devices.length && inRange[service.deviceIndex]) {
+                services.add(service);
+                sources.add(new WifiP2pDevice(devices[service.deviceIndex]));
+            }
+        }
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Events events = events();
+                if (events == null) {
+                    return;
+                }
+                for (int i = 0; i < services.size(); i++) {
+                    AdvertisedService service = services.get(i);
+                    String registrationType = service.serviceType + ".local.";
+                    events.onDnsSdServiceAvailable(service.instanceName, registrationType, sources.get(i));
+                    events.onDnsSdTxtRecordAvailable(service.instanceName + "." + registrationType,
+                            new HashMap<String, String>(service.txtRecord), sources.get(i));
+                }
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void churn() {
+        boolean changed = false;
+        synchronized (this) {
+            for (int i = 0; i < devices.length; i++) {
+                if (random.nextDouble() < churnProbability && devices[i].status != WifiP2pDevice.CONNECTED) {
+                    inRange[i] = !inRange[i];
+                    changed = true;
+                }
+            }
+            changed &= discovering;
+        }
+        if (changed) {
+            publishPeers();
+        }
+    }
+
+    // caller must hold the lock
+    private List<WifiP2pDevice> copyDevicesInRange() {
+        List<WifiP2pDevice> peers = new ArrayList<WifiP2pDevice>(devices.length);
+        for (int i = 0; i < devices.length; i++) {
+            if (inRange[i]) {
+                // the platform hands out new device objects with every broadcast
+                peers.add(new WifiP2pDevice(devices[i]));
+            }
+        }
+        return peers;
+    }
+
+    private int indexOf(String deviceAddress) {
+        long address = MacAddress.parseToLong(deviceAddress);
+        if (address == MacAddress.INVALID || (address & ~0xFFFFFFFFL) != ADDRESS_PREFIX) {
+            return -1;
+        }
+        long index = address & 0xFFFFFFFFL;
+        return index < devices.length ? (int) index : -1;
+    }
+
+    private WifiP2pInfo newInfo(boolean isGroupOwner) {
+        WifiP2pInfo newInfo = new WifiP2pInfo();
+        newInfo.groupFormed = true;
+        newInfo.isGroupOwner = isGroupOwner;
+        try {
+            newInfo.groupOwnerAddress = InetAddress.getByAddress(new byte[]{127, 0, 0, 1});
+        } catch (UnknownHostException e) {
+            // not thrown for a literal four byte address
+        }
+        return newInfo;
+    }
+
+    /**
+     * WifiP2pGroup has no public setters, so the simulated group is filled in through
+     * the platform's hidden ones. If they are missing, the group stays empty, which
+     * means it is never reused by {@link com.albertcbraun.wifidlite.WifiDLite#createGroup}.
+     * The first such failure is logged.
+     */
+    private WifiP2pGroup newGroup(WifiP2pDevice owner, boolean isGroupOwner) {
+        WifiP2pGroup newGroup = new WifiP2pGroup();
+        String suffix = owner.deviceAddress.substring(owner.deviceAddress.length() - 5).replace(":", "");
+        setHidden(newGroup, "setNetworkName", String.class, "DIRECT-" + suffix + "-Simulated");
+        setHidden(newGroup, "setPassphrase", String.class, "sim" + suffix + "pass");
+        setHidden(newGroup, "setInterface", String.class, "p2p-sim-0");
+        setHidden(newGroup, "setIsGroupOwner", boolean.class, isGroupOwner);
+        setHidden(newGroup, "setOwner", WifiP2pDevice.class, new WifiP2pDevice(owner));
+        return newGroup;
+    }
+
+    private static void setHidden(Object target, String setter, Class<?> type, Object value) {
+        try {
+            target.getClass().getMethod(setter, type).invoke(target, value);
+        } catch (Exception e) {
+            // hidden API not available on this platform build
+            if (HIDDEN_SETTER_FAILURE_LOGGED.compareAndSet(false, true)) {
+                Log.w(TAG, "Cannot call WifiP2pGroup." + setter + ", so simulated groups will be "
+                        + "incomplete. Further failures are not logged.", e);
+            }
+        }
+    }
+
+    private static class AdvertisedService {
+        final int deviceIndex;
+        final String instanceName;
+        final String serviceType;
+        final Map<String, String> txtRecord;
+
+        AdvertisedService(int deviceIndex, String instanceName, String serviceType, Map<String, String> txtRecord) {
+            this.deviceIndex = deviceIndex;
+            this.instanceName = instanceName;
+            this.serviceType = serviceType;
+            this.txtRecord = txtRecord;
+        }
+    }
+}
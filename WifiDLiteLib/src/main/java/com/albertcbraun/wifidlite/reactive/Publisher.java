@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.reactive;
+
+/**
+ * A source of a potentially unbounded sequence of items, which it hands to each
+ * {@link Subscriber} only as fast as the subscriber asks for them.
+ * <p/>
+ * This and the other interfaces in this package have the same methods and contracts as
+ * those of the <a href="http://www.reactive-streams.org">Reactive Streams</a> specification
+ * (and of java.util.concurrent.Flow, which is not available on the platform versions this
+ * library supports), so adapting them to a Reactive Streams library takes one line per method.
+ *
+ * @param <T> the type of item published
+ */
+public interface Publisher<T> {
+
+    /**
+     * Asks the publisher to start sending items to the subscriber. The subscriber is first
+     * called back with {@link Subscriber#onSubscribe}, and receives no items until it
+     * requests some through the {@link Subscription} passed there.
+     *
+     * @param subscriber the subscriber, which must not be null
+     */
+    public void subscribe(Subscriber<? super T> subscriber);
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.reactive;
+
+/**
+ * Receives items from a {@link Publisher}. The calls to one subscriber never overlap,
+ * and {@link #onNext} is called at most as many times as items were requested.
+ *
+ * @param <T> the type of item received
+ */
+public interface Subscriber<T> {
+
+    /**
+     * Called once, before any other method, with the subscription through which items
+     * are requested.
+     *
+     * @param subscription the subscription
+     */
+    public void onSubscribe(Subscription subscription);
+
+    /**
+     * @param item the next item
+     */
+    public void onNext(T item);
+
+    /**
+     * The publisher failed. No further calls follow.
+     *
+     * @param throwable the cause
+     */
+    public void onError(Throwable throwable);
+
+    /**
+     * The publisher has no more items. No further calls follow.
+     */
+    public void onComplete();
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.reactive;
+
+/**
+ * The link between a {@link Publisher} and one {@link Subscriber}. Both methods may be
+ * called from any thread, including from within the subscriber's own callbacks.
+ */
+public interface Subscription {
+
+    /**
+     * Adds to the number of items the subscriber is ready to receive. Requests add up;
+     * a total of {@link Long#MAX_VALUE} or more means unbounded.
+     *
+     * @param n the number of additional items, which must be positive. A request for
+     *          zero or fewer items fails the subscription with an
+     *          {@link IllegalArgumentException} passed to {@link Subscriber#onError}.
+     */
+    public void request(long n);
+
+    /**
+     * Stops the items. A few may still arrive if they were already on their way.
+     */
+    public void cancel();
+}
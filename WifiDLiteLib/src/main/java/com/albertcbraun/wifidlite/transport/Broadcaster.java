@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the same messages to many connections, typically from a group owner to all of
+ * its clients. Each message is encoded once, and every connection writes it from the same
+ * pooled buffer, so broadcasting to twenty clients costs little more than sending to one.
+ * <p/>
+ * Every connection queues at most a given number of broadcast messages. When a client
+ * reads more slowly than messages are broadcast, its queue fills up and the
+ * {@link SlowConsumerPolicy} decides what happens; the other clients are not held up,
+ * except under {@link SlowConsumerPolicy#BLOCK}. Clients receive the messages through
+ * {@link ConnectionListener#onMessage}, like any other message.
+ * <p/>
+ * Connections are usually added in {@link ConnectionListener#onConnected} of the
+ * {@link Server}'s listener. Closed connections are dropped by themselves.
+ * <p/>
+ * All public methods are safe to call from any thread.
+ */
+public final class Broadcaster {
+
+    /**
+     * What to do when a connection already has the maximum number of broadcast messages
+     * queued.
+     */
+    public enum SlowConsumerPolicy {
+        /**
+         * Drop the oldest message queued for the connection, so that a slow client skips
+         * ahead to recent messages. Suits updates which supersede each other. A message
+         * which is already being written cannot be dropped, so if that is the only one
+         * queued (with a maximum of one), the new message is dropped instead.
+         */
+        DROP_OLDEST,
+        /**
+         * Close the connection, so that a client never silently misses a message.
+         */
+        DISCONNECT,
+        /**
+         * Make {@link #broadcast} wait until the connection has room, which holds up every
+         * client to the pace of the slowest. Never broadcast on a selector thread under
+         * this policy.
+         */
+        BLOCK
+    }
+
+    private static final Connection[] NO_CONNECTIONS = new Connection[0];
+
+    private final Transport transport;
+    private final int maxQueuedMessages;
+    private final SlowConsumerPolicy policy;
+
+    // guarded by this; replaced, never changed, so that broadcast can iterate it unlocked
+    private volatile Connection[] connections = NO_CONNECTIONS;
+    // guarded by this
+    private long messages = 0;
+    private long droppedMessages = 0;
+    private long disconnectedConnections = 0;
+
+    /**
+     * @param transport         the transport whose connections messages are broadcast to
+     * @param maxQueuedMessages the number of broadcast messages each connection may have
+     *                          queued before the policy applies
+     * @param policy            what to do about a connection whose queue is full
+     */
+    public Broadcaster(Transport transport, int maxQueuedMessages, SlowConsumerPolicy policy) {
+        if (transport == null || policy == null) {
+            throw new NullPointerException();
+        }
+        if (maxQueuedMessages < 1) {
+            throw new IllegalArgumentException("maxQueuedMessages must be at least 1");
+        }
+        this.transport = transport;
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.policy = policy;
+    }
+
+    /**
+     * Starts broadcasting to a connection. Messages broadcast earlier are not sent to it.
+     *
+     * @param connection a connection of this broadcaster's transport
+     * @throws IllegalArgumentException if the connection belongs to another transport
+     */
+    public synchronized void add(Connection connection) {
+        if (connection.getTransport() != transport) {
+            throw new IllegalArgumentException(connection + " belongs to another transport");
+        }
+        for (Connection existing : connections) {
+            if (existing == connection) {
+                return;
+            }
+        }
+        Connection[] added = new Connection[connections.length + 1];
+        System.arraycopy(connections, 0, added, 0, connections.length);
+        added[connections.length] = connection;
+        connections = added;
+    }
+
+    /**
+     * Stops broadcasting to a connection. Messages already queued for it are still sent.
+     *
+     * @param connection the connection
+     */
+    public synchronized void remove(Connection connection) {
+        Connection[] current = connections;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == connection) {
+                Connection[] removed = new Connection[current.length - 1];
+                System.arraycopy(current, 0, removed, 0, i);
+                System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+                connections = removed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues a message on every connection.
+     *
+     * @param message the message, from its position to its limit. Its position is left unchanged.
+     * @return the number of connections the message was queued on. Connections which were
+     * closed, or on which the message itself was dropped, are not counted.
+     * @throws IllegalArgumentException if the message is larger than the transport allows
+     * @throws IllegalStateException    if the policy is {@link SlowConsumerPolicy#BLOCK}
+     *                                  and this is called on the selector thread
+     * @throws InterruptedException     if interrupted while waiting under
+     *                                  {@link SlowConsumerPolicy#BLOCK}
+     */
+    public int broadcast(ByteBuffer message) throws InterruptedException {
+        if (policy == SlowConsumerPolicy.BLOCK && transport.inSelectorThread()) {
+            throw new IllegalStateException("Cannot block on the selector thread");
+        }
+        int length = message.remaining();
+        if (length > transport.getMaxMessageSize()) {
+            throw new IllegalArgumentException("Message of " + length + " bytes is too large");
+        }
+        BufferPool bufferPool = transport.getBufferPool();
+        ByteBuffer buffer = bufferPool.acquire(Connection.HEADER_SIZE + length);
+        int position = message.position();
+        buffer.put(Connection.MESSAGE_FRAME).putInt(length).put(message);
+        message.position(position);
+        buffer.flip();
+        SharedFrame frame = new SharedFrame(bufferPool, buffer);
+
+        int queued = 0;
+        int dropped = 0;
+        boolean closed = false;
+        try {
+            for (Connection connection : connections) {
+                int result = connection.enqueueShared(frame, maxQueuedMessages, policy);
+                if (result == Connection.SHARED_REFUSED) {
+                    closed = true;
+                    continue;
+                }
+                if (result == Connection.SHARED_SKIPPED) {
+                    dropped++;
+                    continue;
+                }
+                if (result == Connection.SHARED_DROPPED) {
+                    dropped++;
+                }
+                queued++;
+            }
+        } finally {
+            frame.release();
+        }
+        synchronized (this) {
+            messages++;
+            droppedMessages += dropped;
+        }
+        if (closed) {
+            removeClosed();
+        }
+        return queued;
+    }
+
+    /**
+     * Queues a message on every connection.
+     *
+     * @see #broadcast(ByteBuffer)
+     */
+    public int broadcast(byte[] message) throws InterruptedException {
+        return broadcast(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * @return the number of connections messages are broadcast to
+     */
+    public int getConnectionCount() {
+        return connections.length;
+    }
+
+    /**
+     * @return the number of messages broadcast so far
+     */
+    public synchronized long getMessageCount() {
+        return messages;
+    }
+
+    /**
+     * @return the number of times a message was dropped for a connection under
+     * {@link SlowConsumerPolicy#DROP_OLDEST}
+     */
+    public synchronized long getDroppedMessageCount() {
+        return droppedMessages;
+    }
+
+    /**
+     * @return the number of connections closed under {@link SlowConsumerPolicy#DISCONNECT}
+     * or found closed otherwise
+     */
+    public synchronized long getDisconnectedCount() {
+        return disconnectedConnections;
+    }
+
+    private synchronized void removeClosed() {
+        Connection[] current = connections;
+        int open = 0;
+        for (Connection connection : current) {
+            if (!connection.isClosing()) {
+                open++;
+            }
+        }
+        if (open == current.length) {
+            return;
+        }
+        Connection[] remaining = new Connection[open];
+        int i = 0;
+        for (Connection connection : current) {
+            if (!connection.isClosing()) {
+                remaining[i++] = connection;
+            }
+        }
+        disconnectedConnections += current.length - open;
+        connections = remaining;
+    }
+
+    @Override
+    public String toString() {
+        return "Broadcaster{connections=" + connections.length + ", policy=" + policy
+                + ", maxQueuedMessages=" + maxQueuedMessages + "}";
+    }
+}
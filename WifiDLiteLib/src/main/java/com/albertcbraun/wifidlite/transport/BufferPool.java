@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A pool of direct {@link ByteBuffer}s in power-of-two size classes, from
+ * {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE} bytes, which a {@link Transport}
+ * shares among all of its connections for frames and read buffers. Once the pool has
+ * warmed up, sending and receiving messages allocates nothing on the heap, so it causes
+ * no garbage collection pauses.
+ * <p/>
+ * The pool allocates at most its capacity in direct memory, counting both the buffers in
+ * use and those it keeps for reuse. Beyond that, and for requests larger than
+ * {@link #MAX_BUFFER_SIZE}, it hands out ordinary heap buffers which are not pooled.
+ * <p/>
+ * Every buffer taken with {@link #acquire} must be given back exactly once with
+ * {@link #release}, and must not be used afterwards. With leak tracking turned on (meant
+ * for debug builds, since it records the stack of every acquisition), releasing a buffer
+ * twice throws, and a buffer which is garbage collected without having been released is
+ * reported to the {@link LeakListener}. Without it, a leaked buffer keeps counting
+ * against the capacity.
+ * <p/>
+ * All methods are safe to call from any thread.
+ */
+public final class BufferPool {
+
+    /**
+     * The size of the smallest pooled buffers.
+     */
+    public static final int MIN_BUFFER_SIZE = 256;
+
+    /**
+     * The size of the largest pooled buffers. Larger requests are served from the heap.
+     */
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Default capacity, in bytes of direct memory.
+     */
+    public static final long DEFAULT_CAPACITY = 8 * 1024 * 1024;
+
+    private static final int MIN_SHIFT = 8;
+    private static final int CLASSES = 13;
+
+    private final long capacity;
+    private final boolean trackLeaks;
+    private volatile LeakListener leakListener = null;
+
+    // guarded by this
+    private final ArrayDeque<ByteBuffer>[] free;
+    private long allocatedBytes = 0;
+    private long freeBytes = 0;
+    private long acquisitions = 0;
+    private long allocations = 0;
+    private long heapFallbacks = 0;
+    private long leaks = 0;
+    private final ReferenceQueue<ByteBuffer> collected;
+    private final HashMap<Integer, List<Tracked>> tracked;
+
+    /**
+     * Creates a pool of {@link #DEFAULT_CAPACITY} bytes, without leak tracking.
+     */
+    public BufferPool() {
+        this(DEFAULT_CAPACITY, false);
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param capacity   the most direct memory, in bytes, which the pool allocates
+     * @param trackLeaks whether to track every buffer handed out, for debug builds
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long capacity, boolean trackLeaks) {
+        this.capacity = capacity;
+        this.trackLeaks = trackLeaks;
+        this.free = new ArrayDeque[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            free[i] = new ArrayDeque<ByteBuffer>();
+        }
+        this.collected = trackLeaks ? new ReferenceQueue<ByteBuffer>() : null;
+        this.tracked = trackLeaks ? new HashMap<Integer, List<Tracked>>() : null;
+    }
+
+    /**
+     * Takes a buffer with room for at least the given number of bytes.
+     *
+     * @param size the number of bytes needed
+     * @return a buffer whose position is zero and whose limit is the requested size
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > MAX_BUFFER_SIZE) {
+            synchronized (this) {
+                acquisitions++;
+                heapFallbacks++;
+            }
+            return ByteBuffer.allocate(size);
+        }
+        int index = classIndex(size);
+        int classSize = MIN_BUFFER_SIZE << index;
+        List<Tracked> leaked = null;
+        ByteBuffer buffer;
+        synchronized (this) {
+            if (trackLeaks) {
+                leaked = pollLeaks();
+            }
+            acquisitions++;
+            buffer = free[index].pollLast();
+            if (buffer != null) {
+                freeBytes -= classSize;
+            } else {
+                if (allocatedBytes + classSize > capacity) {
+                    evict(classSize);
+                }
+                if (allocatedBytes + classSize <= capacity) {
+                    buffer = ByteBuffer.allocateDirect(classSize);
+                    allocatedBytes += classSize;
+                    allocations++;
+                } else {
+                    heapFallbacks++;
+                }
+            }
+            if (buffer != null && trackLeaks) {
+                track(buffer);
+            }
+        }
+        if (leaked != null) {
+            reportLeaks(leaked);
+        }
+        if (buffer == null) {
+            return ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers which did not come from the pool are ignored.
+     *
+     * @param buffer a buffer returned by {@link #acquire}
+     * @throws IllegalStateException if leak tracking is on and the buffer has already been
+     *                               released
+     */
+    public void release(ByteBuffer buffer) {
+        int classSize = buffer.capacity();
+        if (!buffer.isDirect() || classSize < MIN_BUFFER_SIZE || classSize > MAX_BUFFER_SIZE
+                || Integer.bitCount(classSize) != 1) {
+            return;
+        }
+        synchronized (this) {
+            if (trackLeaks) {
+                untrack(buffer);
+            }
+            free[classIndex(classSize)].addLast(buffer);
+            freeBytes += classSize;
+        }
+    }
+
+    /**
+     * Sets the object told about buffers which were never released. Only used with leak
+     * tracking on.
+     *
+     * @param leakListener the listener, or null
+     */
+    public void setLeakListener(LeakListener leakListener) {
+        this.leakListener = leakListener;
+    }
+
+    /**
+     * @return the most direct memory the pool allocates, in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the direct memory currently allocated by the pool, in use or free, in bytes
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return the direct memory held by buffers which have been taken and not yet
+     * released, in bytes
+     */
+    public synchronized long getBytesInUse() {
+        return allocatedBytes - freeBytes;
+    }
+
+    /**
+     * @return the number of buffers handed out so far
+     */
+    public synchronized long getAcquisitions() {
+        return acquisitions;
+    }
+
+    /**
+     * @return the number of direct buffers allocated so far. Stops growing once the pool
+     * has warmed up.
+     */
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * @return the number of heap buffers handed out because a request was too large, or
+     * the pool had reached its capacity
+     */
+    public synchronized long getHeapFallbacks() {
+        return heapFallbacks;
+    }
+
+    /**
+     * @return the number of leaked buffers found so far, with leak tracking on
+     */
+    public synchronized long getLeaks() {
+        return leaks;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BufferPool: %d of %d bytes allocated, %d in use, %d acquisitions, "
+                        + "%d allocations, %d heap fallbacks, %d leaks", allocatedBytes, capacity,
+                allocatedBytes - freeBytes, acquisitions, allocations, heapFallbacks, leaks);
+    }
+
+    private static int classIndex(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    // caller must hold the lock; drops free buffers, largest first, to make room
+    private void evict(int needed) {
+        for (int i = CLASSES - 1; i >= 0 && allocatedBytes + needed > capacity; i--) {
+            int classSize = MIN_BUFFER_SIZE << i;
+            while (allocatedBytes + needed > capacity && free[i].pollFirst() != null) {
+                allocatedBytes -= classSize;
+                freeBytes -= classSize;
+            }
+        }
+    }
+
+    // caller must hold the lock
+    private void track(ByteBuffer buffer) {
+        Tracked reference = new Tracked(buffer, collected);
+        List<Tracked> list = tracked.get(reference.hash);
+        if (list == null) {
+            list = new ArrayList<Tracked>(1);
+            tracked.put(reference.hash, list);
+        }
+        list.add(reference);
+    }
+
+    // caller must hold the lock
+    private void untrack(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        List<Tracked> list = tracked.get(hash);
+        if (list != null) {
+            for (int i = 0; i < list.size(); i++) {
+                Tracked reference = list.get(i);
+                if (reference.get() == buffer) {
+                    reference.clear();
+                    removeTracked(list, i, hash);
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("Buffer released twice, or not taken from this pool");
+    }
+
+    private void removeTracked(List<Tracked> list, int i, int hash) {
+        list.remove(i);
+        if (list.isEmpty()) {
+            tracked.remove(hash);
+        }
+    }
+
+    // caller must hold the lock
+    private List<Tracked> pollLeaks() {
+        List<Tracked> leaked = null;
+        Tracked reference;
+        while ((reference = (Tracked) collected.poll()) != null) {
+            List<Tracked> list = tracked.get(reference.hash);
+            int i = list == null ? -1 : list.indexOf(reference);
+            if (i < 0) {
+                continue;
+            }
+            removeTracked(list, i, reference.hash);
+            allocatedBytes -= reference.capacity;
+            leaks++;
+            if (leaked == null) {
+                leaked = new ArrayList<Tracked>();
+            }
+            leaked.add(reference);
+        }
+        return leaked;
+    }
+
+    private void reportLeaks(List<Tracked> leaked) {
+        LeakListener listener = leakListener;
+        if (listener != null) {
+            for (Tracked reference : leaked) {
+                listener.onLeak(reference.capacity, reference.acquiredAt);
+            }
+        }
+    }
+
+    /**
+     * Told about pooled buffers which were garbage collected without being released.
+     */
+    public interface LeakListener {
+
+        /**
+         * @param capacity   the size of the leaked buffer
+         * @param acquiredAt the stack at the time the buffer was taken
+         */
+        public void onLeak(int capacity, Throwable acquiredAt);
+    }
+
+    /**
+     * A buffer handed out while leak tracking is on.
+     */
+    private static final class Tracked extends WeakReference<ByteBuffer> {
+        final int hash;
+        final int capacity;
+        final Throwable acquiredAt;
+
+        Tracked(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+            this.capacity = buffer.capacity();
+            this.acquiredAt = new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here");
+        }
+    }
+}
@@ -0,0 +1,844 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A TCP connection which carries whole messages between two devices, created by
+ * {@link Transport#connect} or accepted by a {@link Server}.
+ * <p/>
+ * On the wire each message is preceded by a five byte header: a frame type and the
+ * message length as a big-endian int. Messages are delivered to the
+ * {@link ConnectionListener} complete and in the order they were sent.
+ * <p/>
+ * Files are sent with {@link #sendFile}, as a header frame holding the file's size and
+ * name followed by the raw contents, which go from file to socket (and from socket to
+ * file) through {@link FileChannel}s rather than through heap buffers. The receiving side
+ * chooses the destination with a {@link FileReceiver}. Large files which should survive a
+ * dropped link are better sent through {@link ResumableTransfers}, which adds two more
+ * frame types: transfer control messages, and chunks of a file written at an offset.
+ * <p/>
+ * A {@link Multiplexer} carries any number of independent streams over one connection,
+ * in frames of one more type.
+ * <p/>
+ * A {@link Broadcaster} queues the same message frame on many connections, each of
+ * which keeps at most a bounded number of them queued.
+ * <p/>
+ * Messages can be sent from any thread. They are queued and written by the selector
+ * thread as the socket accepts them, so {@link #send} never blocks. Frames are built in
+ * direct buffers taken from the transport's {@link BufferPool} and given back once written,
+ * and messages are read into a pooled buffer and handed to the listener in place, so
+ * exchanging messages allocates nothing on the heap.
+ */
+public final class Connection implements Transport.Selectable {
+
+    static final int HEADER_SIZE = 5;
+    static final byte MESSAGE_FRAME = 1;
+    static final byte FILE_FRAME = 2;
+    static final byte TRANSFER_FRAME = 3;
+    static final byte CHUNK_FRAME = 4;
+    static final int CHUNK_HEADER_SIZE = 16;
+    static final byte STREAM_FRAME = 5;
+    static final int STREAM_HEADER_SIZE = 5;
+
+    // results of enqueueShared
+    static final int SHARED_QUEUED = 0;
+    static final int SHARED_DROPPED = 1;
+    static final int SHARED_REFUSED = 2;
+    static final int SHARED_SKIPPED = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 16 * 1024;
+
+    private static final int CONNECTING = 0;
+    private static final int OPEN = 1;
+    private static final int CLOSING = 2;
+    private static final int CLOSED = 3;
+
+    private final Transport transport;
+    private final BufferPool bufferPool;
+    private final SocketChannel channel;
+    private final ConnectionListener listener;
+    private final SocketAddress remoteAddress;
+    private volatile Object attachment = null;
+    private volatile FileReceiver fileReceiver = null;
+    private volatile TransferHandler transferHandler = null;
+    private volatile StreamHandler streamHandler = null;
+
+    // guarded by writeQueue; holds pooled ByteBuffers, SharedFrames and OutgoingFiles
+    private final ArrayDeque<Object> writeQueue = new ArrayDeque<Object>();
+    private volatile int state = CONNECTING;
+    // guarded by writeQueue; the number of SharedFrames in the write queue
+    private int sharedFrames = 0;
+
+    // used only on the selector thread
+    private SelectionKey key = null;
+    private ByteBuffer readBuffer = null;
+    // the payload of the frame being delivered; a view of readBuffer
+    private ByteBuffer payload = null;
+    private boolean reading = false;
+    // how much of the SharedFrame at the head of the write queue has been written
+    private int sharedOffset = 0;
+    private IncomingFile incomingFile = null;
+
+    private final Runnable enableWrite = new Runnable() {
+        @Override
+        public void run() {
+            if (key != null && key.isValid() && channel.isConnected()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    };
+
+    private final Runnable closeWhenFlushed = new Runnable() {
+        @Override
+        public void run() {
+            // accepted() runs this again once a connection still being established is up
+            if (channel.isConnectionPending()) {
+                return;
+            }
+            boolean flushed;
+            synchronized (writeQueue) {
+                flushed = writeQueue.isEmpty();
+            }
+            if (flushed || !channel.isConnected()) {
+                closeNow(null);
+            }
+        }
+    };
+
+    Connection(Transport transport, SocketChannel channel, ConnectionListener listener,
+               SocketAddress remoteAddress) {
+        this.transport = transport;
+        this.bufferPool = transport.getBufferPool();
+        this.channel = channel;
+        this.listener = listener;
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Queues a message. The bytes from the buffer's position to its limit are copied,
+     * so the buffer may be reused as soon as this method returns.
+     *
+     * @param message the message
+     * @return false if the connection is closing or closed, so the message will not be sent
+     * @throws IllegalArgumentException if the message is larger than the transport allows
+     */
+    public boolean send(ByteBuffer message) {
+        return sendFrame(MESSAGE_FRAME, message);
+    }
+
+    /**
+     * Queues a message. See {@link #send(ByteBuffer)}.
+     *
+     * @param message the message
+     * @return false if the connection is closing or closed, so the message will not be sent
+     */
+    public boolean send(byte[] message) {
+        return send(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Queues a file, behind any messages already queued. Messages queued afterwards are
+     * sent once the whole file has been sent. The file is opened straight away, and is
+     * read as the socket accepts data; it should not change until the transfer completes.
+     *
+     * @param file     the file to send
+     * @param listener told about the progress of the transfer
+     * @return the transfer, which reports the number of bytes sent so far
+     * @throws IOException if the file cannot be opened, or the connection is closing or closed
+     */
+    public FileTransfer sendFile(File file, FileTransferListener listener) throws IOException {
+        byte[] name = file.getName().getBytes(UTF_8);
+        if (name.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("File name too long: " + file.getName());
+        }
+        FileChannel fileChannel = new FileInputStream(file).getChannel();
+        FileTransfer transfer = new FileTransfer(file.getName(), fileChannel.size(), false, file);
+        ByteBuffer header = bufferPool.acquire(HEADER_SIZE + 8 + 2 + name.length);
+        header.put(FILE_FRAME).putInt(header.limit() - HEADER_SIZE)
+                .putLong(transfer.getSize()).putShort((short) name.length).put(name);
+        header.flip();
+        boolean wasEmpty;
+        synchronized (writeQueue) {
+            if (state == CLOSING || state == CLOSED) {
+                closeQuietly(fileChannel);
+                bufferPool.release(header);
+                throw new IOException(this + " is closed");
+            }
+            wasEmpty = writeQueue.isEmpty();
+            writeQueue.add(header);
+            writeQueue.add(new OutgoingFile(fileChannel, transfer, listener));
+        }
+        if (wasEmpty) {
+            transport.execute(enableWrite);
+        }
+        return transfer;
+    }
+
+    /**
+     * Queues a control message of a {@link ResumableTransfers}.
+     */
+    boolean sendTransferMessage(ByteBuffer message) {
+        return sendFrame(TRANSFER_FRAME, message);
+    }
+
+    /**
+     * Queues one chunk of a {@link ResumableTransfers} file: its header, then its contents.
+     *
+     * @return false if the connection is closing or closed, so the chunk will not be sent
+     */
+    boolean sendChunk(long transferId, int index, OutgoingFile chunk) {
+        ByteBuffer header = bufferPool.acquire(HEADER_SIZE + CHUNK_HEADER_SIZE);
+        header.put(CHUNK_FRAME).putInt(CHUNK_HEADER_SIZE).putLong(transferId).putInt(index)
+                .putInt((int) chunk.getTransfer().getSize());
+        header.flip();
+        boolean wasEmpty;
+        synchronized (writeQueue) {
+            if (state == CLOSING || state == CLOSED) {
+                bufferPool.release(header);
+                return false;
+            }
+            wasEmpty = writeQueue.isEmpty();
+            writeQueue.add(header);
+            writeQueue.add(chunk);
+        }
+        if (wasEmpty) {
+            transport.execute(enableWrite);
+        }
+        return true;
+    }
+
+    /**
+     * Routes transfer control messages and chunks to the given handler.
+     */
+    void setTransferHandler(TransferHandler transferHandler) {
+        this.transferHandler = transferHandler;
+    }
+
+    TransferHandler getTransferHandler() {
+        return transferHandler;
+    }
+
+    /**
+     * Queues a frame of a {@link Multiplexer} stream, made of the stream's id, an operation
+     * and the given number of bytes taken from the data, whose position is advanced.
+     *
+     * @param data the data, or null if there is none
+     * @return false if the connection is closing or closed, so the frame will not be sent
+     */
+    boolean sendStreamFrame(int streamId, byte operation, ByteBuffer data, int length) {
+        ByteBuffer frame = bufferPool.acquire(HEADER_SIZE + STREAM_HEADER_SIZE + length);
+        frame.put(STREAM_FRAME).putInt(STREAM_HEADER_SIZE + length).putInt(streamId).put(operation);
+        if (length > 0) {
+            int limit = data.limit();
+            data.limit(data.position() + length);
+            frame.put(data);
+            data.limit(limit);
+        }
+        frame.flip();
+        return enqueue(frame);
+    }
+
+    /**
+     * Queues a frame of a {@link Multiplexer} stream which carries a single int.
+     *
+     * @return false if the connection is closing or closed, so the frame will not be sent
+     */
+    boolean sendStreamFrame(int streamId, byte operation, int value) {
+        ByteBuffer frame = bufferPool.acquire(HEADER_SIZE + STREAM_HEADER_SIZE + 4);
+        frame.put(STREAM_FRAME).putInt(STREAM_HEADER_SIZE + 4).putInt(streamId).put(operation).putInt(value);
+        frame.flip();
+        return enqueue(frame);
+    }
+
+    /**
+     * Queues a frame shared with other connections, unless this connection already has
+     * the given number of shared frames queued. Then the policy decides: the oldest queued
+     * frame which is not being written is dropped (or, failing that, this one), the
+     * connection is closed, or the caller waits for room.
+     *
+     * @return {@link #SHARED_QUEUED}, {@link #SHARED_DROPPED} if an older frame was dropped to
+     * make room, {@link #SHARED_SKIPPED} if none could be and this one was not queued, or
+     * {@link #SHARED_REFUSED} if the connection is closing or has been closed
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    int enqueueShared(SharedFrame frame, int limit, Broadcaster.SlowConsumerPolicy policy)
+            throws InterruptedException {
+        boolean wasEmpty;
+        SharedFrame dropped = null;
+        boolean disconnect = false;
+        synchronized (writeQueue) {
+            if (policy == Broadcaster.SlowConsumerPolicy.BLOCK) {
+                while (sharedFrames >= limit && state != CLOSING && state != CLOSED) {
+                    writeQueue.wait();
+                }
+            }
+            if (state == CLOSING || state == CLOSED) {
+                return SHARED_REFUSED;
+            }
+            if (sharedFrames >= limit) {
+                if (policy == Broadcaster.SlowConsumerPolicy.DISCONNECT) {
+                    disconnect = true;
+                } else {
+                    dropped = removeOldestSharedFrame();
+                    if (dropped == null) {
+                        return SHARED_SKIPPED;
+                    }
+                }
+            }
+            wasEmpty = writeQueue.isEmpty();
+            if (!disconnect) {
+                frame.retain();
+                writeQueue.add(frame);
+                sharedFrames++;
+            }
+        }
+        if (disconnect) {
+            abort(new IOException(this + " fell more than " + limit + " messages behind"));
+            return SHARED_REFUSED;
+        }
+        if (dropped != null) {
+            dropped.release();
+        }
+        if (wasEmpty) {
+            transport.execute(enableWrite);
+        }
+        return dropped != null ? SHARED_DROPPED : SHARED_QUEUED;
+    }
+
+    // caller must hold the writeQueue lock; the head may be being written, so it stays
+    private SharedFrame removeOldestSharedFrame() {
+        boolean head = true;
+        for (Iterator<Object> items = writeQueue.iterator(); items.hasNext(); ) {
+            Object item = items.next();
+            if (!head && item instanceof SharedFrame) {
+                items.remove();
+                sharedFrames--;
+                return (SharedFrame) item;
+            }
+            head = false;
+        }
+        return null;
+    }
+
+    /**
+     * Closes the connection straight away, without writing what is queued.
+     */
+    void abort(final IOException cause) {
+        synchronized (writeQueue) {
+            if (state == CLOSED) {
+                return;
+            }
+            state = CLOSING;
+        }
+        transport.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeNow(cause);
+            }
+        });
+    }
+
+    /**
+     * Routes stream frames to the given handler.
+     */
+    void setStreamHandler(StreamHandler streamHandler) {
+        this.streamHandler = streamHandler;
+    }
+
+    StreamHandler getStreamHandler() {
+        return streamHandler;
+    }
+
+    /**
+     * Sets the object which decides where files sent by the other device are written.
+     * Without one, incoming files are discarded. Set it in
+     * {@link ConnectionListener#onConnected} so that no file arrives before it is set.
+     *
+     * @param fileReceiver the receiver, or null to discard incoming files
+     */
+    public void setFileReceiver(FileReceiver fileReceiver) {
+        this.fileReceiver = fileReceiver;
+    }
+
+    /**
+     * Closes the connection once every message queued so far has been written.
+     * The listener's {@link ConnectionListener#onClosed} is called when it has closed.
+     */
+    public void close() {
+        synchronized (writeQueue) {
+            if (state == CLOSING || state == CLOSED) {
+                return;
+            }
+            state = CLOSING;
+        }
+        transport.execute(closeWhenFlushed);
+    }
+
+    /**
+     * @return true from the time the connection is established until it starts closing
+     */
+    public boolean isOpen() {
+        return state == OPEN;
+    }
+
+    // true once the connection has started closing, or has closed
+    boolean isClosing() {
+        return state == CLOSING || state == CLOSED;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the address of the other device
+     */
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * @return the object last given to {@link #setAttachment}, or null
+     */
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * Associates an arbitrary object, such as per-connection application state,
+     * with this connection.
+     */
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    public String toString() {
+        return "Connection to " + remoteAddress;
+    }
+
+    // on the selector thread
+    void startConnecting(Selector selector) {
+        try {
+            if (channel.connect(remoteAddress)) {
+                accepted(selector);
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            closeNow(e);
+        } catch (ClosedSelectorException e) {
+            closeNow(null);
+        }
+    }
+
+    // on the selector thread, once the channel is connected
+    void accepted(Selector selector) {
+        setReadBuffer(bufferPool.acquire(INITIAL_READ_BUFFER_SIZE));
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            closeNow(e);
+            return;
+        } catch (ClosedSelectorException e) {
+            closeNow(null);
+            return;
+        }
+        synchronized (writeQueue) {
+            if (state == CONNECTING) {
+                state = OPEN;
+            }
+        }
+        enableWrite.run();
+        try {
+            listener.onConnected(this);
+        } catch (RuntimeException e) {
+            closeNow(new IOException("ConnectionListener failed", e));
+            return;
+        }
+        if (state == CLOSING) {
+            closeWhenFlushed.run();
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                accepted(key.selector());
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        } catch (IOException e) {
+            closeNow(e);
+        } catch (RuntimeException e) {
+            closeNow(new IOException("Listener failed", e));
+        }
+    }
+
+    @Override
+    public void onTransportClosed() {
+        closeNow(null);
+    }
+
+    private boolean sendFrame(byte type, ByteBuffer message) {
+        int length = message.remaining();
+        if (length > transport.getMaxMessageSize()) {
+            throw new IllegalArgumentException("Message of " + length + " bytes is too large");
+        }
+        ByteBuffer frame = bufferPool.acquire(HEADER_SIZE + length);
+        int position = message.position();
+        frame.put(type).putInt(length).put(message);
+        message.position(position);
+        frame.flip();
+        return enqueue(frame);
+    }
+
+    private boolean enqueue(ByteBuffer frame) {
+        boolean wasEmpty;
+        synchronized (writeQueue) {
+            if (state == CLOSING || state == CLOSED) {
+                bufferPool.release(frame);
+                return false;
+            }
+            wasEmpty = writeQueue.isEmpty();
+            writeQueue.add(frame);
+        }
+        if (wasEmpty) {
+            transport.execute(enableWrite);
+        }
+        return true;
+    }
+
+    private void write() throws IOException {
+        while (state != CLOSED) {
+            Object head;
+            synchronized (writeQueue) {
+                head = writeQueue.peek();
+                if (head == null) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    break;
+                }
+            }
+            if (head instanceof ByteBuffer) {
+                ByteBuffer buffer = (ByteBuffer) head;
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                synchronized (writeQueue) {
+                    writeQueue.poll();
+                }
+                bufferPool.release(buffer);
+                continue;
+            } else if (head instanceof SharedFrame) {
+                SharedFrame frame = (SharedFrame) head;
+                ByteBuffer buffer = frame.buffer;
+                buffer.limit(frame.length);
+                buffer.position(sharedOffset);
+                channel.write(buffer);
+                sharedOffset = buffer.position();
+                if (sharedOffset < frame.length) {
+                    return;
+                }
+                sharedOffset = 0;
+                synchronized (writeQueue) {
+                    writeQueue.poll();
+                    sharedFrames--;
+                    writeQueue.notifyAll();
+                }
+                frame.release();
+                continue;
+            } else if (!((OutgoingFile) head).writeTo(channel)) {
+                return;
+            }
+            synchronized (writeQueue) {
+                writeQueue.poll();
+            }
+        }
+        if (state == CLOSING) {
+            closeNow(null);
+        }
+    }
+
+    private void read() throws IOException {
+        reading = true;
+        try {
+            readFrames();
+        } finally {
+            reading = false;
+            if (state == CLOSED) {
+                releaseReadBuffer();
+            }
+        }
+    }
+
+    private void readFrames() throws IOException {
+        if (incomingFile != null && incomingFile.transferFrom(channel) > 0) {
+            // the listener may have closed the connection
+            if (state == CLOSED || incomingFile.remaining() > 0) {
+                return;
+            }
+            incomingFile = null;
+        }
+        int count = channel.read(readBuffer);
+        if (count < 0) {
+            if (incomingFile != null || readBuffer.position() > 0) {
+                throw new EOFException("Connection closed within a frame");
+            }
+            closeNow(null);
+            return;
+        }
+        readBuffer.flip();
+        int needed = 0;
+        while (state != CLOSED) {
+            if (incomingFile != null) {
+                incomingFile.write(readBuffer);
+                if (state == CLOSED || incomingFile.remaining() > 0) {
+                    break;
+                }
+                incomingFile = null;
+            }
+            if (readBuffer.remaining() < HEADER_SIZE) {
+                break;
+            }
+            int start = readBuffer.position();
+            byte type = readBuffer.get(start);
+            int length = readBuffer.getInt(start + 1);
+            if (length < 0 || length > transport.getMaxMessageSize()) {
+                throw new IOException("Received a message of " + length + " bytes, which is too large");
+            }
+            if (readBuffer.remaining() < HEADER_SIZE + length) {
+                needed = HEADER_SIZE + length;
+                break;
+            }
+            int end = start + HEADER_SIZE + length;
+            readBuffer.position(end);
+            payload.clear();
+            payload.limit(end);
+            payload.position(start + HEADER_SIZE);
+            onFrame(type, payload);
+        }
+        if (state == CLOSED) {
+            return;
+        }
+        readBuffer.compact();
+        if (needed > readBuffer.capacity()) {
+            ByteBuffer larger = bufferPool.acquire(Math.max(needed, readBuffer.capacity() * 2));
+            larger.clear();
+            readBuffer.flip();
+            larger.put(readBuffer);
+            bufferPool.release(readBuffer);
+            setReadBuffer(larger);
+        }
+    }
+
+    private void setReadBuffer(ByteBuffer buffer) {
+        buffer.limit(buffer.capacity());
+        readBuffer = buffer;
+        payload = buffer.duplicate();
+    }
+
+    private void releaseReadBuffer() {
+        if (readBuffer != null) {
+            bufferPool.release(readBuffer);
+            readBuffer = null;
+            payload = null;
+        }
+    }
+
+    private void onFrame(byte type, ByteBuffer payload) throws IOException {
+        if (type == MESSAGE_FRAME) {
+            listener.onMessage(this, payload);
+        } else if (type == FILE_FRAME) {
+            startIncomingFile(payload);
+        } else if (type == TRANSFER_FRAME) {
+            requireTransferHandler().onTransferMessage(this, payload);
+        } else if (type == CHUNK_FRAME) {
+            startIncomingChunk(payload);
+        } else if (type == STREAM_FRAME) {
+            StreamHandler handler = streamHandler;
+            if (handler == null) {
+                throw new IOException("Received a stream frame, but no Multiplexer is attached");
+            }
+            handler.onStreamFrame(this, payload);
+        } else {
+            throw new IOException("Received an unknown frame type " + type);
+        }
+    }
+
+    private void startIncomingFile(ByteBuffer header) throws IOException {
+        long size = header.getLong();
+        byte[] name = new byte[header.getShort()];
+        header.get(name);
+        FileTransfer transfer = new FileTransfer(new String(name, UTF_8), size, true, null);
+        FileReceiver receiver = fileReceiver;
+        File destination = receiver == null ? null : receiver.onFileOffered(this, transfer);
+        FileChannel file = null;
+        if (destination != null) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(destination, "rw");
+            randomAccessFile.setLength(0);
+            file = randomAccessFile.getChannel();
+            transfer.setFile(destination);
+        }
+        incomingFile = new IncomingFile(file, transfer, receiver);
+        incomingFile.start();
+        if (incomingFile.remaining() == 0) {
+            incomingFile = null;
+        }
+    }
+
+    private void startIncomingChunk(ByteBuffer header) throws IOException {
+        long transferId = header.getLong();
+        int index = header.getInt();
+        int length = header.getInt();
+        if (length < 0) {
+            throw new IOException("Received a chunk of " + length + " bytes");
+        }
+        incomingFile = requireTransferHandler().onChunk(this, transferId, index, length);
+        if (incomingFile == null) {
+            incomingFile = new IncomingFile(null, new FileTransfer("chunk", length, true, null), null);
+        }
+        incomingFile.start();
+        if (incomingFile.remaining() == 0) {
+            incomingFile = null;
+        }
+    }
+
+    private TransferHandler requireTransferHandler() throws IOException {
+        TransferHandler handler = transferHandler;
+        if (handler == null) {
+            throw new IOException("Received a resumable transfer, but no ResumableTransfers is attached");
+        }
+        return handler;
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+
+    // on the selector thread
+    private void closeNow(IOException cause) {
+        Object[] unsent;
+        synchronized (writeQueue) {
+            if (state == CLOSED) {
+                return;
+            }
+            state = CLOSED;
+            unsent = writeQueue.toArray();
+            writeQueue.clear();
+            sharedFrames = 0;
+            writeQueue.notifyAll();
+        }
+        for (Object item : unsent) {
+            if (item instanceof ByteBuffer) {
+                bufferPool.release((ByteBuffer) item);
+            } else if (item instanceof SharedFrame) {
+                ((SharedFrame) item).release();
+            }
+        }
+        if (!reading) {
+            releaseReadBuffer();
+        }
+        IOException transferFailure = cause != null ? cause : new EOFException(this + " closed");
+        for (Object item : unsent) {
+            if (item instanceof OutgoingFile) {
+                failQuietly((OutgoingFile) item, transferFailure);
+            }
+        }
+        if (incomingFile != null) {
+            try {
+                incomingFile.fail(transferFailure);
+            } catch (RuntimeException e) {
+                // the connection is closed regardless
+            }
+            incomingFile = null;
+        }
+        TransferHandler handler = transferHandler;
+        if (handler != null) {
+            try {
+                handler.onConnectionClosed(this);
+            } catch (RuntimeException e) {
+                // the connection is closed regardless
+            }
+        }
+        StreamHandler multiplexer = streamHandler;
+        if (multiplexer != null) {
+            try {
+                multiplexer.onConnectionClosed(this, transferFailure);
+            } catch (RuntimeException e) {
+                // the connection is closed regardless
+            }
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+        try {
+            listener.onClosed(this, cause);
+        } catch (RuntimeException e) {
+            // the connection is closed regardless
+        }
+    }
+
+    private static void failQuietly(OutgoingFile outgoingFile, IOException cause) {
+        try {
+            outgoingFile.fail(cause);
+        } catch (RuntimeException e) {
+            // the connection is closed regardless
+        }
+    }
+}
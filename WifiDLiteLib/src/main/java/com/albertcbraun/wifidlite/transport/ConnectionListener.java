@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Callback interface for the life cycle of a {@link Connection} and the messages it receives.
+ * <p/>
+ * All methods are called on the {@link Transport}'s selector thread, which serves every
+ * connection of the transport. They must return quickly and must not block; hand any
+ * longer work to another thread.
+ */
+public interface ConnectionListener {
+
+    /**
+     * The connection has been established, either by {@link Transport#connect} or by
+     * a {@link Server} accepting it. Messages may be sent from now on.
+     *
+     * @param connection the new connection
+     */
+    public void onConnected(Connection connection);
+
+    /**
+     * A complete message has arrived.
+     *
+     * @param connection the connection it arrived on
+     * @param message    the message, from its position to its limit. Only valid until this
+     *                   method returns; copy it to keep it.
+     */
+    public void onMessage(Connection connection, ByteBuffer message);
+
+    /**
+     * The connection has been closed, or could not be established. Called exactly once
+     * for every connection.
+     *
+     * @param connection the closed connection
+     * @param cause      null if the connection was closed by either side in an orderly
+     *                   way, otherwise the error which ended it
+     */
+    public void onClosed(Connection connection, IOException cause);
+}
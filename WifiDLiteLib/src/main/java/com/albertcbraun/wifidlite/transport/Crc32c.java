@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * CRC-32C (Castagnoli), the checksum used by iSCSI, SCTP and ext4. Implemented here
+ * because java.util.zip.CRC32C only arrived in Java 9, and so is missing from Android
+ * before API 26. Uses the slicing-by-8 table method, which processes eight bytes per
+ * step.
+ */
+final class Crc32c {
+
+    private static final int POLYNOMIAL = 0x82F63B78; // reflected
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            int crc = TABLES[0][n];
+            for (int t = 1; t < 8; t++) {
+                crc = TABLES[0][crc & 0xff] ^ (crc >>> 8);
+                TABLES[t][n] = crc;
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    /**
+     * Adds the bytes from the buffer's position to its limit, and moves the
+     * position to the limit.
+     */
+    void update(ByteBuffer buffer) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int c = crc;
+        int position = buffer.position();
+        int limit = buffer.limit();
+        while (limit - position >= 8) {
+            int low = c ^ ((buffer.get(position) & 0xff) | (buffer.get(position + 1) & 0xff) << 8
+                    | (buffer.get(position + 2) & 0xff) << 16 | (buffer.get(position + 3) & 0xff) << 24);
+            c = t7[low & 0xff] ^ t6[(low >>> 8) & 0xff] ^ t5[(low >>> 16) & 0xff] ^ t4[low >>> 24]
+                    ^ t3[buffer.get(position + 4) & 0xff] ^ t2[buffer.get(position + 5) & 0xff]
+                    ^ t1[buffer.get(position + 6) & 0xff] ^ t0[buffer.get(position + 7) & 0xff];
+            position += 8;
+        }
+        while (position < limit) {
+            c = t0[(c ^ buffer.get(position++)) & 0xff] ^ (c >>> 8);
+        }
+        buffer.position(limit);
+        crc = c;
+    }
+
+    void update(byte[] bytes, int offset, int length) {
+        update(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    int getValue() {
+        return ~crc;
+    }
+
+    void reset() {
+        crc = 0xffffffff;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.File;
+
+/**
+ * Decides where files sent over a {@link Connection} are written, and follows their
+ * progress. See {@link Connection#setFileReceiver}.
+ * <p/>
+ * All methods are called on the {@link Transport}'s selector thread.
+ */
+public interface FileReceiver extends FileTransferListener {
+
+    /**
+     * A file is about to arrive.
+     *
+     * @param connection the connection it arrives on
+     * @param transfer   its name and size
+     * @return the file to write it to, which is created or truncated, or null to discard it
+     */
+    public File onFileOffered(Connection connection, FileTransfer transfer);
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.File;
+
+/**
+ * The state of one file being sent or received over a {@link Connection}, as reported
+ * to a {@link FileTransferListener}.
+ */
+public final class FileTransfer {
+
+    private final String name;
+    private final long size;
+    private final boolean incoming;
+    private volatile File file;
+    private volatile long bytesTransferred = 0;
+    private volatile long bytesSkipped = 0;
+    private volatile long startNanos = 0;
+    private volatile long endNanos = 0;
+
+    FileTransfer(String name, long size, boolean incoming, File file) {
+        this.name = name;
+        this.size = size;
+        this.incoming = incoming;
+        this.file = file;
+    }
+
+    /**
+     * @return the name the sender gave the file, normally its file name without a path
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of bytes in the file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return true if the file is being received, false if it is being sent
+     */
+    public boolean isIncoming() {
+        return incoming;
+    }
+
+    /**
+     * @return the local file being sent or written, or null if incoming data is discarded
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * @return the time in milliseconds from the first byte until the transfer completed
+     * (or until now, if it is still in progress)
+     */
+    public long getElapsedMillis() {
+        long start = startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = endNanos;
+        return ((end != 0 ? end : System.nanoTime()) - start) / 1000000;
+    }
+
+    /**
+     * @return the average rate of the transfer so far, in bytes per second. Bytes which a
+     * resumed transfer did not have to send again are not counted.
+     */
+    public long getThroughput() {
+        long start = startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = endNanos;
+        long elapsed = (end != 0 ? end : System.nanoTime()) - start;
+        return elapsed <= 0 ? 0 : (long) ((bytesTransferred - bytesSkipped) * 1e9 / elapsed);
+    }
+
+    /**
+     * @return true once every byte has been transferred
+     */
+    public boolean isComplete() {
+        return bytesTransferred == size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s: %d of %d bytes, %d bytes/s", incoming ? "receiving" : "sending",
+                name, bytesTransferred, size, getThroughput());
+    }
+
+    void setFile(File file) {
+        this.file = file;
+    }
+
+    // on the selector thread
+    void addBytes(long count) {
+        if (startNanos == 0) {
+            startNanos = System.nanoTime();
+        }
+        bytesTransferred += count;
+        if (bytesTransferred == size) {
+            endNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Moves the count of bytes transferred to the given value without starting the clock,
+     * for bytes which a resumed transfer already holds (or for chunks which have to be
+     * sent again, when the value goes down).
+     */
+    void skipTo(long transferred) {
+        bytesSkipped += transferred - bytesTransferred;
+        bytesTransferred = transferred;
+        if (transferred < size) {
+            endNanos = 0;
+        }
+    }
+
+    void finish() {
+        if (endNanos == 0) {
+            endNanos = System.nanoTime();
+        }
+    }
+}
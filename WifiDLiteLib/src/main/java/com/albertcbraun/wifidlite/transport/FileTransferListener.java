@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.IOException;
+
+/**
+ * Callback interface for the progress of a {@link FileTransfer}.
+ * <p/>
+ * All methods are called on the {@link Transport}'s selector thread. They must
+ * return quickly and must not block.
+ */
+public interface FileTransferListener {
+
+    /**
+     * More of the file has been sent or received. Called after each batch which the
+     * socket accepts or delivers, so possibly many times per second.
+     *
+     * @param transfer the transfer, with its updated byte count
+     */
+    public void onTransferProgress(FileTransfer transfer);
+
+    /**
+     * Every byte of the file has been written to the socket (when sending) or to the
+     * destination file (when receiving).
+     *
+     * @param transfer the completed transfer, with its final throughput
+     */
+    public void onTransferComplete(FileTransfer transfer);
+
+    /**
+     * The transfer cannot be completed, because the connection closed or a file
+     * could not be read or written.
+     *
+     * @param transfer the failed transfer
+     * @param cause    the reason
+     */
+    public void onTransferFailed(FileTransfer transfer, IOException cause);
+}
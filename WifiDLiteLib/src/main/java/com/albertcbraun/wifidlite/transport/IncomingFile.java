@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * A file arriving on a {@link Connection}. Data is moved from the socket to the file
+ * with {@link FileChannel#transferFrom}, so it never passes through a heap array in
+ * the library. Only bytes which arrived in the same read as the file's header frame
+ * are written from the connection's read buffer.
+ */
+final class IncomingFile {
+
+    // bounds the time spent on one connection before the selector serves the others
+    private static final long MAX_BATCH = 512 * 1024;
+
+    private final FileChannel file;
+    private final long offset;
+    private final boolean closeFile;
+    private final FileTransfer transfer;
+    private final FileTransferListener listener;
+    private long position = 0;
+
+    /**
+     * @param file     the destination, or null to discard the data
+     * @param transfer the transfer announced by the header frame
+     * @param listener told about progress, or null
+     */
+    IncomingFile(FileChannel file, FileTransfer transfer, FileTransferListener listener) {
+        this(file, 0, true, transfer, listener);
+    }
+
+    /**
+     * @param file      the destination, or null to discard the data
+     * @param offset    where in the destination the data starts
+     * @param closeFile whether to close the destination once the data has been written
+     * @param transfer  the transfer announced by the header frame
+     * @param listener  told about progress, or null
+     */
+    IncomingFile(FileChannel file, long offset, boolean closeFile, FileTransfer transfer,
+                 FileTransferListener listener) {
+        this.file = file;
+        this.offset = offset;
+        this.closeFile = closeFile;
+        this.transfer = transfer;
+        this.listener = listener;
+    }
+
+    /**
+     * Completes the transfer straight away if the file is empty.
+     */
+    void start() {
+        if (remaining() == 0) {
+            transfer.finish();
+            closeFile();
+            if (listener != null) {
+                listener.onTransferComplete(transfer);
+            }
+        }
+    }
+
+    long remaining() {
+        return transfer.getSize() - position;
+    }
+
+    boolean isDiscarding() {
+        return file == null;
+    }
+
+    /**
+     * Moves whatever the socket has available straight into the file.
+     *
+     * @return the number of bytes moved; zero if none were available, the socket has
+     * reached its end, or the data is being discarded
+     */
+    long transferFrom(SocketChannel socket) throws IOException {
+        if (file == null) {
+            return 0;
+        }
+        long count = file.transferFrom(socket, offset + position, Math.min(remaining(), MAX_BATCH));
+        advance(count);
+        return count;
+    }
+
+    /**
+     * Writes up to {@link #remaining} bytes from the buffer, advancing its position.
+     */
+    void write(ByteBuffer data) throws IOException {
+        int count = (int) Math.min(data.remaining(), remaining());
+        if (count == 0) {
+            return;
+        }
+        if (file == null) {
+            data.position(data.position() + count);
+        } else {
+            int limit = data.limit();
+            data.limit(data.position() + count);
+            while (data.hasRemaining()) {
+                file.write(data, offset + position + count - data.remaining());
+            }
+            data.limit(limit);
+        }
+        advance(count);
+    }
+
+    private void advance(long count) {
+        if (count <= 0) {
+            return;
+        }
+        position += count;
+        transfer.addBytes(count);
+        if (listener != null) {
+            listener.onTransferProgress(transfer);
+        }
+        if (remaining() == 0) {
+            closeFile();
+            if (listener != null) {
+                listener.onTransferComplete(transfer);
+            }
+        }
+    }
+
+    void fail(IOException cause) {
+        closeFile();
+        transfer.finish();
+        if (listener != null) {
+            listener.onTransferFailed(transfer, cause);
+        }
+    }
+
+    private void closeFile() {
+        if (closeFile) {
+            Connection.closeQuietly(file);
+        }
+    }
+}
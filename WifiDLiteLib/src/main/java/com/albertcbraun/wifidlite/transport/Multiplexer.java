@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Carries many independent {@link Stream}s over a single {@link Connection}, so that, for
+ * example, control messages and bulk data can share one link without one stalling the
+ * other, and without a TCP handshake and a socket for each.
+ * <p/>
+ * Either side may {@link #openStream open} streams; streams opened by the other side are
+ * offered to the {@link StreamAcceptor}. Stream data travels in frames of at most
+ * {@link #MAX_FRAME_DATA} bytes and is flow controlled per stream: a side sends no more
+ * than {@link #WINDOW_SIZE} bytes of a stream ahead of what the other side has received,
+ * and the receiver makes room again as its listener returns.
+ * <p/>
+ * Whole messages can still be sent on the connection itself alongside the streams.
+ * <p/>
+ * All public methods are safe to call from any thread.
+ */
+public final class Multiplexer {
+
+    /**
+     * The number of bytes of a stream which may be in transit at once.
+     */
+    public static final int WINDOW_SIZE = 256 * 1024;
+
+    /**
+     * The largest number of bytes of stream data in one frame.
+     */
+    public static final int MAX_FRAME_DATA = 16 * 1024;
+
+    private static final byte OPEN = 1;
+    private static final byte DATA = 2;
+    private static final byte WINDOW = 3;
+    private static final byte CLOSE = 4;
+    private static final byte RESET = 5;
+
+    // set in the id of frames sent by the side which did not open the stream
+    private static final int ACCEPTOR_FLAG = 0x80000000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private volatile Connection connection;
+    private final StreamAcceptor acceptor;
+
+    // guarded by this
+    private final IntMap<Stream> localStreams = new IntMap<Stream>();
+    private final IntMap<Stream> remoteStreams = new IntMap<Stream>();
+    private int nextId = 1;
+    private boolean closed = false;
+
+    private final StreamHandler handler = new StreamHandler() {
+        @Override
+        public void onStreamFrame(Connection connection, ByteBuffer frame) throws IOException {
+            onFrame(frame);
+        }
+
+        @Override
+        public void onConnectionClosed(Connection connection, IOException cause) {
+            closeAll(cause);
+        }
+    };
+
+    /**
+     * Starts carrying streams over a connection accepted by a {@link Server}. Call it in
+     * {@link ConnectionListener#onConnected}, so that no stream frame arrives before it
+     * is attached. The other side must attach a multiplexer too.
+     *
+     * @param connection the connection
+     * @param acceptor   decides about streams the other side opens, or null to refuse them
+     * @throws IllegalStateException if the connection already has a multiplexer
+     */
+    public Multiplexer(Connection connection, StreamAcceptor acceptor) {
+        this(acceptor);
+        attach(connection);
+    }
+
+    private Multiplexer(StreamAcceptor acceptor) {
+        this.acceptor = acceptor;
+    }
+
+    /**
+     * Opens a connection which carries streams. Streams may be opened straight away; they
+     * are sent once the connection has been established.
+     *
+     * @param transport     the transport to connect through
+     * @param remoteAddress the address of a {@link Server} whose connections have
+     *                      multiplexers attached
+     * @param listener      told about the connection, and about messages sent on the
+     *                      connection outside the streams
+     * @param acceptor      decides about streams the other side opens, or null to refuse them
+     * @return the multiplexer
+     * @throws IOException if a socket cannot be opened
+     */
+    public static Multiplexer connect(Transport transport, InetSocketAddress remoteAddress,
+                                      final ConnectionListener listener, StreamAcceptor acceptor)
+            throws IOException {
+        final Multiplexer multiplexer = new Multiplexer(acceptor);
+        Connection connection = transport.connect(remoteAddress, new ConnectionListener() {
+            @Override
+            public void onConnected(Connection connection) {
+                // may run before connect returns
+                multiplexer.attach(connection);
+                listener.onConnected(connection);
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer message) {
+                listener.onMessage(connection, message);
+            }
+
+            @Override
+            public void onClosed(Connection connection, IOException cause) {
+                listener.onClosed(connection, cause);
+            }
+        });
+        multiplexer.attach(connection);
+        return multiplexer;
+    }
+
+    private void attach(Connection connection) {
+        StreamHandler current = connection.getStreamHandler();
+        if (current != null && current != handler) {
+            throw new IllegalStateException(connection + " already has a Multiplexer");
+        }
+        connection.setStreamHandler(handler);
+        this.connection = connection;
+    }
+
+    /**
+     * Opens a stream to the other side, whose {@link StreamAcceptor} is offered it.
+     *
+     * @param name     tells the other side what the stream is for
+     * @param listener told about the stream's data and when it closes
+     * @return the stream, to which data can be written straight away
+     * @throws IOException if the connection is closed
+     */
+    public Stream openStream(String name, StreamListener listener) throws IOException {
+        ByteBuffer nameBytes = UTF_8.encode(name);
+        synchronized (this) {
+            if (closed) {
+                throw new IOException(connection + " is closed");
+            }
+            Stream stream = new Stream(this, nextId++, true, name, listener);
+            if (!connection.sendStreamFrame(stream.id, OPEN, nameBytes, nameBytes.remaining())) {
+                throw new IOException(connection + " is closed");
+            }
+            localStreams.put(stream.id, stream);
+            return stream;
+        }
+    }
+
+    /**
+     * @return the connection which carries the streams
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return the number of open streams, in both directions
+     */
+    public synchronized int getStreamCount() {
+        return localStreams.size() + remoteStreams.size();
+    }
+
+    /**
+     * Closes the connection, once everything queued on it so far has been written. Streams
+     * which are still open are closed with an error.
+     */
+    public void close() {
+        connection.close();
+    }
+
+    @Override
+    public String toString() {
+        return "Multiplexer over " + connection;
+    }
+
+    private static int wireId(Stream stream) {
+        return stream.local ? stream.id : stream.id | ACCEPTOR_FLAG;
+    }
+
+    boolean write(Stream stream, ByteBuffer data) {
+        synchronized (this) {
+            if (stream.state != Stream.OPEN) {
+                return false;
+            }
+            while (data.hasRemaining() && stream.pending.isEmpty() && stream.sendWindow > 0) {
+                sendData(stream, data);
+            }
+            if (data.hasRemaining()) {
+                ByteBuffer copy = connection.getBufferPool().acquire(data.remaining());
+                copy.put(data);
+                copy.flip();
+                stream.pending.add(copy);
+                stream.bufferedBytes += copy.remaining();
+            }
+            return true;
+        }
+    }
+
+    void close(Stream stream) {
+        synchronized (this) {
+            if (stream.state != Stream.OPEN) {
+                return;
+            }
+            stream.state = Stream.CLOSING;
+            if (!stream.pending.isEmpty()) {
+                // closed by flush once the pending data has been sent
+                return;
+            }
+            finishClosing(stream);
+        }
+        notifyClosed(stream, null);
+    }
+
+    void reset(Stream stream) {
+        synchronized (this) {
+            if (stream.state == Stream.CLOSED) {
+                return;
+            }
+            connection.sendStreamFrame(wireId(stream), RESET, null, 0);
+            remove(stream);
+        }
+        notifyClosed(stream, null);
+    }
+
+    // caller must hold the lock
+    private void sendData(Stream stream, ByteBuffer data) {
+        int length = Math.min(data.remaining(), Math.min(MAX_FRAME_DATA, stream.sendWindow));
+        connection.sendStreamFrame(wireId(stream), DATA, data, length);
+        stream.sendWindow -= length;
+    }
+
+    // caller must hold the lock
+    private void finishClosing(Stream stream) {
+        connection.sendStreamFrame(wireId(stream), CLOSE, null, 0);
+        remove(stream);
+    }
+
+    // caller must hold the lock
+    private void remove(Stream stream) {
+        stream.state = Stream.CLOSED;
+        for (ByteBuffer buffer : stream.pending) {
+            connection.getBufferPool().release(buffer);
+        }
+        stream.pending.clear();
+        stream.bufferedBytes = 0;
+        (stream.local ? localStreams : remoteStreams).remove(stream.id);
+    }
+
+    private static void notifyClosed(Stream stream, IOException cause) {
+        StreamListener listener = stream.listener;
+        if (listener != null) {
+            listener.onClosed(stream, cause);
+        }
+    }
+
+    // on the selector thread
+    private void onFrame(ByteBuffer frame) throws IOException {
+        int wireId = frame.getInt();
+        byte operation = frame.get();
+        // the flag is set on frames for streams which this side opened
+        boolean local = (wireId & ACCEPTOR_FLAG) != 0;
+        int id = wireId & ~ACCEPTOR_FLAG;
+        if (operation == OPEN) {
+            if (local) {
+                throw new IOException("Received an invalid stream id " + wireId);
+            }
+            onOpen(id, UTF_8.decode(frame).toString());
+            return;
+        }
+        Stream stream;
+        synchronized (this) {
+            stream = (local ? localStreams : remoteStreams).get(id);
+        }
+        if (stream == null) {
+            // closed or reset by this side while the frame was in transit
+            return;
+        }
+        if (operation == DATA) {
+            onData(stream, frame);
+        } else if (operation == WINDOW) {
+            onWindow(stream, frame.getInt());
+        } else if (operation == CLOSE) {
+            onRemoteClose(stream, null);
+        } else if (operation == RESET) {
+            onRemoteClose(stream, new IOException(stream + " was reset by the other device"));
+        } else {
+            throw new IOException("Received an unknown stream operation " + operation);
+        }
+    }
+
+    private void onOpen(int id, String name) throws IOException {
+        Stream stream = new Stream(this, id, false, name, null);
+        synchronized (this) {
+            if (remoteStreams.containsKey(id)) {
+                throw new IOException("Stream " + id + " was opened twice");
+            }
+            remoteStreams.put(id, stream);
+        }
+        StreamListener listener = acceptor == null ? null : acceptor.onStreamOpened(stream);
+        if (listener == null) {
+            synchronized (this) {
+                if (stream.state != Stream.CLOSED) {
+                    connection.sendStreamFrame(wireId(stream), RESET, null, 0);
+                    remove(stream);
+                }
+            }
+            return;
+        }
+        stream.listener = listener;
+    }
+
+    private void onData(Stream stream, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        synchronized (this) {
+            if (length > stream.receiveWindow) {
+                throw new IOException(stream + " sent more than its window");
+            }
+            stream.receiveWindow -= length;
+        }
+        stream.listener.onData(stream, data);
+        synchronized (this) {
+            if (stream.state == Stream.CLOSED) {
+                return;
+            }
+            stream.consumed += length;
+            if (stream.consumed >= WINDOW_SIZE / 2) {
+                connection.sendStreamFrame(wireId(stream), WINDOW, stream.consumed);
+                stream.receiveWindow += stream.consumed;
+                stream.consumed = 0;
+            }
+        }
+    }
+
+    private void onWindow(Stream stream, int credit) {
+        boolean drained = false;
+        boolean closedNow = false;
+        synchronized (this) {
+            if (stream.state == Stream.CLOSED) {
+                return;
+            }
+            stream.sendWindow += credit;
+            while (stream.sendWindow > 0 && !stream.pending.isEmpty()) {
+                ByteBuffer head = stream.pending.peek();
+                int before = head.remaining();
+                sendData(stream, head);
+                stream.bufferedBytes -= before - head.remaining();
+                if (!head.hasRemaining()) {
+                    connection.getBufferPool().release(stream.pending.poll());
+                    drained = stream.pending.isEmpty();
+                }
+            }
+            if (drained && stream.state == Stream.CLOSING) {
+                finishClosing(stream);
+                closedNow = true;
+            }
+        }
+        if (closedNow) {
+            notifyClosed(stream, null);
+        } else if (drained) {
+            stream.listener.onDrained(stream);
+        }
+    }
+
+    private void onRemoteClose(Stream stream, IOException cause) {
+        synchronized (this) {
+            if (stream.state == Stream.CLOSED) {
+                return;
+            }
+            remove(stream);
+        }
+        notifyClosed(stream, cause);
+    }
+
+    // on the selector thread
+    private void closeAll(IOException cause) {
+        List<Stream> streams;
+        synchronized (this) {
+            closed = true;
+            streams = new ArrayList<Stream>(localStreams.size() + remoteStreams.size());
+            localStreams.addValuesTo(streams);
+            remoteStreams.addValuesTo(streams);
+            for (Stream stream : streams) {
+                remove(stream);
+            }
+        }
+        for (Stream stream : streams) {
+            try {
+                notifyClosed(stream, cause);
+            } catch (RuntimeException e) {
+                // the other streams are closed regardless
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * A file queued behind its header frame on a {@link Connection}. The file is written to
+ * the socket with {@link FileChannel#transferTo}, which lets the kernel send it straight
+ * from the page cache, without copying it through the Java heap.
+ */
+final class OutgoingFile {
+
+    // bounds the time spent on one connection before the selector serves the others
+    private static final long MAX_BATCH = 512 * 1024;
+
+    private final FileChannel file;
+    private final long offset;
+    private final boolean closeFile;
+    private final FileTransfer transfer;
+    private final FileTransferListener listener;
+    private long position = 0;
+
+    OutgoingFile(FileChannel file, FileTransfer transfer, FileTransferListener listener) {
+        this(file, 0, true, transfer, listener);
+    }
+
+    /**
+     * Sends part of a file: the transfer's size in bytes, starting at the given offset.
+     *
+     * @param closeFile whether to close the file once the data has been sent
+     */
+    OutgoingFile(FileChannel file, long offset, boolean closeFile, FileTransfer transfer,
+                 FileTransferListener listener) {
+        this.file = file;
+        this.offset = offset;
+        this.closeFile = closeFile;
+        this.transfer = transfer;
+        this.listener = listener;
+    }
+
+    FileTransfer getTransfer() {
+        return transfer;
+    }
+
+    /**
+     * Sends as much of the file as the socket accepts.
+     *
+     * @return true once the whole file has been sent
+     */
+    boolean writeTo(SocketChannel socket) throws IOException {
+        long size = transfer.getSize();
+        if (position < size) {
+            long count = file.transferTo(offset + position, Math.min(size - position, MAX_BATCH), socket);
+            if (count == 0 && file.size() < offset + size) {
+                throw new IOException(transfer.getName() + " shrank while it was being sent");
+            }
+            if (count > 0) {
+                position += count;
+                transfer.addBytes(count);
+                listener.onTransferProgress(transfer);
+            }
+        }
+        if (position < size) {
+            return false;
+        }
+        closeFile();
+        listener.onTransferComplete(transfer);
+        return true;
+    }
+
+    void fail(IOException cause) {
+        closeFile();
+        transfer.finish();
+        listener.onTransferFailed(transfer, cause);
+    }
+
+    private void closeFile() {
+        if (closeFile) {
+            Connection.closeQuietly(file);
+        }
+    }
+}
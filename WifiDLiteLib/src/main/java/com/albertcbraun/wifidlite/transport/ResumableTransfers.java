@@ -0,0 +1,1034 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Sends files in fixed-size chunks which survive a dropped link: after reconnecting, only
+ * the chunks which the receiver does not hold yet, or which failed their checksum, are
+ * sent again.
+ * <p/>
+ * The sender computes a CRC-32C checksum of every chunk and offers the file, with the
+ * list of checksums, on one of its connections. The receiver answers with the chunks it
+ * still needs; each chunk it receives is checked against its checksum before it is
+ * recorded as held. Both sides keep a manifest in the state directory: the sender's holds
+ * the checksums, so they are not recomputed on resume, and the receiver's holds the
+ * checksums, the destination and the chunks received so far, so that a transfer can
+ * resume even after the receiving app has restarted. Manifests are deleted once the
+ * transfer completes.
+ * <p/>
+ * A file is identified by its name, size and modification time. Sending the same file
+ * again after a failure resumes it; a file which has changed in the meantime starts over.
+ * <p/>
+ * Chunks may be spread over several connections to the same device, which are used in
+ * parallel. Each side must {@link #attach} its connections (the sender's are attached by
+ * {@link #send}), ideally in {@link ConnectionListener#onConnected}. Chunks go from file
+ * to socket, and from socket to file, through {@link FileChannel}s as with
+ * {@link Connection#sendFile}; checksums are computed and checked on a background thread
+ * of this object, never on the selector thread.
+ * <p/>
+ * Listeners are called on the selector thread or on that background thread. All public
+ * methods are safe to call from any thread.
+ */
+public final class ResumableTransfers {
+
+    /**
+     * Default size of a chunk, in bytes.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    // chunks queued on one connection at a time; the next is queued as one is sent
+    private static final int MAX_CHUNKS_IN_FLIGHT = 2;
+    // rounds of requesting chunks which failed their checksum before giving up
+    private static final int MAX_ROUNDS = 4;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte OFFER = 1;
+    private static final byte NEED = 2;
+    private static final byte DONE = 3;
+    private static final byte REJECT = 4;
+
+    private static final int MANIFEST_MAGIC = 0x57444C4D; // "WDLM"
+    private static final byte MANIFEST_VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File stateDirectory;
+    private final FileReceiver fileReceiver;
+    private final int chunkSize;
+    private final ExecutorService worker;
+
+    // used only on the worker thread
+    private final ByteBuffer workerBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Crc32c workerCrc = new Crc32c();
+
+    // guarded by this
+    private final Map<Long, Outgoing> outgoing = new HashMap<Long, Outgoing>();
+    private final Map<Long, Incoming> incoming = new HashMap<Long, Incoming>();
+    private boolean closed = false;
+
+    private final TransferHandler handler = new TransferHandler() {
+        @Override
+        public void onTransferMessage(Connection connection, ByteBuffer message) throws IOException {
+            byte kind = message.get();
+            long id = message.getLong();
+            if (kind == OFFER) {
+                onOffer(connection, id, message);
+            } else if (kind == NEED) {
+                onNeed(id, message);
+            } else if (kind == DONE) {
+                onDone(id);
+            } else if (kind == REJECT) {
+                onReject(id);
+            } else {
+                throw new IOException("Received an unknown transfer message " + kind);
+            }
+        }
+
+        @Override
+        public IncomingFile onChunk(Connection connection, long transferId, int index, int length) {
+            return ResumableTransfers.this.onChunk(transferId, index, length);
+        }
+
+        @Override
+        public void onConnectionClosed(Connection connection) {
+            ResumableTransfers.this.onConnectionClosed(connection);
+        }
+    };
+
+    /**
+     * Creates an object which sends and receives files in chunks of
+     * {@link #DEFAULT_CHUNK_SIZE} bytes.
+     *
+     * @param stateDirectory where manifests are kept, such as a directory below
+     *                       {@link android.content.Context#getFilesDir}
+     * @param fileReceiver   chooses where offered files are written, and is told about their
+     *                       progress; or null to refuse every file
+     */
+    public ResumableTransfers(File stateDirectory, FileReceiver fileReceiver) {
+        this(stateDirectory, fileReceiver, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates an object which sends and receives files in chunks.
+     *
+     * @param stateDirectory where manifests are kept
+     * @param fileReceiver   chooses where offered files are written, or null to refuse them.
+     *                       A destination is created if needed and is not truncated, so
+     *                       it should be a new file.
+     * @param chunkSize      the size of the chunks this side sends, in bytes. Smaller chunks
+     *                       lose less on a dropped link, at the cost of a longer offer.
+     */
+    public ResumableTransfers(File stateDirectory, FileReceiver fileReceiver, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.stateDirectory = stateDirectory;
+        this.fileReceiver = fileReceiver;
+        this.chunkSize = chunkSize;
+        this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WifiDLite transfers");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Lets the connection carry chunked transfers, in both directions. Both ends of a
+     * connection must be attached, before the first file is offered on it.
+     *
+     * @param connection the connection
+     * @throws IllegalStateException if the connection is attached to another object
+     */
+    public void attach(Connection connection) {
+        TransferHandler current = connection.getTransferHandler();
+        if (current != null && current != handler) {
+            throw new IllegalStateException(connection + " is attached to another ResumableTransfers");
+        }
+        connection.setTransferHandler(handler);
+    }
+
+    /**
+     * Sends a file, or resumes sending it, over one connection. See {@link #send(File, List,
+     * FileTransferListener)}.
+     */
+    public FileTransfer send(File file, Connection connection, FileTransferListener listener) throws IOException {
+        return send(file, Collections.singletonList(connection), listener);
+    }
+
+    /**
+     * Sends a file, or resumes sending it, spreading its chunks over the given connections,
+     * which must all lead to the same device. The first connection carries the offer.
+     * <p/>
+     * The transfer fails once every one of its connections has closed. Call this method
+     * again with new connections to resume it.
+     *
+     * @param file        the file to send. It should not change until the transfer completes.
+     * @param connections the connections to use
+     * @param listener    told about progress, completion or failure
+     * @return the transfer. Its byte count includes the chunks the receiver already held.
+     * @throws IOException              if the file cannot be opened, or this object is closed
+     * @throws IllegalStateException    if the file is already being sent
+     * @throws IllegalArgumentException if the file has so many chunks that its offer, which
+     *                                  lists their checksums, exceeds the largest message a
+     *                                  connection carries. Larger chunks are needed.
+     */
+    public FileTransfer send(File file, List<Connection> connections, FileTransferListener listener)
+            throws IOException {
+        if (connections.isEmpty()) {
+            throw new IllegalArgumentException("No connections to send " + file + " over");
+        }
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        long size;
+        try {
+            size = channel.size();
+        } catch (IOException e) {
+            Connection.closeQuietly(channel);
+            throw e;
+        }
+        long offerLength = offerLength(file.getName().getBytes(UTF_8).length, chunkCount(size, chunkSize));
+        for (Connection connection : connections) {
+            if (offerLength > connection.getTransport().getMaxMessageSize()) {
+                Connection.closeQuietly(channel);
+                throw new IllegalArgumentException("A file of " + size + " bytes has too many chunks of "
+                        + chunkSize + " bytes to be offered over " + connection);
+            }
+        }
+        final Outgoing transfer = new Outgoing(transferId(file.getName(), size, file.lastModified(), chunkSize),
+                file, size, chunkSize, channel, listener);
+        synchronized (this) {
+            if (closed) {
+                Connection.closeQuietly(channel);
+                throw new IOException("ResumableTransfers is closed");
+            }
+            if (outgoing.containsKey(transfer.id)) {
+                Connection.closeQuietly(channel);
+                throw new IllegalStateException(file + " is already being sent");
+            }
+            for (Connection connection : connections) {
+                attach(connection);
+                transfer.connections.add(connection);
+                transfer.chunksInFlight.put(connection, 0);
+            }
+            outgoing.put(transfer.id, transfer);
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transfer.checksums = loadOrComputeChecksums(transfer);
+                } catch (IOException e) {
+                    fail(transfer, e);
+                    return;
+                }
+                synchronized (ResumableTransfers.this) {
+                    offer(transfer);
+                }
+            }
+        });
+        return transfer.transfer;
+    }
+
+    /**
+     * Fails the transfers in progress, keeping their manifests so that they can resume
+     * later, and stops the background thread. Attached connections refuse further offers.
+     */
+    public void close() {
+        List<Outgoing> failed;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            failed = new ArrayList<Outgoing>(outgoing.values());
+            for (Incoming transfer : new ArrayList<Incoming>(incoming.values())) {
+                drop(transfer);
+            }
+        }
+        IOException cause = new IOException("ResumableTransfers closed");
+        for (Outgoing transfer : failed) {
+            fail(transfer, cause);
+        }
+        worker.shutdown();
+    }
+
+    static long transferId(String name, long size, long lastModified, int chunkSize) {
+        Crc32c crc = new Crc32c();
+        byte[] bytes = name.getBytes(UTF_8);
+        crc.update(bytes, 0, bytes.length);
+        long id = ((long) crc.getValue() << 32) ^ size;
+        id = id * 31 + lastModified;
+        return id * 31 + chunkSize;
+    }
+
+    private static long chunkCount(long size, int chunkSize) {
+        return (size + chunkSize - 1) / chunkSize;
+    }
+
+    // an offer holds the transfer's description and the checksum of every chunk
+    private static long offerLength(int nameLength, long chunkCount) {
+        return 1 + 8 + 8 + 4 + 2 + nameLength + 4 + 4 * chunkCount;
+    }
+
+    private boolean execute(Runnable task) {
+        try {
+            worker.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // closed; the transfers have already been failed
+            return false;
+        }
+    }
+
+    // on the worker thread
+    private int checksum(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = workerBuffer;
+        workerCrc.reset();
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException("File ended at " + position + " of " + end + " bytes");
+            }
+            buffer.flip();
+            workerCrc.update(buffer);
+            position += count;
+        }
+        return workerCrc.getValue();
+    }
+
+    private File manifestFile(long id, String suffix) {
+        return new File(stateDirectory, String.format("%016x%s", id, suffix));
+    }
+
+    private DataOutputStream openManifest(File file, boolean append) throws IOException {
+        stateDirectory.mkdirs();
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append)));
+    }
+
+    // ---- sending
+
+    // on the worker thread
+    private int[] loadOrComputeChecksums(Outgoing transfer) throws IOException {
+        File file = manifestFile(transfer.id, ".out");
+        int count = transfer.chunkCount;
+        if (file.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() == MANIFEST_MAGIC && in.readByte() == MANIFEST_VERSION
+                        && in.readLong() == transfer.id && in.readLong() == transfer.size
+                        && in.readInt() == transfer.chunkSize && in.readInt() == count) {
+                    int[] checksums = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        checksums[i] = in.readInt();
+                    }
+                    return checksums;
+                }
+            } catch (IOException e) {
+                // unreadable; compute the checksums again
+            } finally {
+                Connection.closeQuietly(in);
+            }
+        }
+        int[] checksums = new int[count];
+        for (int i = 0; i < count; i++) {
+            checksums[i] = checksum(transfer.channel, transfer.offset(i), transfer.chunkLength(i));
+        }
+        try {
+            DataOutputStream out = openManifest(file, false);
+            try {
+                out.writeInt(MANIFEST_MAGIC);
+                out.writeByte(MANIFEST_VERSION);
+                out.writeLong(transfer.id);
+                out.writeLong(transfer.size);
+                out.writeInt(transfer.chunkSize);
+                out.writeInt(count);
+                for (int checksum : checksums) {
+                    out.writeInt(checksum);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // the checksums are recomputed when the transfer resumes
+            file.delete();
+        }
+        return checksums;
+    }
+
+    // caller must hold the lock
+    private void offer(Outgoing transfer) {
+        if (transfer.finished || transfer.checksums == null) {
+            return;
+        }
+        byte[] name = transfer.transfer.getName().getBytes(UTF_8);
+        int count = transfer.chunkCount;
+        ByteBuffer message = ByteBuffer.allocate((int) offerLength(name.length, count));
+        message.put(OFFER).putLong(transfer.id).putLong(transfer.size).putInt(transfer.chunkSize)
+                .putShort((short) name.length).put(name).putInt(count);
+        for (int checksum : transfer.checksums) {
+            message.putInt(checksum);
+        }
+        message.flip();
+        transfer.control = null;
+        for (Connection connection : transfer.connections) {
+            if (connection.sendTransferMessage(message)) {
+                transfer.control = connection;
+                return;
+            }
+        }
+        // every connection is closing; onConnectionClosed fails the transfer
+    }
+
+    // on the selector thread
+    private void onNeed(long id, ByteBuffer message) throws IOException {
+        Outgoing transfer;
+        synchronized (this) {
+            transfer = outgoing.get(id);
+            if (transfer == null || transfer.checksums == null) {
+                return;
+            }
+            int count = message.getInt();
+            transfer.pending.clear();
+            long needed = 0;
+            for (int i = 0; i < count; i++) {
+                int index = message.getInt();
+                if (index < 0 || index >= transfer.chunkCount) {
+                    throw new IOException("Receiver needs chunk " + index + " of " + transfer.chunkCount);
+                }
+                needed += transfer.chunkLength(index);
+                if (!transfer.inFlight.get(index)) {
+                    transfer.pending.add(index);
+                }
+            }
+            transfer.transfer.skipTo(transfer.size - needed);
+            fill(transfer);
+        }
+        transfer.listener.onTransferProgress(transfer.transfer);
+    }
+
+    // caller must hold the lock
+    private void fill(Outgoing transfer) {
+        for (Connection connection : transfer.connections) {
+            int inFlight = transfer.chunksInFlight.get(connection);
+            while (inFlight < MAX_CHUNKS_IN_FLIGHT && !transfer.pending.isEmpty()) {
+                int index = transfer.pending.peek();
+                FileTransfer chunk = new FileTransfer(transfer.transfer.getName(), transfer.chunkLength(index),
+                        false, transfer.transfer.getFile());
+                OutgoingFile data = new OutgoingFile(transfer.channel, transfer.offset(index), false, chunk,
+                        new ChunkSender(transfer, connection, index));
+                if (!connection.sendChunk(transfer.id, index, data)) {
+                    break;
+                }
+                transfer.pending.poll();
+                transfer.inFlight.set(index);
+                inFlight++;
+            }
+            transfer.chunksInFlight.put(connection, inFlight);
+        }
+    }
+
+    // on the selector thread
+    private void onDone(long id) {
+        Outgoing transfer;
+        synchronized (this) {
+            transfer = outgoing.remove(id);
+            if (transfer == null) {
+                return;
+            }
+            transfer.finished = true;
+            transfer.pending.clear();
+            closeIfIdle(transfer);
+        }
+        manifestFile(id, ".out").delete();
+        transfer.transfer.skipTo(transfer.size);
+        transfer.transfer.finish();
+        transfer.listener.onTransferComplete(transfer.transfer);
+    }
+
+    private void onReject(long id) {
+        Outgoing transfer;
+        synchronized (this) {
+            transfer = outgoing.get(id);
+        }
+        if (transfer != null) {
+            fail(transfer, new IOException("The receiver refused " + transfer.transfer.getName()));
+        }
+    }
+
+    private void fail(Outgoing transfer, IOException cause) {
+        synchronized (this) {
+            if (transfer.finished) {
+                return;
+            }
+            transfer.finished = true;
+            outgoing.remove(transfer.id);
+            transfer.pending.clear();
+            closeIfIdle(transfer);
+        }
+        transfer.transfer.finish();
+        transfer.listener.onTransferFailed(transfer.transfer, cause);
+    }
+
+    // caller must hold the lock
+    private static void closeIfIdle(Outgoing transfer) {
+        if (transfer.finished && transfer.inFlight.isEmpty()) {
+            Connection.closeQuietly(transfer.channel);
+        }
+    }
+
+    // ---- receiving
+
+    // on the selector thread
+    private void onOffer(Connection connection, long id, ByteBuffer message) throws IOException {
+        long size = message.getLong();
+        int offeredChunkSize = message.getInt();
+        byte[] nameBytes = new byte[message.getShort()];
+        message.get(nameBytes);
+        String name = new String(nameBytes, UTF_8);
+        int count = message.getInt();
+        if (size < 0 || offeredChunkSize <= 0 || count != chunkCount(size, offeredChunkSize)) {
+            throw new IOException("Received a malformed offer of " + name);
+        }
+        int[] checksums = new int[count];
+        for (int i = 0; i < count; i++) {
+            checksums[i] = message.getInt();
+        }
+        Incoming transfer;
+        synchronized (this) {
+            if (closed || fileReceiver == null) {
+                sendReply(connection, REJECT, id);
+                return;
+            }
+            transfer = incoming.get(id);
+            if (transfer != null && !transfer.matches(size, offeredChunkSize, checksums)) {
+                drop(transfer);
+                transfer = null;
+            }
+        }
+        if (transfer == null) {
+            transfer = resume(id, size, offeredChunkSize, name, checksums);
+            if (transfer == null) {
+                transfer = start(connection, id, size, offeredChunkSize, name, checksums);
+            }
+            if (transfer == null) {
+                sendReply(connection, REJECT, id);
+                return;
+            }
+            synchronized (this) {
+                incoming.put(id, transfer);
+            }
+        }
+        synchronized (this) {
+            transfer.control = connection;
+            transfer.rounds = 0;
+        }
+        fileReceiver.onTransferProgress(transfer.transfer);
+        requestMissing(transfer);
+    }
+
+    // on the selector thread; loads a transfer interrupted earlier, perhaps by a restart
+    private Incoming resume(long id, long size, int offeredChunkSize, String name, int[] checksums) {
+        File file = manifestFile(id, ".in");
+        if (!file.exists()) {
+            return null;
+        }
+        Incoming transfer = null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MANIFEST_MAGIC || in.readByte() != MANIFEST_VERSION || in.readLong() != id
+                    || in.readLong() != size || in.readInt() != offeredChunkSize || !name.equals(in.readUTF())) {
+                throw new IOException("Manifest does not match");
+            }
+            File destination = new File(in.readUTF());
+            int[] saved = new int[in.readInt()];
+            for (int i = 0; i < saved.length; i++) {
+                saved[i] = in.readInt();
+            }
+            if (!Arrays.equals(saved, checksums) || !destination.isFile() || destination.length() != size) {
+                throw new IOException("Manifest does not match");
+            }
+            transfer = new Incoming(id, name, size, offeredChunkSize, checksums, destination, file);
+            while (true) {
+                int index;
+                try {
+                    index = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (index >= 0 && index < transfer.chunkCount && !transfer.verified.get(index)) {
+                    transfer.verified.set(index);
+                    transfer.verifiedBytes += transfer.chunkLength(index);
+                }
+            }
+            transfer.open();
+            transfer.transfer.skipTo(transfer.verifiedBytes);
+            return transfer;
+        } catch (IOException e) {
+            if (transfer != null) {
+                transfer.closeFiles();
+            }
+            file.delete();
+            return null;
+        } finally {
+            Connection.closeQuietly(in);
+        }
+    }
+
+    // on the selector thread
+    private Incoming start(Connection connection, long id, long size, int offeredChunkSize, String name,
+                           int[] checksums) throws IOException {
+        FileTransfer offered = new FileTransfer(name, size, true, null);
+        File destination = fileReceiver.onFileOffered(connection, offered);
+        if (destination == null) {
+            return null;
+        }
+        File file = manifestFile(id, ".in");
+        Incoming transfer = new Incoming(id, name, size, offeredChunkSize, checksums, destination, file);
+        DataOutputStream out = openManifest(file, false);
+        try {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeByte(MANIFEST_VERSION);
+            out.writeLong(id);
+            out.writeLong(size);
+            out.writeInt(offeredChunkSize);
+            out.writeUTF(name);
+            out.writeUTF(destination.getAbsolutePath());
+            out.writeInt(checksums.length);
+            for (int checksum : checksums) {
+                out.writeInt(checksum);
+            }
+        } finally {
+            out.close();
+        }
+        transfer.open();
+        return transfer;
+    }
+
+    private void requestMissing(Incoming transfer) {
+        ByteBuffer message;
+        boolean complete = false;
+        boolean exhausted = false;
+        Connection control;
+        synchronized (this) {
+            if (transfer.dropped) {
+                return;
+            }
+            control = transfer.control;
+            int missing = transfer.chunkCount - transfer.verified.cardinality();
+            if (missing == 0) {
+                complete = true;
+                message = null;
+            } else if (++transfer.rounds > MAX_ROUNDS) {
+                exhausted = true;
+                message = null;
+                drop(transfer);
+            } else {
+                message = ByteBuffer.allocate(1 + 8 + 4 + 4 * missing);
+                message.put(NEED).putLong(transfer.id).putInt(missing);
+                transfer.awaiting.clear();
+                for (int i = transfer.verified.nextClearBit(0); i < transfer.chunkCount;
+                     i = transfer.verified.nextClearBit(i + 1)) {
+                    message.putInt(i);
+                    transfer.awaiting.set(i);
+                }
+                message.flip();
+            }
+        }
+        if (complete) {
+            complete(transfer);
+        } else if (exhausted) {
+            sendReply(control, REJECT, transfer.id);
+            transfer.transfer.finish();
+            fileReceiver.onTransferFailed(transfer.transfer,
+                    new IOException("Chunks of " + transfer.name + " keep failing their checksums"));
+        } else {
+            control.sendTransferMessage(message);
+        }
+    }
+
+    // on the selector thread
+    private IncomingFile onChunk(long id, int index, int length) {
+        synchronized (this) {
+            Incoming transfer = incoming.get(id);
+            if (transfer == null || index < 0 || index >= transfer.chunkCount
+                    || length != transfer.chunkLength(index) || !transfer.awaiting.get(index)) {
+                return null;
+            }
+            transfer.activeChunks++;
+            FileTransfer chunk = new FileTransfer(transfer.name, length, true, transfer.destination);
+            return new IncomingFile(transfer.channel, transfer.offset(index), false, chunk,
+                    new ChunkReceiver(transfer, index));
+        }
+    }
+
+    // on the worker thread
+    private void verify(Incoming transfer, int index) {
+        boolean valid;
+        try {
+            valid = checksum(transfer.channel, transfer.offset(index), transfer.chunkLength(index))
+                    == transfer.checksums[index];
+        } catch (IOException e) {
+            valid = false;
+        }
+        boolean roundComplete;
+        synchronized (this) {
+            transfer.activeChunks--;
+            if (transfer.dropped) {
+                transfer.closeIfIdle();
+                return;
+            }
+            if (!transfer.awaiting.get(index)) {
+                return;
+            }
+            transfer.awaiting.clear(index);
+            if (valid) {
+                transfer.verified.set(index);
+                transfer.verifiedBytes += transfer.chunkLength(index);
+                try {
+                    transfer.manifest.writeInt(index);
+                    transfer.manifest.flush();
+                } catch (IOException e) {
+                    // the chunk is sent again if the transfer has to resume
+                }
+            }
+            roundComplete = transfer.awaiting.isEmpty();
+        }
+        if (valid) {
+            transfer.transfer.addBytes(transfer.chunkLength(index));
+            fileReceiver.onTransferProgress(transfer.transfer);
+        }
+        if (roundComplete) {
+            requestMissing(transfer);
+        }
+    }
+
+    private void complete(Incoming transfer) {
+        IOException failure = null;
+        try {
+            transfer.channel.force(false);
+        } catch (IOException e) {
+            failure = e;
+        }
+        Connection control;
+        synchronized (this) {
+            control = transfer.control;
+            drop(transfer);
+        }
+        transfer.transfer.finish();
+        if (failure != null) {
+            fileReceiver.onTransferFailed(transfer.transfer, failure);
+            return;
+        }
+        transfer.manifestFile.delete();
+        sendReply(control, DONE, transfer.id);
+        fileReceiver.onTransferComplete(transfer.transfer);
+    }
+
+    // caller must hold the lock
+    private void drop(Incoming transfer) {
+        if (incoming.get(transfer.id) == transfer) {
+            incoming.remove(transfer.id);
+        }
+        transfer.dropped = true;
+        Connection.closeQuietly(transfer.manifest);
+        transfer.closeIfIdle();
+    }
+
+    private static void sendReply(Connection connection, byte kind, long id) {
+        ByteBuffer message = ByteBuffer.allocate(1 + 8);
+        message.put(kind).putLong(id);
+        message.flip();
+        connection.sendTransferMessage(message);
+    }
+
+    // on the selector thread
+    private void onConnectionClosed(Connection connection) {
+        List<Outgoing> failedOutgoing = new ArrayList<Outgoing>();
+        List<Incoming> failedIncoming = new ArrayList<Incoming>();
+        synchronized (this) {
+            for (Outgoing transfer : outgoing.values()) {
+                if (!transfer.connections.remove(connection)) {
+                    continue;
+                }
+                transfer.chunksInFlight.remove(connection);
+                if (transfer.connections.isEmpty()) {
+                    failedOutgoing.add(transfer);
+                } else if (transfer.control == connection) {
+                    offer(transfer);
+                }
+            }
+            for (Incoming transfer : incoming.values()) {
+                if (transfer.control == connection) {
+                    failedIncoming.add(transfer);
+                }
+            }
+            for (Incoming transfer : failedIncoming) {
+                drop(transfer);
+            }
+        }
+        IOException cause = new EOFException(connection + " closed");
+        for (Outgoing transfer : failedOutgoing) {
+            fail(transfer, cause);
+        }
+        for (Incoming transfer : failedIncoming) {
+            transfer.transfer.finish();
+            fileReceiver.onTransferFailed(transfer.transfer, cause);
+        }
+    }
+
+    /**
+     * A file being sent.
+     */
+    private static final class Outgoing {
+        final long id;
+        final long size;
+        final int chunkSize;
+        final int chunkCount;
+        final FileChannel channel;
+        final FileTransfer transfer;
+        final FileTransferListener listener;
+        // guarded by the ResumableTransfers
+        final List<Connection> connections = new ArrayList<Connection>();
+        final Map<Connection, Integer> chunksInFlight = new HashMap<Connection, Integer>();
+        final BitSet inFlight = new BitSet();
+        final ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+        Connection control = null;
+        boolean finished = false;
+        volatile int[] checksums = null;
+
+        Outgoing(long id, File file, long size, int chunkSize, FileChannel channel, FileTransferListener listener) {
+            this.id = id;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            // checked by send against the message size limit
+            this.chunkCount = (int) chunkCount(size, chunkSize);
+            this.channel = channel;
+            this.transfer = new FileTransfer(file.getName(), size, false, file);
+            this.listener = listener;
+        }
+
+        long offset(int index) {
+            return (long) index * chunkSize;
+        }
+
+        int chunkLength(int index) {
+            return (int) Math.min(chunkSize, size - offset(index));
+        }
+    }
+
+    /**
+     * A file being received.
+     */
+    private static final class Incoming {
+        final long id;
+        final String name;
+        final long size;
+        final int chunkSize;
+        final int chunkCount;
+        final int[] checksums;
+        final File destination;
+        final File manifestFile;
+        final FileTransfer transfer;
+        // guarded by the ResumableTransfers
+        final BitSet verified = new BitSet();
+        final BitSet awaiting = new BitSet();
+        long verifiedBytes = 0;
+        FileChannel channel = null;
+        DataOutputStream manifest = null;
+        Connection control = null;
+        int rounds = 0;
+        int activeChunks = 0;
+        boolean dropped = false;
+
+        Incoming(long id, String name, long size, int chunkSize, int[] checksums, File destination,
+                 File manifestFile) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = checksums.length;
+            this.checksums = checksums;
+            this.destination = destination;
+            this.manifestFile = manifestFile;
+            this.transfer = new FileTransfer(name, size, true, destination);
+        }
+
+        void open() throws IOException {
+            RandomAccessFile file = new RandomAccessFile(destination, "rw");
+            try {
+                if (file.length() != size) {
+                    file.setLength(size);
+                }
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            channel = file.getChannel();
+            manifest = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(manifestFile, true)));
+        }
+
+        boolean matches(long size, int chunkSize, int[] checksums) {
+            return this.size == size && this.chunkSize == chunkSize && Arrays.equals(this.checksums, checksums);
+        }
+
+        long offset(int index) {
+            return (long) index * chunkSize;
+        }
+
+        int chunkLength(int index) {
+            return (int) Math.min(chunkSize, size - offset(index));
+        }
+
+        // caller must hold the lock
+        void closeIfIdle() {
+            if (dropped && activeChunks == 0) {
+                Connection.closeQuietly(channel);
+            }
+        }
+
+        void closeFiles() {
+            Connection.closeQuietly(manifest);
+            Connection.closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Follows one chunk as it is sent.
+     */
+    private final class ChunkSender implements FileTransferListener {
+        private final Outgoing transfer;
+        private final Connection connection;
+        private final int index;
+        private long reported = 0;
+
+        ChunkSender(Outgoing transfer, Connection connection, int index) {
+            this.transfer = transfer;
+            this.connection = connection;
+            this.index = index;
+        }
+
+        @Override
+        public void onTransferProgress(FileTransfer chunk) {
+            long count = chunk.getBytesTransferred() - reported;
+            reported = chunk.getBytesTransferred();
+            transfer.transfer.addBytes(count);
+            transfer.listener.onTransferProgress(transfer.transfer);
+        }
+
+        @Override
+        public void onTransferComplete(FileTransfer chunk) {
+            synchronized (ResumableTransfers.this) {
+                sent();
+                fill(transfer);
+            }
+        }
+
+        @Override
+        public void onTransferFailed(FileTransfer chunk, IOException cause) {
+            synchronized (ResumableTransfers.this) {
+                sent();
+                if (!transfer.finished) {
+                    transfer.pending.addFirst(index);
+                    transfer.transfer.skipTo(transfer.transfer.getBytesTransferred() - reported);
+                    fill(transfer);
+                }
+            }
+        }
+
+        // caller must hold the lock
+        private void sent() {
+            transfer.inFlight.clear(index);
+            Integer inFlight = transfer.chunksInFlight.get(connection);
+            if (inFlight != null) {
+                transfer.chunksInFlight.put(connection, inFlight - 1);
+            }
+            closeIfIdle(transfer);
+        }
+    }
+
+    /**
+     * Follows one chunk as it is received, and has it checked once it has been written.
+     */
+    private final class ChunkReceiver implements FileTransferListener {
+        private final Incoming transfer;
+        private final int index;
+
+        ChunkReceiver(Incoming transfer, int index) {
+            this.transfer = transfer;
+            this.index = index;
+        }
+
+        @Override
+        public void onTransferProgress(FileTransfer chunk) {
+            // progress is reported as chunks pass their checksums
+        }
+
+        @Override
+        public void onTransferComplete(FileTransfer chunk) {
+            boolean queued = execute(new Runnable() {
+                @Override
+                public void run() {
+                    verify(transfer, index);
+                }
+            });
+            if (!queued) {
+                onTransferFailed(chunk, null);
+            }
+        }
+
+        @Override
+        public void onTransferFailed(FileTransfer chunk, IOException cause) {
+            synchronized (ResumableTransfers.this) {
+                transfer.activeChunks--;
+                transfer.closeIfIdle();
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts connections on a local port, see {@link Transport#listen}. Every accepted
+ * {@link Connection} reports to the listener given to {@link Transport#listen}.
+ */
+public final class Server implements Transport.Selectable {
+
+    private final Transport transport;
+    private final ServerSocketChannel channel;
+    private final ConnectionListener listener;
+    private final int localPort;
+
+    Server(Transport transport, ServerSocketChannel channel, ConnectionListener listener) {
+        this.transport = transport;
+        this.channel = channel;
+        this.listener = listener;
+        this.localPort = channel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the port on which connections are accepted
+     */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * Stops accepting connections. Connections already accepted stay open.
+     */
+    public void close() {
+        transport.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeChannel();
+            }
+        });
+    }
+
+    // on the selector thread
+    void register(Selector selector) {
+        try {
+            channel.register(selector, SelectionKey.OP_ACCEPT, this);
+        } catch (IOException e) {
+            closeChannel();
+        } catch (ClosedSelectorException e) {
+            closeChannel();
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        SocketChannel accepted;
+        try {
+            while ((accepted = channel.accept()) != null) {
+                Connection connection;
+                try {
+                    accepted.configureBlocking(false);
+                    accepted.socket().setTcpNoDelay(true);
+                    connection = new Connection(transport, accepted, listener,
+                            accepted.socket().getRemoteSocketAddress());
+                } catch (IOException e) {
+                    accepted.close();
+                    continue;
+                }
+                connection.accepted(key.selector());
+            }
+        } catch (IOException e) {
+            closeChannel();
+        }
+    }
+
+    @Override
+    public void onTransportClosed() {
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+}
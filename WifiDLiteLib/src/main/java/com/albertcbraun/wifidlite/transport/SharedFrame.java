@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * A message frame which a {@link Broadcaster} queues on many connections at once. The
+ * frame is encoded once; each connection writes it from the same buffer, keeping its own
+ * offset, and the buffer goes back to the pool when the last connection has written or
+ * dropped it. Its position and limit are only changed on the selector thread.
+ */
+final class SharedFrame {
+
+    final ByteBuffer buffer;
+    final int length;
+    private final BufferPool bufferPool;
+    // guarded by this
+    private int references = 1;
+
+    SharedFrame(BufferPool bufferPool, ByteBuffer buffer) {
+        this.bufferPool = bufferPool;
+        this.buffer = buffer;
+        this.length = buffer.limit();
+    }
+
+    synchronized void retain() {
+        references++;
+    }
+
+    void release() {
+        boolean last;
+        synchronized (this) {
+            last = --references == 0;
+        }
+        if (last) {
+            bufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * One of the independent, flow-controlled streams carried by a {@link Multiplexer}.
+ * <p/>
+ * Each side may have at most {@link Multiplexer#WINDOW_SIZE} bytes of a stream in transit
+ * which the other side's {@link StreamListener} has not yet received, so a busy stream
+ * occupies a bounded share of the connection and never holds up the others for long.
+ * Data written beyond the window waits in the stream until the other side makes room.
+ * <p/>
+ * All methods are safe to call from any thread.
+ */
+public final class Stream {
+
+    static final int OPEN = 0;
+    static final int CLOSING = 1;
+    static final int CLOSED = 2;
+
+    final Multiplexer multiplexer;
+    final int id;
+    final boolean local;
+    private final String name;
+    volatile StreamListener listener;
+    private volatile Object attachment = null;
+
+    // guarded by the multiplexer
+    final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+    int bufferedBytes = 0;
+    int sendWindow = Multiplexer.WINDOW_SIZE;
+    int receiveWindow = Multiplexer.WINDOW_SIZE;
+    int consumed = 0;
+    int state = OPEN;
+
+    Stream(Multiplexer multiplexer, int id, boolean local, String name, StreamListener listener) {
+        this.multiplexer = multiplexer;
+        this.id = id;
+        this.local = local;
+        this.name = name;
+        this.listener = listener;
+    }
+
+    /**
+     * Queues data. The bytes from the buffer's position to its limit are taken, so the
+     * buffer may be reused as soon as this method returns.
+     *
+     * @param data the data
+     * @return false if the stream is closing or closed, so the data will not be sent
+     */
+    public boolean write(ByteBuffer data) {
+        return multiplexer.write(this, data);
+    }
+
+    /**
+     * Queues data. See {@link #write(ByteBuffer)}.
+     *
+     * @param data the data
+     * @return false if the stream is closing or closed, so the data will not be sent
+     */
+    public boolean write(byte[] data) {
+        return write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Closes the stream, in both directions, once the data written so far has been sent.
+     * Both sides' listeners are told with {@link StreamListener#onClosed}.
+     */
+    public void close() {
+        multiplexer.close(this);
+    }
+
+    /**
+     * Closes the stream straight away, discarding data which has not been sent yet.
+     * The other side's listener is told that the stream was reset.
+     */
+    public void reset() {
+        multiplexer.reset(this);
+    }
+
+    /**
+     * @return the name given to the stream by the side which opened it
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if this side opened the stream
+     */
+    public boolean isLocal() {
+        return local;
+    }
+
+    /**
+     * @return the number of bytes written but not yet handed to the connection, because
+     * the other side has not made room for them
+     */
+    public int getBufferedBytes() {
+        synchronized (multiplexer) {
+            return bufferedBytes;
+        }
+    }
+
+    /**
+     * @return true until the stream starts closing
+     */
+    public boolean isOpen() {
+        synchronized (multiplexer) {
+            return state == OPEN;
+        }
+    }
+
+    /**
+     * @return the multiplexer which carries the stream
+     */
+    public Multiplexer getMultiplexer() {
+        return multiplexer;
+    }
+
+    /**
+     * @return the object last given to {@link #setAttachment}, or null
+     */
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * Associates an arbitrary object, such as per-stream application state, with this stream.
+     */
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Stream %d (%s) %s %s", id, name, local ? "to" : "from",
+                multiplexer.getConnection().getRemoteAddress());
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+/**
+ * Decides what to do with streams which the other device opens on a {@link Multiplexer}.
+ * Called on the {@link Transport}'s selector thread.
+ */
+public interface StreamAcceptor {
+
+    /**
+     * The other device has opened a stream.
+     *
+     * @param stream the new stream; {@link Stream#getName} tells what it is for
+     * @return the listener for the stream's data, or null to refuse (reset) the stream
+     */
+    public StreamListener onStreamOpened(Stream stream);
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Receives the stream frames of a {@link Multiplexer} from a {@link Connection}.
+ * Called on the selector thread.
+ */
+interface StreamHandler {
+
+    /**
+     * A stream frame arrived. The buffer is only valid during the call.
+     */
+    void onStreamFrame(Connection connection, ByteBuffer frame) throws IOException;
+
+    /**
+     * The connection has closed.
+     *
+     * @param cause the error which closed it, or an EOFException if it closed in an
+     *              orderly way
+     */
+    void onConnectionClosed(Connection connection, IOException cause);
+}
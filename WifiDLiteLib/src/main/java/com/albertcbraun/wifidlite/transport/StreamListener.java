@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Callback interface for the data and life cycle of a {@link Stream}.
+ * <p/>
+ * All methods are called on the {@link Transport}'s selector thread. They must return
+ * quickly and must not block; hand any longer work to another thread.
+ */
+public interface StreamListener {
+
+    /**
+     * Data has arrived. A stream carries bytes, not messages: data written in one call
+     * may arrive in several pieces, and pieces are never merged across writes larger
+     * than a frame.
+     *
+     * @param stream the stream it arrived on
+     * @param data   the data, from its position to its limit. Only valid until this method
+     *               returns; copy it to keep it. The other device may send more once this
+     *               method has returned.
+     */
+    public void onData(Stream stream, ByteBuffer data);
+
+    /**
+     * Everything written to the stream so far has been handed to the connection, so
+     * {@link Stream#getBufferedBytes} is zero again. Bulk writers can use this to pace
+     * themselves.
+     *
+     * @param stream the stream
+     */
+    public void onDrained(Stream stream);
+
+    /**
+     * The stream has been closed. Called exactly once for every stream.
+     *
+     * @param stream the closed stream
+     * @param cause  null if either side closed it, otherwise the reason it ended: it was
+     *               reset by the other device, or its connection closed
+     */
+    public void onClosed(Stream stream, IOException cause);
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Intended only for internal use.
+ * <p/>
+ * Receives the frames of a {@link ResumableTransfers} from a {@link Connection}.
+ * Called on the selector thread.
+ */
+interface TransferHandler {
+
+    /**
+     * A control message arrived. The buffer is only valid during the call.
+     */
+    void onTransferMessage(Connection connection, ByteBuffer message) throws IOException;
+
+    /**
+     * A chunk is about to arrive.
+     *
+     * @return where to write it, or null to discard it
+     */
+    IncomingFile onChunk(Connection connection, long transferId, int index, int length) throws IOException;
+
+    /**
+     * The connection has closed. Chunks it was carrying have already been failed.
+     */
+    void onConnectionClosed(Connection connection);
+}
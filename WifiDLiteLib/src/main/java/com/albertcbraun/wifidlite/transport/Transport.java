@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Carries framed messages between devices over TCP, with non-blocking sockets served
+ * by a single selector thread.
+ * <p/>
+ * A group owner typically {@link #listen listens} on a port and the other group members
+ * {@link #connect} to it. Each side then exchanges messages through the resulting
+ * {@link Connection}s, and learns of new messages through its {@link ConnectionListener}.
+ * One transport serves any number of connections and servers without adding threads.
+ * <p/>
+ * Frames and read buffers come from a {@link BufferPool} which the transport's connections
+ * share, so that steady-state messaging allocates nothing on the heap.
+ * <p/>
+ * This package has no Android dependencies. Within the library, the transport is reached
+ * through {@link com.albertcbraun.wifidlite.WifiDLite#listen} and
+ * {@link com.albertcbraun.wifidlite.Peer#openConnection}.
+ * <p/>
+ * All public methods are safe to call from any thread.
+ */
+public final class Transport {
+
+    /**
+     * Default value of the largest message which a connection accepts.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final int maxMessageSize;
+    private final BufferPool bufferPool;
+    // guarded by itself
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    private volatile boolean closed = false;
+
+    /**
+     * Opens a transport which accepts messages of up to {@link #DEFAULT_MAX_MESSAGE_SIZE} bytes.
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    public Transport() throws IOException {
+        this(DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Opens a transport and starts its selector thread.
+     *
+     * @param maxMessageSize the largest message, in bytes, which a connection accepts. A peer
+     *                       which sends a larger one is disconnected.
+     * @throws IOException if the selector cannot be opened
+     */
+    public Transport(int maxMessageSize) throws IOException {
+        this(maxMessageSize, new BufferPool());
+    }
+
+    /**
+     * Opens a transport and starts its selector thread.
+     *
+     * @param maxMessageSize the largest message, in bytes, which a connection accepts
+     * @param bufferPool     the pool from which connections take their buffers
+     * @throws IOException if the selector cannot be opened
+     */
+    public Transport(int maxMessageSize, BufferPool bufferPool) throws IOException {
+        this.maxMessageSize = maxMessageSize;
+        this.bufferPool = bufferPool;
+        this.selector = Selector.open();
+        this.selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelector();
+            }
+        }, "WifiDLite transport");
+        this.selectorThread.setDaemon(true);
+        this.selectorThread.start();
+    }
+
+    /**
+     * Starts accepting connections on the given port of every local interface.
+     *
+     * @param port     the port, or zero for any free port (see {@link Server#getLocalPort})
+     * @param listener told about each accepted connection and its messages
+     * @return the server, which keeps accepting connections until it is closed
+     * @throws IOException if the port cannot be bound
+     */
+    public Server listen(int port, ConnectionListener listener) throws IOException {
+        return listen(new InetSocketAddress(port), listener);
+    }
+
+    /**
+     * Starts accepting connections on the given local address.
+     *
+     * @param localAddress the address to bind
+     * @param listener     told about each accepted connection and its messages
+     * @return the server, which keeps accepting connections until it is closed
+     * @throws IOException if the address cannot be bound
+     */
+    public Server listen(InetSocketAddress localAddress, ConnectionListener listener) throws IOException {
+        checkOpen();
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(localAddress);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        final Server server = new Server(this, channel, listener);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                server.register(selector);
+            }
+        });
+        return server;
+    }
+
+    /**
+     * Starts connecting to a remote address. Returns straight away; the listener's
+     * {@link ConnectionListener#onConnected} is called once the connection is established,
+     * or {@link ConnectionListener#onClosed} if it cannot be.
+     *
+     * @param remoteAddress the address of a {@link Server}
+     * @param listener      told about the connection and its messages
+     * @return the connection, which can already be used to queue messages
+     * @throws IOException if a socket cannot be opened
+     */
+    public Connection connect(InetSocketAddress remoteAddress, ConnectionListener listener) throws IOException {
+        checkOpen();
+        SocketChannel channel = SocketChannel.open();
+        final Connection connection;
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            connection = new Connection(this, channel, listener, remoteAddress);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                connection.startConnecting(selector);
+            }
+        });
+        return connection;
+    }
+
+    /**
+     * Closes every connection and server, and stops the selector thread. Listeners of
+     * open connections are called back with {@link ConnectionListener#onClosed}.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * @return true once {@link #close} has been called
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the pool from which connections take their buffers
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    boolean inSelectorThread() {
+        return Thread.currentThread() == selectorThread;
+    }
+
+    /**
+     * Runs the task on the selector thread: immediately if already on it, otherwise
+     * as soon as the selector wakes up. Once the selector thread has stopped, the task
+     * runs on the calling thread and finds the selector closed.
+     */
+    void execute(Runnable task) {
+        if (inSelectorThread() || !selectorThread.isAlive()) {
+            task.run();
+        } else {
+            synchronized (tasks) {
+                tasks.add(task);
+            }
+            selector.wakeup();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void runSelector() {
+        try {
+            while (!closed) {
+                runTasks();
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        ((Selectable) key.attachment()).onReady(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            closed = true;
+        } finally {
+            shutDown();
+        }
+    }
+
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+            synchronized (tasks) {
+                task = tasks.poll();
+            }
+            if (task == null) {
+                return;
+            }
+            task.run();
+        }
+    }
+
+    private void shutDown() {
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((Selectable) key.attachment()).onTransportClosed();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+
+    /**
+     * A channel registered with the transport's selector.
+     */
+    interface Selectable {
+
+        /**
+         * Handles the operations the key is ready for.
+         */
+        void onReady(SelectionKey key);
+
+        /**
+         * Closes the channel because the transport is closing.
+         */
+        void onTransportClosed();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link Coalescer} hands off only the latest task of a burst, and no
+ * later than its maximum latency.
+ */
+public class CoalescerTest {
+
+    private static final long WINDOW_MS = 100;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final BlockingQueue<Integer> ran = new LinkedBlockingQueue<Integer>();
+    private final Executor target = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void zeroWindowRunsEachTaskAtOnce() {
+        Coalescer coalescer = new Coalescer(scheduler, target, 0, 0);
+
+        coalescer.offer(task(1));
+        coalescer.offer(task(2));
+
+        assertEquals(Integer.valueOf(1), ran.poll());
+        assertEquals(Integer.valueOf(2), ran.poll());
+    }
+
+    @Test
+    public void burstRunsOnlyTheLatestTask() throws Exception {
+        Coalescer coalescer = new Coalescer(scheduler, target, WINDOW_MS, 10 * WINDOW_MS);
+
+        for (int i = 1; i <= 10; i++) {
+            coalescer.offer(task(i));
+        }
+
+        assertEquals(Integer.valueOf(10), ran.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(ran.poll(3 * WINDOW_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void tasksAfterAQuietPeriodRunSeparately() throws Exception {
+        Coalescer coalescer = new Coalescer(scheduler, target, WINDOW_MS, 10 * WINDOW_MS);
+
+        coalescer.offer(task(1));
+        assertEquals(Integer.valueOf(1), ran.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        coalescer.offer(task(2));
+        assertEquals(Integer.valueOf(2), ran.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void steadyStreamIsHandedOffAtTheMaximumLatency() throws Exception {
+        long window = 2 * WINDOW_MS;
+        Coalescer coalescer = new Coalescer(scheduler, target, window, 3 * WINDOW_MS);
+
+        // tasks arrive well within the window, so only the maximum latency can flush them
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10 * WINDOW_MS);
+        int i = 0;
+        while (System.nanoTime() < end) {
+            coalescer.offer(task(++i));
+            Thread.sleep(10);
+        }
+
+        assertTrue("only " + ran.size() + " hand-offs", ran.size() >= 2);
+    }
+
+    @Test
+    public void taskOfferedAfterShutdownIsDropped() throws Exception {
+        Coalescer coalescer = new Coalescer(scheduler, target, WINDOW_MS, WINDOW_MS);
+        scheduler.shutdown();
+
+        coalescer.offer(task(1));
+
+        assertNull(ran.poll(3 * WINDOW_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private Runnable task(final int id) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(id);
+            }
+        };
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pManager;
+
+import com.albertcbraun.wifidlite.impl.DefaultConfiguration;
+import com.albertcbraun.wifidlite.impl.NoOpMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that {@link DiscoveryCoordinator} makes one framework call for concurrent
+ * requests, and retries it only as configured.
+ */
+public class DiscoveryCoordinatorTest {
+
+    private static final int RETRY_LIMIT = 2;
+    private static final long NO_CALL_MS = 200;
+
+    private final Executor directExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Configuration configuration = new DefaultConfiguration() {
+        @Override
+        public int getDiscoveryRetryLimit() {
+            return RETRY_LIMIT;
+        }
+
+        @Override
+        public long getDiscoveryRetryBaseDelay() {
+            return 10;
+        }
+
+        @Override
+        public long getDiscoveryRetryMaxDelay() {
+            return 20;
+        }
+    };
+
+    private ScheduledExecutorService scheduler;
+    private RecordingP2pBackend backend;
+    private OperationQueue operationQueue;
+    private DiscoveryCoordinator coordinator;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        backend = new RecordingP2pBackend();
+        operationQueue = new OperationQueue(backend, scheduler, directExecutor, 10000);
+        coordinator = new DiscoveryCoordinator(operationQueue, scheduler, configuration, NoOpMetrics.INSTANCE);
+    }
+
+    @After
+    public void tearDown() {
+        operationQueue.dispose();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void concurrentRequestsShareOneCall() throws Exception {
+        RecordingActionListener first = new RecordingActionListener();
+        RecordingActionListener second = new RecordingActionListener();
+        coordinator.discoverPeers(first, OperationQueue.Priority.BACKGROUND);
+        coordinator.discoverPeers(second, OperationQueue.Priority.USER);
+
+        RecordingP2pBackend.Call call = takeCall("discoverPeers");
+        assertNull(backend.pollCall(NO_CALL_MS));
+        call.listener.onSuccess();
+
+        assertEquals(Integer.valueOf(RecordingActionListener.SUCCESS), first.takeResult());
+        assertEquals(Integer.valueOf(RecordingActionListener.SUCCESS), second.takeResult());
+    }
+
+    @Test
+    public void requestAfterCompletionMakesNewCall() throws Exception {
+        RecordingActionListener first = new RecordingActionListener();
+        coordinator.discoverPeers(first, OperationQueue.Priority.USER);
+        takeCall("discoverPeers").listener.onSuccess();
+        assertEquals(Integer.valueOf(RecordingActionListener.SUCCESS), first.takeResult());
+
+        RecordingActionListener second = new RecordingActionListener();
+        coordinator.discoverPeers(second, OperationQueue.Priority.USER);
+        takeCall("discoverPeers").listener.onFailure(WifiP2pManager.P2P_UNSUPPORTED);
+        assertEquals(Integer.valueOf(WifiP2pManager.P2P_UNSUPPORTED), second.takeResult());
+        assertNull(first.pollResult(0));
+    }
+
+    @Test
+    public void busyIsRetriedUntilTheLimit() throws Exception {
+        RecordingActionListener first = new RecordingActionListener();
+        RecordingActionListener second = new RecordingActionListener();
+        coordinator.discoverPeers(first, OperationQueue.Priority.USER);
+        coordinator.discoverPeers(second, OperationQueue.Priority.USER);
+
+        for (int i = 0; i <= RETRY_LIMIT; i++) {
+            assertNull(first.pollResult(0));
+            takeCall("discoverPeers").listener.onFailure(WifiP2pManager.BUSY);
+        }
+
+        assertEquals(Integer.valueOf(WifiP2pManager.BUSY), first.takeResult());
+        assertEquals(Integer.valueOf(WifiP2pManager.BUSY), second.takeResult());
+        assertNull(backend.pollCall(NO_CALL_MS));
+    }
+
+    @Test
+    public void retryCanSucceed() throws Exception {
+        RecordingActionListener listener = new RecordingActionListener();
+        coordinator.discoverPeers(listener, OperationQueue.Priority.USER);
+
+        takeCall("discoverPeers").listener.onFailure(WifiP2pManager.ERROR);
+        takeCall("discoverPeers").listener.onSuccess();
+
+        assertEquals(Integer.valueOf(RecordingActionListener.SUCCESS), listener.takeResult());
+        assertNull(listener.pollResult(0));
+    }
+
+    @Test
+    public void unsupportedIsNotRetried() throws Exception {
+        RecordingActionListener listener = new RecordingActionListener();
+        coordinator.discoverPeers(listener, OperationQueue.Priority.USER);
+
+        takeCall("discoverPeers").listener.onFailure(WifiP2pManager.P2P_UNSUPPORTED);
+
+        assertEquals(Integer.valueOf(WifiP2pManager.P2P_UNSUPPORTED), listener.takeResult());
+        assertNull(backend.pollCall(NO_CALL_MS));
+    }
+
+    @Test
+    public void userRequestPromotesQueuedCall() throws Exception {
+        // keep the queue busy so that what follows stays queued
+        RecordingActionListener blocker = new RecordingActionListener();
+        operationQueue.createGroup(blocker);
+        RecordingP2pBackend.Call running = takeCall("createGroup");
+        operationQueue.stopPeerDiscovery(new RecordingActionListener(), OperationQueue.Priority.BACKGROUND);
+        coordinator.discoverPeers(new RecordingActionListener(), OperationQueue.Priority.BACKGROUND);
+
+        RecordingActionListener user = new RecordingActionListener();
+        coordinator.discoverPeers(user, OperationQueue.Priority.USER);
+        running.listener.onSuccess();
+
+        takeCall("discoverPeers").listener.onSuccess();
+        assertEquals(Integer.valueOf(RecordingActionListener.SUCCESS), user.takeResult());
+        takeCall("stopPeerDiscovery");
+    }
+
+    private RecordingP2pBackend.Call takeCall(String name) throws InterruptedException {
+        RecordingP2pBackend.Call call = backend.takeCall();
+        assertNotNull("no " + name + " call", call);
+        assertEquals(name, call.name);
+        return call;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks {@link LongMap} against a {@link HashMap}, including removals from the middle
+ * of probe sequences.
+ */
+public class LongMapTest {
+
+    @Test
+    public void putGetAndReplace() {
+        LongMap<String> map = new LongMap<String>();
+        assertNull(map.put(1L, "one"));
+        assertNull(map.put(MacAddress.INVALID, "invalid"));
+        assertEquals("one", map.put(1L, "uno"));
+
+        assertEquals("uno", map.get(1L));
+        assertEquals("invalid", map.get(MacAddress.INVALID));
+        assertNull(map.get(2L));
+        assertEquals(2, map.size());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullValuesAreRejected() {
+        new LongMap<String>().put(1L, null);
+    }
+
+    @Test
+    public void removeReturnsThePreviousValue() {
+        LongMap<String> map = new LongMap<String>();
+        map.put(1L, "one");
+
+        assertEquals("one", map.remove(1L));
+        assertNull(map.remove(1L));
+        assertNull(map.get(1L));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        Random random = new Random(42);
+        LongMap<Long> map = new LongMap<Long>();
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        // a small key space, so that keys collide, are removed and come back
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(200) * 0x10000000000L + random.nextInt(4);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Long value = random.nextLong();
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        for (long key = 0; key < 4; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void copyValuesCopiesEachValueOnce() {
+        LongMap<Long> map = new LongMap<Long>(2);
+        for (long key = 0; key < 100; key++) {
+            map.put(key, key);
+        }
+        for (long key = 0; key < 100; key += 2) {
+            map.remove(key);
+        }
+
+        Object[] values = new Object[map.size()];
+        assertEquals(50, map.copyValues(values));
+        HashSet<Object> expected = new HashSet<Object>();
+        for (long key = 1; key < 100; key += 2) {
+            expected.add(key);
+        }
+        assertEquals(expected, new HashSet<Object>(Arrays.asList(values)));
+    }
+}
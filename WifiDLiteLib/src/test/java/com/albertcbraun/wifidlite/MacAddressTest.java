@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks parsing and formatting of {@link MacAddress} values.
+ */
+public class MacAddressTest {
+
+    @Test
+    public void parsesEitherCase() {
+        assertEquals(0x0123456789abL, MacAddress.parseToLong("01:23:45:67:89:ab"));
+        assertEquals(0x0123456789abL, MacAddress.parseToLong("01:23:45:67:89:AB"));
+        assertEquals(0xffffffffffffL, MacAddress.parseToLong("ff:ff:ff:ff:ff:ff"));
+        assertEquals(0L, MacAddress.parseToLong("00:00:00:00:00:00"));
+    }
+
+    @Test
+    public void rejectsMalformedAddresses() {
+        String[] malformed = {null, "", "01:23:45:67:89", "01:23:45:67:89:ab:", "01-23-45-67-89-ab",
+                "01:23:45:67:89:ag", "0123:45:67:89:ab:", " 1:23:45:67:89:ab"};
+        for (String address : malformed) {
+            assertEquals(address, MacAddress.INVALID, MacAddress.parseToLong(address));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseThrowsForMalformedAddress() {
+        MacAddress.parse("not an address");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromLongRejectsMoreThan48Bits() {
+        MacAddress.fromLong(1L << 48);
+    }
+
+    @Test
+    public void formatsAsLowerCaseWithLeadingZeros() {
+        assertEquals("01:23:45:67:89:ab", MacAddress.format(0x0123456789abL));
+        assertEquals("00:00:00:00:00:0f", MacAddress.format(0xfL));
+        assertEquals("02:00:00:00:00:0a", MacAddress.parse("02:00:00:00:00:0A").toString());
+    }
+
+    @Test
+    public void equalityFollowsTheValue() {
+        MacAddress lower = MacAddress.parse("aa:bb:cc:dd:ee:ff");
+        MacAddress upper = MacAddress.parse("AA:BB:CC:DD:EE:FF");
+        assertEquals(lower, upper);
+        assertEquals(lower.hashCode(), upper.hashCode());
+        assertEquals(lower, MacAddress.fromLong(lower.toLong()));
+        assertFalse(lower.equals(MacAddress.fromLong(0)));
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link OperationQueue} runs one operation at a time, user operations
+ * first, and that cancelled and timed out operations behave as documented.
+ */
+public class OperationQueueTest {
+
+    private static final long TIMEOUT_MS = 200;
+    private static final long NO_CALL_MS = 100;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService callbackExecutor;
+    private volatile Thread callbackThread;
+    private RecordingP2pBackend backend;
+    private OperationQueue operationQueue;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        callbackExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                callbackThread = new Thread(runnable);
+                return callbackThread;
+            }
+        });
+        backend = new RecordingP2pBackend();
+        operationQueue = new OperationQueue(backend, scheduler, callbackExecutor, TIMEOUT_MS);
+    }
+
+    @After
+    public void tearDown() {
+        operationQueue.dispose();
+        callbackExecutor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void operationsRunOneAtATimeInOrder() throws Exception {
+        RecordingActionListener first = new RecordingActionListener();
+        RecordingActionListener second = new RecordingActionListener();
+        operationQueue.createGroup(first);
+        operationQueue.removeGroup(second);
+
+        RecordingP2pBackend.Call call = takeCall("createGroup");
+        assertNull(backend.pollCall(NO_CALL_MS));
+        call.listener.onFailure(WifiP2pManager.BUSY);
+        assertEquals(Integer.valueOf(WifiP2pManager.BUSY), first.takeResult());
+
+        takeCall("removeGroup").listener.onSuccess();
+        assertEquals(Integer.valueOf(RecordingActionListener.SUCCESS), second.takeResult());
+    }
+
+    @Test
+    public void userOperationsRunAheadOfBackgroundOnes() throws Exception {
+        RecordingP2pBackend.Call blocker = block();
+        operationQueue.discoverPeers(new RecordingActionListener(), OperationQueue.Priority.BACKGROUND);
+        operationQueue.stopPeerDiscovery(new RecordingActionListener(), OperationQueue.Priority.BACKGROUND);
+        operationQueue.removeGroup(new RecordingActionListener());
+
+        blocker.listener.onSuccess();
+        takeCall("removeGroup").listener.onSuccess();
+        takeCall("discoverPeers").listener.onSuccess();
+        takeCall("stopPeerDiscovery").listener.onSuccess();
+    }
+
+    @Test
+    public void promotedOperationRunsAheadOfBackgroundOnes() throws Exception {
+        RecordingP2pBackend.Call blocker = block();
+        operationQueue.discoverPeers(new RecordingActionListener(), OperationQueue.Priority.BACKGROUND);
+        OperationQueue.Operation stop = operationQueue.stopPeerDiscovery(new RecordingActionListener(),
+                OperationQueue.Priority.BACKGROUND);
+
+        stop.promote();
+        blocker.listener.onSuccess();
+
+        takeCall("stopPeerDiscovery").listener.onSuccess();
+        takeCall("discoverPeers").listener.onSuccess();
+    }
+
+    @Test
+    public void cancelledOperationNeverStarts() throws Exception {
+        RecordingP2pBackend.Call blocker = block();
+        final AtomicInteger starts = new AtomicInteger();
+        RecordingActionListener listener = new RecordingActionListener();
+        OperationQueue.Operation connect = operationQueue.connect(null, listener, OperationQueue.Priority.USER,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        starts.incrementAndGet();
+                    }
+                });
+
+        assertTrue(connect.cancel());
+        blocker.listener.onSuccess();
+
+        assertNull(backend.pollCall(NO_CALL_MS));
+        assertNull(listener.pollResult(0));
+        assertEquals(0, starts.get());
+    }
+
+    @Test
+    public void runningOperationCannotBeCancelled() throws Exception {
+        RecordingActionListener listener = new RecordingActionListener();
+        OperationQueue.Operation discovery = operationQueue.discoverPeers(listener, OperationQueue.Priority.USER);
+        RecordingP2pBackend.Call call = takeCall("discoverPeers");
+
+        assertFalse(discovery.cancel());
+        call.listener.onSuccess();
+        assertEquals(Integer.valueOf(RecordingActionListener.SUCCESS), listener.takeResult());
+    }
+
+    @Test
+    public void timedOutOperationFailsOnTheCallbackExecutor() throws Exception {
+        final Thread[] calledOn = new Thread[1];
+        RecordingActionListener timedOut = new RecordingActionListener() {
+            @Override
+            public void onFailure(int reason) {
+                calledOn[0] = Thread.currentThread();
+                super.onFailure(reason);
+            }
+        };
+        operationQueue.createGroup(timedOut);
+        RecordingP2pBackend.Call late = takeCall("createGroup");
+        RecordingActionListener next = new RecordingActionListener();
+        operationQueue.removeGroup(next);
+
+        assertEquals(Integer.valueOf(WifiP2pManager.ERROR), timedOut.takeResult());
+        assertSame(callbackThread, calledOn[0]);
+
+        // the next operation starts, and a result reported too late is ignored
+        RecordingP2pBackend.Call call = takeCall("removeGroup");
+        late.listener.onSuccess();
+        assertNull(timedOut.pollResult(NO_CALL_MS));
+        call.listener.onSuccess();
+        assertEquals(Integer.valueOf(RecordingActionListener.SUCCESS), next.takeResult());
+    }
+
+    @Test
+    public void operationReportingInTimeDoesNotTimeOut() throws Exception {
+        RecordingActionListener listener = new RecordingActionListener();
+        operationQueue.createGroup(listener);
+
+        takeCall("createGroup").listener.onSuccess();
+
+        assertEquals(Integer.valueOf(RecordingActionListener.SUCCESS), listener.takeResult());
+        assertNull(listener.pollResult(2 * TIMEOUT_MS));
+    }
+
+    @Test
+    public void disposeDropsQueuedOperationsWithoutCallingThem() throws Exception {
+        RecordingP2pBackend.Call blocker = block();
+        RecordingActionListener queued = new RecordingActionListener();
+        operationQueue.removeGroup(queued);
+
+        operationQueue.dispose();
+        blocker.listener.onSuccess();
+
+        assertNull(backend.pollCall(NO_CALL_MS));
+        assertNull(queued.pollResult(2 * TIMEOUT_MS));
+    }
+
+    /**
+     * Starts an operation which keeps the queue busy until the test reports its result.
+     */
+    private RecordingP2pBackend.Call block() throws InterruptedException {
+        operationQueue.createGroup(new RecordingActionListener());
+        return takeCall("createGroup");
+    }
+
+    private RecordingP2pBackend.Call takeCall(String name) throws InterruptedException {
+        RecordingP2pBackend.Call call = backend.takeCall();
+        assertNotNull("no " + name + " call", call);
+        assertEquals(name, call.name);
+        return call;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link PeerHistory} survives being reopened, reads files in the first
+ * format, ignores a cut short record and keeps its file compact.
+ */
+public class PeerHistoryTest {
+
+    private static final int MAGIC = 0x57444c48; // "WDLH"
+    private static final long TIMEOUT_MS = 10000;
+
+    private static final String ADDRESS_A = "02:00:00:00:00:0a";
+    private static final String ADDRESS_B = "02:00:00:00:00:0b";
+    // markers are recorded last, so that once one can be read back every earlier update has been written
+    private static final long FIRST_MARKER = 0x020000000100L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<PeerHistory> opened = new ArrayList<PeerHistory>();
+    private File file;
+    private int markers = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "history");
+    }
+
+    @After
+    public void tearDown() {
+        for (PeerHistory history : opened) {
+            history.close();
+        }
+    }
+
+    @Test
+    public void historyIsReadBackWhenReopened() throws Exception {
+        PeerHistory history = open();
+        history.recordSeen(peer(ADDRESS_A, "a"));
+        history.recordConnect(peer(ADDRESS_B, "b"), KnownPeer.CONNECT_SUCCEEDED, 1200);
+        history.recordConnect(peer(ADDRESS_B, "b"), 2, 800);
+
+        PeerHistory reopened = awaitWritten(history);
+
+        KnownPeer a = find(reopened, ADDRESS_A);
+        assertEquals("a", a.getDeviceName());
+        assertEquals(0, a.getConnectAttempts());
+        KnownPeer b = find(reopened, ADDRESS_B);
+        assertEquals("b", b.getDeviceName());
+        assertEquals(2, b.getConnectAttempts());
+        assertEquals(2, b.getLastConnectResult());
+        assertEquals(1200, b.getConnectLatency());
+        assertEquals(0.5, b.getConnectSuccessRatio(), 0);
+    }
+
+    @Test
+    public void firstFormatIsReadAndRewritten() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(MAGIC);
+        out.writeInt(1);
+        out.writeByte(1); // peer record without connection statistics
+        out.writeLong(MacAddress.parseToLong(ADDRESS_A));
+        out.writeLong(1000);
+        out.writeLong(900);
+        out.writeInt(KnownPeer.CONNECT_SUCCEEDED);
+        out.writeBoolean(true);
+        out.writeUTF("old");
+        out.close();
+
+        PeerHistory history = open();
+        KnownPeer old = find(history, ADDRESS_A);
+        assertEquals("old", old.getDeviceName());
+        assertEquals(1000, old.getLastSeen());
+        assertEquals(900, old.getLastConnectTime());
+        assertTrue(old.isLastConnectSuccessful());
+        assertEquals(0, old.getConnectAttempts());
+
+        PeerHistory reopened = awaitWritten(history);
+
+        assertEquals("old", find(reopened, ADDRESS_A).getDeviceName());
+        assertEquals(2, readVersion());
+    }
+
+    @Test
+    public void partialRecordIsIgnored() throws Exception {
+        PeerHistory history = open();
+        history.recordSeen(peer(ADDRESS_A, "a"));
+        awaitWritten(history);
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{1, 2, 0, 0});
+        out.close();
+
+        PeerHistory reopened = open();
+        assertEquals("a", find(reopened, ADDRESS_A).getDeviceName());
+        reopened.recordSeen(peer(ADDRESS_B, "b"));
+
+        // the next write drops the partial record, so later records can be read
+        PeerHistory again = awaitWritten(reopened);
+        assertEquals("b", find(again, ADDRESS_B).getDeviceName());
+    }
+
+    @Test
+    public void fileIsCompacted() throws Exception {
+        PeerHistory history = open();
+        Peer peer = peer(ADDRESS_A, "a");
+        for (int i = 0; i < 1000; i++) {
+            history.recordConnect(peer, i % 2 == 0 ? KnownPeer.CONNECT_SUCCEEDED : 2, 1000);
+        }
+
+        PeerHistory reopened = awaitWritten(history);
+
+        assertEquals(2, reopened.getKnownPeers().size());
+        assertEquals(2, find(reopened, ADDRESS_A).getLastConnectResult());
+        // a record takes about 40 bytes, so far fewer than the thousand written remain
+        assertTrue(file.length() + " bytes", file.length() < 5000);
+    }
+
+    @Test
+    public void historyWithoutFileIsKeptInMemory() {
+        PeerHistory history = new PeerHistory(null);
+        history.recordConnect(peer(ADDRESS_A, "a"), KnownPeer.CONNECT_TIMED_OUT, 5000);
+
+        KnownPeer known = find(history, ADDRESS_A);
+        assertEquals(KnownPeer.CONNECT_TIMED_OUT, known.getLastConnectResult());
+        assertEquals(1, known.getConnectAttempts());
+        assertNull(find(history, ADDRESS_B));
+    }
+
+    private PeerHistory open() {
+        PeerHistory history = new PeerHistory(file);
+        opened.add(history);
+        return history;
+    }
+
+    /**
+     * Records a new marker peer and waits until the file can be read back with it.
+     *
+     * @return a history reopened from the file
+     */
+    private PeerHistory awaitWritten(PeerHistory history) throws InterruptedException {
+        String marker = MacAddress.format(FIRST_MARKER + markers++);
+        history.recordSeen(peer(marker, "marker"));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            PeerHistory reopened = open();
+            if (find(reopened, marker) != null) {
+                return reopened;
+            }
+            Thread.sleep(20);
+        }
+        fail("history not written within " + TIMEOUT_MS + " ms");
+        return null;
+    }
+
+    private int readVersion() throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            assertEquals(MAGIC, in.readInt());
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static KnownPeer find(PeerHistory history, String address) {
+        for (KnownPeer known : history.getKnownPeers()) {
+            if (known.getMacAddress().equals(MacAddress.parse(address))) {
+                return known;
+            }
+        }
+        return null;
+    }
+
+    private static Peer peer(String address, String name) {
+        return new Peer(PeerListTrackerTest.device(address, name), (P2pBackend) null, (ConnectTracker) null);
+    }
+}
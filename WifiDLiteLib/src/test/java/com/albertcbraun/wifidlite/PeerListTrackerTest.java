@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the deltas computed by {@link PeerListTracker}, and that a device is always
+ * represented by the same {@link Peer}.
+ */
+public class PeerListTrackerTest {
+
+    private static final String ADDRESS_A = "02:00:00:00:00:0a";
+    private static final String ADDRESS_B = "02:00:00:00:00:0b";
+    private static final String ADDRESS_C = "02:00:00:00:00:0c";
+
+    private PeerListTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new PeerListTracker(new PeerRegistry(null, null));
+    }
+
+    @Test
+    public void firstListAddsEveryPeer() {
+        PeerListDelta delta = tracker.update(devices(device(ADDRESS_A, "a"), device(ADDRESS_B, "b")));
+
+        assertEquals(Arrays.asList(ADDRESS_A, ADDRESS_B), addresses(delta.getAdded()));
+        assertTrue(delta.getRemoved().isEmpty());
+        assertTrue(delta.getChanged().isEmpty());
+        assertEquals(2, tracker.size());
+    }
+
+    @Test
+    public void sameListGivesEmptyDelta() {
+        tracker.update(devices(device(ADDRESS_A, "a"), device(ADDRESS_B, "b")));
+
+        PeerListDelta delta = tracker.update(devices(device(ADDRESS_B, "b"), device(ADDRESS_A, "a")));
+
+        assertSame(PeerListDelta.EMPTY, delta);
+    }
+
+    @Test
+    public void addedRemovedAndChangedAreReportedTogether() {
+        tracker.update(devices(device(ADDRESS_A, "a"), device(ADDRESS_B, "b")));
+
+        PeerListDelta delta = tracker.update(devices(device(ADDRESS_B, "renamed"), device(ADDRESS_C, "c")));
+
+        assertEquals(Collections.singletonList(ADDRESS_C), addresses(delta.getAdded()));
+        assertEquals(Collections.singletonList(ADDRESS_A), addresses(delta.getRemoved()));
+        assertEquals(Collections.singletonList(ADDRESS_B), addresses(delta.getChanged()));
+        assertEquals("renamed", delta.getChanged().get(0).getWifiP2pDevice().deviceName);
+        assertEquals(Arrays.asList(ADDRESS_B, ADDRESS_C), addresses(tracker.getPeers()));
+    }
+
+    @Test
+    public void statusChangeIsReported() {
+        tracker.update(devices(device(ADDRESS_A, "a")));
+        WifiP2pDevice invited = device(ADDRESS_A, "a");
+        invited.status = WifiP2pDevice.INVITED;
+
+        PeerListDelta delta = tracker.update(devices(invited));
+
+        assertEquals(Collections.singletonList(ADDRESS_A), addresses(delta.getChanged()));
+    }
+
+    @Test
+    public void returningDeviceIsAddedAsTheSamePeer() {
+        Peer first = tracker.update(devices(device(ADDRESS_A, "a"))).getAdded().get(0);
+
+        PeerListDelta gone = tracker.update(Collections.<WifiP2pDevice>emptyList());
+        PeerListDelta back = tracker.update(devices(device(ADDRESS_A, "a")));
+
+        assertSame(first, gone.getRemoved().get(0));
+        assertSame(first, back.getAdded().get(0));
+        assertTrue(back.getChanged().isEmpty());
+    }
+
+    @Test
+    public void addressesAreMatchedWhateverTheirCase() {
+        Peer first = tracker.update(devices(device(ADDRESS_A, "a"))).getAdded().get(0);
+
+        PeerListDelta delta = tracker.update(devices(device(ADDRESS_A.toUpperCase(), "a")));
+
+        assertSame(PeerListDelta.EMPTY, delta);
+        assertSame(first, tracker.getPeers().get(0));
+    }
+
+    @Test
+    public void invalidAndRepeatedAddressesAreIgnored() {
+        PeerListDelta delta = tracker.update(devices(device("not an address", "x"), device(null, "y"),
+                device(ADDRESS_A, "a"), device(ADDRESS_A, "a")));
+
+        assertEquals(Collections.singletonList(ADDRESS_A), addresses(delta.getAdded()));
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    public void currentPeersAsDelta() {
+        assertSame(PeerListDelta.EMPTY, tracker.getPeersAsDelta());
+        tracker.update(devices(device(ADDRESS_A, "a"), device(ADDRESS_B, "b")));
+
+        PeerListDelta delta = tracker.getPeersAsDelta();
+
+        assertEquals(Arrays.asList(ADDRESS_A, ADDRESS_B), addresses(delta.getAdded()));
+        assertTrue(delta.getRemoved().isEmpty());
+        assertTrue(delta.getChanged().isEmpty());
+    }
+
+    static WifiP2pDevice device(String address, String name) {
+        WifiP2pDevice device = new WifiP2pDevice();
+        device.deviceAddress = address;
+        device.deviceName = name;
+        device.status = WifiP2pDevice.AVAILABLE;
+        return device;
+    }
+
+    private static List<WifiP2pDevice> devices(WifiP2pDevice... devices) {
+        return Arrays.asList(devices);
+    }
+
+    private static List<String> addresses(List<Peer> peers) {
+        List<String> addresses = new ArrayList<String>();
+        for (Peer peer : peers) {
+            addresses.add(peer.getWifiP2pDevice().deviceAddress.toLowerCase());
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+
+import com.albertcbraun.wifidlite.reactive.Subscriber;
+import com.albertcbraun.wifidlite.reactive.Subscription;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link PeerPublisher} passes updates on only as they are requested, and
+ * conflates those in between into one.
+ */
+public class PeerPublisherTest {
+
+    private static final String ADDRESS_A = "02:00:00:00:00:0a";
+    private static final String ADDRESS_B = "02:00:00:00:00:0b";
+    private static final String ADDRESS_C = "02:00:00:00:00:0c";
+
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    // stands in for the dispatch executor: tasks run when the test says so, one at a time
+    private final Executor dispatchExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+
+    private int demandChanges = 0;
+    private PeerListTracker tracker;
+    private PeerPublisher publisher;
+
+    @Before
+    public void setUp() {
+        tracker = new PeerListTracker(new PeerRegistry(null, null));
+        publisher = new PeerPublisher(dispatchExecutor, tracker, new PeerHistory(null), new Runnable() {
+            @Override
+            public void run() {
+                demandChanges++;
+            }
+        });
+    }
+
+    @Test
+    public void nothingIsPassedOnUntilRequested() {
+        publish(ADDRESS_A);
+        RecordingSubscriber subscriber = subscribe();
+        assertNotNull(subscriber.subscription);
+        publish(ADDRESS_A, ADDRESS_B);
+        runTasks();
+        assertTrue(subscriber.updates.isEmpty());
+
+        subscriber.subscription.request(1);
+        runTasks();
+
+        assertEquals(1, subscriber.updates.size());
+        PeerUpdate update = subscriber.updates.get(0);
+        assertEquals(Arrays.asList(ADDRESS_A, ADDRESS_B), addresses(update.getPeers()));
+        assertEquals(Arrays.asList(ADDRESS_A, ADDRESS_B), addresses(update.getDelta().getAdded()));
+    }
+
+    @Test
+    public void firstUpdateIsPassedOnEvenIfEmpty() {
+        RecordingSubscriber subscriber = subscribe();
+
+        subscriber.subscription.request(1);
+        runTasks();
+
+        assertEquals(1, subscriber.updates.size());
+        assertTrue(subscriber.updates.get(0).getPeers().isEmpty());
+        assertTrue(subscriber.updates.get(0).getDelta().isEmpty());
+    }
+
+    @Test
+    public void updatesInBetweenRequestsAreConflated() {
+        publish(ADDRESS_A);
+        RecordingSubscriber subscriber = subscribeAndTakeFirst();
+
+        publish(ADDRESS_A, ADDRESS_B);
+        publish(ADDRESS_B, ADDRESS_C);
+        publish(ADDRESS_C);
+        publish(ADDRESS_A, ADDRESS_C);
+        subscriber.subscription.request(5);
+        runTasks();
+
+        assertEquals(1, subscriber.updates.size());
+        PeerUpdate update = subscriber.updates.get(0);
+        assertEquals(Arrays.asList(ADDRESS_C, ADDRESS_A), addresses(update.getPeers()));
+        // B came and went, A went and came back
+        assertEquals(Collections.singletonList(ADDRESS_C), addresses(update.getDelta().getAdded()));
+        assertTrue(update.getDelta().getRemoved().isEmpty());
+        assertEquals(Collections.singletonList(ADDRESS_A), addresses(update.getDelta().getChanged()));
+    }
+
+    @Test
+    public void changesWhichCancelOutAreNotPassedOn() {
+        RecordingSubscriber subscriber = subscribeAndTakeFirst();
+
+        publish(ADDRESS_A);
+        publish();
+        subscriber.subscription.request(1);
+        runTasks();
+        assertTrue(subscriber.updates.isEmpty());
+
+        publish(ADDRESS_B);
+        runTasks();
+        assertEquals(1, subscriber.updates.size());
+        assertEquals(Collections.singletonList(ADDRESS_B),
+                addresses(subscriber.updates.get(0).getDelta().getAdded()));
+    }
+
+    @Test
+    public void eachSubscriberIsServedAtItsOwnPace() {
+        RecordingSubscriber fast = subscribe();
+        RecordingSubscriber slow = subscribe();
+        fast.subscription.request(Long.MAX_VALUE);
+        slow.subscription.request(1);
+        runTasks();
+
+        publish(ADDRESS_A);
+        publish(ADDRESS_A, ADDRESS_B);
+        runTasks();
+
+        assertEquals(3, fast.updates.size());
+        assertEquals(1, slow.updates.size());
+    }
+
+    @Test
+    public void demandListenerFollowsTheDemand() {
+        RecordingSubscriber subscriber = subscribe();
+        assertFalse(publisher.hasDemand());
+
+        int before = demandChanges;
+        subscriber.subscription.request(2);
+        runTasks();
+        assertTrue(publisher.hasDemand());
+        assertTrue(demandChanges > before);
+
+        before = demandChanges;
+        publish(ADDRESS_A);
+        runTasks();
+        assertFalse(publisher.hasDemand());
+        assertTrue(demandChanges > before);
+    }
+
+    @Test
+    public void cancelledSubscriberGetsNoMoreUpdates() {
+        RecordingSubscriber subscriber = subscribe();
+        subscriber.subscription.request(Long.MAX_VALUE);
+        runTasks();
+
+        subscriber.subscription.cancel();
+        publish(ADDRESS_A);
+        runTasks();
+
+        assertEquals(1, subscriber.updates.size());
+        assertFalse(publisher.hasSubscriptions());
+        assertFalse(publisher.hasDemand());
+    }
+
+    @Test
+    public void nonPositiveRequestIsAnError() {
+        RecordingSubscriber subscriber = subscribe();
+
+        subscriber.subscription.request(0);
+        runTasks();
+
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertFalse(publisher.hasSubscriptions());
+    }
+
+    @Test
+    public void closeCompletesEverySubscriber() {
+        RecordingSubscriber before = subscribe();
+
+        publisher.close();
+        RecordingSubscriber after = subscribe();
+
+        assertTrue(before.completed);
+        assertTrue(after.completed);
+        assertNotNull(after.subscription);
+        assertFalse(publisher.hasSubscriptions());
+    }
+
+    private RecordingSubscriber subscribe() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        runTasks();
+        return subscriber;
+    }
+
+    private RecordingSubscriber subscribeAndTakeFirst() {
+        RecordingSubscriber subscriber = subscribe();
+        subscriber.subscription.request(1);
+        runTasks();
+        assertEquals(1, subscriber.updates.size());
+        subscriber.updates.clear();
+        return subscriber;
+    }
+
+    private void publish(String... addresses) {
+        List<WifiP2pDevice> devices = new ArrayList<WifiP2pDevice>();
+        for (String address : addresses) {
+            devices.add(PeerListTrackerTest.device(address, address));
+        }
+        PeerListDelta delta = tracker.update(devices);
+        publisher.publish(tracker.getPeers(), delta);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private static List<String> addresses(List<Peer> peers) {
+        List<String> addresses = new ArrayList<String>();
+        for (Peer peer : peers) {
+            addresses.add(peer.getWifiP2pDevice().deviceAddress);
+        }
+        return addresses;
+    }
+
+    private static class RecordingSubscriber implements Subscriber<PeerUpdate> {
+
+        final List<PeerUpdate> updates = new ArrayList<PeerUpdate>();
+        Subscription subscription;
+        Throwable error;
+        boolean completed = false;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(PeerUpdate item) {
+            updates.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pManager;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link WifiP2pManager.ActionListener} which keeps the results it is told, for tests
+ * to wait on. A success is kept as {@link #SUCCESS}, a failure as its reason.
+ */
+class RecordingActionListener implements WifiP2pManager.ActionListener {
+
+    static final int SUCCESS = Metrics.SUCCESS;
+
+    private final BlockingQueue<Integer> results = new LinkedBlockingQueue<Integer>();
+
+    @Override
+    public void onSuccess() {
+        results.add(SUCCESS);
+    }
+
+    @Override
+    public void onFailure(int reason) {
+        results.add(reason);
+    }
+
+    /**
+     * @return the next result, or null if none is told in time
+     */
+    Integer takeResult() throws InterruptedException {
+        return results.poll(RecordingP2pBackend.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the next result told within the given time, or null
+     */
+    Integer pollResult(long millis) throws InterruptedException {
+        return results.poll(millis, TimeUnit.MILLISECONDS);
+    }
+}
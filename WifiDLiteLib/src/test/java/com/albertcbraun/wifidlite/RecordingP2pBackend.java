@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import android.net.wifi.p2p.WifiP2pConfig;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link P2pBackend} which records every action it is asked to carry out and leaves
+ * it to the test to report the result.
+ */
+class RecordingP2pBackend implements P2pBackend {
+
+    static final long TIMEOUT_SECONDS = 10;
+
+    private final BlockingQueue<Call> calls = new LinkedBlockingQueue<Call>();
+
+    /**
+     * @return the next call, or null if none is made in time
+     */
+    Call takeCall() throws InterruptedException {
+        return calls.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the next call made within the given time, or null
+     */
+    Call pollCall(long millis) throws InterruptedException {
+        return calls.poll(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void initialize(Events events) {
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    @Override
+    public void discoverPeers(WifiP2pManager.ActionListener listener) {
+        calls.add(new Call("discoverPeers", listener));
+    }
+
+    @Override
+    public void stopPeerDiscovery(WifiP2pManager.ActionListener listener) {
+        calls.add(new Call("stopPeerDiscovery", listener));
+    }
+
+    @Override
+    public void connect(WifiP2pConfig config, WifiP2pManager.ActionListener listener) {
+        calls.add(new Call("connect", listener));
+    }
+
+    @Override
+    public void createGroup(WifiP2pManager.ActionListener listener) {
+        calls.add(new Call("createGroup", listener));
+    }
+
+    @Override
+    public void removeGroup(WifiP2pManager.ActionListener listener) {
+        calls.add(new Call("removeGroup", listener));
+    }
+
+    @Override
+    public void requestGroupInfo(WifiP2pManager.GroupInfoListener listener) {
+        listener.onGroupInfoAvailable(null);
+    }
+
+    @Override
+    public void requestConnectionInfo(WifiP2pManager.ConnectionInfoListener listener) {
+        listener.onConnectionInfoAvailable(null);
+    }
+
+    @Override
+    public void addLocalService(WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        calls.add(new Call("addLocalService", listener));
+    }
+
+    @Override
+    public void removeLocalService(WifiP2pServiceInfo serviceInfo, WifiP2pManager.ActionListener listener) {
+        calls.add(new Call("removeLocalService", listener));
+    }
+
+    @Override
+    public void addServiceRequest(WifiP2pServiceRequest serviceRequest, WifiP2pManager.ActionListener listener) {
+        calls.add(new Call("addServiceRequest", listener));
+    }
+
+    @Override
+    public void removeServiceRequest(WifiP2pServiceRequest serviceRequest, WifiP2pManager.ActionListener listener) {
+        calls.add(new Call("removeServiceRequest", listener));
+    }
+
+    @Override
+    public void discoverServices(WifiP2pManager.ActionListener listener) {
+        calls.add(new Call("discoverServices", listener));
+    }
+
+    /**
+     * One action the backend was asked to carry out.
+     */
+    static class Call {
+
+        final String name;
+        final WifiP2pManager.ActionListener listener;
+
+        Call(String name, WifiP2pManager.ActionListener listener) {
+            this.name = name;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link ServiceCache} merges service and TXT record responses, reports
+ * only what is new, and forgets records once their time to live has passed.
+ */
+public class ServiceCacheTest {
+
+    private static final String ADDRESS = "02:00:00:00:00:0a";
+    private static final long TTL_MS = 500;
+
+    private final Map<String, String> txtRecord = Collections.singletonMap("rp", "printer");
+
+    @Test
+    public void serviceAndTxtRecordMakeOneRecord() {
+        ServiceCache cache = new ServiceCache(TTL_MS);
+
+        DnsSdService service = cache.putService(ADDRESS, "printer", "_ipp._tcp.local.");
+        DnsSdService filled = cache.putTxtRecord(ADDRESS, "printer._ipp._tcp.local.", txtRecord);
+
+        assertEquals("_ipp._tcp", service.getServiceType());
+        assertTrue(service.getTxtRecord().isEmpty());
+        assertEquals("printer", filled.getInstanceName());
+        assertEquals("_ipp._tcp", filled.getServiceType());
+        assertEquals(txtRecord, filled.getTxtRecord());
+        List<DnsSdService> services = cache.get(null);
+        assertEquals(1, services.size());
+        assertEquals(txtRecord, services.get(0).getTxtRecord());
+    }
+
+    @Test
+    public void txtRecordFirstKeepsDottedInstanceName() {
+        ServiceCache cache = new ServiceCache(TTL_MS);
+
+        DnsSdService service = cache.putTxtRecord(ADDRESS, "my.printer._ipp._tcp.local.", txtRecord);
+
+        assertEquals("my.printer", service.getInstanceName());
+        assertEquals("_ipp._tcp", service.getServiceType());
+        assertNull(cache.putService(ADDRESS, "my.printer", "_ipp._tcp.local."));
+    }
+
+    @Test
+    public void onlyNewOrChangedResponsesAreReported() {
+        ServiceCache cache = new ServiceCache(TTL_MS);
+        cache.putService(ADDRESS, "printer", "_ipp._tcp.local.");
+        cache.putTxtRecord(ADDRESS, "printer._ipp._tcp.local.", txtRecord);
+
+        assertNull(cache.putService(ADDRESS, "printer", "_ipp._tcp.local."));
+        assertNull(cache.putService(ADDRESS.toUpperCase(), "PRINTER", "_IPP._tcp.local."));
+        assertNull(cache.putTxtRecord(ADDRESS, "printer._ipp._tcp.local.", txtRecord));
+        assertNotNull(cache.putTxtRecord(ADDRESS, "printer._ipp._tcp.local.",
+                Collections.singletonMap("rp", "other")));
+        assertNotNull(cache.putService("02:00:00:00:00:0b", "printer", "_ipp._tcp.local."));
+    }
+
+    @Test
+    public void recordsAreFilteredByType() {
+        ServiceCache cache = new ServiceCache(TTL_MS);
+        cache.putService(ADDRESS, "printer", "_ipp._tcp.local.");
+        cache.putService(ADDRESS, "web", "_http._tcp.local.");
+
+        assertEquals(2, cache.get(null).size());
+        assertEquals("printer", cache.get("_IPP._tcp").get(0).getInstanceName());
+        assertEquals("web", cache.get("_http._tcp.local.").get(0).getInstanceName());
+        assertTrue(cache.get("_ftp._tcp").isEmpty());
+    }
+
+    @Test
+    public void recordsExpireAfterTheTtl() throws Exception {
+        ServiceCache cache = new ServiceCache(TTL_MS);
+        cache.putService(ADDRESS, "printer", "_ipp._tcp.local.");
+        assertEquals(1, cache.get(null).size());
+
+        Thread.sleep(TTL_MS + 100);
+
+        assertTrue(cache.get(null).isEmpty());
+        assertNotNull(cache.putService(ADDRESS, "printer", "_ipp._tcp.local."));
+    }
+
+    @Test
+    public void expiredTxtRecordIsReportedAgain() throws Exception {
+        ServiceCache cache = new ServiceCache(TTL_MS);
+        cache.putTxtRecord(ADDRESS, "printer._ipp._tcp.local.", txtRecord);
+
+        Thread.sleep(TTL_MS + 100);
+
+        assertNotNull(cache.putTxtRecord(ADDRESS, "printer._ipp._tcp.local.", txtRecord));
+    }
+
+    @Test
+    public void repeatedResponseExtendsTheTtl() throws Exception {
+        ServiceCache cache = new ServiceCache(TTL_MS);
+        cache.putService(ADDRESS, "printer", "_ipp._tcp.local.");
+
+        Thread.sleep(TTL_MS * 3 / 5);
+        assertNull(cache.putService(ADDRESS, "printer", "_ipp._tcp.local."));
+        Thread.sleep(TTL_MS * 3 / 5);
+
+        assertEquals(1, cache.get(null).size());
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks each {@link Broadcaster.SlowConsumerPolicy} with one client which keeps up and
+ * one which stops reading.
+ */
+public class BroadcasterTest {
+
+    private static final long TIMEOUT_SECONDS = RecordingListener.TIMEOUT_SECONDS;
+    // enough to fill the slow client's socket buffers, as well as its queue
+    private static final int MESSAGES = 2000;
+    private static final int MESSAGE_SIZE = 32 * 1024;
+    private static final int MAX_QUEUED = 8;
+
+    private Transport serverTransport;
+    private Transport fastTransport;
+    private Transport slowTransport;
+    private Broadcaster broadcaster;
+    private Client fast;
+    private Client slow;
+    // the server's ends of the fast and the slow client's connections, in that order
+    private final List<Connection> accepted = new Vector<Connection>();
+
+    @Before
+    public void setUp() throws IOException {
+        serverTransport = new Transport();
+        fastTransport = new Transport();
+        // a transport of its own, whose selector thread the slow client holds up
+        slowTransport = new Transport();
+        fast = new Client(false);
+        slow = new Client(true);
+    }
+
+    @After
+    public void tearDown() {
+        slow.gate.countDown();
+        slowTransport.close();
+        fastTransport.close();
+        serverTransport.close();
+    }
+
+    @Test
+    public void dropOldestSkipsTheSlowClientAheadToRecentMessages() throws Exception {
+        start(MAX_QUEUED, Broadcaster.SlowConsumerPolicy.DROP_OLDEST);
+
+        broadcastPaced(MESSAGES);
+
+        assertTrue(broadcaster.getDroppedMessageCount() > 0);
+        assertEquals(0, broadcaster.getDisconnectedCount());
+        assertEquals(2, broadcaster.getConnectionCount());
+        slow.gate.countDown();
+        slow.awaitMessage(MESSAGES - 1);
+        assertEquals(MESSAGES, fast.count());
+        assertTrue(fast.inOrder());
+        assertTrue(slow.count() < MESSAGES);
+        assertTrue(slow.inOrder());
+        assertEquals(MESSAGES - slow.count(), broadcaster.getDroppedMessageCount());
+    }
+
+    @Test
+    public void dropOldestWithOneQueuedMessageDropsTheNewOne() throws Exception {
+        start(1, Broadcaster.SlowConsumerPolicy.DROP_OLDEST);
+        broadcaster.remove(accepted.get(0));
+
+        // with the head always being written, a new message can only be skipped
+        int queued = 0;
+        int skipped = 0;
+        ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+        for (int i = 0; i < MESSAGES; i++) {
+            message.putInt(0, i);
+            int result = broadcaster.broadcast(message);
+            if (result == 0) {
+                skipped++;
+            } else {
+                queued += result;
+            }
+        }
+
+        assertTrue(skipped > 0);
+        assertEquals(skipped, broadcaster.getDroppedMessageCount());
+        slow.gate.countDown();
+        slow.awaitCount(queued);
+        Thread.sleep(100);
+        assertEquals(queued, slow.count());
+        assertTrue(slow.inOrder());
+    }
+
+    @Test
+    public void disconnectClosesTheSlowClient() throws Exception {
+        start(MAX_QUEUED, Broadcaster.SlowConsumerPolicy.DISCONNECT);
+
+        broadcastPaced(MESSAGES);
+
+        assertEquals(1, broadcaster.getDisconnectedCount());
+        assertEquals(1, broadcaster.getConnectionCount());
+        assertEquals(0, broadcaster.getDroppedMessageCount());
+        assertEquals(MESSAGES, fast.count());
+        assertTrue(fast.inOrder());
+        slow.gate.countDown();
+        assertTrue(slow.closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(slow.inOrder());
+    }
+
+    @Test
+    public void blockHoldsUpBroadcastingUntilTheSlowClientReads() throws Exception {
+        start(MAX_QUEUED, Broadcaster.SlowConsumerPolicy.BLOCK);
+        final AtomicInteger broadcasts = new AtomicInteger();
+        final List<Exception> failures = new ArrayList<Exception>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+                    for (int i = 0; i < MESSAGES; i++) {
+                        message.putInt(0, i);
+                        broadcaster.broadcast(message);
+                        broadcasts.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }
+        });
+        thread.start();
+
+        int stalled;
+        do {
+            stalled = broadcasts.get();
+            Thread.sleep(200);
+        } while (broadcasts.get() != stalled);
+        assertTrue(stalled < MESSAGES);
+
+        slow.gate.countDown();
+        thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertTrue(failures.isEmpty());
+        assertEquals(MESSAGES, broadcasts.get());
+        slow.awaitCount(MESSAGES);
+        fast.awaitCount(MESSAGES);
+        assertTrue(slow.inOrder());
+        assertTrue(fast.inOrder());
+        assertEquals(0, broadcaster.getDroppedMessageCount());
+        assertEquals(0, broadcaster.getDisconnectedCount());
+    }
+
+    private void start(int maxQueued, Broadcaster.SlowConsumerPolicy policy) throws Exception {
+        broadcaster = new Broadcaster(serverTransport, maxQueued, policy);
+        final Semaphore joined = new Semaphore(0);
+        int port = serverTransport.listen(0, new RecordingListener() {
+            @Override
+            public void onConnected(Connection connection) {
+                broadcaster.add(connection);
+                accepted.add(connection);
+                joined.release();
+            }
+        }).getLocalPort();
+        fastTransport.connect(TransportTest.loopback(port), fast);
+        assertTrue(joined.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        slowTransport.connect(TransportTest.loopback(port), slow);
+        assertTrue(joined.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    // broadcasts one message at a time to the fast client, so that only the slow one lags
+    private void broadcastPaced(int count) throws Exception {
+        ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+        for (int i = 0; i < count; i++) {
+            message.putInt(0, i);
+            broadcaster.broadcast(message);
+            assertTrue(fast.arrivals.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * A client which records the sequence numbers of the messages it receives. A slow one
+     * holds up its selector thread on its first message until its gate opens.
+     */
+    private static class Client extends RecordingListener {
+        final boolean gated;
+        final CountDownLatch gate = new CountDownLatch(1);
+        final Semaphore arrivals = new Semaphore(0);
+        private final List<Integer> sequence = new ArrayList<Integer>();
+
+        Client(boolean gated) {
+            this.gated = gated;
+        }
+
+        @Override
+        public void onMessage(Connection connection, ByteBuffer message) {
+            if (gated) {
+                try {
+                    gate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (sequence) {
+                sequence.add(message.remaining() == MESSAGE_SIZE ? message.getInt(message.position()) : -1);
+                sequence.notifyAll();
+            }
+            arrivals.release();
+        }
+
+        int count() {
+            synchronized (sequence) {
+                return sequence.size();
+            }
+        }
+
+        boolean inOrder() {
+            synchronized (sequence) {
+                int last = -1;
+                for (int number : sequence) {
+                    if (number <= last) {
+                        return false;
+                    }
+                    last = number;
+                }
+                return true;
+            }
+        }
+
+        void awaitCount(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+            synchronized (sequence) {
+                while (sequence.size() < count && System.currentTimeMillis() < deadline) {
+                    sequence.wait(100);
+                }
+                assertTrue(sequence.size() >= count);
+            }
+        }
+
+        void awaitMessage(int number) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+            synchronized (sequence) {
+                while (!sequence.contains(number) && System.currentTimeMillis() < deadline) {
+                    sequence.wait(100);
+                }
+                assertTrue(sequence.contains(number));
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks files sent with {@link Connection#sendFile} over loopback, and their progress
+ * as reported to both sides.
+ */
+public class FileTransferTest {
+
+    private static final int FILE_SIZE = 3 * 1024 * 1024 + 17;
+    private static final long TIMEOUT_SECONDS = RecordingListener.TIMEOUT_SECONDS;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File received;
+    private Progress receiver;
+    private RecordingListener server;
+    private Transport serverTransport;
+    private Transport clientTransport;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        received = folder.newFolder("received");
+        receiver = new Progress();
+        server = new RecordingListener() {
+            @Override
+            public void onConnected(Connection connection) {
+                connection.setFileReceiver(receiver);
+                super.onConnected(connection);
+            }
+        };
+        serverTransport = new Transport();
+        port = serverTransport.listen(0, server).getLocalPort();
+        clientTransport = new Transport();
+    }
+
+    @After
+    public void tearDown() {
+        clientTransport.close();
+        serverTransport.close();
+    }
+
+    @Test
+    public void aFileSentOnAConnectionClosedStraightAwayArrivesWhole() throws Exception {
+        byte[] data = randomBytes(FILE_SIZE, 1);
+        File file = writeFile("file.bin", data);
+        Progress sender = new Progress();
+        RecordingListener client = new RecordingListener();
+
+        // the way Peer#sendFile uses the connection
+        Connection connection = clientTransport.connect(TransportTest.loopback(port), client);
+        FileTransfer transfer = connection.sendFile(file, sender);
+        connection.close();
+
+        assertTrue(sender.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(receiver.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(transfer.isComplete());
+        assertFalse(transfer.isIncoming());
+        assertEquals(FILE_SIZE, transfer.getBytesTransferred());
+        assertSteady(sender);
+        assertSteady(receiver);
+        assertEquals("file.bin", receiver.transfer.getName());
+        assertTrue(receiver.transfer.isIncoming());
+        assertArrayEquals(data, readFile(new File(received, "file.bin")));
+        assertTrue(client.awaitClosed());
+        assertNull(client.closeCause);
+    }
+
+    @Test
+    public void anEmptyFileArrivesAsAnEmptyFile() throws Exception {
+        File file = writeFile("empty.bin", new byte[0]);
+        Progress sender = new Progress();
+        Connection connection = clientTransport.connect(TransportTest.loopback(port), new RecordingListener());
+
+        connection.sendFile(file, sender);
+
+        assertTrue(sender.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(receiver.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, new File(received, "empty.bin").length());
+    }
+
+    @Test
+    public void aDiscardedFileLeavesTheMessagesAfterItIntact() throws Exception {
+        receiver.refuse = true;
+        File file = writeFile("file.bin", randomBytes(FILE_SIZE, 2));
+        Progress sender = new Progress();
+        Connection connection = clientTransport.connect(TransportTest.loopback(port), new RecordingListener());
+        byte[] message = randomBytes(1000, 3);
+
+        connection.sendFile(file, sender);
+        assertTrue(connection.send(message));
+
+        assertArrayEquals(message, server.nextMessage());
+        assertTrue(sender.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(receiver.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, received.list().length);
+    }
+
+    private static void assertSteady(Progress progress) {
+        assertTrue("No progress was reported", progress.reports > 0);
+        assertFalse("Progress went backwards", progress.wentBackwards);
+        assertEquals(FILE_SIZE, progress.lastProgress);
+    }
+
+    private File writeFile(String name, byte[] data) throws IOException {
+        File file = folder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] randomBytes(int count, long seed) {
+        byte[] data = new byte[count];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Follows one side of a transfer; as a receiver, writes offered files to the
+     * received folder.
+     */
+    private class Progress implements FileReceiver {
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile boolean refuse = false;
+        volatile FileTransfer transfer;
+        volatile int reports = 0;
+        volatile long lastProgress = 0;
+        volatile boolean wentBackwards = false;
+
+        @Override
+        public File onFileOffered(Connection connection, FileTransfer transfer) {
+            this.transfer = transfer;
+            return refuse ? null : new File(received, transfer.getName());
+        }
+
+        @Override
+        public void onTransferProgress(FileTransfer transfer) {
+            long bytes = transfer.getBytesTransferred();
+            if (bytes < lastProgress) {
+                wentBackwards = true;
+            }
+            lastProgress = bytes;
+            reports++;
+        }
+
+        @Override
+        public void onTransferComplete(FileTransfer transfer) {
+            completed.countDown();
+        }
+
+        @Override
+        public void onTransferFailed(FileTransfer transfer, IOException cause) {
+        }
+    }
+}
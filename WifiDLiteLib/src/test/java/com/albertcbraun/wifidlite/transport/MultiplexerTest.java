@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks streams carried by two {@link Multiplexer}s over loopback, and their flow
+ * control windows.
+ */
+public class MultiplexerTest {
+
+    private static final long TIMEOUT_SECONDS = RecordingListener.TIMEOUT_SECONDS;
+
+    private Transport serverTransport;
+    private Transport clientTransport;
+    private Multiplexer multiplexer;
+
+    // stream data received by the "gated" and "bulk" streams, checked against a pattern
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicInteger corrupted = new AtomicInteger();
+    private final CountDownLatch gate = new CountDownLatch(1);
+
+    private final StreamAcceptor acceptor = new StreamAcceptor() {
+        @Override
+        public StreamListener onStreamOpened(Stream stream) {
+            if (stream.getName().equals("refuse")) {
+                return null;
+            }
+            final boolean gated = stream.getName().equals("gated");
+            final boolean bulk = gated || stream.getName().equals("bulk");
+            return new StreamListener() {
+                @Override
+                public void onData(Stream stream, ByteBuffer data) {
+                    if (!bulk) {
+                        stream.write(data);
+                        return;
+                    }
+                    if (gated) {
+                        // holds up the server's selector thread, so that no window is returned
+                        await(gate);
+                    }
+                    long position = received.get();
+                    while (data.hasRemaining()) {
+                        if (data.get() != pattern(position)) {
+                            corrupted.incrementAndGet();
+                        }
+                        position++;
+                    }
+                    received.set(position);
+                }
+
+                @Override
+                public void onDrained(Stream stream) {
+                }
+
+                @Override
+                public void onClosed(Stream stream, IOException cause) {
+                }
+            };
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        serverTransport = new Transport();
+        int port = serverTransport.listen(0, new ConnectionListener() {
+            @Override
+            public void onConnected(Connection connection) {
+                new Multiplexer(connection, acceptor);
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer message) {
+            }
+
+            @Override
+            public void onClosed(Connection connection, IOException cause) {
+            }
+        }).getLocalPort();
+        clientTransport = new Transport();
+        multiplexer = Multiplexer.connect(clientTransport, TransportTest.loopback(port), new RecordingListener(), null);
+    }
+
+    @After
+    public void tearDown() {
+        gate.countDown();
+        clientTransport.close();
+        serverTransport.close();
+    }
+
+    @Test
+    public void aStreamSendsNoMoreThanItsWindowAheadOfTheReceiver() throws Exception {
+        Recorder recorder = new Recorder();
+        Stream stream = multiplexer.openStream("gated", recorder);
+        int total = 4 * Multiplexer.WINDOW_SIZE;
+
+        assertTrue(stream.write(patterned(total)));
+        assertEquals(total - Multiplexer.WINDOW_SIZE, stream.getBufferedBytes());
+        Thread.sleep(100);
+        assertEquals(total - Multiplexer.WINDOW_SIZE, stream.getBufferedBytes());
+        assertEquals(1, recorder.drained.getCount());
+
+        gate.countDown();
+
+        assertTrue(recorder.drained.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, stream.getBufferedBytes());
+        waitForReceived(total);
+        assertEquals(0, corrupted.get());
+    }
+
+    @Test
+    public void aSmallStreamIsNotHeldUpByABulkOne() throws Exception {
+        int total = 32 * Multiplexer.WINDOW_SIZE;
+        Stream bulk = multiplexer.openStream("bulk", new Recorder());
+        Recorder control = new Recorder();
+        Stream echo = multiplexer.openStream("echo", control);
+
+        assertTrue(bulk.write(patterned(total)));
+        assertTrue(echo.write(new byte[]{42}));
+
+        assertTrue(control.data.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(received.get() < total);
+        waitForReceived(total);
+        assertEquals(0, corrupted.get());
+    }
+
+    @Test
+    public void manyStreamsEchoAndCloseCleanly() throws Exception {
+        int count = 200;
+        final CountDownLatch closed = new CountDownLatch(count);
+        final AtomicInteger errors = new AtomicInteger();
+        for (int i = 0; i < count; i++) {
+            final int id = i;
+            Stream stream = multiplexer.openStream("echo" + i, new StreamListener() {
+                @Override
+                public void onData(Stream stream, ByteBuffer data) {
+                    if (data.remaining() != 4 || data.getInt() != id) {
+                        errors.incrementAndGet();
+                    }
+                    stream.close();
+                }
+
+                @Override
+                public void onDrained(Stream stream) {
+                }
+
+                @Override
+                public void onClosed(Stream stream, IOException cause) {
+                    if (cause != null) {
+                        errors.incrementAndGet();
+                    }
+                    closed.countDown();
+                }
+            });
+            ByteBuffer data = ByteBuffer.allocate(4);
+            data.putInt(id).flip();
+            assertTrue(stream.write(data));
+        }
+
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, errors.get());
+        assertEquals(0, multiplexer.getStreamCount());
+    }
+
+    @Test
+    public void aRefusedStreamIsReset() throws Exception {
+        Recorder recorder = new Recorder();
+        Stream stream = multiplexer.openStream("refuse", recorder);
+
+        assertTrue(recorder.closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNotNull(recorder.cause);
+        assertFalse(stream.isOpen());
+        assertFalse(stream.write(new byte[1]));
+    }
+
+    @Test
+    public void closingTheConnectionFailsOpenStreams() throws Exception {
+        Recorder recorder = new Recorder();
+        multiplexer.openStream("echo", recorder);
+        Recorder closing = new Recorder();
+        Stream stream = multiplexer.openStream("echo", closing);
+        stream.close();
+        assertTrue(closing.closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(closing.cause);
+
+        multiplexer.close();
+
+        assertTrue(recorder.closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNotNull(recorder.cause);
+    }
+
+    private void waitForReceived(long total) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (received.get() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(total, received.get());
+    }
+
+    private static byte pattern(long position) {
+        return (byte) (position * 31 + (position >> 8));
+    }
+
+    private static byte[] patterned(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = pattern(i);
+        }
+        return data;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A client stream's listener.
+     */
+    private static class Recorder implements StreamListener {
+        final CountDownLatch data = new CountDownLatch(1);
+        final CountDownLatch drained = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile IOException cause;
+
+        @Override
+        public void onData(Stream stream, ByteBuffer data) {
+            this.data.countDown();
+        }
+
+        @Override
+        public void onDrained(Stream stream) {
+            drained.countDown();
+        }
+
+        @Override
+        public void onClosed(Stream stream, IOException cause) {
+            this.cause = cause;
+            closed.countDown();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ConnectionListener} which keeps copies of the messages it receives, for
+ * tests to wait on.
+ */
+class RecordingListener implements ConnectionListener {
+
+    static final long TIMEOUT_SECONDS = 10;
+
+    final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<byte[]>();
+    final CountDownLatch connected = new CountDownLatch(1);
+    final CountDownLatch closed = new CountDownLatch(1);
+    volatile Connection connection;
+    volatile IOException closeCause;
+
+    @Override
+    public void onConnected(Connection connection) {
+        this.connection = connection;
+        connected.countDown();
+    }
+
+    @Override
+    public void onMessage(Connection connection, ByteBuffer message) {
+        byte[] copy = new byte[message.remaining()];
+        message.get(copy);
+        messages.add(copy);
+    }
+
+    @Override
+    public void onClosed(Connection connection, IOException cause) {
+        closeCause = cause;
+        closed.countDown();
+    }
+
+    /**
+     * @return the next message, or null if none arrives in time
+     */
+    byte[] nextMessage() throws InterruptedException {
+        return messages.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    boolean awaitConnected() throws InterruptedException {
+        return connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    boolean awaitClosed() throws InterruptedException {
+        return closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
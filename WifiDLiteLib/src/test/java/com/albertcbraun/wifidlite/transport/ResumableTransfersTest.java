@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks chunked transfers between two {@link ResumableTransfers} over loopback: their
+ * manifests, resuming after a dropped link, and chunks which fail their checksum.
+ */
+public class ResumableTransfersTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILE_SIZE = 16 * CHUNK_SIZE + 123;
+    private static final long TIMEOUT_SECONDS = RecordingListener.TIMEOUT_SECONDS;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File senderState;
+    private File receiverState;
+    private File received;
+    private Receiver receiver;
+    private volatile ResumableTransfers receiving;
+    private ResumableTransfers sending;
+    private Transport serverTransport;
+    private Transport clientTransport;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        senderState = folder.newFolder("sender");
+        receiverState = folder.newFolder("receiver");
+        received = folder.newFolder("received");
+        receiver = new Receiver();
+        receiving = new ResumableTransfers(receiverState, receiver, CHUNK_SIZE);
+        sending = new ResumableTransfers(senderState, null, CHUNK_SIZE);
+        serverTransport = new Transport();
+        port = serverTransport.listen(0, new ConnectionListener() {
+            @Override
+            public void onConnected(Connection connection) {
+                receiving.attach(connection);
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer message) {
+            }
+
+            @Override
+            public void onClosed(Connection connection, IOException cause) {
+            }
+        }).getLocalPort();
+        clientTransport = new Transport();
+    }
+
+    @After
+    public void tearDown() {
+        sending.close();
+        receiving.close();
+        clientTransport.close();
+        serverTransport.close();
+    }
+
+    @Test
+    public void aTransferOverSeveralConnectionsCompletesAndRemovesItsManifests() throws Exception {
+        byte[] data = randomBytes(FILE_SIZE, 1);
+        File file = writeFile("file.bin", data);
+        Sender sender = new Sender();
+
+        sending.send(file, connect(clientTransport, 3), sender);
+
+        assertTrue(sender.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(receiver.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertArrayEquals(data, readFile(new File(received, "file.bin")));
+        assertEquals(0, senderState.list().length);
+        assertEquals(0, receiverState.list().length);
+    }
+
+    @Test
+    public void aTransferResumesWithTheChunksTheReceiverLacks() throws Exception {
+        byte[] data = randomBytes(FILE_SIZE, 2);
+        File file = writeFile("file.bin", data);
+        final Transport dropped = new Transport();
+        // drop the link once the receiver holds its first chunk, and hold up the receiver's
+        // checksum thread until it has noticed, so that no further chunk is recorded
+        receiver.onFirstChunk = new Runnable() {
+            @Override
+            public void run() {
+                dropped.close();
+                await(receiver.failed);
+            }
+        };
+        Sender interrupted = new Sender();
+        sending.send(file, connect(dropped, 1), interrupted);
+
+        assertTrue(interrupted.failed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(receiver.failed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, senderState.list().length);
+        assertEquals(1, receiverState.list().length);
+
+        // as if the receiving app had restarted
+        receiving.close();
+        receiving = new ResumableTransfers(receiverState, receiver, CHUNK_SIZE);
+        Sender resumed = new Sender();
+        sending.send(file, connect(clientTransport, 2), resumed);
+
+        assertTrue(resumed.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(receiver.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(resumed.firstProgress >= CHUNK_SIZE);
+        assertTrue(resumed.firstProgress < FILE_SIZE);
+        assertEquals(1, receiver.offers);
+        assertArrayEquals(data, readFile(new File(received, "file.bin")));
+        assertEquals(0, senderState.list().length);
+        assertEquals(0, receiverState.list().length);
+    }
+
+    @Test
+    public void chunksWhichKeepFailingTheirChecksumFailTheTransfer() throws Exception {
+        byte[] data = randomBytes(FILE_SIZE, 3);
+        File file = writeFile("file.bin", data);
+        long lastModified = file.lastModified();
+
+        // a refused offer leaves the checksums of the original content in the sender's manifest
+        receiver.refuse = true;
+        Sender refused = new Sender();
+        sending.send(file, connect(clientTransport, 1), refused);
+        assertTrue(refused.failed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, senderState.list().length);
+
+        // change one chunk without changing the file's identity, so the cached checksum is stale
+        RandomAccessFile corrupt = new RandomAccessFile(file, "rw");
+        try {
+            corrupt.seek(CHUNK_SIZE + 100);
+            corrupt.write(data[CHUNK_SIZE + 100] ^ 1);
+        } finally {
+            corrupt.close();
+        }
+        assertTrue(file.setLastModified(lastModified));
+
+        receiver.refuse = false;
+        Sender sender = new Sender();
+        sending.send(file, connect(clientTransport, 1), sender);
+
+        assertTrue(receiver.failed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(sender.failed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, receiver.completed.getCount());
+        assertTrue(receiver.failure.getMessage().contains("checksum"));
+    }
+
+    @Test
+    public void anOfferTooLargeForTheConnectionIsRefusedUpFront() throws Exception {
+        File file = writeFile("file.bin", new byte[1000]);
+        ResumableTransfers tinyChunks = new ResumableTransfers(senderState, null, 1);
+        Transport small = new Transport(1024);
+        try {
+            List<Connection> connections = connect(small, 1);
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try {
+                    tinyChunks.send(file, connections, new Sender());
+                    fail("An offer of 1000 checksums was sent over a connection limited to 1024 bytes");
+                } catch (IllegalArgumentException expected) {
+                    // expected, and not "already being sent" on the second attempt
+                }
+            }
+        } finally {
+            tinyChunks.close();
+            small.close();
+        }
+    }
+
+    private List<Connection> connect(Transport transport, int count) throws IOException {
+        List<Connection> connections = new ArrayList<Connection>();
+        for (int i = 0; i < count; i++) {
+            connections.add(transport.connect(TransportTest.loopback(port), new RecordingListener()));
+        }
+        return connections;
+    }
+
+    private File writeFile(String name, byte[] data) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] randomBytes(int count, long seed) {
+        byte[] data = new byte[count];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The sending side's listener.
+     */
+    private static class Sender implements FileTransferListener {
+        final CountDownLatch completed = new CountDownLatch(1);
+        final CountDownLatch failed = new CountDownLatch(1);
+        volatile long firstProgress = -1;
+
+        @Override
+        public void onTransferProgress(FileTransfer transfer) {
+            if (firstProgress < 0) {
+                firstProgress = transfer.getBytesTransferred();
+            }
+        }
+
+        @Override
+        public void onTransferComplete(FileTransfer transfer) {
+            completed.countDown();
+        }
+
+        @Override
+        public void onTransferFailed(FileTransfer transfer, IOException cause) {
+            failed.countDown();
+        }
+    }
+
+    /**
+     * The receiving side, which writes offered files to the received folder.
+     */
+    private class Receiver implements FileReceiver {
+        final CountDownLatch completed = new CountDownLatch(1);
+        final CountDownLatch failed = new CountDownLatch(1);
+        volatile boolean refuse = false;
+        volatile Runnable onFirstChunk;
+        volatile int offers = 0;
+        volatile IOException failure;
+
+        @Override
+        public File onFileOffered(Connection connection, FileTransfer transfer) {
+            if (refuse) {
+                return null;
+            }
+            offers++;
+            return new File(received, transfer.getName());
+        }
+
+        @Override
+        public void onTransferProgress(FileTransfer transfer) {
+            Runnable hook = onFirstChunk;
+            if (hook != null && transfer.getBytesTransferred() > 0) {
+                onFirstChunk = null;
+                hook.run();
+            }
+        }
+
+        @Override
+        public void onTransferComplete(FileTransfer transfer) {
+            completed.countDown();
+        }
+
+        @Override
+        public void onTransferFailed(FileTransfer transfer, IOException cause) {
+            failure = cause;
+            failed.countDown();
+        }
+    }
+}
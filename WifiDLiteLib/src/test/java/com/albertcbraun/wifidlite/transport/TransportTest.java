@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2014 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.wifidlite.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks message framing between two {@link Transport}s over loopback.
+ */
+public class TransportTest {
+
+    private static final int SMALL_MAX_MESSAGE_SIZE = 1024;
+    private static final int EARLY_CLOSE_ATTEMPTS = 20;
+
+    private Transport serverTransport;
+    private Transport clientTransport;
+
+    private final ConnectionListener echo = new ConnectionListener() {
+        @Override
+        public void onConnected(Connection connection) {
+        }
+
+        @Override
+        public void onMessage(Connection connection, ByteBuffer message) {
+            connection.send(message);
+        }
+
+        @Override
+        public void onClosed(Connection connection, IOException cause) {
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        serverTransport = new Transport();
+        clientTransport = new Transport();
+    }
+
+    @After
+    public void tearDown() {
+        clientTransport.close();
+        serverTransport.close();
+    }
+
+    @Test
+    public void messagesOfEverySizeArriveWholeAndInOrder() throws Exception {
+        Server server = serverTransport.listen(0, echo);
+        RecordingListener client = new RecordingListener();
+        Connection connection = clientTransport.connect(loopback(server.getLocalPort()), client);
+
+        // empty, smaller and larger than a pooled buffer, and larger than a socket read
+        int[] sizes = {0, 1, 255, 4096, 70000, BufferPool.MAX_BUFFER_SIZE + 3};
+        Random random = new Random(1);
+        byte[][] sent = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            sent[i] = new byte[sizes[i]];
+            random.nextBytes(sent[i]);
+            assertTrue(connection.send(sent[i]));
+        }
+        for (byte[] message : sent) {
+            byte[] received = client.nextMessage();
+            assertNotNull("Echo did not arrive", received);
+            assertArrayEquals(message, received);
+        }
+    }
+
+    @Test
+    public void sendingFromTheBufferPositionLeavesTheBufferReusable() throws Exception {
+        Server server = serverTransport.listen(0, echo);
+        RecordingListener client = new RecordingListener();
+        Connection connection = clientTransport.connect(loopback(server.getLocalPort()), client);
+
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.put(new byte[]{9, 9, 1, 2, 3, 4, 9, 9});
+        buffer.position(2).limit(6);
+        assertTrue(connection.send(buffer));
+        buffer.clear();
+        buffer.put(new byte[8]);
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, client.nextMessage());
+    }
+
+    @Test
+    public void sendingAnOversizeMessageThrows() throws Exception {
+        Transport small = new Transport(SMALL_MAX_MESSAGE_SIZE);
+        try {
+            Server server = serverTransport.listen(0, echo);
+            RecordingListener client = new RecordingListener();
+            Connection connection = small.connect(loopback(server.getLocalPort()), client);
+            assertTrue(connection.send(new byte[SMALL_MAX_MESSAGE_SIZE]));
+            try {
+                connection.send(new byte[SMALL_MAX_MESSAGE_SIZE + 1]);
+                fail("An oversize message was queued");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+            assertArrayEquals(new byte[SMALL_MAX_MESSAGE_SIZE], client.nextMessage());
+        } finally {
+            small.close();
+        }
+    }
+
+    @Test
+    public void receivingAnOversizeFrameClosesTheConnection() throws Exception {
+        Transport small = new Transport(SMALL_MAX_MESSAGE_SIZE);
+        Socket socket = null;
+        try {
+            RecordingListener server = new RecordingListener();
+            int port = small.listen(0, server).getLocalPort();
+            socket = new Socket("127.0.0.1", port);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeByte(Connection.MESSAGE_FRAME);
+            out.writeInt(SMALL_MAX_MESSAGE_SIZE + 1);
+            out.flush();
+
+            assertTrue(server.awaitClosed());
+            assertNotNull(server.closeCause);
+            assertTrue(server.messages.isEmpty());
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+            small.close();
+        }
+    }
+
+    @Test
+    public void anOrderlyCloseIsReportedWithoutACause() throws Exception {
+        RecordingListener server = new RecordingListener();
+        int port = serverTransport.listen(0, server).getLocalPort();
+        RecordingListener client = new RecordingListener();
+        Connection connection = clientTransport.connect(loopback(port), client);
+        assertTrue(server.awaitConnected());
+
+        connection.close();
+
+        assertTrue(client.awaitClosed());
+        assertTrue(server.awaitClosed());
+        assertNull(server.closeCause);
+        assertFalse(connection.isOpen());
+        assertFalse(connection.send(new byte[1]));
+    }
+
+    @Test
+    public void closingBeforeTheConnectionIsEstablishedStillWritesWhatWasQueued() throws Exception {
+        RecordingListener server = new RecordingListener();
+        int port = serverTransport.listen(0, server).getLocalPort();
+        byte[] message = new byte[70000];
+        new Random(2).nextBytes(message);
+
+        for (int i = 0; i < EARLY_CLOSE_ATTEMPTS; i++) {
+            // hold the selector thread so that connecting, sending and closing all queue up
+            final CountDownLatch release = new CountDownLatch(1);
+            clientTransport.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            RecordingListener client = new RecordingListener();
+            Connection connection = clientTransport.connect(loopback(port), client);
+            assertTrue(connection.send(message));
+            connection.close();
+            release.countDown();
+
+            assertArrayEquals(message, server.nextMessage());
+            assertTrue(client.awaitClosed());
+            assertNull(client.closeCause);
+        }
+    }
+
+    @Test
+    public void aRefusedConnectionIsReportedAsClosed() throws Exception {
+        ServerSocket unused = new ServerSocket(0);
+        int port = unused.getLocalPort();
+        unused.close();
+
+        RecordingListener client = new RecordingListener();
+        clientTransport.connect(loopback(port), client);
+
+        assertTrue(client.awaitClosed());
+        assertNotNull(client.closeCause);
+        assertEquals(1, client.connected.getCount());
+    }
+
+    static InetSocketAddress loopback(int port) {
+        return new InetSocketAddress("127.0.0.1", port);
+    }
+}